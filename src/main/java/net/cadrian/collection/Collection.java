@@ -2,6 +2,7 @@ package net.cadrian.collection;
 
 import net.cadrian.incentive.DBC;
 import net.cadrian.incentive.Ensure;
+import net.cadrian.incentive.Pure;
 import net.cadrian.incentive.Require;
 
 /**
@@ -22,6 +23,7 @@ public interface Collection<G> extends Iterable<G> {
      * <code>false</code> otherwise
      */
     @Ensure("(count() > 0) || !{result}")
+    @Pure
     boolean has(G element);
 
     /**
@@ -29,6 +31,7 @@ public interface Collection<G> extends Iterable<G> {
      * @return the index-th element in the collection
      */
     @Require("{arg 1} >= 0 && {arg 1} < count()")
+    @Pure
     public G item(int index);
 
     /**
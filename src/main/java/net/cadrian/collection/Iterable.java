@@ -3,6 +3,7 @@ package net.cadrian.collection;
 import net.cadrian.incentive.DBC;
 import net.cadrian.incentive.Ensure;
 import net.cadrian.incentive.Invariant;
+import net.cadrian.incentive.Pure;
 import net.cadrian.incentive.Require;
 
 @DBC
@@ -12,6 +13,7 @@ public interface Iterable<G> {
     /**
      * @return the number of elements in the collection
      */
+    @Pure
     public int count();
 
     /**
@@ -19,6 +21,7 @@ public interface Iterable<G> {
      * changed (data added or removed). An Iterator will work only
      * until the generation changes.
      */
+    @Pure
     public int generation();
 
     /**
@@ -26,6 +29,7 @@ public interface Iterable<G> {
      *         otherwise
      */
     @Ensure("{result} == (count() == 0)")
+    @Pure
     public boolean isEmpty();
 
     /**
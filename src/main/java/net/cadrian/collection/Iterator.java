@@ -2,6 +2,7 @@ package net.cadrian.collection;
 
 import net.cadrian.incentive.DBC;
 import net.cadrian.incentive.Ensure;
+import net.cadrian.incentive.Pure;
 import net.cadrian.incentive.Require;
 
 /**
@@ -18,6 +19,7 @@ public interface Iterator<G> extends Iterable<G> {
      * (i.e. the generation of the spawning Iterable did not change),
      * <code>false</code> otherwise
      */
+    @Pure
     boolean isValid();
 
     /**
@@ -29,6 +31,7 @@ public interface Iterator<G> extends Iterable<G> {
 
     @Require({"isValid()", "!isEmpty()"})
     @Ensure("count() == {old count()}")
+    @Pure
     G item();
 
     @Ensure("isEmpty()")
@@ -3,6 +3,7 @@ package net.cadrian.collection;
 import net.cadrian.incentive.DBC;
 import net.cadrian.incentive.Ensure;
 import net.cadrian.incentive.Invariant;
+import net.cadrian.incentive.Pure;
 import net.cadrian.incentive.Require;
 
 @DBC
@@ -19,6 +20,7 @@ public interface Map<K, V> extends Iterable<MapEntry<K, V>> {
      * <code>false</code> otherwise
      */
     @Ensure("(count() > 0) || !{result}")
+    @Pure
     boolean has(K key);
 
     /**
@@ -26,6 +28,7 @@ public interface Map<K, V> extends Iterable<MapEntry<K, V>> {
      * @return the index-th element in the collection
      */
     @Require("{arg 1} >= 0 && {arg 1} < count()")
+    @Pure
     public MapEntry<K, V> item(int index);
 
     /**
@@ -47,6 +50,7 @@ public interface Map<K, V> extends Iterable<MapEntry<K, V>> {
      * @return the value at the given key
      */
     @Require("has({arg 1})")
+    @Pure
     V at(K key);
 
     /**
@@ -55,6 +59,7 @@ public interface Map<K, V> extends Iterable<MapEntry<K, V>> {
      * @return the value at the given key
      */
     @Ensure("!has({arg 1}) || {result} == at({arg 1})")
+    @Pure
     V ref(K key);
 
     /**
@@ -64,6 +69,7 @@ public interface Map<K, V> extends Iterable<MapEntry<K, V>> {
      */
     @Require("{arg 1} >= 0 && {arg 1} < count()")
     @Ensure("{result} == item({arg 1}).key")
+    @Pure
     K key(int index);
 
     /**
@@ -73,6 +79,7 @@ public interface Map<K, V> extends Iterable<MapEntry<K, V>> {
      */
     @Require("{arg 1} >= 0 && {arg 1} < count()")
     @Ensure("{result} == item({arg 1}).value")
+    @Pure
     V value(int index);
 
     /**
@@ -80,6 +87,7 @@ public interface Map<K, V> extends Iterable<MapEntry<K, V>> {
      */
     @Ensure({"{result}.count() == count()",
             "{forall(K k: {result}) has(k)}"})
+    @Pure
     Set<K> keySet();
 
     /**
@@ -87,6 +95,7 @@ public interface Map<K, V> extends Iterable<MapEntry<K, V>> {
      */
     @Ensure({"{result}.count() == count()",
             "{forall(V v: {result}) {exists(K k: keySet()) at(k) == v}}"})
+    @Pure
     Collection<V> values();
 
 }
@@ -2,6 +2,7 @@ package net.cadrian.collection;
 
 import net.cadrian.incentive.DBC;
 import net.cadrian.incentive.Ensure;
+import net.cadrian.incentive.Pure;
 import net.cadrian.incentive.Require;
 
 @DBC
@@ -15,6 +16,7 @@ public interface Set<G> extends Collection<G> {
     @Require({"{arg 1} != null",
             "has({arg 1})"})
     @Ensure("{result}.equals({arg 1})")
+    @Pure
     G at(G element);
 
     /**
@@ -24,6 +26,7 @@ public interface Set<G> extends Collection<G> {
      */
     @Require("{arg 1} != null")
     @Ensure("!has({arg 1}) || {result}.equals({arg 1})")
+    @Pure
     G ref(G element);
 
 }
@@ -2,6 +2,7 @@ package net.cadrian.collection;
 
 import net.cadrian.incentive.DBC;
 import net.cadrian.incentive.Ensure;
+import net.cadrian.incentive.Pure;
 import net.cadrian.incentive.Require;
 
 /**
@@ -19,6 +20,7 @@ public interface Stack<G> extends Collection<G> {
      * @return the top element of the stack
      */
     @Ensure("{result} == item(count()-1)")
+    @Pure
     public G top();
 
     /**
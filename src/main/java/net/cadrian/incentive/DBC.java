@@ -32,4 +32,11 @@ public @interface DBC {
      * Set to true to skip contracts on that class.
      */
     boolean skip() default false;
+
+    /**
+     * Set to <i>N</i> to only check the contracts of one call out of <i>N</i>
+     * (per method, per thread); 0 means the <code>sample</code> agent option
+     * (by default, all the calls are checked).
+     */
+    int sample() default 0;
 }
@@ -25,6 +25,14 @@ import java.lang.annotation.Target;
  * This annotation marks a method as "pure", i.e. the method is a command that
  * does not modify its target
  *
+ * A method declared pure by an interface is pure in all the classes that
+ * implement it: the invariant is not checked after it (see the
+ * <code>outermost_invariant</code> option), and its calls may be shared by the
+ * clauses of a contract. Only a query that does not change the state of any
+ * implementation should be declared pure by an interface; the queries of the
+ * collection interfaces (e.g. <code>Iterable.count()</code>,
+ * <code>Iterator.item()</code>) are.
+ *
  * @author cadrian
  */
 @Retention(RetentionPolicy.CLASS)
@@ -16,25 +16,36 @@
 package net.cadrian.incentive.assist;
 
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javassist.CannotCompileException;
 import javassist.ClassPool;
 import javassist.compiler.CompileError;
 import javassist.CtBehavior;
 import javassist.CtClass;
+import javassist.CtConstructor;
 import javassist.CtMethod;
 import javassist.CtNewMethod;
+import javassist.CtPrimitiveType;
 import javassist.Modifier;
 import javassist.NotFoundException;
+import javassist.bytecode.Descriptor;
 
 import net.cadrian.incentive.assist.assertion.EnsureAssertion;
 import net.cadrian.incentive.assist.assertion.RequireAssertion;
+import net.cadrian.incentive.assist.visitor.BytecodeGenerator;
 import net.cadrian.incentive.assist.visitor.CodeGenerator;
 import net.cadrian.incentive.Ensure;
 import net.cadrian.incentive.error.EnsureError;
 import net.cadrian.incentive.error.RequireError;
+import net.cadrian.incentive.runtime.Checks;
+import net.cadrian.incentive.runtime.Sampler;
+import net.cadrian.incentive.runtime.Throttle;
 import net.cadrian.incentive.Require;
 
 import org.slf4j.Logger;
@@ -43,17 +54,29 @@ import org.slf4j.LoggerFactory;
 public abstract class BehaviorInstrumentor {
     private static final Logger LOG = LoggerFactory.getLogger(BehaviorInstrumentor.class);
 
-    public static final String OLD_LOCAL_VAR = "__incentive_old__";
-
-    @SuppressWarnings("boxing")
-    static final String OLD_CLASS_NAME(final CtClass parent, final int index) {
-        return String.format("%s.__incentive_%s_old%d__", parent.getPackageName(), parent.getSimpleName(), index);
+    public static final String SAMPLED_LOCAL_VAR = "__incentive_sampled__";
+    public static final String SAMPLER_NAME = Sampler.class.getName();
+    public static final String THROTTLE_NAME = Throttle.class.getName();
+    public static final String TIME_LOCAL_VAR = "__incentive_time__";
+    public static final String CONTRACT_TIME_LOCAL_VAR = "__incentive_contract_time__";
+
+    /**
+     * The JVM limit of the parameter slots of a method (including
+     * <code>this</code>)
+     */
+    private static final int MAX_PARAMETER_SLOTS = 255;
+
+    /**
+     * @return the local of the behavior that keeps the given old value
+     */
+    public static final String OLD_VALUE_LOCAL_VAR(final String fieldName) {
+        return "__incentive_" + fieldName + "__";
     }
 
-    private final String oldClassName;
-
     public static final String POSTCONDITION_ERROR_NAME = EnsureError.class.getName();
     public static final String PRECONDITION_ERROR_NAME = RequireError.class.getName();
+    public static final String REQUIRE_SWITCH = Checks.class.getName() + ".REQUIRE";
+    public static final String ENSURE_SWITCH = Checks.class.getName() + ".ENSURE";
 
     protected abstract String getPreconditionName();
 
@@ -74,113 +97,380 @@ public abstract class BehaviorInstrumentor {
 
     final Instrumentor instrumentor;
 
-    public final CtClass oldValuesClass;
     public CtMethod precondition;
     public CtMethod postcondition;
 
-    private final RequireAssertion preconditionAssertion;
-    private final EnsureAssertion postconditionAssertion;
-
-    public BehaviorInstrumentor(final ClassInstrumentor a_classInstrumentor, final CtBehavior a_behavior, final ClassPool a_pool, final int a_oldClassIndex)
+    /**
+     * The contracts, gathered only once (and only if needed: by this behavior
+     * or by the same behavior in a heir class)
+     */
+    private RequireAssertion preconditionAssertion;
+    private EnsureAssertion postconditionAssertion;
+
+    /**
+     * See {@link #getSampled()}
+     */
+    private String sampled;
+
+    /**
+     * The types of the old values of the postcondition, by name; they are
+     * kept in locals of the behavior, and given to the postcondition as
+     * parameters
+     */
+    private Map<String, CtClass> oldValues = Collections.emptyMap();
+    private String oldValuesCode;
+
+    /**
+     * <code>true</code> if the old values are too many to be given one by
+     * one: they are given to the postcondition in a single array (allocated
+     * by each checked call)
+     */
+    private boolean oldValuesBoxed;
+
+    public BehaviorInstrumentor(final ClassInstrumentor a_classInstrumentor, final CtBehavior a_behavior, final ClassPool a_pool)
         throws ClassNotFoundException, NotFoundException {
         this.classInstrumentor = a_classInstrumentor;
         this.instrumentor = a_classInstrumentor.instrumentor;
         this.behavior = a_behavior;
         this.pool = a_pool;
         this.targetClass = a_behavior.getDeclaringClass();
+    }
 
-        this.oldClassName = OLD_CLASS_NAME(targetClass, a_oldClassIndex);
-        if (targetClass.isFrozen()) {
-            this.oldValuesClass = null;
-        }
-        else {
-            final CtClass oldClass = Instrumentor.mainPool.getOrNull(oldClassName);
-            if (oldClass == null) {
-                this.oldValuesClass = Instrumentor.mainPool.makeClass(oldClassName);
+    /**
+     * @return the precondition of this behavior: its own, and the inherited
+     *         ones (in the order of the class parents)
+     */
+    synchronized RequireAssertion getPreconditionAssertion() throws ClassNotFoundException, NotFoundException {
+        if (preconditionAssertion == null) {
+            final RequireAssertion result = new RequireAssertion(this);
+            for (final ClassInstrumentor parent : classInstrumentor.getParents()) {
+                final BehaviorInstrumentor parentBehavior = parent.getBehavior(getKey());
+                if (parentBehavior != null) {
+                    result.addAll(parentBehavior.getPreconditionAssertion());
+                }
+            }
+
+            final ContractIndex.Behavior indexed = classInstrumentor.getIndexedBehavior(getKey());
+            if (indexed != null) {
+                result.add(targetClass, indexed.require);
             } else {
-                this.oldValuesClass = oldClass;
+                final Require require = (Require) getPrecursor().getAnnotation(Require.class);
+                if (require != null) {
+                    for (final String assertion: require.value()) {
+                        result.add(targetClass, assertion);
+                    }
+                }
             }
+            preconditionAssertion = result;
         }
-
-        preconditionAssertion = new RequireAssertion(this);
-        postconditionAssertion = new EnsureAssertion(this);
+        return preconditionAssertion;
     }
 
-    private void gatherPreconditions(final Set<CtClass> classes, final RequireAssertion preconditionAssertion) throws ClassNotFoundException, NotFoundException {
-        if (classes.contains(targetClass)) return;
-        classes.add(targetClass);
+    /**
+     * @return the postcondition of this behavior: its own, and the inherited
+     *         ones (in the order of the class parents)
+     */
+    synchronized EnsureAssertion getPostconditionAssertion() throws ClassNotFoundException, NotFoundException {
+        if (postconditionAssertion == null) {
+            final EnsureAssertion result = new EnsureAssertion(this);
+            for (final ClassInstrumentor parent : classInstrumentor.getParents()) {
+                final BehaviorInstrumentor parentBehavior = parent.getBehavior(getKey());
+                if (parentBehavior != null) {
+                    result.addAll(parentBehavior.getPostconditionAssertion());
+                }
+            }
 
-        for (final ClassInstrumentor parent : classInstrumentor.getParents()) {
-            final BehaviorInstrumentor parentBehavior = parent.getBehavior(getKey());
-            if (parentBehavior != null) {
-                parentBehavior.gatherPreconditions(classes, preconditionAssertion);
+            final ContractIndex.Behavior indexed = classInstrumentor.getIndexedBehavior(getKey());
+            if (indexed != null) {
+                result.add(targetClass, indexed.ensure);
+            } else {
+                final Ensure ensure = (Ensure) getPrecursor().getAnnotation(Ensure.class);
+                if (ensure != null) {
+                    for (final String assertion: ensure.value()) {
+                        result.add(targetClass, assertion);
+                    }
+                }
             }
+            postconditionAssertion = result;
+        }
+        return postconditionAssertion;
+    }
+
+    void instrument() throws CannotCompileException, NotFoundException, ClassNotFoundException, CompileError, IOException {
+        final InstrumentorMetrics metrics = instrumentor.metrics;
+        final long gatherStart = metrics.start();
+        getPreconditionAssertion();
+        getPostconditionAssertion();
+        metrics.end(InstrumentorMetrics.Phase.gather, gatherStart);
+
+        // a hooked contract is already defined and called (e.g. the class
+        // was instrumented before with a lower check level)
+        final boolean ensureChecked = Option.ensure_check.isChecked() && !InstrumentorUtil.hasHook(behavior, InstrumentorUtil.Hook.postcondition);
+        if (ensureChecked) {
+            prepareOldValues();
+        }
+        if (Option.require_check.isChecked() && !InstrumentorUtil.hasHook(behavior, InstrumentorUtil.Hook.precondition)) {
+            definePreconditionMethod();
+        }
+        if (ensureChecked) {
+            definePostconditionMethod();
         }
 
-        final Require require = (Require) getPrecursor().getAnnotation(Require.class);
-        if (require != null) {
-            for (final String assertion: require.value()) {
-                preconditionAssertion.add(targetClass, assertion);
+        // NOTE! insert() adds code at the very start of the bytecode block;
+        // hence insert the precondition check before the invariant check
+        final long compilationStart = metrics.start();
+        final boolean preconditionCalled = isCalled(precondition, InstrumentorUtil.Hook.precondition);
+        final boolean postconditionCalled = isCalled(postcondition, InstrumentorUtil.Hook.postcondition);
+        if ((preconditionCalled || postconditionCalled || classInstrumentor.hasClassInvariantCall(behavior))
+            && (classInstrumentor.getSample() > 1 || Option.throttle.isSet())) {
+            sampled = SAMPLED_LOCAL_VAR;
+            behavior.addLocalVariable(SAMPLED_LOCAL_VAR, CtClass.booleanType);
+            if (Option.throttle.isSet()) {
+                insertBodyTimers();
             }
         }
+
+        if (postconditionCalled && !oldValues.isEmpty()) {
+            insertOldValues();
+        }
+        if (preconditionCalled) {
+            insertMethodPreconditionCall();
+        }
+        insertClassInvariantCall(true);
+
+        if (postconditionCalled) {
+            insertMethodPostconditionCall();
+        }
+        insertClassInvariantCall(false);
+
+        if (sampled != null) {
+            // the very first and last things: all the checks of the call
+            // depend on them
+            insertSamplerCall();
+        }
+        metrics.end(InstrumentorMetrics.Phase.compilation, compilationStart);
     }
 
-    private void gatherPostconditions(final Set<CtClass> classes, final EnsureAssertion postconditionAssertion) throws ClassNotFoundException, NotFoundException {
-        if (classes.contains(targetClass)) return;
-        classes.add(targetClass);
+    /**
+     * @return the local variable that tells if the current call is sampled
+     *         (i.e. checks its contracts), or <code>null</code> if all the
+     *         calls are checked
+     */
+    String getSampled() {
+        return sampled;
+    }
 
-        for (final ClassInstrumentor parent : classInstrumentor.getParents()) {
-            final BehaviorInstrumentor parentBehavior = parent.getBehavior(getKey());
-            if (parentBehavior != null) {
-                parentBehavior.gatherPostconditions(classes, postconditionAssertion);
-            }
+    /**
+     * @return the unique name of the behavior, also a compile-time constant
+     *         of the instrumented code (see {@link Throttle})
+     */
+    private String getSiteName() {
+        return targetClass.getName() + "." + getKey();
+    }
+
+    private void insertSamplerCall() throws CannotCompileException {
+        final Integer site = Integer.valueOf(Sampler.site(targetClass.getName(), getKey()));
+        final Integer period = Integer.valueOf(classInstrumentor.getSample());
+        final String code;
+        if (Option.throttle.isSet()) {
+            code = String.format("{%s=%s.sample(%d,\"%s\",%d,%s);%s=%s?System.nanoTime():0L;}", SAMPLED_LOCAL_VAR, THROTTLE_NAME, site, getSiteName(), period,
+                                 Double.toString(Option.throttle.getDoubleValue(Throttle.DEFAULT_RATIO)), TIME_LOCAL_VAR, SAMPLED_LOCAL_VAR);
+            final String endCode = String.format("if(%s)%s.end(%d,\"%s\",%s,%s);", SAMPLED_LOCAL_VAR, THROTTLE_NAME, site, getSiteName(), CONTRACT_TIME_LOCAL_VAR,
+                                                 TIME_LOCAL_VAR);
+            behavior.insertAfter(endCode);
+            LOG.debug(" ** added throttle end call to {}: {}", behavior.getName(), endCode);
+        } else {
+            code = String.format("%s=%s.sample(%d,\"%s\",%d);", SAMPLED_LOCAL_VAR, SAMPLER_NAME, site, getSiteName(), period);
         }
+        behavior.insertBefore(code);
+        LOG.debug(" ** added sampler call to {}: {}", behavior.getName(), code);
+    }
+
+    /**
+     * Measure the time spent in the body (as opposed to the contracts) of
+     * the sampled calls: inserted first, to be the nearest to the body
+     */
+    private void insertBodyTimers() throws CannotCompileException {
+        behavior.addLocalVariable(TIME_LOCAL_VAR, CtClass.longType);
+        behavior.addLocalVariable(CONTRACT_TIME_LOCAL_VAR, CtClass.longType);
+        final String startCode = String.format("{%s=%s?System.nanoTime()-%s:0L;%s+=%s;}", CONTRACT_TIME_LOCAL_VAR, SAMPLED_LOCAL_VAR, TIME_LOCAL_VAR, TIME_LOCAL_VAR,
+                                               CONTRACT_TIME_LOCAL_VAR);
+        behavior.insertBefore(startCode);
+        final String endCode = String.format("if(%s)%s=%s.body(%d,\"%s\",%s);", SAMPLED_LOCAL_VAR, TIME_LOCAL_VAR, THROTTLE_NAME,
+                                             Integer.valueOf(Sampler.site(targetClass.getName(), getKey())), getSiteName(), TIME_LOCAL_VAR);
+        behavior.insertAfter(endCode);
+        LOG.debug(" ** added body timers to {}: {} / {}", new Object[] {behavior.getName(), startCode, endCode});
+    }
 
-        final Ensure ensure = (Ensure) getPrecursor().getAnnotation(Ensure.class);
-        if (ensure != null) {
-            for (final String assertion: ensure.value()) {
-                postconditionAssertion.add(targetClass, assertion);
+    /**
+     * @return <code>true</code> if the call to the given contract method must
+     *         be added to the behavior
+     */
+    private boolean isCalled(final CtMethod contract, final InstrumentorUtil.Hook hook) {
+        return contract != null
+            && !Modifier.isAbstract(behavior.getModifiers())
+            && !InstrumentorUtil.hasHook(behavior, hook);
+    }
+
+    /**
+     * Find the old values of the postcondition: they are kept in locals of
+     * the behavior (no class is generated, and nothing is allocated)
+     */
+    private void prepareOldValues() throws CannotCompileException, NotFoundException {
+        LOG.info("Old expressions from postcondition of {}: {}", behavior.getLongName(), postconditionAssertion);
+        final InstrumentorMetrics metrics = instrumentor.metrics;
+        final long generationStart = metrics.start();
+        final Map<String, CtClass> types = new LinkedHashMap<String, CtClass>();
+        oldValuesCode = CodeGenerator.ensureOld(classInstrumentor.generics, this, postconditionAssertion, types);
+        oldValues = types;
+        metrics.end(InstrumentorMetrics.Phase.generation, generationStart);
+        if (!types.isEmpty() && getParameterSlots(getPostconditionParameterTypes()) > MAX_PARAMETER_SLOTS) {
+            LOG.info("Too many old values in the postcondition of {}: given in an array", behavior.getLongName());
+            oldValuesBoxed = true;
+            if (getParameterSlots(getPostconditionParameterTypes()) > MAX_PARAMETER_SLOTS) {
+                throw new SyntaxException("too many parameters for the postcondition of " + behavior.getLongName());
             }
         }
     }
 
-    void instrument() throws CannotCompileException, NotFoundException, ClassNotFoundException, CompileError, IOException {
-        gatherPreconditions(new HashSet<CtClass>(), preconditionAssertion);
-        gatherPostconditions(new HashSet<CtClass>(), postconditionAssertion);
+    private static int getParameterSlots(final CtClass[] types) {
+        int result = 1; // this
+        for (final CtClass type : types) {
+            result += type == CtClass.longType || type == CtClass.doubleType ? 2 : 1;
+        }
+        return result;
+    }
+
+    /**
+     * The old values kept in locals: computed just before the body (in a
+     * constructor, after the call to the super constructor: the fields can
+     * only be read from there)
+     */
+    private void insertOldValues() throws CannotCompileException {
+        final StringBuilder defaults = new StringBuilder();
+        for (final Map.Entry<String, CtClass> oldValue : oldValues.entrySet()) {
+            final String local = OLD_VALUE_LOCAL_VAR(oldValue.getKey());
+            final CtClass type = oldValue.getValue();
+            behavior.addLocalVariable(local, type);
+            defaults.append(local).append('=').append(defaultValue(type)).append(';');
+        }
+        final String code = String.format("if(%s)%selse{%s}", sampled(ENSURE_SWITCH), oldValuesCode, defaults);
+        if (behavior instanceof CtConstructor) {
+            InstrumentorUtil.insertBeforeBody((CtConstructor) behavior, code);
+        } else {
+            behavior.insertBefore(code);
+        }
+        LOG.debug(" ** added old values to {}: {}", behavior.getName(), code);
+    }
 
-        definePreconditionMethod();
-        definePostconditionMethod();
+    /**
+     * @return the value of the old value locals of the calls that do not
+     *         check the postcondition
+     */
+    private static String defaultValue(final CtClass type) {
+        if (!type.isPrimitive()) {
+            return "null";
+        }
+        return type == CtClass.booleanType ? "false" : "(" + type.getName() + ")0";
+    }
 
-        // NOTE! insert() adds code at the very start of the bytecode block;
-        // hence insert the precondition check before the invariant check
-        insertMethodPreconditionCall();
-        insertClassInvariantCall(true);
+    /**
+     * @return the parameters of the postcondition method: the result, the
+     *         arguments, then the old values (or their array, if they are
+     *         too many)
+     */
+    public CtClass[] getPostconditionParameterTypes() throws NotFoundException {
+        final List<CtClass> result = new ArrayList<CtClass>();
+        final CtClass returnType = getReturnType();
+        result.add(returnType == CtClass.voidType ? pool.get("java.lang.Void") : returnType);
+        final CtClass[] params = behavior.getParameterTypes();
+        if (params != null) {
+            result.addAll(Arrays.asList(params));
+        }
+        if (oldValuesBoxed) {
+            result.add(pool.get("java.lang.Object[]"));
+        } else {
+            result.addAll(oldValues.values());
+        }
+        return result.toArray(new CtClass[result.size()]);
+    }
 
-        insertMethodPostconditionCall();
-        insertClassInvariantCall(false);
+    /**
+     * @return the index of the result parameter of the postcondition; the
+     *         arguments of the behavior follow it
+     */
+    public int getPostconditionArgOffset() {
+        return 1;
+    }
+
+    /**
+     * @return the expression of the postcondition that reads the given old
+     *         value
+     */
+    public String getOldValueParameter(final String fieldName) {
+        final int first = Descriptor.numOfParameters(behavior.getSignature()) + 2;
+        int index = 0;
+        for (final Map.Entry<String, CtClass> oldValue : oldValues.entrySet()) {
+            if (oldValue.getKey().equals(fieldName)) {
+                if (oldValuesBoxed) {
+                    return unboxed("$" + first + "[" + index + "]", oldValue.getValue());
+                }
+                return "$" + (first + index);
+            }
+            index++;
+        }
+        throw new SyntaxException("unknown old value " + fieldName);
+    }
+
+    /**
+     * @return the expression that reads the given element of the old values
+     *         array as the given type
+     */
+    private static String unboxed(final String element, final CtClass type) {
+        if (type.isPrimitive()) {
+            final CtPrimitiveType primitive = (CtPrimitiveType) type;
+            return "((" + primitive.getWrapperName() + ")" + element + ")." + primitive.getGetMethodName() + "()";
+        }
+        return "((" + type.getName() + ")" + element + ")";
     }
 
     public String getName() {
         return behavior.getLongName();
     }
 
+    public ClassInstrumentor getClassInstrumentor() {
+        return classInstrumentor;
+    }
+
+    /**
+     * @return <code>true</code> if the precondition method is static: the
+     *         constructor preconditions run before the object is built
+     */
+    public boolean isPreconditionStatic() {
+        return behavior instanceof CtConstructor;
+    }
+
+    /**
+     * @see ClassInstrumentor#isMeasured()
+     */
+    public boolean isMeasured() {
+        return classInstrumentor.isMeasured();
+    }
+
     public String getKey() {
+        return getKey(behavior);
+    }
+
+    static String getKey(final CtBehavior behavior) {
         return behavior.getName() + ":" + behavior.getSignature();
     }
 
-    private boolean insertMethodPreconditionCall() throws CannotCompileException {
+    private void insertMethodPreconditionCall() throws CannotCompileException {
         LOG.debug("-- now adding precondition call to {}", behavior.getLongName());
-        if (precondition == null
-            || InstrumentorUtil.instrumentedWith(behavior, precondition.getName(), precondition.getSignature())
-            || Modifier.isAbstract(behavior.getModifiers())) {
-            LOG.debug(" ** precondition not added to {}", behavior.getName());
-            return false;
-        }
-        behavior.addLocalVariable(OLD_LOCAL_VAR, oldValuesClass);
-        final String code = String.format("%s = %s($$);", OLD_LOCAL_VAR, precondition.getName());
+        final String code = String.format("if(%s)%s($$);", sampled(REQUIRE_SWITCH), precondition.getName());
         behavior.insertBefore(code);
+        InstrumentorUtil.addHook(behavior, InstrumentorUtil.Hook.precondition);
         LOG.debug(" ** added precondition call to {}: {}", behavior.getName(), code);
-        return true;
     }
 
 //    public String makePostconditionSignature() throws NotFoundException {
@@ -190,37 +480,63 @@ public abstract class BehaviorInstrumentor {
 //        return Descriptor.insertParameter(oldClassName, returnDescriptor);
 //    }
 
-    private boolean insertMethodPostconditionCall() throws CannotCompileException, NotFoundException {
+    private void insertMethodPostconditionCall() throws CannotCompileException, NotFoundException {
         LOG.debug("-- now adding postcondition call to {}", behavior.getLongName());
-        if (postcondition == null
-            || InstrumentorUtil.instrumentedWith(behavior, postcondition.getName(), postcondition.getSignature())
-            || Modifier.isAbstract(behavior.getModifiers())) {
-            LOG.debug(" ** postcondition not added to {}", behavior.getName());
-            return false;
+        final String result = getReturnType() == CtClass.voidType ? "null" : "$_";
+        final StringBuilder args = new StringBuilder();
+        args.append(result).append(",$$");
+        if (oldValuesBoxed) {
+            String sep = ",new Object[]{";
+            for (final String oldValue : oldValues.keySet()) {
+                args.append(sep).append("($w)").append(OLD_VALUE_LOCAL_VAR(oldValue));
+                sep = ",";
+            }
+            args.append('}');
+        } else {
+            for (final String oldValue : oldValues.keySet()) {
+                args.append(',').append(OLD_VALUE_LOCAL_VAR(oldValue));
+            }
         }
-        final String code = String.format("%s(%s,%s,$$);", postcondition.getName(), precondition == null ? "null" : OLD_LOCAL_VAR, getReturnType() == CtClass.voidType ? "null" : "$_");
+        final String code = String.format("if(%s)%s(%s);", sampled(ENSURE_SWITCH), postcondition.getName(), args);
         behavior.insertAfter(code);
+        InstrumentorUtil.addHook(behavior, InstrumentorUtil.Hook.postcondition);
         LOG.debug(" ** added postcondition call to {}: {}", behavior.getName(), code);
-        return true;
     }
 
     private void definePreconditionMethod() throws CannotCompileException, NotFoundException, ClassNotFoundException, CompileError, IOException {
         LOG.info("Computing precondition of {}: {}", behavior.getLongName(), preconditionAssertion);
-        LOG.info("with old expressions from postcondition of {}: {}", behavior.getLongName(), postconditionAssertion);
+        final InstrumentorMetrics metrics = instrumentor.metrics;
+        // the constructor preconditions are static
+        if (classInstrumentor.isBytecodeBackend() && !isPreconditionStatic()) {
+            final long compilationStart = metrics.start();
+            try {
+                precondition = BytecodeGenerator.require(classInstrumentor.generics, targetClass, this, preconditionAssertion, getPreconditionName(), behavior.getParameterTypes());
+                if (precondition != null) {
+                    LOG.info("Precondition of {} is {} (bytecode)", behavior.getLongName(), precondition);
+                    setPreconditionModifiers(precondition);
+                    targetClass.addMethod(precondition);
+                    return;
+                }
+            } finally {
+                metrics.end(InstrumentorMetrics.Phase.compilation, compilationStart);
+            }
+        }
+        final long generationStart = metrics.start();
+        final String require = CodeGenerator.require(classInstrumentor.generics, this, preconditionAssertion);
+        metrics.end(InstrumentorMetrics.Phase.generation, generationStart);
+        if (require.length() == 0) {
+            LOG.debug(" ** no precondition for {}", behavior.getName());
+            return;
+        }
         final StringBuilder src = new StringBuilder("{\n");
-        src.append("final ")
-            .append(oldClassName)
-            .append(" result = new ")
-            .append(oldClassName)
-            .append("();\n");
-        src.append(CodeGenerator.ensureOld(classInstrumentor.generics, this, postconditionAssertion));
-        commitPreconditionClass();
-        src.append(CodeGenerator.require(classInstrumentor.generics, this, preconditionAssertion));
-        src.append("return result;\n}");
-        final String code = src.toString();
+        appendSwitched(src, REQUIRE_SWITCH, require);
+        final String code = src.append("}").toString();
+        // compiled static from the start, else the parameters of a
+        // constructor precondition would be read one slot too far
+        final int modifiers = isPreconditionStatic() ? Modifier.PRIVATE | Modifier.STATIC : Modifier.PRIVATE;
+        final long compilationStart = metrics.start();
         try {
-            precondition = CtNewMethod.make(oldValuesClass, getPreconditionName(), behavior.getParameterTypes(), new CtClass[0], code, targetClass);
-            precondition.setModifiers(Modifier.PRIVATE);
+            precondition = CtNewMethod.make(modifiers, CtClass.voidType, getPreconditionName(), behavior.getParameterTypes(), new CtClass[0], code, targetClass);
             LOG.info("Precondition of {} is {}{}", new Object[]{behavior.getLongName(), precondition, code});
             setPreconditionModifiers(precondition);
             targetClass.addMethod(precondition);
@@ -228,45 +544,65 @@ public abstract class BehaviorInstrumentor {
         catch (CannotCompileException ccx) {
             LOG.error(" *** CODE: {}", code, ccx);
             throw ccx;
+        } finally {
+            metrics.end(InstrumentorMetrics.Phase.compilation, compilationStart);
+        }
+    }
+
+    /**
+     * @return the runtime switch, only on sampled calls
+     */
+    private String sampled(final String runtimeSwitch) {
+        final String sampled = getSampled();
+        if (sampled == null) {
+            return runtimeSwitch;
         }
+        return String.format("(%s)&&%s", runtimeSwitch, sampled);
     }
 
-    private void commitPreconditionClass() throws ClassNotFoundException, NotFoundException, CannotCompileException, CompileError, IOException {
-        oldValuesClass.setModifiers(Modifier.FINAL);
-        instrumentor.writeToCache(oldClassName, oldValuesClass.toBytecode());
-        oldValuesClass.toClass(); // to load it in the JVM
+    private static void appendSwitched(final StringBuilder src, final String runtimeSwitch, final String code) {
+        if (code.length() > 0) {
+            src.append("if (").append(runtimeSwitch).append(") {\n").append(code).append("}\n");
+        }
     }
 
     private void definePostconditionMethod() throws CannotCompileException, NotFoundException, ClassNotFoundException, CompileError {
         LOG.info("Computing postcondition of {}: {}", behavior.getLongName(), postconditionAssertion);
-
-        final CtClass[] params;
-        final CtClass[] params0 = behavior.getParameterTypes();
-        if (params0 == null) {
-            params = new CtClass[2];
-        } else {
-            params = new CtClass[params0.length + 2];
-            System.arraycopy(params0, 0, params, 2, params0.length);
-        }
-        params[0] = oldValuesClass;
-        params[1] = getReturnType();
-        if (params[1] == CtClass.voidType) {
-            params[1] = pool.get("java.lang.Void");
+        final CtClass[] params = getPostconditionParameterTypes();
+
+        final InstrumentorMetrics metrics = instrumentor.metrics;
+        if (classInstrumentor.isBytecodeBackend()) {
+            final long compilationStart = metrics.start();
+            try {
+                postcondition = BytecodeGenerator.ensure(classInstrumentor.generics, targetClass, this, postconditionAssertion, getPostconditionName(), params);
+                if (postcondition != null) {
+                    postcondition.setModifiers(classInstrumentor.isRetransformable() ? Modifier.PRIVATE | Modifier.FINAL : Modifier.PRIVATE);
+                    LOG.info("Postcondition of {} is {} (bytecode)", behavior.getLongName(), postcondition);
+                    targetClass.addMethod(postcondition);
+                    return;
+                }
+            } finally {
+                metrics.end(InstrumentorMetrics.Phase.compilation, compilationStart);
+            }
         }
-
+        final long generationStart = metrics.start();
         final StringBuilder src = new StringBuilder("{\n");
         src.append(CodeGenerator.ensure(classInstrumentor.generics, this, postconditionAssertion));
         src.append("}\n");
         final String code = src.toString();
+        metrics.end(InstrumentorMetrics.Phase.generation, generationStart);
+        final long compilationStart = metrics.start();
         try {
             postcondition = CtNewMethod.make(CtClass.voidType, getPostconditionName(), params, new CtClass[0], code, targetClass);
-            postcondition.setModifiers(Modifier.PRIVATE);
+            postcondition.setModifiers(classInstrumentor.isRetransformable() ? Modifier.PRIVATE | Modifier.FINAL : Modifier.PRIVATE);
             LOG.info("Postcondition of {} is {}{}", new Object[]{behavior.getLongName(), postcondition, code});
             targetClass.addMethod(postcondition);
         }
         catch (CannotCompileException ccx) {
             LOG.error(" *** CODE: {}", code, ccx);
             throw ccx;
+        } finally {
+            metrics.end(InstrumentorMetrics.Phase.compilation, compilationStart);
         }
     }
 
@@ -0,0 +1,254 @@
+/*
+ * Incentive, A Design By Contract framework for Java.
+ * Copyright (C) 2011 Cyril Adrian. All Rights Reserved.
+ *
+ * Javaassist implementation based on C4J's
+ * Copyright (C) 2006 Jonas Bergstr�m. All Rights Reserved.
+ *
+ * The contents of this file may be used under the terms of the GNU Lesser
+ * General Public License Version 3.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+package net.cadrian.incentive.assist;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Which classes to instrument, from the <code>include</code>,
+ * <code>exclude</code> and <code>limit</code> options. Compiled once; the
+ * package rules are only looked up once per package.
+ *
+ * The <code>include</code> and <code>exclude</code> options are lists of
+ * rules separated by semicolons:
+ * <ul>
+ * <li><code>com.foo.**</code>: the classes of the package and of its
+ * subpackages</li>
+ * <li><code>com.foo.*</code>: the classes of the package only</li>
+ * <li><code>com.foo.Bar</code>: only that class</li>
+ * <li>other globs (<code>*</code> and <code>?</code> do not cross package
+ * boundaries, <code>**</code> does)</li>
+ * <li><code>re:</code> followed by a regular expression</li>
+ * </ul>
+ * The <code>limit</code> option is a regular expression, added to the
+ * includes. The excludes win; without includes, all the classes are included.
+ * The system classes are always excluded.
+ *
+ * @author cadrian
+ *
+ */
+final class ClassFilter {
+
+    /**
+     * The packages never instrumented (with their subpackages)
+     */
+    static final String[] SYSTEM_PACKAGES = {"net.cadrian.incentive", "sunw", "sun", "java", "javax", "com.sun"};
+
+    private static final int INCLUDE_DIRECT = 1;
+    private static final int INCLUDE_RECURSIVE = 2;
+    private static final int EXCLUDE_DIRECT = 4;
+    private static final int EXCLUDE_RECURSIVE = 8;
+
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<String, Node>();
+        int flags;
+
+        Node child(final String segment) {
+            Node result = children.get(segment);
+            if (result == null) {
+                result = new Node();
+                children.put(segment, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * What the package rules say about the classes of a package
+     */
+    private static enum PackageMatch {
+        INCLUDED, EXCLUDED, INCLUDED_BY_PACKAGE, UNDECIDED;
+    }
+
+    private final Node root = new Node();
+    private final Set<String> includedClasses = new HashSet<String>();
+    private final Set<String> excludedClasses = new HashSet<String>();
+    private final List<Pattern> includePatterns = new ArrayList<Pattern>();
+    private final List<Pattern> excludePatterns = new ArrayList<Pattern>();
+    private boolean hasIncludes;
+
+    private final ConcurrentMap<String, PackageMatch> packages = new ConcurrentHashMap<String, PackageMatch>();
+
+    ClassFilter(final String includes, final String excludes, final String limit) {
+        for (final String systemPackage : SYSTEM_PACKAGES) {
+            addPackage(systemPackage, EXCLUDE_RECURSIVE);
+        }
+        if (includes != null) {
+            addRules(includes, true);
+        }
+        if (excludes != null) {
+            addRules(excludes, false);
+        }
+        if (limit != null) {
+            includePatterns.add(Pattern.compile(limit));
+            hasIncludes = true;
+        }
+    }
+
+    /**
+     * @return the filter of the current options
+     */
+    static ClassFilter fromOptions() {
+        return new ClassFilter(Option.include.getValue(), Option.exclude.getValue(), Option.limit.getValue());
+    }
+
+    private void addRules(final String rules, final boolean include) {
+        final StringTokenizer tokenizer = new StringTokenizer(rules, ";");
+        while (tokenizer.hasMoreTokens()) {
+            final String rule = tokenizer.nextToken().trim();
+            if (rule.length() > 0) {
+                addRule(rule, include);
+                if (include) {
+                    hasIncludes = true;
+                }
+            }
+        }
+    }
+
+    private void addRule(final String rule, final boolean include) {
+        if (rule.startsWith("re:")) {
+            (include ? includePatterns : excludePatterns).add(Pattern.compile(rule.substring(3)));
+        } else if (rule.endsWith(".**") && isName(rule, rule.length() - 3)) {
+            addPackage(rule.substring(0, rule.length() - 3), include ? INCLUDE_RECURSIVE : EXCLUDE_RECURSIVE);
+        } else if (rule.endsWith(".*") && isName(rule, rule.length() - 2)) {
+            addPackage(rule.substring(0, rule.length() - 2), include ? INCLUDE_DIRECT : EXCLUDE_DIRECT);
+        } else if (isName(rule, rule.length())) {
+            (include ? includedClasses : excludedClasses).add(rule);
+        } else {
+            (include ? includePatterns : excludePatterns).add(globToPattern(rule));
+        }
+    }
+
+    private void addPackage(final String packageName, final int flag) {
+        Node node = root;
+        final StringTokenizer tokenizer = new StringTokenizer(packageName, ".");
+        while (tokenizer.hasMoreTokens()) {
+            node = node.child(tokenizer.nextToken());
+        }
+        node.flags |= flag;
+    }
+
+    private static boolean isName(final String rule, final int length) {
+        for (int i = 0; i < length; i++) {
+            final char c = rule.charAt(i);
+            if (c != '.' && !Character.isJavaIdentifierPart(c)) {
+                return false;
+            }
+        }
+        return length > 0;
+    }
+
+    static Pattern globToPattern(final String glob) {
+        final StringBuilder result = new StringBuilder();
+        final int n = glob.length();
+        for (int i = 0; i < n; i++) {
+            final char c = glob.charAt(i);
+            switch (c) {
+            case '*':
+                if (i + 1 < n && glob.charAt(i + 1) == '*') {
+                    result.append(".*");
+                    i++;
+                } else {
+                    result.append("[^.]*");
+                }
+                break;
+            case '?':
+                result.append("[^.]");
+                break;
+            default:
+                if (Character.isJavaIdentifierPart(c)) {
+                    result.append(c);
+                } else {
+                    result.append('\\').append(c);
+                }
+            }
+        }
+        return Pattern.compile(result.toString());
+    }
+
+    /**
+     * @return <code>true</code> if the class must be instrumented
+     */
+    boolean accept(final String className) {
+        final int dot = className.lastIndexOf('.');
+        final String packageName = dot == -1 ? "" : className.substring(0, dot);
+        PackageMatch match = packages.get(packageName);
+        if (match == null) {
+            match = matchPackage(packageName);
+            packages.put(packageName, match);
+        }
+        switch (match) {
+        case INCLUDED:
+            return true;
+        case EXCLUDED:
+            return false;
+        default:
+            if (excludedClasses.contains(className) || matches(excludePatterns, className)) {
+                return false;
+            }
+            return match == PackageMatch.INCLUDED_BY_PACKAGE || !hasIncludes || includedClasses.contains(className)
+                || matches(includePatterns, className);
+        }
+    }
+
+    private PackageMatch matchPackage(final String packageName) {
+        int flags = 0;
+        Node node = root;
+        final StringTokenizer tokenizer = new StringTokenizer(packageName, ".");
+        while (node != null && tokenizer.hasMoreTokens()) {
+            node = node.children.get(tokenizer.nextToken());
+            if (node != null) {
+                flags |= node.flags & (INCLUDE_RECURSIVE | EXCLUDE_RECURSIVE);
+                if (!tokenizer.hasMoreTokens()) {
+                    flags |= node.flags & (INCLUDE_DIRECT | EXCLUDE_DIRECT);
+                }
+            }
+        }
+        if ((flags & (EXCLUDE_DIRECT | EXCLUDE_RECURSIVE)) != 0) {
+            return PackageMatch.EXCLUDED;
+        }
+        final boolean classRules = !excludedClasses.isEmpty() || !excludePatterns.isEmpty();
+        if ((flags & (INCLUDE_DIRECT | INCLUDE_RECURSIVE)) != 0) {
+            return classRules ? PackageMatch.INCLUDED_BY_PACKAGE : PackageMatch.INCLUDED;
+        }
+        if (!hasIncludes) {
+            return classRules ? PackageMatch.UNDECIDED : PackageMatch.INCLUDED;
+        }
+        if (includedClasses.isEmpty() && includePatterns.isEmpty()) {
+            return PackageMatch.EXCLUDED;
+        }
+        return PackageMatch.UNDECIDED;
+    }
+
+    private static boolean matches(final List<Pattern> patterns, final String className) {
+        for (final Pattern pattern : patterns) {
+            if (pattern.matcher(className).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
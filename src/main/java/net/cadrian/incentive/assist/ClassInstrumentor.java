@@ -36,8 +36,11 @@ import javassist.NotFoundException;
 import javassist.compiler.CompileError;
 
 import net.cadrian.incentive.assist.assertion.InvariantAssertion;
+import net.cadrian.incentive.assist.visitor.BytecodeGenerator;
 import net.cadrian.incentive.assist.visitor.CodeGenerator;
 import net.cadrian.incentive.error.InvariantError;
+import net.cadrian.incentive.runtime.Checks;
+import net.cadrian.incentive.runtime.ContractState;
 import net.cadrian.incentive.Invariant;
 
 import org.slf4j.Logger;
@@ -47,10 +50,17 @@ public class ClassInstrumentor {
     private static final Logger LOG = LoggerFactory.getLogger(ClassInstrumentor.class);
 
     public static final String INITIALIZED_FLAG_VAR = "__incentive_initialized__";
-    public static final String INVARIANT_FLAG_VAR = "__incentive_invariant__";
     public static final String INVARIANT_METHOD_SIGNATURE = "()V";
     public static final String INVARIANT_METHOD_NAME = "__incentive_inv__";
     public static final String INVARIANT_ERROR_NAME = InvariantError.class.getName();
+    public static final String CONTRACT_STATE_NAME = ContractState.class.getName();
+    public static final String OUTERMOST_LOCAL_VAR = "__incentive_outermost__";
+    public static final String INVARIANT_SWITCH = Checks.class.getName() + ".INVARIANT";
+
+    /**
+     * The prefix of the members added by the instrumentation
+     */
+    static final String GENERATED_PREFIX = "__incentive_";
 
     private final CtClass targetClass;
     private final ClassPool pool;
@@ -62,30 +72,67 @@ public class ClassInstrumentor {
     final Instrumentor instrumentor;
     final Map<String, String> generics;
 
-    private final InvariantAssertion invariantAssertion;
-
-    public ClassInstrumentor(final CtClass targetClass, final ClassPool pool, final Instrumentor instrumentor) throws NotFoundException, ClassNotFoundException {
+    private InvariantAssertion invariantAssertion;
+
+    /**
+     * The contracts of the class from the contract index, if the class is
+     * indexed
+     */
+    private final ContractIndex.Contracts indexed;
+
+    /**
+     * Only one call out of <code>sample</code> checks its contracts
+     */
+    private final int sample;
+
+    /**
+     * The keys (see {@link BehaviorInstrumentor#getKey(CtBehavior)}) of the
+     * methods declared pure: the own ones, and the ones of the interfaces;
+     * gathered only once, and shared by the heirs
+     */
+    private Set<String> declaredPure;
+
+    /**
+     * The purity of the own methods, by key; each method is analyzed only
+     * once
+     */
+    private final Map<String, Boolean> purity;
+
+    /**
+     * Use {@link Instrumentor#getClassInstrumentor(CtClass)} instead: the
+     * class instrumentors are shared by all the heirs of their class.
+     */
+    ClassInstrumentor(final CtClass targetClass, final Instrumentor instrumentor) throws NotFoundException, ClassNotFoundException {
         this.instrumentor = instrumentor;
         this.targetClass = targetClass;
-        this.pool = pool;
-
-        int oldClassIndex = 0;
-
+        this.pool = targetClass.getClassPool();
+        // before any change to the class, that would make its index entry
+        // look stale
+        this.indexed = ((LoaderPool) pool).getIndexedContracts(targetClass);
+        final int ownSample = indexed != null ? indexed.sample : InstrumentorUtil.getSample(targetClass);
+        this.sample = ownSample > 0 ? ownSample : Option.sample.getIntValue(1);
+
+        final long parentsStart = instrumentor.metrics.start();
+        final List<CtClass> parentClasses = InstrumentorUtil.getParents(targetClass);
+        instrumentor.metrics.end(InstrumentorMetrics.Phase.parents, parentsStart);
         parents = new ArrayList<ClassInstrumentor>();
-        for (final CtClass parent : InstrumentorUtil.getParents(targetClass)) {
-            parents.add(new ClassInstrumentor(parent, pool, instrumentor));
+        for (final CtClass parent : parentClasses) {
+            parents.add(instrumentor.getClassInstrumentor(parent));
         }
 
-        invariantAssertion = new InvariantAssertion(this);
-
         generics = InstrumentorUtil.getGenericTypes(targetClass);
 
         behaviors = new HashMap<String, BehaviorInstrumentor>();
+        purity = new HashMap<String, Boolean>();
 
         methods = new ArrayList<MethodInstrumentor>();
         int mindex = 0;
         for (final CtMethod targetMethod : targetClass.getDeclaredMethods()) {
-            final MethodInstrumentor methodInstrumentor = new MethodInstrumentor(this, targetMethod, mindex++, pool, oldClassIndex++);
+            if (targetMethod.getName().startsWith(GENERATED_PREFIX)) {
+                // the contracts of a class instrumented before
+                continue;
+            }
+            final MethodInstrumentor methodInstrumentor = new MethodInstrumentor(this, targetMethod, mindex++, pool);
             methods.add(methodInstrumentor);
             behaviors.put(methodInstrumentor.getKey(), methodInstrumentor);
         }
@@ -93,7 +140,7 @@ public class ClassInstrumentor {
         constructors = new ArrayList<ConstructorInstrumentor>();
         int cindex = 0;
         for (final CtConstructor constructor : targetClass.getConstructors()) {
-            final ConstructorInstrumentor constructorInstrumentor = new ConstructorInstrumentor(this, constructor, cindex++, pool, oldClassIndex++);
+            final ConstructorInstrumentor constructorInstrumentor = new ConstructorInstrumentor(this, constructor, cindex++, pool);
             constructors.add(constructorInstrumentor);
             behaviors.put(constructorInstrumentor.getKey(), constructorInstrumentor);
         }
@@ -115,15 +162,21 @@ public class ClassInstrumentor {
         return behaviors.get(key);
     }
 
+    /**
+     * @return the own contracts of the behavior from the contract index, or
+     *         <code>null</code> if the class is not indexed
+     */
+    ContractIndex.Behavior getIndexedBehavior(final String key) {
+        return indexed == null ? null : indexed.getBehavior(key);
+    }
+
     void instrument() throws CannotCompileException, NotFoundException, ClassNotFoundException, CompileError, IOException {
         if (targetClass.isFrozen()) {
             // already instrumented or already loaded; out of scope
             return;
         }
 
-        for (final ClassInstrumentor parent : parents) {
-            parent.instrument();
-        }
+        // Note: the parents are already instrumented (see Instrumentor)
 
         if (targetClass.isInterface()) {
             // We're only instrumenting classes
@@ -131,17 +184,25 @@ public class ClassInstrumentor {
             return;
         }
 
-        if (!InstrumentorUtil.hasDBC(targetClass)) {
+        if (indexed == null ? !InstrumentorUtil.hasDBC(targetClass) : !indexed.dbc) {
             // DBC annotation absent or skip=true
             LOG.debug("{} has no DBC, or skipped", targetClass.getName());
             return;
         }
+        InstrumentorUtil.markInstrumented(targetClass);
 
-        addPrivateFlag(INITIALIZED_FLAG_VAR);
-        addPrivateFlag(INVARIANT_FLAG_VAR);
-        gatherInvariant(new HashSet<CtClass>(), invariantAssertion);
+        if (Option.invariant_check.isChecked()) {
+            if (!isRetransformable()) {
+                addPrivateFlag(INITIALIZED_FLAG_VAR);
+            }
+            final long gatherStart = instrumentor.metrics.start();
+            getInvariantAssertion();
+            instrumentor.metrics.end(InstrumentorMetrics.Phase.gather, gatherStart);
 
-        defineInvariantMethod();
+            if (!hasDeclaredInvariantMethod()) {
+                defineInvariantMethod();
+            }
+        }
         for (final ConstructorInstrumentor constructor : constructors) {
             constructor.instrument();
         }
@@ -150,6 +211,19 @@ public class ClassInstrumentor {
         }
     }
 
+    /**
+     * @return <code>true</code> if the class was already instrumented with
+     *         its invariant
+     */
+    private boolean hasDeclaredInvariantMethod() {
+        try {
+            targetClass.getDeclaredMethod(INVARIANT_METHOD_NAME, new CtClass[0]);
+            return true;
+        } catch (final NotFoundException nfx) {
+            return false;
+        }
+    }
+
     private void _addPrivateFlag(final String flagName) throws CannotCompileException {
         final CtField flagField = new CtField(CtClass.booleanType, flagName, targetClass);
         flagField.setModifiers(Modifier.PRIVATE);
@@ -167,29 +241,59 @@ public class ClassInstrumentor {
         }
     }
 
-    boolean addClassInvariantCall(final CtBehavior a_behavior, final boolean before, final boolean initialized) throws CannotCompileException {
+    /**
+     * @return <code>true</code> if the behavior must call the class invariant
+     */
+    boolean hasClassInvariantCall(final CtBehavior a_behavior) throws CannotCompileException {
+        if (!Option.invariant_check.isChecked()) {
+            return false;
+        }
 
         try {
             targetClass.getMethod(INVARIANT_METHOD_NAME, INVARIANT_METHOD_SIGNATURE);
-            if (InstrumentorUtil.instrumentedWith(a_behavior, INVARIANT_METHOD_NAME, INVARIANT_METHOD_SIGNATURE)
-                || a_behavior.getDeclaringClass().equals(pool.get("java.lang.Object"))
-                || Modifier.isAbstract(a_behavior.getModifiers())
-                || Modifier.isStatic(a_behavior.getModifiers())) {
-                return false;
-            }
+            return !(InstrumentorUtil.hasHook(a_behavior, InstrumentorUtil.Hook.invariant)
+                     || a_behavior.getDeclaringClass().equals(pool.get("java.lang.Object"))
+                     || Modifier.isAbstract(a_behavior.getModifiers())
+                     || Modifier.isStatic(a_behavior.getModifiers()));
         } catch (final NotFoundException x) {
             return false;
         }
+    }
+
+    /**
+     * @param sampled
+     *            the local variable that tells if the current call is sampled
+     *            (see {@link BehaviorInstrumentor#getSampled()}), or
+     *            <code>null</code> if all the calls are checked
+     */
+    boolean addClassInvariantCall(final CtBehavior a_behavior, final boolean before, final boolean initialized, final String sampled) throws CannotCompileException {
+        if (!hasClassInvariantCall(a_behavior)) {
+            return false;
+        }
+        final String invariantSwitch = sampled == null ? INVARIANT_SWITCH : INVARIANT_SWITCH + "&&" + sampled;
 
         final String code;
-        if (initialized) {
+        if (isRetransformable()) {
+            // no flag field: the objects being built are known by
+            // ContractState, as the objects checking their invariant
+            if (initialized) {
+                ((CtConstructor) a_behavior).insertBeforeBody(String.format("if(%s)%s.enter(this);", INVARIANT_SWITCH, CONTRACT_STATE_NAME));
+                a_behavior.insertAfter(String.format("if(%s)%s.leave(this);", INVARIANT_SWITCH, CONTRACT_STATE_NAME), true);
+                code = String.format("if(%s&&getClass()==%s.class)%s();", invariantSwitch, targetClass.getName(), INVARIANT_METHOD_NAME);
+            } else {
+                code = String.format("if(%s&&!%s.isBusy(this))%s();", invariantSwitch, CONTRACT_STATE_NAME, INVARIANT_METHOD_NAME);
+            }
+        } else if (initialized) {
             // true for constructors; in that case, `before' is false
-            // Note that in that case, the invariant flag is obviously false.
+            // Note that in that case, the object is obviously not checking
+            // its invariant.
             a_behavior.insertAfter(String.format("%s=true;", INITIALIZED_FLAG_VAR));
-            code = String.format("if(getClass()==%s.class)%s();", targetClass.getName(), INVARIANT_METHOD_NAME);
+            code = String.format("if(%s&&getClass()==%s.class)%s();", invariantSwitch, targetClass.getName(), INVARIANT_METHOD_NAME);
         } else {
-            // Only verify invariant if the instance has been fully created, // hence the "if(...)"
-            code = String.format("if(%s&&!%s)%s();", INITIALIZED_FLAG_VAR, INVARIANT_FLAG_VAR, INVARIANT_METHOD_NAME);
+            // Only verify invariant if the instance has been fully created,
+            // and is not already checking its invariant in the current
+            // thread (other threads do not see it busy), hence the "if(...)"
+            code = String.format("if(%s&&%s&&!%s.isBusy(this))%s();", invariantSwitch, INITIALIZED_FLAG_VAR, CONTRACT_STATE_NAME, INVARIANT_METHOD_NAME);
         }
 
         LOG.debug("Adding {} {}: {}", new String[] { before ? "before" : "after", a_behavior.getName(), code });
@@ -199,37 +303,188 @@ public class ClassInstrumentor {
         } else {
             a_behavior.insertAfter(code);
         }
+        InstrumentorUtil.addHook(a_behavior, InstrumentorUtil.Hook.invariant);
         return true;
     }
 
-    private void gatherInvariant(final Set<CtClass> classes, final InvariantAssertion invariantAssertion) throws ClassNotFoundException, NotFoundException {
-        if (classes.contains(targetClass)) return;
-        classes.add(targetClass);
+    /**
+     * Only check the invariant on entry to and exit from the outermost call
+     * on the object (see the <code>outermost_invariant</code> option): the
+     * calls are tracked per thread by {@link ContractState}, hence the
+     * internal calls of the object, or the calls of its invariant, do not
+     * check it again.
+     *
+     * @param check
+     *            <code>false</code> to only track the call (e.g. no invariant
+     *            check after a pure method)
+     * @param sampled
+     *            see {@link #addClassInvariantCall(CtBehavior, boolean, boolean, String)}
+     * @return <code>true</code> if the call is tracked (i.e., after the
+     *         body, if the call was tracked before the body)
+     */
+    boolean addOutermostInvariantCall(final CtBehavior a_behavior, final boolean before, final boolean check, final String sampled) throws CannotCompileException {
+        final String code;
+        if (check) {
+            final String invariantSwitch = sampled == null ? OUTERMOST_LOCAL_VAR : OUTERMOST_LOCAL_VAR + "&&" + sampled;
+            if (isRetransformable()) {
+                // the objects being built are busy, see addClassInvariantCall
+                code = String.format("if(%s)%s();", invariantSwitch, INVARIANT_METHOD_NAME);
+            } else {
+                code = String.format("if(%s&&%s)%s();", invariantSwitch, INITIALIZED_FLAG_VAR, INVARIANT_METHOD_NAME);
+            }
+        } else {
+            code = "";
+        }
 
-        for (final ClassInstrumentor parent : getParents()) {
-            parent.gatherInvariant(classes, invariantAssertion);
+        if (before) {
+            if (!hasClassInvariantCall(a_behavior)) {
+                return false;
+            }
+            a_behavior.addLocalVariable(OUTERMOST_LOCAL_VAR, CtClass.booleanType);
+            final String enterCode = String.format("{%s=%s&&%s.enterCall(this);%s}", OUTERMOST_LOCAL_VAR, INVARIANT_SWITCH, CONTRACT_STATE_NAME, code);
+            LOG.debug("Adding outermost before {}: {}", a_behavior.getName(), enterCode);
+            a_behavior.insertBefore(enterCode);
+            InstrumentorUtil.addHook(a_behavior, InstrumentorUtil.Hook.invariant);
+        } else {
+            if (check) {
+                LOG.debug("Adding outermost after {}: {}", a_behavior.getName(), code);
+                a_behavior.insertAfter(code);
+            }
+            // every call is tracked (not only the outermost one), not to
+            // need the local in the exception handler
+            a_behavior.insertAfter(String.format("if(%s)%s.leave(this);", INVARIANT_SWITCH, CONTRACT_STATE_NAME), true);
+        }
+        return true;
+    }
+
+    /**
+     * @return the invariant of the class: its own, and the inherited ones (in
+     *         the order of the class parents); gathered only once
+     */
+    synchronized InvariantAssertion getInvariantAssertion() throws ClassNotFoundException, NotFoundException {
+        if (invariantAssertion == null) {
+            final InvariantAssertion result = new InvariantAssertion(this);
+            for (final ClassInstrumentor parent : getParents()) {
+                result.addAll(parent.getInvariantAssertion());
+            }
+
+            if (indexed != null) {
+                result.add(targetClass, indexed.invariant);
+            } else {
+                final Invariant invariant = (Invariant) targetClass.getAnnotation(Invariant.class);
+                if (invariant != null) {
+                    for (final String assertion: invariant.value()) {
+                        result.add(targetClass, assertion);
+                    }
+                }
+            }
+            invariantAssertion = result;
         }
+        return invariantAssertion;
+    }
+
+    /**
+     * @return the keys of the methods declared pure (see
+     *         {@link net.cadrian.incentive.Pure}) by the class or by its
+     *         interfaces; the methods of the superclasses must be declared
+     *         pure again, or be analyzed pure
+     */
+    synchronized Set<String> getDeclaredPure() throws ClassNotFoundException {
+        if (declaredPure == null) {
+            final Set<String> cached = ((LoaderPool) pool).getPureMethods(targetClass.getName());
+            if (cached != null) {
+                declaredPure = cached;
+            } else {
+                final Set<String> result = new HashSet<String>();
+                for (final ClassInstrumentor parent : getParents()) {
+                    if (parent.targetClass.isInterface()) {
+                        result.addAll(parent.getDeclaredPure());
+                    }
+                }
+                for (final CtMethod method : targetClass.getDeclaredMethods()) {
+                    final String key = BehaviorInstrumentor.getKey(method);
+                    if (indexed != null ? getIndexedBehavior(key).pure : InstrumentorUtil.methodAnnotatedWithPure(method)) {
+                        result.add(key);
+                    }
+                }
+                declaredPure = result;
+            }
+        }
+        return declaredPure;
+    }
+
+    /**
+     * @return <code>true</code> if the own method is declared pure, or if
+     *         its code does not change anything
+     */
+    synchronized boolean isPure(final CtMethod method) throws ClassNotFoundException, CannotCompileException {
+        final String key = BehaviorInstrumentor.getKey(method);
+        Boolean result = purity.get(key);
+        if (result == null) {
+            result = Boolean.valueOf(getDeclaredPure().contains(key) || InstrumentorUtil.hasPureCode(method));
+            purity.put(key, result);
+        }
+        return result.booleanValue();
+    }
 
-        final Invariant invariant = (Invariant) targetClass.getAnnotation(Invariant.class);
-        if (invariant != null) {
-            for (final String assertion: invariant.value()) {
-                invariantAssertion.add(targetClass, assertion);
+    /**
+     * @return <code>true</code> if the method may be called only once for
+     *         many identical calls of a contract check: it is an own method
+     *         known to be pure (see {@link #isPure(CtMethod)}), or it is
+     *         declared pure by a parent, or a parent already analyzed it pure
+     */
+    public synchronized boolean isPureCall(final CtMethod method) throws ClassNotFoundException, CannotCompileException {
+        if (method.getDeclaringClass() == targetClass) {
+            return isPure(method);
+        }
+        final String key = BehaviorInstrumentor.getKey(method);
+        if (getDeclaredPure().contains(key)) {
+            return true;
+        }
+        for (final ClassInstrumentor parent : getParents()) {
+            if (parent.getDeclaredPure().contains(key) || parent.isAnalyzedPure(key)) {
+                return true;
             }
         }
+        return false;
+    }
+
+    private synchronized boolean isAnalyzedPure(final String key) {
+        return Boolean.TRUE.equals(purity.get(key));
     }
 
     private void defineInvariantMethod() throws CannotCompileException, ClassNotFoundException, CompileError {
         LOG.info("Computing invariant of {}: {}", targetClass.getName(), invariantAssertion);
+        final InstrumentorMetrics metrics = instrumentor.metrics;
+        if (isBytecodeBackend()) {
+            final long compilationStart = metrics.start();
+            try {
+                final CtMethod invariant = BytecodeGenerator.invariant(generics, targetClass, this, invariantAssertion, INVARIANT_METHOD_NAME);
+                if (invariant != null) {
+                    invariant.setModifiers(isRetransformable() ? Modifier.PRIVATE | Modifier.FINAL : Modifier.PRIVATE);
+                    LOG.info("Invariant of {} is {} (bytecode)", targetClass.getName(), invariant);
+                    targetClass.addMethod(invariant);
+                    return;
+                }
+            } finally {
+                metrics.end(InstrumentorMetrics.Phase.compilation, compilationStart);
+            }
+        }
+        final long generationStart = metrics.start();
         final String code = CodeGenerator.invariant(generics, this, invariantAssertion);
+        metrics.end(InstrumentorMetrics.Phase.generation, generationStart);
+        final long compilationStart = metrics.start();
         try {
             final CtMethod invariant = CtNewMethod.make(CtClass.voidType, INVARIANT_METHOD_NAME, new CtClass[0], new CtClass[0], code, targetClass);
-            invariant.setModifiers(Modifier.PRIVATE);
+            invariant.setModifiers(isRetransformable() ? Modifier.PRIVATE | Modifier.FINAL : Modifier.PRIVATE);
             LOG.info("Invariant of {} is {}{}", new Object[]{targetClass.getName(), invariant, code});
             targetClass.addMethod(invariant);
         }
         catch (CannotCompileException ccx) {
             LOG.error(" *** CODE: {}", code, ccx);
             throw ccx;
+        } finally {
+            metrics.end(InstrumentorMetrics.Phase.compilation, compilationStart);
         }
     }
 
@@ -237,4 +492,42 @@ public class ClassInstrumentor {
         return targetClass.getName();
     }
 
+    public CtClass getTargetClass() {
+        return targetClass;
+    }
+
+    /**
+     * @return <code>true</code> if the class must stay retransformable: no
+     *         new field, and only private final or private static new methods
+     */
+    public boolean isRetransformable() {
+        return instrumentor.retransformable;
+    }
+
+    /**
+     * @return <code>true</code> if the contract clauses record their
+     *         statistics (see {@link net.cadrian.incentive.runtime.ContractStats})
+     */
+    public boolean isMeasured() {
+        return Option.contract_stats.isSet();
+    }
+
+    /**
+     * @return <code>true</code> if the contract methods are emitted as
+     *         bytecode (see {@link BytecodeGenerator}) rather than compiled
+     *         from source
+     */
+    boolean isBytecodeBackend() {
+        return "bytecode".equals(Option.backend.getValue());
+    }
+
+    /**
+     * @return the sampling period of the class: its own (see
+     *         {@link net.cadrian.incentive.DBC#sample()}) or the
+     *         <code>sample</code> option; 1 if all the calls are checked
+     */
+    public int getSample() {
+        return sample;
+    }
+
 }
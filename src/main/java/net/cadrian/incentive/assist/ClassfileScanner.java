@@ -0,0 +1,173 @@
+/*
+ * Incentive, A Design By Contract framework for Java.
+ * Copyright (C) 2011 Cyril Adrian. All Rights Reserved.
+ *
+ * Javaassist implementation based on C4J's
+ * Copyright (C) 2006 Jonas Bergstr�m. All Rights Reserved.
+ *
+ * The contents of this file may be used under the terms of the GNU Lesser
+ * General Public License Version 3.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+package net.cadrian.incentive.assist;
+
+import net.cadrian.incentive.DBC;
+
+/**
+ * Byte-level checks on raw class files, to avoid parsing classes that will
+ * not be instrumented anyway.
+ *
+ * @author cadrian
+ *
+ */
+final class ClassfileScanner {
+
+    private static final byte[] DBC_DESCRIPTOR = toBytes("L" + DBC.class.getName().replace('.', '/') + ";");
+    private static final byte[] ANNOTATION_DESCRIPTOR_PREFIX = toBytes("L" + DBC.class.getName().substring(0, DBC.class.getName().lastIndexOf('.') + 1).replace('.', '/'));
+    private static final byte[] MARKER_ATTRIBUTE = toBytes(InstrumentorUtil.MARKER_ATTRIBUTE);
+
+    private static final int CONSTANT_Utf8 = 1;
+    private static final int CONSTANT_Integer = 3;
+    private static final int CONSTANT_Float = 4;
+    private static final int CONSTANT_Long = 5;
+    private static final int CONSTANT_Double = 6;
+    private static final int CONSTANT_Class = 7;
+    private static final int CONSTANT_String = 8;
+    private static final int CONSTANT_Fieldref = 9;
+    private static final int CONSTANT_Methodref = 10;
+    private static final int CONSTANT_InterfaceMethodref = 11;
+    private static final int CONSTANT_NameAndType = 12;
+    private static final int CONSTANT_MethodHandle = 15;
+    private static final int CONSTANT_MethodType = 16;
+    private static final int CONSTANT_Dynamic = 17;
+    private static final int CONSTANT_InvokeDynamic = 18;
+    private static final int CONSTANT_Module = 19;
+    private static final int CONSTANT_Package = 20;
+
+    private ClassfileScanner() {
+        // no instances
+    }
+
+    /**
+     * Only classes annotated with {@link DBC} are instrumented (their parents
+     * only bring contracts). The annotation type descriptor is necessarily in
+     * the constant pool of such a class.
+     *
+     * @return <code>false</code> if the class is surely not annotated with
+     *         {@link DBC}; <code>true</code> if it may be (or if the class
+     *         file cannot be understood)
+     */
+    static boolean mayHaveDBC(final byte[] classfile) {
+        try {
+            return findUtf8(classfile, DBC_DESCRIPTOR, false);
+        } catch (final RuntimeException rx) {
+            // let Javassist tell what's wrong
+            return true;
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the class surely uses none of the
+     *         Incentive annotations (neither on itself nor on its members)
+     */
+    static boolean mayHaveContracts(final byte[] classfile) {
+        try {
+            return findUtf8(classfile, ANNOTATION_DESCRIPTOR_PREFIX, true);
+        } catch (final RuntimeException rx) {
+            return true;
+        }
+    }
+
+    /**
+     * The instrumented classes are marked with an attribute, whose name is
+     * necessarily in the constant pool.
+     *
+     * @return <code>true</code> if the class file was already instrumented
+     *         (e.g. offline)
+     */
+    static boolean isInstrumented(final byte[] classfile) {
+        try {
+            return findUtf8(classfile, MARKER_ATTRIBUTE, false);
+        } catch (final RuntimeException rx) {
+            return false;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the constant pool holds the UTF-8 string
+     *         (or a string that starts with it)
+     * @throws RuntimeException
+     *             if the class file cannot be understood (truncated, or an
+     *             unknown constant)
+     */
+    private static boolean findUtf8(final byte[] classfile, final byte[] utf8, final boolean prefix) {
+        final int count = u2(classfile, 8);
+        int pos = 10;
+        for (int i = 1; i < count; i++) {
+            switch (classfile[pos]) {
+            case CONSTANT_Utf8:
+                final int length = u2(classfile, pos + 1);
+                if ((length == utf8.length || (prefix && length > utf8.length)) && matches(classfile, pos + 3, utf8)) {
+                    return true;
+                }
+                pos += 3 + length;
+                break;
+            case CONSTANT_Class:
+            case CONSTANT_String:
+            case CONSTANT_MethodType:
+            case CONSTANT_Module:
+            case CONSTANT_Package:
+                pos += 3;
+                break;
+            case CONSTANT_MethodHandle:
+                pos += 4;
+                break;
+            case CONSTANT_Integer:
+            case CONSTANT_Float:
+            case CONSTANT_Fieldref:
+            case CONSTANT_Methodref:
+            case CONSTANT_InterfaceMethodref:
+            case CONSTANT_NameAndType:
+            case CONSTANT_Dynamic:
+            case CONSTANT_InvokeDynamic:
+                pos += 5;
+                break;
+            case CONSTANT_Long:
+            case CONSTANT_Double:
+                // takes two entries
+                pos += 9;
+                i++;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown constant tag " + classfile[pos]);
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(final byte[] classfile, final int pos, final byte[] utf8) {
+        for (int i = 0; i < utf8.length; i++) {
+            if (classfile[pos + i] != utf8[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int u2(final byte[] classfile, final int pos) {
+        return ((classfile[pos] & 0xff) << 8) | (classfile[pos + 1] & 0xff);
+    }
+
+    private static byte[] toBytes(final String ascii) {
+        final byte[] result = new byte[ascii.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) ascii.charAt(i);
+        }
+        return result;
+    }
+
+}
@@ -40,9 +40,9 @@ class ConstructorInstrumentor extends BehaviorInstrumentor {
 
     public ConstructorInstrumentor(final ClassInstrumentor a_classInstrumentor,
                                    final CtConstructor a_constructor, final int a_index,
-                                   final ClassPool a_pool, final int oldClassIndex)
+                                   final ClassPool a_pool)
         throws ClassNotFoundException, NotFoundException {
-        super(a_classInstrumentor, a_constructor, a_pool, oldClassIndex);
+        super(a_classInstrumentor, a_constructor, a_pool);
         this.constructor = a_constructor;
         this.index = a_index;
     }
@@ -66,7 +66,7 @@ class ConstructorInstrumentor extends BehaviorInstrumentor {
     protected void insertClassInvariantCall(final boolean before)
         throws CannotCompileException, NotFoundException {
         if (!before) {
-            classInstrumentor.addClassInvariantCall(constructor, false, true);
+            classInstrumentor.addClassInvariantCall(constructor, false, true, getSampled());
         }
     }
 
@@ -77,7 +77,7 @@ class ConstructorInstrumentor extends BehaviorInstrumentor {
 
     @Override
     protected void setPreconditionModifiers(final CtMethod a_precondition) {
-        a_precondition.setModifiers(Modifier.FINAL | Modifier.STATIC);
+        a_precondition.setModifiers(classInstrumentor.isRetransformable() ? Modifier.PRIVATE | Modifier.STATIC : Modifier.FINAL | Modifier.STATIC);
     }
 
 }
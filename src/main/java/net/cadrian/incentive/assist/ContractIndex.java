@@ -0,0 +1,387 @@
+/*
+ * Incentive, A Design By Contract framework for Java.
+ * Copyright (C) 2011 Cyril Adrian. All Rights Reserved.
+ *
+ * Javaassist implementation based on C4J's
+ * Copyright (C) 2006 Jonas Bergstr�m. All Rights Reserved.
+ *
+ * The contents of this file may be used under the terms of the GNU Lesser
+ * General Public License Version 3.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+package net.cadrian.incentive.assist;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javassist.CtBehavior;
+import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.CtMethod;
+
+import net.cadrian.incentive.DBC;
+import net.cadrian.incentive.Ensure;
+import net.cadrian.incentive.Invariant;
+import net.cadrian.incentive.Require;
+import net.cadrian.incentive.assist.assertion.AssertionCodec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The contracts of a whole jar or class directory, gathered and parsed at
+ * build time (see {@link ContractIndexer}) and stored as a resource next to
+ * the classes. The agent reads it instead of the annotations of the classes,
+ * and does not parse the assertions again.
+ *
+ * Format: a table of (class name, contracted flag, offset) followed by the
+ * class entries, each one only decoded when its class is instrumented or
+ * inherited from. An entry is only used if the digest of its class file did
+ * not change: the digest of the raw class file bytes, computed once per class
+ * (see {@link LoaderPool#getClassfileDigest(String)}).
+ *
+ * @author cadrian
+ *
+ */
+final class ContractIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(ContractIndex.class);
+
+    static final String RESOURCE = "META-INF/incentive/contracts.idx";
+
+    private static final int MAGIC = 0x1DBC1DE8;
+    private static final int VERSION = 4;
+
+    /**
+     * The own contracts of a method or constructor
+     */
+    static final class Behavior {
+        static final Behavior NONE = new Behavior(false, Collections.<Assertion> emptyList(), Collections.<Assertion> emptyList());
+
+        final boolean pure;
+        final List<Assertion> require;
+        final List<Assertion> ensure;
+
+        Behavior(final boolean pure, final List<Assertion> require, final List<Assertion> ensure) {
+            this.pure = pure;
+            this.require = require;
+            this.ensure = ensure;
+        }
+    }
+
+    /**
+     * The own contracts of a class (the inherited ones are in the entries of
+     * the parents)
+     */
+    static final class Contracts {
+        /**
+         * Annotated with DBC, and not skipped
+         */
+        final boolean dbc;
+
+        /**
+         * The size of the constant pool of the indexed class file: a first,
+         * cheap, check of a stale index
+         */
+        final int constPoolSize;
+
+        /**
+         * The digest of the indexed class file (see
+         * {@link ContractIndex#digest(byte[])}), to detect a stale index
+         */
+        final String digest;
+
+        /**
+         * See {@link DBC#sample()}
+         */
+        final int sample;
+
+        final List<Assertion> invariant;
+        private final Map<String, Behavior> behaviors;
+
+        Contracts(final boolean dbc, final int constPoolSize, final String digest, final int sample, final List<Assertion> invariant,
+                  final Map<String, Behavior> behaviors) {
+            this.dbc = dbc;
+            this.constPoolSize = constPoolSize;
+            this.digest = digest;
+            this.sample = sample;
+            this.invariant = invariant;
+            this.behaviors = behaviors;
+        }
+
+        /**
+         * @param key
+         *            see {@link BehaviorInstrumentor#getKey(CtBehavior)}
+         */
+        Behavior getBehavior(final String key) {
+            final Behavior result = behaviors.get(key);
+            return result == null ? Behavior.NONE : result;
+        }
+
+        /**
+         * Read the contracts from the annotations of the class, and parse them
+         *
+         * @param digest
+         *            the digest of the class file of the class
+         */
+        static Contracts of(final CtClass ctClass, final String digest) throws ClassNotFoundException {
+            final Invariant invariant = (Invariant) ctClass.getAnnotation(Invariant.class);
+            final Map<String, Behavior> behaviors = new HashMap<String, Behavior>();
+            for (final CtMethod method : ctClass.getDeclaredMethods()) {
+                addBehavior(behaviors, method, InstrumentorUtil.methodAnnotatedWithPure(method));
+            }
+            for (final CtConstructor constructor : ctClass.getConstructors()) {
+                addBehavior(behaviors, constructor, false);
+            }
+            return new Contracts(InstrumentorUtil.hasDBC(ctClass), ctClass.getClassFile2().getConstPool().getSize(), digest,
+                                 InstrumentorUtil.getSample(ctClass), invariant == null ? Collections.<Assertion> emptyList()
+                                                                                        : AssertionCodec.parse(invariant.value()), behaviors);
+        }
+
+        /**
+         * The contracts of a class without any Incentive annotation
+         */
+        static Contracts none(final CtClass ctClass, final String digest) {
+            return new Contracts(false, ctClass.getClassFile2().getConstPool().getSize(), digest, 0, Collections.<Assertion> emptyList(),
+                                 Collections.<String, Behavior> emptyMap());
+        }
+
+        private static void addBehavior(final Map<String, Behavior> behaviors, final CtBehavior behavior, final boolean pure) throws ClassNotFoundException {
+            final Require require = (Require) behavior.getAnnotation(Require.class);
+            final Ensure ensure = (Ensure) behavior.getAnnotation(Ensure.class);
+            if (pure || require != null || ensure != null) {
+                behaviors.put(BehaviorInstrumentor.getKey(behavior),
+                              new Behavior(pure, require == null ? Collections.<Assertion> emptyList() : AssertionCodec.parse(require.value()),
+                                           ensure == null ? Collections.<Assertion> emptyList() : AssertionCodec.parse(ensure.value())));
+            }
+        }
+
+        private void write(final DataOutputStream out) throws IOException {
+            out.writeBoolean(dbc);
+            out.writeShort(constPoolSize);
+            out.writeUTF(digest);
+            out.writeInt(sample);
+            AssertionCodec.write(out, invariant);
+            out.writeShort(behaviors.size());
+            for (final Map.Entry<String, Behavior> behavior : behaviors.entrySet()) {
+                out.writeUTF(behavior.getKey());
+                out.writeBoolean(behavior.getValue().pure);
+                AssertionCodec.write(out, behavior.getValue().require);
+                AssertionCodec.write(out, behavior.getValue().ensure);
+            }
+        }
+
+        private static Contracts read(final DataInputStream in) throws IOException {
+            final boolean dbc = in.readBoolean();
+            final int constPoolSize = in.readUnsignedShort();
+            final String digest = in.readUTF();
+            final int sample = in.readInt();
+            final List<Assertion> invariant = AssertionCodec.read(in);
+            final int count = in.readUnsignedShort();
+            final Map<String, Behavior> behaviors = new HashMap<String, Behavior>(count * 2);
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                final boolean pure = in.readBoolean();
+                final List<Assertion> require = AssertionCodec.read(in);
+                behaviors.put(key, new Behavior(pure, require, AssertionCodec.read(in)));
+            }
+            return new Contracts(dbc, constPoolSize, digest, sample, invariant, behaviors);
+        }
+    }
+
+    /**
+     * Where the entry of a class is found
+     */
+    private static final class Slot {
+        final ByteBuffer buffer;
+        final int offset;
+
+        Slot(final ByteBuffer buffer, final int offset) {
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Reads an index buffer without copying it
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer, final int offset) {
+            this.buffer = buffer.duplicate();
+            this.buffer.position(offset);
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int result = Math.min(len, buffer.remaining());
+            buffer.get(b, off, result);
+            return result;
+        }
+    }
+
+    private final Map<String, Slot> slots;
+
+    private ContractIndex() {
+        slots = new HashMap<String, Slot>();
+    }
+
+    /**
+     * @return the index of all the indexed jars and directories visible from
+     *         the class loader, or <code>null</code> if there are none
+     */
+    static ContractIndex load(final ClassLoader loader) {
+        if (loader == null) {
+            return null;
+        }
+        final ContractIndex result = new ContractIndex();
+        try {
+            final Enumeration<URL> resources = loader.getResources(RESOURCE);
+            while (resources.hasMoreElements()) {
+                final URL resource = resources.nextElement();
+                try {
+                    result.add(map(resource));
+                    LOG.debug("Using contract index {}", resource);
+                } catch (final IOException iox) {
+                    LOG.warn("Invalid contract index {}", resource, iox);
+                }
+            }
+        } catch (final IOException iox) {
+            LOG.warn("Could not look for contract indexes", iox);
+        }
+        return result.slots.isEmpty() ? null : result;
+    }
+
+    /**
+     * Map the index file in memory if possible; else (e.g. in a jar) read it
+     */
+    private static ByteBuffer map(final URL resource) throws IOException {
+        if ("file".equals(resource.getProtocol())) {
+            try {
+                final RandomAccessFile file = new RandomAccessFile(new File(resource.toURI()), "r");
+                try {
+                    return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                } finally {
+                    file.close();
+                }
+            } catch (final URISyntaxException usx) {
+                // not a usable file: read it as any other resource
+            }
+        }
+        return ByteBuffer.wrap(InstrumentorUtil.readFully(resource.openStream()));
+    }
+
+    private void add(final ByteBuffer buffer) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer, 0));
+        if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+            throw new IOException("not a contract index, or not the right version");
+        }
+        final int count = in.readInt();
+        final int dataOffset = in.readInt();
+        for (int i = 0; i < count; i++) {
+            final String className = in.readUTF();
+            in.readBoolean(); // contracted: only for the tools
+            final int offset = in.readInt();
+            if (!slots.containsKey(className)) {
+                // the first one is the one the class loader would find
+                slots.put(className, new Slot(buffer, dataOffset + offset));
+            }
+        }
+    }
+
+    /**
+     * @param pool
+     *            the pool of the class, that knows the digest of its class
+     *            file
+     * @return the contracts of the class, or <code>null</code> if the class
+     *         is not indexed (or its index entry is not valid anymore)
+     */
+    Contracts get(final CtClass ctClass, final LoaderPool pool) {
+        final String className = ctClass.getName();
+        final Slot slot = slots.get(className);
+        if (slot == null) {
+            return null;
+        }
+        try {
+            final Contracts result = Contracts.read(new DataInputStream(new ByteBufferInputStream(slot.buffer, slot.offset)));
+            if (result.constPoolSize != ctClass.getClassFile2().getConstPool().getSize() || !result.digest.equals(pool.getClassfileDigest(className))) {
+                LOG.warn("Stale contract index entry for {}", className);
+                return null;
+            }
+            return result;
+        } catch (final IOException iox) {
+            LOG.warn("Invalid contract index entry for {}", className, iox);
+            return null;
+        }
+    }
+
+    /**
+     * @return the digest of the raw bytes of a class file: the same for the
+     *         indexer and the agent, as long as they read the same file
+     */
+    static String digest(final byte[] classfile) {
+        return InstrumentationCache.hex(InstrumentationCache.newDigest().digest(classfile));
+    }
+
+    /**
+     * Write an index of the given classes
+     */
+    static void write(final OutputStream stream, final Map<String, Contracts> contracts) throws IOException {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final DataOutputStream dataOut = new DataOutputStream(data);
+        final Map<String, Integer> offsets = new LinkedHashMap<String, Integer>();
+        for (final Map.Entry<String, Contracts> entry : contracts.entrySet()) {
+            offsets.put(entry.getKey(), Integer.valueOf(dataOut.size()));
+            entry.getValue().write(dataOut);
+        }
+        dataOut.flush();
+
+        final ByteArrayOutputStream table = new ByteArrayOutputStream();
+        final DataOutputStream tableOut = new DataOutputStream(table);
+        for (final Map.Entry<String, Integer> offset : offsets.entrySet()) {
+            tableOut.writeUTF(offset.getKey());
+            tableOut.writeBoolean(contracts.get(offset.getKey()).dbc);
+            tableOut.writeInt(offset.getValue().intValue());
+        }
+        tableOut.flush();
+
+        final DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(offsets.size());
+        // magic, version, count, data offset
+        out.writeInt(4 + 2 + 4 + 4 + table.size());
+        table.writeTo(out);
+        data.writeTo(out);
+        out.flush();
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Incentive, A Design By Contract framework for Java.
+ * Copyright (C) 2011 Cyril Adrian. All Rights Reserved.
+ *
+ * Javaassist implementation based on C4J's
+ * Copyright (C) 2006 Jonas Bergstr�m. All Rights Reserved.
+ *
+ * The contents of this file may be used under the terms of the GNU Lesser
+ * General Public License Version 3.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+package net.cadrian.incentive.assist;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import javassist.CtClass;
+import javassist.NotFoundException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Build step: writes the contract index of jars or class directories.
+ *
+ * <pre>
+ * java -cp incentive.jar:javassist.jar:slf4j-api.jar net.cadrian.incentive.assist.ContractIndexer \
+ *      [-cp &lt;classpath&gt;] [-o &lt;index file&gt;] &lt;jar or directory&gt;...
+ * </pre>
+ *
+ * Without <code>-o</code>, the only input must be a directory, and the index
+ * is written in it (as {@value ContractIndex#RESOURCE}). Otherwise the index
+ * file must be packaged under that name along with the indexed classes.
+ *
+ * @see ContractIndex
+ *
+ * @author cadrian
+ *
+ */
+final class ContractIndexer {
+    private static final Logger LOG = LoggerFactory.getLogger(ContractIndexer.class);
+
+    private static final String CLASS_SUFFIX = ".class";
+
+    private final LoaderPool pool;
+    private final Map<String, ContractIndex.Contracts> contracts;
+    private int contracted;
+
+    ContractIndexer(final List<String> classPath) {
+        pool = new LoaderPool(null, null);
+        for (int i = classPath.size(); i --> 0;) {
+            try {
+                pool.insertClassPath(classPath.get(i));
+            } catch (final NotFoundException nfx) {
+                LOG.warn("Class path element not found: {}", classPath.get(i));
+            }
+        }
+        contracts = new LinkedHashMap<String, ContractIndex.Contracts>();
+    }
+
+    public static void main(final String[] args) {
+        String output = null;
+        final List<String> classPath = new ArrayList<String>();
+        final List<String> inputs = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-o".equals(args[i])) {
+                    output = args[++i];
+                } else if ("-cp".equals(args[i])) {
+                    for (final String path : args[++i].split(File.pathSeparator)) {
+                        classPath.add(path);
+                    }
+                } else {
+                    inputs.add(args[i]);
+                }
+            }
+        } catch (final ArrayIndexOutOfBoundsException aioobx) {
+            usage();
+        }
+        if (inputs.isEmpty()) {
+            usage();
+        }
+        final File outputFile;
+        if (output != null) {
+            outputFile = new File(output);
+        } else if (inputs.size() == 1 && new File(inputs.get(0)).isDirectory()) {
+            outputFile = new File(inputs.get(0), ContractIndex.RESOURCE);
+        } else {
+            usage();
+            return;
+        }
+
+        // the inputs come first so that they are found before anything else
+        classPath.addAll(0, inputs);
+
+        final ContractIndexer indexer = new ContractIndexer(classPath);
+        try {
+            for (final String input : inputs) {
+                indexer.index(new File(input));
+            }
+            indexer.write(outputFile);
+        } catch (final Exception x) {
+            LOG.error("Indexing failed", x);
+            System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: " + ContractIndexer.class.getName() + " [-cp <classpath>] [-o <index file>] <jar or directory>...");
+        System.exit(1);
+    }
+
+    void index(final File input) throws IOException, ClassNotFoundException {
+        if (input.isDirectory()) {
+            indexDirectory(input, "");
+        } else {
+            final JarFile jar = new JarFile(input);
+            try {
+                final Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    final JarEntry entry = entries.nextElement();
+                    if (!entry.isDirectory() && entry.getName().endsWith(CLASS_SUFFIX)) {
+                        index(entry.getName(), InstrumentorUtil.readFully(jar.getInputStream(entry)));
+                    }
+                }
+            } finally {
+                jar.close();
+            }
+        }
+    }
+
+    private void indexDirectory(final File dir, final String prefix) throws IOException, ClassNotFoundException {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + dir);
+        }
+        for (final File file : files) {
+            final String name = prefix + file.getName();
+            if (file.isDirectory()) {
+                indexDirectory(file, name + "/");
+            } else if (name.endsWith(CLASS_SUFFIX)) {
+                index(name, InstrumentorUtil.readFully(new FileInputStream(file)));
+            }
+        }
+    }
+
+    /**
+     * All the classes are indexed, even the ones without contracts: the agent
+     * then knows that it does not need to look at their annotations.
+     */
+    private void index(final String entryName, final byte[] classfile) throws IOException, ClassNotFoundException {
+        final String className = entryName.substring(0, entryName.length() - CLASS_SUFFIX.length()).replace('/', '.');
+        if (contracts.containsKey(className)) {
+            // the first one is the one the class loader would find
+            return;
+        }
+        final CtClass ctClass = pool.makeClass(new ByteArrayInputStream(classfile));
+        try {
+            final String digest = ContractIndex.digest(classfile);
+            if (!ClassfileScanner.mayHaveContracts(classfile)) {
+                contracts.put(className, ContractIndex.Contracts.none(ctClass, digest));
+                return;
+            }
+            final ContractIndex.Contracts classContracts = ContractIndex.Contracts.of(ctClass, digest);
+            contracts.put(className, classContracts);
+            if (classContracts.dbc) {
+                contracted++;
+            }
+        } catch (final SyntaxException sx) {
+            // not indexed: the agent will report the error when loading the
+            // class
+            LOG.error("Invalid contract in {}, not indexed", className, sx);
+        } finally {
+            ctClass.detach();
+        }
+    }
+
+    void write(final File outputFile) throws IOException {
+        outputFile.getParentFile().mkdirs();
+        final OutputStream out = new FileOutputStream(outputFile);
+        try {
+            ContractIndex.write(out, contracts);
+        } finally {
+            out.close();
+        }
+        System.out.println(String.format("%s: %d classes, %d contracted, %d bytes", outputFile, Integer.valueOf(contracts.size()),
+                                         Integer.valueOf(contracted), Long.valueOf(outputFile.length())));
+    }
+
+}
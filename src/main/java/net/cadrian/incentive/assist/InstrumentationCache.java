@@ -0,0 +1,273 @@
+/*
+ * Incentive, A Design By Contract framework for Java.
+ * Copyright (C) 2011 Cyril Adrian. All Rights Reserved.
+ *
+ * Javaassist implementation based on C4J's
+ * Copyright (C) 2006 Jonas Bergstr�m. All Rights Reserved.
+ *
+ * The contents of this file may be used under the terms of the GNU Lesser
+ * General Public License Version 3.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+package net.cadrian.incentive.assist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent read-through cache of instrumented class files.
+ *
+ * Each class has one entry file in the cache directory. The entry is keyed by
+ * a digest of the original class file, the agent version and the options that
+ * change the generated code; it also records a digest of each parent class
+ * file (any of them may bring contracts) so that a change in the hierarchy
+ * invalidates the entry. The parent digests are computed once per class
+ * loader (see {@link LoaderPool#getClassfileDigest(String)}).
+ *
+ * @author cadrian
+ *
+ */
+final class InstrumentationCache {
+    private static final Logger LOG = LoggerFactory.getLogger(InstrumentationCache.class);
+
+    private static final int MAGIC = 0x1DBCCAC9;
+    private static final String ENTRY_SUFFIX = ".incentive";
+
+    /**
+     * A cache hit: the instrumented byte code, and the methods declared pure
+     * by the class (see
+     * {@link ClassInstrumentor#getDeclaredPure()})
+     */
+    static final class Entry {
+        final byte[] byteCode;
+        final Set<String> pureMethods;
+
+        Entry(final byte[] byteCode, final Set<String> pureMethods) {
+            this.byteCode = byteCode;
+            this.pureMethods = pureMethods;
+        }
+
+        /**
+         * @return <code>true</code> if the class was not changed by the
+         *         instrumentation
+         */
+        boolean isUnchanged() {
+            return byteCode.length == 0;
+        }
+    }
+
+    private final File directory;
+    private final String fingerprint;
+
+    InstrumentationCache(final File directory) {
+        this.directory = directory;
+        this.fingerprint = agentVersion() + "|" + Option.fingerprint();
+        LOG.debug("Cache fingerprint: {}", fingerprint);
+    }
+
+    /**
+     * @return the cached entry for the given class, or <code>null</code> if
+     *         there is none or if it is stale
+     */
+    Entry load(final LoaderPool pool, final String className, final byte[] classfileBuffer) {
+        final File file = entryFile(className);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || !in.readUTF().equals(key(classfileBuffer))) {
+                    LOG.debug("Stale cache entry for {}", className);
+                    return null;
+                }
+                final int parentCount = in.readInt();
+                for (int i = 0; i < parentCount; i++) {
+                    final String parentName = in.readUTF();
+                    final String parentDigest = in.readUTF();
+                    if (!parentDigest.equals(pool.getClassfileDigest(parentName))) {
+                        LOG.debug("Stale cache entry for {}: parent {} changed", className, parentName);
+                        return null;
+                    }
+                }
+                final byte[] byteCode = readBytes(in);
+                final int pureCount = in.readInt();
+                final Set<String> pureMethods = new HashSet<String>(pureCount * 2);
+                for (int i = 0; i < pureCount; i++) {
+                    pureMethods.add(in.readUTF());
+                }
+                LOG.debug("Cache hit for {}", className);
+                return new Entry(byteCode, pureMethods);
+            } finally {
+                in.close();
+            }
+        } catch (final IOException iox) {
+            LOG.warn("Could not read cache entry {}", file, iox);
+            return null;
+        }
+    }
+
+    /**
+     * Store a new entry for the given class
+     *
+     * @param byteCode
+     *            the instrumented byte code, or <code>null</code> if the class
+     *            was not changed
+     * @param pureMethods
+     *            the methods declared pure by the class
+     */
+    void store(final LoaderPool pool, final String className, final byte[] classfileBuffer, final List<String> parents,
+               final byte[] byteCode, final Set<String> pureMethods) {
+        final File file = entryFile(className);
+        File tmp = null;
+        try {
+            final List<String> parentDigests = new ArrayList<String>(parents.size());
+            for (final String parent : parents) {
+                final String digest = pool.getClassfileDigest(parent);
+                if (digest == null) {
+                    LOG.debug("Not caching {}: parent {} not found", className, parent);
+                    return;
+                }
+                parentDigests.add(digest);
+            }
+
+            // a unique file: the same class may be stored concurrently (by
+            // another class loader, or another JVM)
+            tmp = File.createTempFile(className, ENTRY_SUFFIX + ".tmp", directory);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeUTF(key(classfileBuffer));
+                out.writeInt(parents.size());
+                for (int i = 0; i < parents.size(); i++) {
+                    out.writeUTF(parents.get(i));
+                    out.writeUTF(parentDigests.get(i));
+                }
+                writeBytes(out, byteCode == null ? new byte[0] : byteCode);
+                out.writeInt(pureMethods.size());
+                for (final String pureMethod : pureMethods) {
+                    out.writeUTF(pureMethod);
+                }
+            } finally {
+                out.close();
+            }
+            if (file.exists()) {
+                file.delete();
+            }
+            if (!tmp.renameTo(file)) {
+                LOG.warn("Could not write cache entry {}", file);
+                tmp.delete();
+            }
+        } catch (final IOException iox) {
+            LOG.warn("Could not write cache entry {}", file, iox);
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private File entryFile(final String className) {
+        return new File(directory, className + ENTRY_SUFFIX);
+    }
+
+    private String key(final byte[] classfileBuffer) {
+        final MessageDigest digest = newDigest();
+        try {
+            digest.update(fingerprint.getBytes("UTF-8"));
+        } catch (final UnsupportedEncodingException uex) {
+            throw new IllegalStateException(uex);
+        }
+        digest.update(classfileBuffer);
+        return hex(digest.digest());
+    }
+
+    static byte[] readClassFile(final ClassLoader loader, final String className) throws IOException {
+        final String resource = className.replace('.', '/') + ".class";
+        final InputStream in = loader == null ? ClassLoader.getSystemResourceAsStream(resource) : loader.getResourceAsStream(resource);
+        if (in == null) {
+            return null;
+        }
+        return InstrumentorUtil.readFully(in);
+    }
+
+    private static byte[] readBytes(final DataInputStream in) throws IOException {
+        final byte[] result = new byte[in.readInt()];
+        in.readFully(result);
+        return result;
+    }
+
+    private static void writeBytes(final DataOutputStream out, final byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException nsax) {
+            throw new IllegalStateException(nsax);
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    static String hex(final byte[] bytes) {
+        final char[] result = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            result[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            result[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(result);
+    }
+
+    /**
+     * The agent version: the jar implementation version, and the jar
+     * timestamp to catch development builds
+     */
+    static String agentVersion() {
+        final StringBuilder result = new StringBuilder();
+        final Package pkg = Instrumentor.class.getPackage();
+        if (pkg != null && pkg.getImplementationVersion() != null) {
+            result.append(pkg.getImplementationVersion());
+        }
+        final CodeSource codeSource = Instrumentor.class.getProtectionDomain().getCodeSource();
+        if (codeSource != null) {
+            final URL location = codeSource.getLocation();
+            if (location != null) {
+                try {
+                    result.append('@').append(new File(location.toURI()).lastModified());
+                } catch (final URISyntaxException usx) {
+                    result.append('@').append(location);
+                } catch (final IllegalArgumentException iax) {
+                    result.append('@').append(location);
+                }
+            }
+        }
+        return result.toString();
+    }
+
+}
@@ -15,6 +15,7 @@
  */
 package net.cadrian.incentive.assist;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -22,17 +23,15 @@ import java.io.OutputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
 import java.security.ProtectionDomain;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
-import java.util.regex.Pattern;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import javassist.ByteArrayClassPath;
 import javassist.CannotCompileException;
-import javassist.ClassPool;
 import javassist.CtClass;
-import javassist.LoaderClassPath;
 import javassist.NotFoundException;
 import javassist.compiler.CompileError;
 
@@ -48,10 +47,58 @@ import org.slf4j.LoggerFactory;
 public final class Instrumentor implements ClassFileTransformer {
     private static final Logger LOG = LoggerFactory.getLogger(Instrumentor.class);
 
-    private final Map<String, byte[]> instrumentedClasses;
-    private final String cacheDirectory;
+    private final String dumpDirectory;
+    private final InstrumentationCache cache;
+    private final boolean offline;
 
-    static final ClassPool mainPool = new ClassPool(true);
+    /**
+     * The root pool: either the pool of the platform classes (agent), or the
+     * pool of the classes to instrument (offline)
+     */
+    final LoaderPool mainPool;
+    private final ClassLoader mainLoader;
+
+    /**
+     * One pool per class loader, freed with its loader
+     */
+    private final Map<ClassLoader, LoaderPool> pools;
+
+    /**
+     * Striped locks on the class names. A class is only parsed or
+     * instrumented by the thread that holds the lock of its name, and no
+     * thread ever holds two of those locks: independent hierarchies are
+     * instrumented in parallel, and common parents only once.
+     */
+    private static final int LOCK_STRIPES = 64;
+    private final Object[] locks;
+
+    /**
+     * What the instrumentation costs
+     */
+    final InstrumentorMetrics metrics;
+
+    /**
+     * Which classes to instrument
+     */
+    private final ClassFilter filter;
+
+    /**
+     * Attached to a running JVM: the classes are only instrumented when
+     * switched on (see {@link #agentmain(String, Instrumentation)}), and
+     * without new fields so that they can be retransformed back and forth
+     */
+    final boolean retransformable;
+
+    /**
+     * The classes switched on by the attached agent, or <code>null</code>
+     */
+    private volatile ClassFilter enabled;
+
+    /**
+     * The attached agent, kept between two attachments
+     */
+    private static Instrumentor attached;
+    private static boolean started;
 
     /**
      * The javaagent main method
@@ -63,28 +110,169 @@ public final class Instrumentor implements ClassFileTransformer {
      */
     public static void premain(final String options, final Instrumentation ins) {
         LOG.debug("Starting Incentive...");
-        ins.addTransformer(new Instrumentor(options));
+        synchronized (Instrumentor.class) {
+            started = true;
+        }
+        final Instrumentor instrumentor = new Instrumentor(options, false);
+        instrumentor.metrics.register();
+        if (Option.report.isSet()) {
+            instrumentor.metrics.reportAtShutdown();
+        }
+        ins.addTransformer(instrumentor);
         LOG.debug("Incentive started.");
     }
 
-    private Instrumentor(final String options) {
-        instrumentedClasses = new HashMap<String, byte[]>();
-        if (options == null) {
-            cacheDirectory = null;
-        } else {
+    /**
+     * The dynamic attach main method. The first attachment installs the
+     * agent, with the usual options (except the cache); no class is
+     * instrumented until switched on. Each attachment may also give either:
+     * <ul>
+     * <li><code>retransform=</code><i>rules</i>: the classes to check (see
+     * {@link ClassFilter} for the rules, separated by semicolons); the
+     * already loaded classes are retransformed, and the classes loaded later
+     * are instrumented as usual. Replaces the rules of the previous
+     * attachment.</li>
+     * <li><code>restore</code>: the instrumented classes get their original
+     * byte code back.</li>
+     * </ul>
+     *
+     * Limitation: the JVM specification does not allow a retransformation to
+     * add members to a loaded class. HotSpot accepts new private static and
+     * private final methods, and those are the only members added for the
+     * attached agent (contract methods and quantifier helpers). A loaded
+     * class whose instrumentation would need more is left unchecked, with a
+     * warning; so is a class the JVM refuses to retransform.
+     *
+     * @param options
+     *            the options given by the attach framework
+     * @param ins
+     */
+    public static void agentmain(final String options, final Instrumentation ins) {
+        final StringBuilder agentOptions = new StringBuilder();
+        String retransform = null;
+        boolean restore = false;
+        if (options != null) {
+            final StringTokenizer tokenizer = new StringTokenizer(options, ",");
+            while (tokenizer.hasMoreTokens()) {
+                final String token = tokenizer.nextToken();
+                if (token.startsWith("retransform=")) {
+                    retransform = token.substring("retransform=".length());
+                } else if (token.equals("restore")) {
+                    restore = true;
+                } else {
+                    if (agentOptions.length() > 0) {
+                        agentOptions.append(',');
+                    }
+                    agentOptions.append(token);
+                }
+            }
+        }
+
+        synchronized (Instrumentor.class) {
+            if (attached == null) {
+                if (started) {
+                    LOG.warn("Incentive is already started, not attaching.");
+                    return;
+                }
+                started = true;
+                LOG.debug("Attaching Incentive...");
+                attached = new Instrumentor(agentOptions.length() == 0 ? null : agentOptions.toString(), true);
+                attached.metrics.register();
+                ins.addTransformer(attached, true);
+                LOG.debug("Incentive attached.");
+            } else if (agentOptions.length() > 0) {
+                LOG.warn("Incentive is already attached, ignored options: {}", agentOptions);
+            }
+            if (restore) {
+                attached.enable(ins, null);
+            } else if (retransform != null) {
+                attached.enable(ins, retransform.length() == 0 ? null : new ClassFilter(retransform, null, null));
+            }
+        }
+    }
+
+    /**
+     * The ahead-of-time instrumentation main method
+     *
+     * @see OfflineInstrumentor
+     *
+     * @param args
+     *            the command line arguments
+     */
+    public static void main(final String[] args) {
+        OfflineInstrumentor.main(args);
+    }
+
+    private Instrumentor(final String options, final boolean retransformable) {
+        offline = false;
+        this.retransformable = retransformable;
+        locks = newLocks();
+        if (options != null) {
             parseOptions(options);
-            cacheDirectory = Option.cache.getValue();
+        }
+        metrics = new InstrumentorMetrics(Option.report.getIntValue(10));
+        filter = ClassFilter.fromOptions();
+        // Only the platform classes go to the main pool; the application
+        // classes go to the pool of their own loader.
+        final ClassLoader platformLoader = ClassLoader.getSystemClassLoader().getParent();
+        mainLoader = platformLoader;
+        mainPool = new LoaderPool(null, platformLoader);
+        pools = new WeakHashMap<ClassLoader, LoaderPool>();
+        if (options == null || retransformable) {
+            // the persistent cache holds byte code that is not retransformable
+            cache = null;
+        } else {
+            final String cacheDirectory = Option.cache.getValue();
             if (cacheDirectory != null) {
                 final File classfileDir = new File(cacheDirectory);
                 if (!classfileDir.exists()) {
                     classfileDir.mkdirs();
                 }
                 LOG.debug("Using cache directory for instrumented class files: {}", classfileDir);
+                cache = new InstrumentationCache(classfileDir);
+            } else {
+                cache = null;
             }
         }
+        dumpDirectory = Option.dump.getValue();
+        if (dumpDirectory != null) {
+            new File(dumpDirectory).mkdirs();
+        }
+    }
+
+    /**
+     * Offline instrumentor: the instrumented classes are not loaded but given
+     * to the caller to write them (see {@link #instrumentOffline(String)})
+     *
+     * @param pool
+     *            the pool that gives access to the classes to instrument
+     */
+    Instrumentor(final LoaderPool pool) {
+        mainPool = pool;
+        mainLoader = null;
+        retransformable = false;
+        locks = newLocks();
+        metrics = new InstrumentorMetrics(10);
+        filter = ClassFilter.fromOptions();
+        pools = null;
+        offline = true;
+        dumpDirectory = null;
+        cache = null;
+    }
+
+    private static Object[] newLocks() {
+        final Object[] result = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            result[i] = new Object();
+        }
+        return result;
+    }
+
+    private Object lockFor(final String className) {
+        return locks[(className.hashCode() & 0x7fffffff) % LOCK_STRIPES];
     }
 
-    private static void parseOptions(final String options) {
+    static void parseOptions(final String options) {
         final StringTokenizer tokenizer = new StringTokenizer(options, ",");
         while (tokenizer.hasMoreTokens()) {
             final String token = tokenizer.nextToken();
@@ -92,7 +280,7 @@ public final class Instrumentor implements ClassFileTransformer {
             if (equalsIndex == 0) {
                 LOG.warn("Invalid option: '" + token + "'.");
             } else {
-                final String name = token.substring(0, equalsIndex).toLowerCase();
+                final String name = (equalsIndex == -1 ? token : token.substring(0, equalsIndex)).toLowerCase();
                 if (Option.has(name)) {
                     final String value;
                     if (equalsIndex == -1) {
@@ -115,54 +303,220 @@ public final class Instrumentor implements ClassFileTransformer {
                             final Class<?> classBeingRedefined,
                             final ProtectionDomain protectionDomain,
                             final byte[] classfileBuffer) {
-        if (classNameWithSlashes.startsWith("sunw/")
-            || classNameWithSlashes.startsWith("sun/")
-            || classNameWithSlashes.startsWith("java/")
-            || classNameWithSlashes.startsWith("javax/")
-            || classNameWithSlashes.startsWith("com/sun/")) {
-            return classfileBuffer;
-        }
-
         // classNameWithSlashes is on the format "java/lang/Object", but
         // ClassPool wants the name to be like "java.lang.Object".
         final String className = classNameWithSlashes.replace('/', '.');
 
-        if (Option.limit.isSet() && !Pattern.matches(Option.limit.getValue(), className)) {
+        if (!filter.accept(className) || !isEnabled(className) || !ClassfileScanner.mayHaveDBC(classfileBuffer)) {
+            // note: for a retransformation, classfileBuffer is the original
+            // byte code, that restores the class
+            metrics.skipped();
             return classfileBuffer;
         }
+        if (ClassfileScanner.isInstrumented(classfileBuffer)) {
+            // e.g. instrumented offline: its contracts are already checked
+            LOG.debug("{} already instrumented", className);
+            metrics.skipped();
+            return classfileBuffer;
+        }
+
+        final InstrumentorMetrics.ClassRecord record = metrics.startClass(className);
+        final long poolStart = metrics.start();
+        final LoaderPool pool = getPool(loader);
+        metrics.end(InstrumentorMetrics.Phase.pool, poolStart);
+        try {
+            if (retransformable) {
+                final byte[] result = retransform(className, classBeingRedefined != null, classfileBuffer, pool, record);
+                if (result != classfileBuffer) {
+                    if (classBeingRedefined != null && !isRetransformable(className, classfileBuffer, result)) {
+                        record.outcome = InstrumentorMetrics.Outcome.failed;
+                        return classfileBuffer;
+                    }
+                    pool.putRetransformable(className, result);
+                }
+                return result;
+            }
+            return transform(className, classfileBuffer, pool, record);
+        } finally {
+            pool.loaded(className);
+            metrics.endClass(record);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the JVM would accept the instrumented byte
+     *         code of an already loaded class; otherwise the class is left
+     *         unchecked, rather than failing the whole retransformation
+     */
+    private static boolean isRetransformable(final String className, final byte[] classfileBuffer, final byte[] result) {
+        try {
+            final String problem = InstrumentorUtil.getRetransformationProblem(classfileBuffer, result);
+            if (problem == null) {
+                return true;
+            }
+            LOG.warn("Cannot retransform {}, not checked: {}", className, problem);
+        } catch (final IOException iox) {
+            LOG.warn("Cannot retransform {}, not checked", className, iox);
+        }
+        return false;
+    }
+
+    private boolean isEnabled(final String className) {
+        if (!retransformable) {
+            return true;
+        }
+        final ClassFilter enabledClasses = enabled;
+        return enabledClasses != null && enabledClasses.accept(className);
+    }
+
+    /**
+     * Switch the checking on for the given classes, and off for the others:
+     * the loaded classes concerned by the change are retransformed.
+     *
+     * @param ins
+     *            the instrumentation of the JVM
+     * @param classes
+     *            the classes to check, or <code>null</code> for none
+     */
+    private void enable(final Instrumentation ins, final ClassFilter classes) {
+        final ClassFilter previous = enabled;
+        enabled = classes;
+        int count = 0;
+        for (final Class<?> loadedClass : ins.getAllLoadedClasses()) {
+            final String className = loadedClass.getName();
+            if (ins.isModifiableClass(loadedClass) && filter.accept(className)
+                && ((previous != null && previous.accept(className)) || (classes != null && classes.accept(className)))) {
+                try {
+                    ins.retransformClasses(loadedClass);
+                    count++;
+                } catch (final Exception x) {
+                    LOG.warn("Could not retransform {}", className, x);
+                } catch (final LinkageError e) {
+                    LOG.warn("Could not retransform {}", className, e);
+                }
+            }
+        }
+        LOG.info("Retransformed {} classes", Integer.valueOf(count));
+    }
+
+    /**
+     * Transform a class for the attached agent: either when loaded, or when
+     * retransformed (then its byte code is the JVM one, not the class file)
+     */
+    private byte[] retransform(final String className, final boolean redefined, final byte[] classfileBuffer,
+                               final LoaderPool pool, final InstrumentorMetrics.ClassRecord record) {
+        final byte[] retransformable = pool.getRetransformable(className);
+        if (retransformable != null) {
+            // already instrumented once, then restored
+            record.outcome = InstrumentorMetrics.Outcome.cached;
+            return retransformable;
+        }
+        if (redefined) {
+            synchronized (lockFor(className)) {
+                final CtClass targetClass = pool.getOwn(className);
+                if (targetClass == null || !targetClass.isModified()) {
+                    // loaded before: at most analyzed for its contracts, but
+                    // not instrumented
+                    pool.forget(className);
+                    try {
+                        // the byte code given by the JVM lost the invisible
+                        // annotations, i.e. the contracts: read the class
+                        // file again
+                        pool.get(className);
+                    } catch (final NotFoundException nfx) {
+                        LOG.warn("Class file not found: {}", className);
+                    }
+                }
+            }
+        }
+        return transform(className, classfileBuffer, pool, record);
+    }
+
+    private byte[] transform(final String className, final byte[] classfileBuffer, final LoaderPool pool, final InstrumentorMetrics.ClassRecord record) {
+        if (cache != null) {
+            final InstrumentationCache.Entry entry = cache.load(pool, className, classfileBuffer);
+            if (entry != null) {
+                pool.putPureMethods(className, entry.pureMethods);
+                record.outcome = InstrumentorMetrics.Outcome.cached;
+                return entry.isUnchanged() ? classfileBuffer : entry.byteCode;
+            }
+        }
 
         LOG.debug("Gathering contracts for {}.", className);
         try {
-            final ClassPool pool = makePool(loader, classfileBuffer, className);
-            final CtClass targetClass = pool.get(className);
+            CtClass targetClass;
+            synchronized (lockFor(className)) {
+                targetClass = pool.getOwn(className);
+                if (targetClass == null) {
+                    // not yet seen as the parent of another class
+                    pool.putClassfile(className, classfileBuffer);
+                    targetClass = pool.makeClass(new ByteArrayInputStream(classfileBuffer));
+                }
+            }
 
             // Make sure that all parents with contracts are instrumented first,
             // so that their contracts are available to this class to use.
+            final long parentsStart = metrics.start();
             final List<CtClass> classHierarchy = InstrumentorUtil.getParents(targetClass);
-            for (int i = classHierarchy.size(); i --> 0;) {
-                instrumentClass(classHierarchy.get(i), pool);
-            }
+            metrics.end(InstrumentorMetrics.Phase.parents, parentsStart);
+            instrumentParents(classHierarchy);
 
-            final byte[] result = instrumentClass(targetClass, pool);
+            final byte[] result = instrumentClass(targetClass);
+            if (cache != null) {
+                cache.store(pool, className, classfileBuffer, getParentNames(classHierarchy), result, getClassInstrumentor(targetClass).getDeclaredPure());
+            }
             if (result == null) {
+                record.outcome = InstrumentorMetrics.Outcome.unchanged;
                 return classfileBuffer;
             }
 
-            writeToCache(className, result);
+            record.outcome = InstrumentorMetrics.Outcome.instrumented;
+            dump(className, result);
             return result;
         } catch (final Exception x) {
             LOG.error("Unable to load class: {}.", className, x);
         } catch (final Error e) {
             LOG.error("Unable to load class: {}.", className, e);
-            System.exit(1);
+            if (!retransformable) {
+                System.exit(1);
+            }
         }
         return classfileBuffer;
     }
 
-    void writeToCache(final String className, final byte[] result) {
-        if (cacheDirectory != null) {
+    /**
+     * Instrument the given class ahead of time.
+     *
+     * @param className
+     *            the name of the class to instrument
+     * @return the instrumented byte code, or <code>null</code> if the class
+     *         was not changed
+     */
+    byte[] instrumentOffline(final String className) throws NotFoundException, CannotCompileException, IOException, ClassNotFoundException, CompileError {
+        final CtClass targetClass = mainPool.get(className);
+        instrumentParents(InstrumentorUtil.getParents(targetClass));
+        return instrumentClass(targetClass);
+    }
+
+    private static List<String> getParentNames(final List<CtClass> classHierarchy) {
+        final List<String> result = new ArrayList<String>(classHierarchy.size());
+        for (final CtClass parent : classHierarchy) {
+            final String parentName = parent.getName();
+            if (!InstrumentorUtil.isSystemClass(parentName)) {
+                result.add(parentName);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Debug: write the instrumented byte code of the class in the directory
+     * given by the <code>dump</code> option, if any
+     */
+    private void dump(final String className, final byte[] result) {
+        if (dumpDirectory != null) {
             try {
-                final File file = new File(cacheDirectory, className + ".class");
+                final File file = new File(dumpDirectory, className + ".class");
                 file.createNewFile();
                 final OutputStream out = new FileOutputStream(file);
                 out.write(result);
@@ -175,49 +529,113 @@ public final class Instrumentor implements ClassFileTransformer {
         }
     }
 
-    private ClassPool makePool(final ClassLoader loader, final byte[] classfileBuffer, final String className) {
-        final ClassPool pool = new ClassPool(mainPool);
-        if (loader == null) {
-            pool.appendSystemPath();
-        } else {
-            pool.insertClassPath(new LoaderClassPath(loader));
+    private synchronized LoaderPool getPool(final ClassLoader loader) {
+        if (offline || loader == null || loader == mainLoader) {
+            return mainPool;
         }
-
-        //// If this class has already been instrumented before, make sure to
-        //// use that code
-        //if (classfileBuffer != null && classfileBuffer.length > 0) {
-        //    pool.insertClassPath(new ByteArrayClassPath(className, classfileBuffer));
-        //}
-        //final byte[] byteCode = instrumentedClasses.get(className);
-        //if (byteCode != null && byteCode.length > 0) {
-        //    pool.insertClassPath(new ByteArrayClassPath(className, byteCode));
-        //}
-        return pool;
+        LoaderPool result = pools.get(loader);
+        if (result == null) {
+            result = new LoaderPool(getPool(loader.getParent()), loader);
+            pools.put(loader, result);
+        }
+        return result;
     }
 
-    private byte[] instrumentClass(final CtClass a_targetClass, final ClassPool a_pool) throws NotFoundException, CannotCompileException, IOException, ClassNotFoundException, CompileError {
+    /**
+     * @return the analysis of the class, made only once per class (in the
+     *         pool of the class)
+     */
+    ClassInstrumentor getClassInstrumentor(final CtClass a_targetClass) throws NotFoundException, ClassNotFoundException {
+        final ConcurrentMap<String, ClassInstrumentor> classInstrumentors = ((LoaderPool) a_targetClass.getClassPool()).classInstrumentors;
         final String targetClassName = a_targetClass.getName();
-        final ClassInstrumentor classInstrumentor = new ClassInstrumentor(a_targetClass, a_pool, this);
+        ClassInstrumentor result = classInstrumentors.get(targetClassName);
+        if (result == null) {
+            result = new ClassInstrumentor(a_targetClass, this);
+            final ClassInstrumentor concurrent = classInstrumentors.putIfAbsent(targetClassName, result);
+            if (concurrent != null) {
+                result = concurrent;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Make sure that the parents are instrumented, from the top of the
+     * hierarchy down. Each class is processed only once (it is frozen after
+     * that), the next times are cheap.
+     */
+    private void instrumentParents(final List<CtClass> classHierarchy) throws NotFoundException, CannotCompileException, IOException, ClassNotFoundException,
+        CompileError {
+        for (int i = classHierarchy.size(); i --> 0;) {
+            final CtClass parent = classHierarchy.get(i);
+            if (!parent.isFrozen()) {
+                synchronized (lockFor(parent.getName())) {
+                    instrument(parent);
+                }
+            }
+        }
+    }
 
-        byte[] byteCode = instrumentedClasses.get(targetClassName);
-        if (byteCode != null) {
-            if (byteCode.length == a_targetClass.toBytecode().length) {
-                LOG.debug("{} already instrumented.", targetClassName);
+    /**
+     * @return the instrumented byte code of the class, or <code>null</code>
+     *         if it is not changed
+     */
+    private byte[] instrumentClass(final CtClass a_targetClass) throws NotFoundException, CannotCompileException, IOException, ClassNotFoundException, CompileError {
+        final String targetClassName = a_targetClass.getName();
+        synchronized (lockFor(targetClassName)) {
+            final byte[] byteCode = instrument(a_targetClass);
+            if (byteCode != null) {
                 return byteCode;
             }
-            a_targetClass.defrost(); // was frozen by toByteCode()
+            // either already instrumented (and its byte code was evicted), or
+            // not changed at all
+            return a_targetClass.isModified() ? toBytecode(a_targetClass) : null;
         }
+    }
 
-        classInstrumentor.instrument();
+    /**
+     * Instrument the class if not already done, and freeze it. Must be called
+     * with the lock of the class.
+     *
+     * @return the instrumented byte code if known
+     */
+    private byte[] instrument(final CtClass a_targetClass) throws NotFoundException, CannotCompileException, IOException, ClassNotFoundException, CompileError {
+        final String targetClassName = a_targetClass.getName();
+        final LoaderPool ownerPool = (LoaderPool) a_targetClass.getClassPool();
+
+        byte[] byteCode = ownerPool.getInstrumented(targetClassName);
+        if (byteCode != null || a_targetClass.isFrozen()) {
+            return byteCode;
+        }
+        if (ownerPool.isLoaded(targetClassName)) {
+            // a new copy of a class already given to the JVM: only its
+            // contracts are needed from now on
+            LOG.debug("{} already loaded.", targetClassName);
+            a_targetClass.freeze();
+            return null;
+        }
+
+        getClassInstrumentor(a_targetClass).instrument();
 
         if (a_targetClass.isModified()) {
-            byteCode = a_targetClass.toBytecode();
-            instrumentedClasses.put(targetClassName, byteCode);
+            byteCode = toBytecode(a_targetClass);
+            ownerPool.putInstrumented(targetClassName, byteCode);
             LOG.debug("Instrumented {}.", targetClassName);
         } else {
+            // never to be analyzed again
+            a_targetClass.freeze();
             LOG.debug("Class not changed {}.", targetClassName);
         }
         return byteCode;
     }
 
+    private byte[] toBytecode(final CtClass a_targetClass) throws IOException, CannotCompileException {
+        final long start = metrics.start();
+        try {
+            return a_targetClass.toBytecode();
+        } finally {
+            metrics.end(InstrumentorMetrics.Phase.bytecode, start);
+        }
+    }
+
 }
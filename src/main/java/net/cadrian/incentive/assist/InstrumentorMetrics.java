@@ -0,0 +1,301 @@
+/*
+ * Incentive, A Design By Contract framework for Java.
+ * Copyright (C) 2011 Cyril Adrian. All Rights Reserved.
+ *
+ * Javaassist implementation based on C4J's
+ * Copyright (C) 2006 Jonas Bergstr�m. All Rights Reserved.
+ *
+ * The contents of this file may be used under the terms of the GNU Lesser
+ * General Public License Version 3.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+package net.cadrian.incentive.assist;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts and times the work of the javaagent. Cheap enough to be always on:
+ * only a few calls to {@link System#nanoTime()} and atomic additions per
+ * phase of each transformed class.
+ *
+ * @author cadrian
+ *
+ */
+public final class InstrumentorMetrics implements InstrumentorMetricsMBean {
+    private static final Logger LOG = LoggerFactory.getLogger(InstrumentorMetrics.class);
+
+    static final String OBJECT_NAME = "net.cadrian.incentive:type=Instrumentor";
+
+    static enum Phase {
+        /** finding or creating the class pool of the class loader */
+        pool,
+        /** looking for the parents of the classes */
+        parents,
+        /** gathering the contracts (invariant, preconditions, postconditions) */
+        gather,
+        /** generating the source code of the contracts */
+        generation,
+        /** compiling the generated source code (new methods and insertions) */
+        compilation,
+        /** writing the byte code of the changed classes */
+        bytecode;
+    }
+
+    static enum Outcome {
+        instrumented, unchanged, cached, failed;
+    }
+
+    /**
+     * The times of one transformed class (including the parents instrumented
+     * at the same time)
+     */
+    static final class ClassRecord implements Comparable<ClassRecord> {
+        final String className;
+        final long[] phases;
+        final long start;
+        final ClassRecord previous;
+        Outcome outcome = Outcome.failed;
+        long total;
+
+        ClassRecord(final String className, final ClassRecord previous) {
+            this.className = className;
+            this.phases = new long[Phase.values().length];
+            this.previous = previous;
+            this.start = System.nanoTime();
+        }
+
+        @Override
+        public int compareTo(final ClassRecord other) {
+            return total < other.total ? -1 : total == other.total ? 0 : 1;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder result = new StringBuilder();
+            result.append(String.format("%10.3f ms %s (", Double.valueOf(total / 1e6), className));
+            appendPhases(result, phases);
+            return result.append(')').toString();
+        }
+    }
+
+    private final AtomicLong[] outcomes;
+    private final AtomicLong skipped;
+    private final AtomicLong transformNanos;
+    private final AtomicLongArray phaseNanos;
+
+    /**
+     * The class being transformed by each thread
+     */
+    private final ThreadLocal<ClassRecord> current;
+
+    /**
+     * Min-heap of the slowest classes; guarded by itself
+     */
+    private final PriorityQueue<ClassRecord> slowest;
+    private final int slowestSize;
+
+    InstrumentorMetrics(final int slowestSize) {
+        outcomes = new AtomicLong[Outcome.values().length];
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = new AtomicLong();
+        }
+        skipped = new AtomicLong();
+        transformNanos = new AtomicLong();
+        phaseNanos = new AtomicLongArray(Phase.values().length);
+        current = new ThreadLocal<ClassRecord>();
+        this.slowestSize = slowestSize;
+        slowest = new PriorityQueue<ClassRecord>(slowestSize + 1);
+    }
+
+    /**
+     * Register this MBean in the platform MBean server
+     */
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (final Exception x) {
+            LOG.warn("Could not register the Incentive MBean", x);
+        }
+    }
+
+    /**
+     * Print the report when the JVM stops
+     */
+    void reportAtShutdown() {
+        Runtime.getRuntime().addShutdownHook(new Thread("Incentive report") {
+            @Override
+            public void run() {
+                System.err.println(getReport());
+            }
+        });
+    }
+
+    void skipped() {
+        skipped.incrementAndGet();
+    }
+
+    /**
+     * Start timing the transformation of a class by the current thread
+     */
+    ClassRecord startClass(final String className) {
+        final ClassRecord result = new ClassRecord(className, current.get());
+        current.set(result);
+        return result;
+    }
+
+    void endClass(final ClassRecord record) {
+        record.total = System.nanoTime() - record.start;
+        if (record.previous == null) {
+            current.remove();
+        } else {
+            current.set(record.previous);
+        }
+        outcomes[record.outcome.ordinal()].incrementAndGet();
+        transformNanos.addAndGet(record.total);
+        synchronized (slowest) {
+            slowest.add(record);
+            if (slowest.size() > slowestSize) {
+                slowest.poll();
+            }
+        }
+    }
+
+    /**
+     * @return the start of a phase, to give back to
+     *         {@link #end(Phase, long)}
+     */
+    long start() {
+        return System.nanoTime();
+    }
+
+    void end(final Phase phase, final long start) {
+        final long time = System.nanoTime() - start;
+        phaseNanos.addAndGet(phase.ordinal(), time);
+        final ClassRecord record = current.get();
+        if (record != null) {
+            record.phases[phase.ordinal()] += time;
+        }
+    }
+
+    private static void appendPhases(final StringBuilder result, final long[] phases) {
+        for (final Phase phase : Phase.values()) {
+            if (phase.ordinal() > 0) {
+                result.append(", ");
+            }
+            result.append(phase.name()).append(String.format(" %.3f", Double.valueOf(phases[phase.ordinal()] / 1e6)));
+        }
+    }
+
+    @Override
+    public long getSkippedClasses() {
+        return skipped.get();
+    }
+
+    @Override
+    public long getInstrumentedClasses() {
+        return outcomes[Outcome.instrumented.ordinal()].get();
+    }
+
+    @Override
+    public long getUnchangedClasses() {
+        return outcomes[Outcome.unchanged.ordinal()].get();
+    }
+
+    @Override
+    public long getCachedClasses() {
+        return outcomes[Outcome.cached.ordinal()].get();
+    }
+
+    @Override
+    public long getFailedClasses() {
+        return outcomes[Outcome.failed.ordinal()].get();
+    }
+
+    @Override
+    public long getTransformNanos() {
+        return transformNanos.get();
+    }
+
+    @Override
+    public long getPoolNanos() {
+        return phaseNanos.get(Phase.pool.ordinal());
+    }
+
+    @Override
+    public long getParentsNanos() {
+        return phaseNanos.get(Phase.parents.ordinal());
+    }
+
+    @Override
+    public long getGatherNanos() {
+        return phaseNanos.get(Phase.gather.ordinal());
+    }
+
+    @Override
+    public long getGenerationNanos() {
+        return phaseNanos.get(Phase.generation.ordinal());
+    }
+
+    @Override
+    public long getCompilationNanos() {
+        return phaseNanos.get(Phase.compilation.ordinal());
+    }
+
+    @Override
+    public long getBytecodeNanos() {
+        return phaseNanos.get(Phase.bytecode.ordinal());
+    }
+
+    @Override
+    public String[] getSlowestClasses() {
+        final List<ClassRecord> records;
+        synchronized (slowest) {
+            records = new ArrayList<ClassRecord>(slowest);
+        }
+        Collections.sort(records, Collections.reverseOrder());
+        final String[] result = new String[records.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = records.get(i).toString();
+        }
+        return result;
+    }
+
+    @Override
+    public String getReport() {
+        final StringBuilder result = new StringBuilder();
+        result.append(String.format("Incentive: %d instrumented, %d unchanged, %d cached, %d failed, %d skipped classes%n",
+                                    Long.valueOf(getInstrumentedClasses()), Long.valueOf(getUnchangedClasses()), Long.valueOf(getCachedClasses()),
+                                    Long.valueOf(getFailedClasses()), Long.valueOf(getSkippedClasses())));
+        final long[] phases = new long[Phase.values().length];
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = phaseNanos.get(i);
+        }
+        result.append(String.format("Incentive: transform %.3f ms (", Double.valueOf(getTransformNanos() / 1e6)));
+        appendPhases(result, phases);
+        result.append(String.format(")%n"));
+        final String[] slowestClasses = getSlowestClasses();
+        if (slowestClasses.length > 0) {
+            result.append(String.format("Incentive: slowest classes:%n"));
+            for (final String slowestClass : slowestClasses) {
+                result.append(slowestClass).append(String.format("%n"));
+            }
+        }
+        return result.toString();
+    }
+
+}
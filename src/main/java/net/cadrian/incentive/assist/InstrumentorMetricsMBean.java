@@ -0,0 +1,78 @@
+/*
+ * Incentive, A Design By Contract framework for Java.
+ * Copyright (C) 2011 Cyril Adrian. All Rights Reserved.
+ *
+ * Javaassist implementation based on C4J's
+ * Copyright (C) 2006 Jonas Bergstr�m. All Rights Reserved.
+ *
+ * The contents of this file may be used under the terms of the GNU Lesser
+ * General Public License Version 3.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+package net.cadrian.incentive.assist;
+
+/**
+ * What the javaagent costs: registered as
+ * <code>net.cadrian.incentive:type=Instrumentor</code>. The times are in
+ * nanoseconds, summed over all the threads.
+ *
+ * @author cadrian
+ *
+ */
+public interface InstrumentorMetricsMBean {
+
+    /**
+     * @return the classes not even parsed (system classes, out of the limit,
+     *         or without DBC)
+     */
+    long getSkippedClasses();
+
+    /**
+     * @return the classes instrumented and given to the JVM
+     */
+    long getInstrumentedClasses();
+
+    /**
+     * @return the classes parsed but not changed
+     */
+    long getUnchangedClasses();
+
+    /**
+     * @return the classes read back from the persistent cache
+     */
+    long getCachedClasses();
+
+    /**
+     * @return the classes that could not be instrumented
+     */
+    long getFailedClasses();
+
+    long getTransformNanos();
+
+    long getPoolNanos();
+
+    long getParentsNanos();
+
+    long getGatherNanos();
+
+    long getGenerationNanos();
+
+    long getCompilationNanos();
+
+    long getBytecodeNanos();
+
+    /**
+     * @return the slowest classes to transform, with the time of each phase
+     */
+    String[] getSlowestClasses();
+
+    /**
+     * @return a summary of all the above
+     */
+    String getReport();
+
+}
@@ -15,8 +15,13 @@
  */
 package net.cadrian.incentive.assist;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -25,13 +30,24 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.Set;
 
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.AttributeInfo;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
 import javassist.bytecode.Descriptor;
+import javassist.bytecode.FieldInfo;
+import javassist.bytecode.MethodInfo;
 import javassist.bytecode.SignatureAttribute;
 import javassist.CannotCompileException;
 import javassist.ClassPool;
 import javassist.compiler.CompileError;
+import javassist.compiler.Javac;
 import javassist.CtBehavior;
 import javassist.CtClass;
+import javassist.CtConstructor;
 import javassist.CtMethod;
 import javassist.expr.Cast;
 import javassist.expr.ConstructorCall;
@@ -53,24 +69,116 @@ import org.slf4j.LoggerFactory;
 final class InstrumentorUtil {
     private static final Logger LOG = LoggerFactory.getLogger(InstrumentorUtil.class);
 
+    /**
+     * The attribute added to the instrumented classes, and to their
+     * behaviors (then it holds the added contract calls, see {@link Hook});
+     * ignored by the JVM
+     */
+    static final String MARKER_ATTRIBUTE = "net/cadrian/incentive/Instrumented";
+
+    /**
+     * The contract calls added to a behavior
+     */
+    static enum Hook {
+        precondition, postcondition, invariant;
+
+        int bit() {
+            return 1 << ordinal();
+        }
+    }
+
     private InstrumentorUtil() {
         // no instances
     }
 
-    static boolean instrumentedWith(final CtBehavior method,
-                                           final String methodName, final String signature)
-        throws CannotCompileException {
-        final boolean[] tmp = { false };
-        method.instrument(new ExprEditor() {
-                @Override
-                public void edit(final MethodCall mcall) {
-                    if (mcall.getMethodName().equals(methodName)
-                        && mcall.getSignature().equals(signature)) {
-                        tmp[0] = true;
-                    }
-                }
-            });
-        return tmp[0];
+    /**
+     * @return <code>true</code> if the class belongs to the JDK or to
+     *         Incentive itself, which are never instrumented
+     */
+    static boolean isSystemClass(final String className) {
+        for (final String systemPackage : ClassFilter.SYSTEM_PACKAGES) {
+            if (className.startsWith(systemPackage) && className.length() > systemPackage.length()
+                && className.charAt(systemPackage.length()) == '.') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the sampling period of the class (see {@link DBC#sample()}), 0
+     *         if not set
+     */
+    static int getSample(final CtClass a_targetClass) {
+        try {
+            final DBC dbc = (DBC) a_targetClass.getAnnotation(DBC.class);
+            return dbc == null ? 0 : dbc.sample();
+        } catch (final ClassNotFoundException cnfx) {
+            LOG.warn("class not found???", cnfx);
+        }
+        return 0;
+    }
+
+    /**
+     * @return <code>true</code> if the call of the given contract was already
+     *         added to the behavior
+     */
+    static boolean hasHook(final CtBehavior behavior, final Hook hook) {
+        final AttributeInfo marker = behavior.getMethodInfo2().getAttribute(MARKER_ATTRIBUTE);
+        return marker != null && (marker.get()[0] & hook.bit()) != 0;
+    }
+
+    /**
+     * Record that the call of the given contract was added to the behavior
+     */
+    static void addHook(final CtBehavior behavior, final Hook hook) {
+        final MethodInfo info = behavior.getMethodInfo();
+        final AttributeInfo marker = info.getAttribute(MARKER_ATTRIBUTE);
+        final int hooks = marker == null ? 0 : marker.get()[0];
+        info.addAttribute(new AttributeInfo(info.getConstPool(), MARKER_ATTRIBUTE, new byte[] {(byte) (hooks | hook.bit())}));
+    }
+
+    /**
+     * Like {@link CtConstructor#insertBeforeBody(String)}, but the code may
+     * also use the local variables added to the constructor (see
+     * {@link CtBehavior#addLocalVariable(String, CtClass)})
+     */
+    static void insertBeforeBody(final CtConstructor constructor, final String src) throws CannotCompileException {
+        final CtClass declaringClass = constructor.getDeclaringClass();
+        final MethodInfo info = constructor.getMethodInfo();
+        final CodeAttribute ca = info.getCodeAttribute();
+        final CodeIterator iterator = ca.iterator();
+        final Bytecode b = new Bytecode(info.getConstPool(), ca.getMaxStack(), ca.getMaxLocals());
+        b.setStackDepth(ca.getMaxStack());
+        final Javac jv = new Javac(b, declaringClass);
+        try {
+            jv.recordParams(constructor.getParameterTypes(), false);
+            jv.recordLocalVariables(ca, 0);
+            jv.compileStmnt(src);
+            ca.setMaxStack(b.getMaxStack());
+            ca.setMaxLocals(b.getMaxLocals());
+            iterator.skipConstructor();
+            final int pos = iterator.insertEx(b.get());
+            iterator.insert(b.getExceptionTable(), pos);
+            info.rebuildStackMapIf6(declaringClass.getClassPool(), declaringClass.getClassFile2());
+        } catch (final NotFoundException nfx) {
+            throw new CannotCompileException(nfx);
+        } catch (final CompileError ce) {
+            throw new CannotCompileException(ce);
+        } catch (final BadBytecode bb) {
+            throw new CannotCompileException(bb);
+        }
+    }
+
+    /**
+     * Mark the class as instrumented (see
+     * {@link ClassfileScanner#isInstrumented(byte[])})
+     */
+    static void markInstrumented(final CtClass targetClass) {
+        final ClassFile classFile = targetClass.getClassFile();
+        if (classFile.getAttribute(MARKER_ATTRIBUTE) == null) {
+            classFile.addAttribute(new AttributeInfo(classFile.getConstPool(), MARKER_ATTRIBUTE, new byte[0]));
+        }
     }
 
     static boolean methodAnnotatedWithPure(final CtMethod method)
@@ -83,34 +191,14 @@ final class InstrumentorUtil {
         return false;
     }
 
-    static boolean isPure(final CtMethod method)
-        throws CannotCompileException, NotFoundException,
-               ClassNotFoundException {
-        if (methodAnnotatedWithPure(method)) {
-            return true;
-        }
-
-        final List<CtClass> classHierarchy = getParents(method.getDeclaringClass());
-        classHierarchy.add(0, method.getDeclaringClass());
-        for (final CtClass c : classHierarchy) {
-            final List<CtClass> interfaces = new ArrayList<CtClass>();
-            Collections.addAll(interfaces, c.getInterfaces());
-            for (int i = 0; i < interfaces.size(); i++) {
-                final CtClass interfaze = interfaces.get(i);
-                CtMethod meth = null;
-                try {
-                    meth = interfaze.getMethod(method.getName(),
-                                               method.getSignature());
-                    if (meth != null && methodAnnotatedWithPure(meth)) {
-                        return true;
-                    }
-                } catch (final NotFoundException e) {
-                    // ignored, meth is null
-                }
-                Collections.addAll(interfaces, interfaze.getInterfaces());
-            }
-        }
-
+    /**
+     * @return <code>true</code> if the byte code of the method does not
+     *         change anything (only reads fields, no call, no allocation); see
+     *         {@link ClassInstrumentor#isPure(CtMethod)} for the methods
+     *         declared pure
+     */
+    static boolean hasPureCode(final CtMethod method)
+        throws CannotCompileException {
         final boolean[] tmp = { true };
         method.instrument(new ExprEditor() {
                 @Override
@@ -238,6 +326,67 @@ final class InstrumentorUtil {
         return result;
     }
 
+    /**
+     * Read the whole stream, and close it.
+     */
+    static byte[] readFully(final InputStream in) throws IOException {
+        try {
+            final ByteArrayOutputStream result = new ByteArrayOutputStream(4096);
+            final byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                result.write(buffer, 0, n);
+            }
+            return result.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A retransformation must not change the fields nor remove methods; the
+     * JVM specification does not allow new methods either, but HotSpot
+     * accepts new private static and private final ones (the only members
+     * added for an attached agent, see
+     * {@link ClassInstrumentor#isRetransformable()}).
+     *
+     * @return why the JVM would refuse to replace the original byte code by
+     *         the instrumented one, or <code>null</code> if it would accept
+     */
+    static String getRetransformationProblem(final byte[] original, final byte[] instrumented) throws IOException {
+        final ClassFile originalClass = new ClassFile(new DataInputStream(new ByteArrayInputStream(original)));
+        final ClassFile instrumentedClass = new ClassFile(new DataInputStream(new ByteArrayInputStream(instrumented)));
+
+        final Set<String> originalFields = new HashSet<String>();
+        for (final Object field : originalClass.getFields()) {
+            originalFields.add(((FieldInfo) field).getName() + ((FieldInfo) field).getDescriptor());
+        }
+        final Set<String> instrumentedFields = new HashSet<String>();
+        for (final Object field : instrumentedClass.getFields()) {
+            instrumentedFields.add(((FieldInfo) field).getName() + ((FieldInfo) field).getDescriptor());
+        }
+        if (!originalFields.equals(instrumentedFields)) {
+            return "fields changed";
+        }
+
+        final Set<String> originalMethods = new HashSet<String>();
+        for (final Object method : originalClass.getMethods()) {
+            originalMethods.add(((MethodInfo) method).getName() + ((MethodInfo) method).getDescriptor());
+        }
+        for (final Object method : instrumentedClass.getMethods()) {
+            final MethodInfo info = (MethodInfo) method;
+            final int flags = info.getAccessFlags();
+            if (!originalMethods.remove(info.getName() + info.getDescriptor())
+                && ((flags & AccessFlag.PRIVATE) == 0 || (flags & (AccessFlag.STATIC | AccessFlag.FINAL)) == 0)) {
+                return "new method " + info.getName() + " is not private static or private final";
+            }
+        }
+        if (!originalMethods.isEmpty()) {
+            return "methods removed: " + originalMethods;
+        }
+        return null;
+    }
+
     static String voidify(final String descriptor) {
         final int index = descriptor.indexOf(')');
         if (index < 0) {
@@ -0,0 +1,266 @@
+/*
+ * Incentive, A Design By Contract framework for Java.
+ * Copyright (C) 2011 Cyril Adrian. All Rights Reserved.
+ *
+ * Javaassist implementation based on C4J's
+ * Copyright (C) 2006 Jonas Bergstr�m. All Rights Reserved.
+ *
+ * The contents of this file may be used under the terms of the GNU Lesser
+ * General Public License Version 3.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+package net.cadrian.incentive.assist;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.LoaderClassPath;
+
+/**
+ * The class pool of a class loader, and the instrumentation state of the
+ * classes it defines.
+ *
+ * The class loader is only weakly referenced: the pool is meant to be held by
+ * a weak map keyed by that same loader, so that all the Javassist state goes
+ * away with the loader.
+ *
+ * The pool is shared by all the threads that load classes with its class
+ * loader: its state is concurrent, and a given CtClass is only changed by the
+ * thread that holds the lock of its name (see {@link Instrumentor}).
+ *
+ * @author cadrian
+ *
+ */
+final class LoaderPool extends ClassPool {
+
+    private final WeakReference<ClassLoader> loader;
+    private ContractIndex contractIndex;
+    private boolean contractIndexLoaded;
+    private final Set<String> loadedClasses;
+
+    /**
+     * Instrumented byte code of the classes not loaded yet (i.e. instrumented
+     * as parents of another class). This is only a cache since the frozen
+     * CtClass keeps the same code; the oldest entries are evicted first.
+     */
+    private final Map<String, byte[]> instrumentedClasses;
+    private final Queue<String> instrumentedOrder;
+    private final int maxInstrumentedClasses;
+
+    /**
+     * The instrumented byte code given to the JVM, to give again when the
+     * class is retransformed after being restored; only kept by an attached
+     * agent
+     */
+    private final Map<String, byte[]> retransformableClasses;
+
+    /**
+     * The analysis of each class of this pool (its parents, behaviors, and
+     * their gathered contracts), done only once and shared by its heirs
+     */
+    final ConcurrentMap<String, ClassInstrumentor> classInstrumentors;
+
+    /**
+     * The methods declared pure by the classes read from the persistent
+     * cache, not to look for them again if the classes are analyzed as the
+     * parents of another class
+     */
+    private final Map<String, Set<String>> pureMethods;
+
+    /**
+     * The digests of the class files of this pool (see
+     * {@link ContractIndex#digest(byte[])}), each one computed once
+     */
+    private final Map<String, String> classfileDigests;
+
+    /**
+     * The class files given by the JVM, kept until the class is loaded in
+     * case their digest is needed
+     */
+    private final Map<String, byte[]> classfiles;
+
+    /**
+     * A pool for the given class loader
+     *
+     * @param parent
+     *            the pool of the parent class loader, or <code>null</code>
+     * @param loader
+     *            the class loader, or <code>null</code> for a pool that
+     *            gives access to the system path
+     */
+    LoaderPool(final LoaderPool parent, final ClassLoader loader) {
+        super(parent);
+        this.loader = new WeakReference<ClassLoader>(loader);
+        if (loader == null) {
+            appendSystemPath();
+        } else {
+            appendClassPath(new LoaderClassPath(loader));
+        }
+        classInstrumentors = new ConcurrentHashMap<String, ClassInstrumentor>();
+        loadedClasses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        pureMethods = new ConcurrentHashMap<String, Set<String>>();
+        instrumentedClasses = new ConcurrentHashMap<String, byte[]>();
+        instrumentedOrder = new ConcurrentLinkedQueue<String>();
+        retransformableClasses = new ConcurrentHashMap<String, byte[]>();
+        classfileDigests = new ConcurrentHashMap<String, String>();
+        classfiles = new ConcurrentHashMap<String, byte[]>();
+        maxInstrumentedClasses = Option.bytecode_cache_size.getIntValue(256);
+    }
+
+    /**
+     * @return the instrumented byte code of the class, if still known
+     */
+    byte[] getInstrumented(final String className) {
+        return instrumentedClasses.get(className);
+    }
+
+    /**
+     * Keep the instrumented byte code of the class until it is loaded
+     */
+    void putInstrumented(final String className, final byte[] byteCode) {
+        if (instrumentedClasses.put(className, byteCode) == null) {
+            instrumentedOrder.add(className);
+            while (instrumentedClasses.size() > maxInstrumentedClasses) {
+                final String eldest = instrumentedOrder.poll();
+                if (eldest == null) {
+                    break;
+                }
+                instrumentedClasses.remove(eldest);
+            }
+        }
+    }
+
+    /**
+     * @return the instrumented byte code already given to the JVM, if the
+     *         class was instrumented by an attached agent
+     */
+    byte[] getRetransformable(final String className) {
+        return retransformableClasses.get(className);
+    }
+
+    void putRetransformable(final String className, final byte[] byteCode) {
+        retransformableClasses.put(className, byteCode);
+    }
+
+    /**
+     * Forget all about the class (its CtClass and its analysis), to analyze
+     * it again from the given byte code of a retransformation
+     */
+    void forget(final String className) {
+        classInstrumentors.remove(className);
+        classfileDigests.remove(className);
+        classfiles.remove(className);
+        pureMethods.remove(className);
+        loadedClasses.remove(className);
+        if (instrumentedClasses.remove(className) != null) {
+            instrumentedOrder.remove(className);
+        }
+        final CtClass ctClass = getCached(className);
+        if (ctClass != null) {
+            ctClass.detach();
+        }
+    }
+
+    /**
+     * @return the methods declared pure by the class, if it was read from the
+     *         persistent cache
+     */
+    Set<String> getPureMethods(final String className) {
+        return pureMethods.get(className);
+    }
+
+    void putPureMethods(final String className, final Set<String> methods) {
+        pureMethods.put(className, methods);
+    }
+
+    /**
+     * @return the contracts of the class from the contract indexes of the
+     *         class loader, or <code>null</code> if it is not indexed
+     */
+    ContractIndex.Contracts getIndexedContracts(final CtClass ctClass) {
+        final ContractIndex index = getContractIndex();
+        return index == null ? null : index.get(ctClass, this);
+    }
+
+    /**
+     * The class file of the class, as given by the JVM: its digest does not
+     * need to read it again
+     */
+    void putClassfile(final String className, final byte[] classfile) {
+        classfiles.put(className, classfile);
+    }
+
+    /**
+     * @return the digest of the class file of the class (either given by the
+     *         JVM, or read from the class loader), or <code>null</code> if it
+     *         is not found
+     */
+    String getClassfileDigest(final String className) throws IOException {
+        String result = classfileDigests.get(className);
+        if (result == null) {
+            byte[] classfile = classfiles.get(className);
+            if (classfile == null) {
+                classfile = InstrumentationCache.readClassFile(loader.get(), className);
+                if (classfile == null) {
+                    return null;
+                }
+            }
+            result = ContractIndex.digest(classfile);
+            classfileDigests.put(className, result);
+        }
+        return result;
+    }
+
+    private synchronized ContractIndex getContractIndex() {
+        if (!contractIndexLoaded) {
+            contractIndex = ContractIndex.load(loader.get());
+            contractIndexLoaded = true;
+        }
+        return contractIndex;
+    }
+
+    /**
+     * @return the class if it is already defined in this very pool (not one
+     *         of its parents)
+     */
+    CtClass getOwn(final String className) {
+        return getCached(className);
+    }
+
+    /**
+     * Mark the class as given to the JVM: it will never be instrumented again,
+     * and its CtClass is detached to free memory.
+     */
+    void loaded(final String className) {
+        loadedClasses.add(className);
+        classfiles.remove(className);
+        if (instrumentedClasses.remove(className) != null) {
+            instrumentedOrder.remove(className);
+        }
+        final CtClass loadedClass = getCached(className);
+        if (loadedClass != null) {
+            loadedClass.detach();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the class was already given to the JVM
+     */
+    boolean isLoaded(final String className) {
+        return loadedClasses.contains(className);
+    }
+
+}
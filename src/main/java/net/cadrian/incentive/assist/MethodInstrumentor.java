@@ -35,11 +35,16 @@ class MethodInstrumentor extends BehaviorInstrumentor {
     private final CtMethod method;
     private final int index;
 
+    /**
+     * True if the method tracks the outermost calls (see
+     * {@link ClassInstrumentor#addOutermostInvariantCall(CtBehavior, boolean, boolean, String)})
+     */
+    private boolean outermost;
+
     public MethodInstrumentor(final ClassInstrumentor a_classInstrumentor,
-                              final CtMethod a_targetMethod, final int a_index, final ClassPool a_pool,
-                              final int oldClassIndex)
+                              final CtMethod a_targetMethod, final int a_index, final ClassPool a_pool)
         throws ClassNotFoundException, NotFoundException {
-        super(a_classInstrumentor, a_targetMethod, a_pool, oldClassIndex);
+        super(a_classInstrumentor, a_targetMethod, a_pool);
         this.method = a_targetMethod;
         this.index = a_index;
     }
@@ -62,11 +67,19 @@ class MethodInstrumentor extends BehaviorInstrumentor {
     @Override
     protected void insertClassInvariantCall(final boolean before)
         throws CannotCompileException, NotFoundException, ClassNotFoundException {
-        if (before || !InstrumentorUtil.isPure(method)) {
-            classInstrumentor.addClassInvariantCall(method, before, false);
+        if (Option.outermost_invariant.isSet()) {
+            if (before || outermost) {
+                outermost = classInstrumentor.addOutermostInvariantCall(method, before, before || !isPure(), getSampled());
+            }
+        } else if (before || !isPure()) {
+            classInstrumentor.addClassInvariantCall(method, before, false, getSampled());
         }
     }
 
+    private boolean isPure() throws CannotCompileException, ClassNotFoundException {
+        return classInstrumentor.isPure(method);
+    }
+
     @Override
     protected CtBehavior getPrecursor() throws NotFoundException {
         return targetClass.getMethod(method.getName(), method.getSignature());
@@ -74,7 +87,7 @@ class MethodInstrumentor extends BehaviorInstrumentor {
 
     @Override
     protected void setPreconditionModifiers(final CtMethod a_precondition) {
-        a_precondition.setModifiers(Modifier.FINAL);
+        a_precondition.setModifiers(Modifier.PRIVATE | Modifier.FINAL);
     }
 
 }
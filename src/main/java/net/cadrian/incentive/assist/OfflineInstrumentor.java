@@ -0,0 +1,314 @@
+/*
+ * Incentive, A Design By Contract framework for Java.
+ * Copyright (C) 2011 Cyril Adrian. All Rights Reserved.
+ *
+ * Javaassist implementation based on C4J's
+ * Copyright (C) 2006 Jonas Bergstr�m. All Rights Reserved.
+ *
+ * The contents of this file may be used under the terms of the GNU Lesser
+ * General Public License Version 3.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+package net.cadrian.incentive.assist;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import javassist.NotFoundException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ahead-of-time instrumentation: rewrites whole jars or class directories so
+ * that they can be run without the javaagent.
+ *
+ * <pre>
+ * java -cp incentive.jar:javassist.jar:slf4j-api.jar net.cadrian.incentive.assist.Instrumentor \
+ *      [-options &lt;agent options&gt;] [-cp &lt;classpath&gt;] [-threads &lt;n&gt;] -d &lt;output directory&gt; &lt;jar or directory&gt;...
+ * </pre>
+ *
+ * Each input is written in the output directory under the same name, with
+ * the classes instrumented.
+ *
+ * @author cadrian
+ *
+ */
+final class OfflineInstrumentor {
+    private static final Logger LOG = LoggerFactory.getLogger(OfflineInstrumentor.class);
+
+    private static final String CLASS_SUFFIX = ".class";
+
+    /**
+     * A class to instrument, and the result of its instrumentation
+     */
+    private static final class Unit {
+        final String entryName;
+        final String className;
+        final byte[] classfile;
+        byte[] byteCode;
+
+        Unit(final String entryName, final byte[] classfile) {
+            this.entryName = entryName;
+            this.className = entryName.substring(0, entryName.length() - CLASS_SUFFIX.length()).replace('/', '.');
+            this.classfile = classfile;
+        }
+
+        byte[] getResult() {
+            return byteCode == null ? classfile : byteCode;
+        }
+    }
+
+    private final List<String> classPath;
+    private final int threads;
+    private final ThreadLocal<Instrumentor> instrumentors;
+
+    OfflineInstrumentor(final List<String> classPath, final int threads) {
+        this.classPath = classPath;
+        this.threads = threads;
+        // The Javassist pools are not thread-safe: each worker thread has its
+        // own
+        this.instrumentors = new ThreadLocal<Instrumentor>() {
+            @Override
+            protected Instrumentor initialValue() {
+                return new Instrumentor(newPool());
+            }
+        };
+    }
+
+    private LoaderPool newPool() {
+        final LoaderPool result = new LoaderPool(null, null);
+        for (int i = classPath.size(); i --> 0;) {
+            try {
+                result.insertClassPath(classPath.get(i));
+            } catch (final NotFoundException nfx) {
+                LOG.warn("Class path element not found: {}", classPath.get(i));
+            }
+        }
+        return result;
+    }
+
+    public static void main(final String[] args) {
+        String options = null;
+        String output = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        final List<String> classPath = new ArrayList<String>();
+        final List<String> inputs = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-options".equals(args[i])) {
+                    options = args[++i];
+                } else if ("-d".equals(args[i])) {
+                    output = args[++i];
+                } else if ("-cp".equals(args[i])) {
+                    for (final String path : args[++i].split(File.pathSeparator)) {
+                        classPath.add(path);
+                    }
+                } else if ("-threads".equals(args[i])) {
+                    threads = Integer.parseInt(args[++i]);
+                } else {
+                    inputs.add(args[i]);
+                }
+            }
+        } catch (final ArrayIndexOutOfBoundsException aioobx) {
+            usage();
+        } catch (final NumberFormatException nfx) {
+            usage();
+        }
+        if (output == null || inputs.isEmpty() || threads < 1) {
+            usage();
+        }
+
+        if (options != null) {
+            Instrumentor.parseOptions(options);
+        }
+        // the inputs come first so that they are found before anything else
+        classPath.addAll(0, inputs);
+
+        final OfflineInstrumentor instrumentor = new OfflineInstrumentor(classPath, threads);
+        final File outputDirectory = new File(output);
+        outputDirectory.mkdirs();
+        try {
+            for (final String input : inputs) {
+                instrumentor.run(new File(input), outputDirectory);
+            }
+        } catch (final Exception x) {
+            LOG.error("Instrumentation failed", x);
+            System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: " + Instrumentor.class.getName()
+                           + " [-options <agent options>] [-cp <classpath>] [-threads <n>] -d <output directory> <jar or directory>...");
+        System.exit(1);
+    }
+
+    void run(final File input, final File outputDirectory) throws IOException, InterruptedException, ExecutionException {
+        final File output = new File(outputDirectory, input.getName());
+        if (input.getCanonicalFile().equals(output.getCanonicalFile())) {
+            throw new IOException("Cannot overwrite the input " + input);
+        }
+        final long start = System.nanoTime();
+        final int count;
+        if (input.isDirectory()) {
+            count = runDirectory(input, output);
+        } else {
+            count = runJar(input, output);
+        }
+        final long time = System.nanoTime() - start;
+        System.out.println(String.format("%s: %d classes in %.3f s (%.1f classes/s)", input, Integer.valueOf(count),
+                                         Double.valueOf(time / 1e9), Double.valueOf(count * 1e9 / Math.max(time, 1L))));
+    }
+
+    private int runJar(final File input, final File output) throws IOException, InterruptedException, ExecutionException {
+        final JarFile jar = new JarFile(input);
+        try {
+            final List<Unit> units = new ArrayList<Unit>();
+            final Map<String, byte[]> resources = new LinkedHashMap<String, byte[]>();
+            final Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                final JarEntry entry = entries.nextElement();
+                final String name = entry.getName();
+                if (entry.isDirectory()) {
+                    resources.put(name, null);
+                } else if (isSignature(name)) {
+                    LOG.warn("{}: dropping signature file {}", input, name);
+                } else {
+                    final byte[] content = InstrumentorUtil.readFully(jar.getInputStream(entry));
+                    if (name.endsWith(CLASS_SUFFIX)) {
+                        units.add(new Unit(name, content));
+                    } else {
+                        resources.put(name, content);
+                    }
+                }
+            }
+
+            instrument(units);
+
+            final JarOutputStream out = new JarOutputStream(new FileOutputStream(output));
+            try {
+                for (final Map.Entry<String, byte[]> resource : resources.entrySet()) {
+                    out.putNextEntry(new JarEntry(resource.getKey()));
+                    if (resource.getValue() != null) {
+                        out.write(resource.getValue());
+                    }
+                    out.closeEntry();
+                }
+                for (final Unit unit : units) {
+                    out.putNextEntry(new JarEntry(unit.entryName));
+                    out.write(unit.getResult());
+                    out.closeEntry();
+                }
+            } finally {
+                out.close();
+            }
+            return units.size();
+        } finally {
+            jar.close();
+        }
+    }
+
+    private int runDirectory(final File input, final File output) throws IOException, InterruptedException, ExecutionException {
+        final List<Unit> units = new ArrayList<Unit>();
+        final List<String> resources = new ArrayList<String>();
+        listDirectory(input, "", units, resources);
+
+        instrument(units);
+
+        for (final String resource : resources) {
+            final File file = new File(output, resource);
+            file.getParentFile().mkdirs();
+            write(file, InstrumentorUtil.readFully(new FileInputStream(new File(input, resource))));
+        }
+        for (final Unit unit : units) {
+            final File file = new File(output, unit.entryName);
+            file.getParentFile().mkdirs();
+            write(file, unit.getResult());
+        }
+        return units.size();
+    }
+
+    private static void listDirectory(final File dir, final String prefix, final List<Unit> units, final List<String> resources) throws IOException {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + dir);
+        }
+        for (final File file : files) {
+            final String name = prefix + file.getName();
+            if (file.isDirectory()) {
+                listDirectory(file, name + "/", units, resources);
+            } else if (name.endsWith(CLASS_SUFFIX)) {
+                units.add(new Unit(name, InstrumentorUtil.readFully(new FileInputStream(file))));
+            } else {
+                resources.add(name);
+            }
+        }
+    }
+
+    /**
+     * Instrument all the units, spreading the work over the worker threads
+     */
+    private void instrument(final List<Unit> units) throws InterruptedException, ExecutionException {
+        final ClassFilter filter = ClassFilter.fromOptions();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>(units.size());
+            for (final Unit unit : units) {
+                if (!filter.accept(unit.className) || !ClassfileScanner.mayHaveDBC(unit.classfile)) {
+                    continue;
+                }
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        LOG.debug("Instrumenting {}", unit.className);
+                        unit.byteCode = instrumentors.get().instrumentOffline(unit.className);
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static boolean isSignature(final String name) {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) != -1) {
+            return false;
+        }
+        return name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC");
+    }
+
+    private static void write(final File file, final byte[] content) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+}
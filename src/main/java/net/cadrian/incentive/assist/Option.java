@@ -38,7 +38,13 @@ enum Option {
         @Override
         void whenSet(final String value) {
             require_check.set(value);
-            invariant_check.set(value);
+            ensure_check.set(value);
+        }
+    },
+    outermost_invariant {
+        @Override
+        void whenSet(final String value) {
+            // nothing
         }
     },
     cache {
@@ -46,12 +52,86 @@ enum Option {
         void whenSet(final String value) {
             // nothing
         }
+
+        @Override
+        boolean changesBytecode() {
+            return false;
+        }
+    },
+    dump {
+        @Override
+        void whenSet(final String value) {
+            // nothing
+        }
+
+        @Override
+        boolean changesBytecode() {
+            return false;
+        }
     },
     limit {
         @Override
         void whenSet(final String value) {
             // nothing
         }
+    },
+    include {
+        @Override
+        void whenSet(final String value) {
+            // nothing
+        }
+    },
+    exclude {
+        @Override
+        void whenSet(final String value) {
+            // nothing
+        }
+    },
+    sample {
+        @Override
+        void whenSet(final String value) {
+            // nothing
+        }
+    },
+    throttle {
+        @Override
+        void whenSet(final String value) {
+            // nothing
+        }
+    },
+    contract_stats {
+        @Override
+        void whenSet(final String value) {
+            // nothing
+        }
+    },
+    backend {
+        @Override
+        void whenSet(final String value) {
+            // nothing
+        }
+    },
+    bytecode_cache_size {
+        @Override
+        void whenSet(final String value) {
+            // nothing
+        }
+
+        @Override
+        boolean changesBytecode() {
+            return false;
+        }
+    },
+    report {
+        @Override
+        void whenSet(final String value) {
+            // nothing
+        }
+
+        @Override
+        boolean changesBytecode() {
+            return false;
+        }
     };
 
     private static final Map<String, Option> OPTIONS = new HashMap<String, Option>();
@@ -82,6 +162,20 @@ enum Option {
         OPTIONS.get(name).setValue(value);
     }
 
+    /**
+     * @return a string that changes whenever an option that may change the
+     *         generated byte code changes
+     */
+    static String fingerprint() {
+        final StringBuilder result = new StringBuilder();
+        for (final Option o : values()) {
+            if (o.set && o.changesBytecode()) {
+                result.append(o.name()).append('=').append(o.value).append(';');
+            }
+        }
+        return result.toString();
+    }
+
     private String value = null;
     boolean set = false;
 
@@ -89,6 +183,17 @@ enum Option {
         return set;
     }
 
+    /**
+     * For the check levels (<code>require_check</code>,
+     * <code>ensure_check</code> and <code>invariant_check</code>)
+     *
+     * @return <code>true</code> if the contracts of that kind must be woven:
+     *         either the level includes them, or no level is set
+     */
+    public boolean isChecked() {
+        return set || !(require_check.set || ensure_check.set || invariant_check.set);
+    }
+
     public String getValue() {
         if (!set) {
             return null;
@@ -96,6 +201,38 @@ enum Option {
         return value;
     }
 
+    /**
+     * @return the integer value of the option, or the given default value if
+     *         the option is not set or not a number
+     */
+    public int getIntValue(final int defaultValue) {
+        final String v = getValue();
+        if (v == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(v);
+        } catch (final NumberFormatException nfx) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return the decimal value of the option, or the given default value if
+     *         the option is not set or not a number
+     */
+    public double getDoubleValue(final double defaultValue) {
+        final String v = getValue();
+        if (v == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(v);
+        } catch (final NumberFormatException nfx) {
+            return defaultValue;
+        }
+    }
+
     void setValue(final String value) {
         set(value);
         whenSet(value);
@@ -108,4 +245,8 @@ enum Option {
 
     abstract void whenSet(String a_value);
 
+    boolean changesBytecode() {
+        return true;
+    }
+
 }
@@ -0,0 +1,241 @@
+/*
+ * Incentive, A Design By Contract framework for Java.
+ * Copyright (C) 2011 Cyril Adrian. All Rights Reserved.
+ *
+ * Javaassist implementation based on C4J's
+ * Copyright (C) 2006 Jonas Bergstr�m. All Rights Reserved.
+ *
+ * The contents of this file may be used under the terms of the GNU Lesser
+ * General Public License Version 3.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+package net.cadrian.incentive.assist.assertion;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.cadrian.incentive.assist.Assertion;
+
+/**
+ * Parsed assertions to and from a compact binary form (see the contract
+ * index)
+ *
+ * @author cadrian
+ *
+ */
+public final class AssertionCodec implements AssertionArg.Visitor,
+                                             AssertionChunk.Visitor,
+                                             AssertionExists.Visitor,
+                                             AssertionForall.Visitor,
+                                             AssertionOld.Visitor,
+                                             AssertionResult.Visitor,
+                                             AssertionSequence.Visitor {
+
+    private static final byte SEQUENCE = 0;
+    private static final byte PARENTHESIZED_SEQUENCE = 1;
+    private static final byte CHUNK = 2;
+    private static final byte ARG = 3;
+    private static final byte OLD = 4;
+    private static final byte RESULT = 5;
+    private static final byte FORALL = 6;
+    private static final byte EXISTS = 7;
+    private static final byte FORALL_RANGE = 8;
+    private static final byte EXISTS_RANGE = 9;
+
+    /**
+     * Parse the assertions of one class, exactly as the contracts do (in
+     * particular the old values are numbered in the same order)
+     */
+    public static List<Assertion> parse(final String[] assertions) {
+        if (assertions.length == 0) {
+            return Collections.emptyList();
+        }
+        final List<Assertion> result = new ArrayList<Assertion>(assertions.length);
+        final int[] oldIndex = {0};
+        for (final String assertion : assertions) {
+            result.add(new AssertionParser(assertion, oldIndex).parse());
+        }
+        return result;
+    }
+
+    public static void write(final DataOutputStream out, final List<Assertion> assertions) throws IOException {
+        out.writeShort(assertions.size());
+        final AssertionCodec codec = new AssertionCodec(out);
+        try {
+            for (final Assertion assertion : assertions) {
+                assertion.accept(codec);
+            }
+        } catch (final WriteError we) {
+            throw we.iox;
+        }
+    }
+
+    public static List<Assertion> read(final DataInputStream in) throws IOException {
+        final int count = in.readUnsignedShort();
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        final List<Assertion> result = new ArrayList<Assertion>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(readAssertion(in));
+        }
+        return result;
+    }
+
+    private static Assertion readAssertion(final DataInputStream in) throws IOException {
+        final byte tag = in.readByte();
+        switch (tag) {
+        case SEQUENCE:
+        case PARENTHESIZED_SEQUENCE:
+            return readSequence(in, tag);
+        case CHUNK:
+            return new AssertionChunk(in.readUTF());
+        case ARG:
+            return new AssertionArg(in.readUnsignedShort());
+        case OLD:
+            final int index = in.readUnsignedShort();
+            return new AssertionOld(readSequence(in), index);
+        case RESULT:
+            return new AssertionResult();
+        case FORALL:
+            return new AssertionForall(in.readUTF(), in.readUTF(), readSequence(in), null, readSequence(in));
+        case EXISTS:
+            return new AssertionExists(in.readUTF(), in.readUTF(), readSequence(in), null, readSequence(in));
+        case FORALL_RANGE:
+            return new AssertionForall(in.readUTF(), in.readUTF(), readSequence(in), readSequence(in), readSequence(in));
+        case EXISTS_RANGE:
+            return new AssertionExists(in.readUTF(), in.readUTF(), readSequence(in), readSequence(in), readSequence(in));
+        default:
+            throw new IOException("Unknown assertion tag: " + tag);
+        }
+    }
+
+    private static AssertionSequence readSequence(final DataInputStream in) throws IOException {
+        return readSequence(in, in.readByte());
+    }
+
+    private static AssertionSequence readSequence(final DataInputStream in, final byte tag) throws IOException {
+        if (tag != SEQUENCE && tag != PARENTHESIZED_SEQUENCE) {
+            throw new IOException("Expected a sequence, got tag " + tag);
+        }
+        final AssertionSequence result = new AssertionSequence(tag == PARENTHESIZED_SEQUENCE);
+        final int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            result.add(readAssertion(in));
+        }
+        return result;
+    }
+
+    /**
+     * The visitors cannot throw checked exceptions
+     */
+    private static final class WriteError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final IOException iox;
+
+        WriteError(final IOException iox) {
+            super(iox);
+            this.iox = iox;
+        }
+    }
+
+    private final DataOutputStream out;
+
+    private AssertionCodec(final DataOutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void visitSequence(final AssertionSequence sequence) {
+        try {
+            out.writeByte(sequence.parenthesized ? PARENTHESIZED_SEQUENCE : SEQUENCE);
+            out.writeShort(sequence.getAssertions().size());
+        } catch (final IOException iox) {
+            throw new WriteError(iox);
+        }
+        for (final Assertion assertion : sequence.getAssertions()) {
+            assertion.accept(this);
+        }
+    }
+
+    @Override
+    public void visitChunk(final AssertionChunk chunk) {
+        try {
+            out.writeByte(CHUNK);
+            out.writeUTF(chunk.chunk);
+        } catch (final IOException iox) {
+            throw new WriteError(iox);
+        }
+    }
+
+    @Override
+    public void visitArg(final AssertionArg arg) {
+        try {
+            out.writeByte(ARG);
+            out.writeShort(arg.index);
+        } catch (final IOException iox) {
+            throw new WriteError(iox);
+        }
+    }
+
+    @Override
+    public void visitOld(final AssertionOld old) {
+        try {
+            out.writeByte(OLD);
+            out.writeShort(old.index);
+        } catch (final IOException iox) {
+            throw new WriteError(iox);
+        }
+        old.old.accept(this);
+    }
+
+    @Override
+    public void visitResult(final AssertionResult result) {
+        try {
+            out.writeByte(RESULT);
+        } catch (final IOException iox) {
+            throw new WriteError(iox);
+        }
+    }
+
+    @Override
+    public void visitForall(final AssertionForall forall) {
+        try {
+            out.writeByte(forall.upper == null ? FORALL : FORALL_RANGE);
+            out.writeUTF(forall.type);
+            out.writeUTF(forall.var);
+        } catch (final IOException iox) {
+            throw new WriteError(iox);
+        }
+        forall.value.accept(this);
+        if (forall.upper != null) {
+            forall.upper.accept(this);
+        }
+        forall.assertion.accept(this);
+    }
+
+    @Override
+    public void visitExists(final AssertionExists exists) {
+        try {
+            out.writeByte(exists.upper == null ? EXISTS : EXISTS_RANGE);
+            out.writeUTF(exists.type);
+            out.writeUTF(exists.var);
+        } catch (final IOException iox) {
+            throw new WriteError(iox);
+        }
+        exists.value.accept(this);
+        if (exists.upper != null) {
+            exists.upper.accept(this);
+        }
+        exists.assertion.accept(this);
+    }
+
+}
@@ -30,17 +30,26 @@ public class AssertionExists implements Assertion {
     public final String type;
     public final String var;
     public final AssertionSequence value;
+    /**
+     * The exclusive upper bound of an integer range (<code>value</code> is
+     * then the lower bound), or <code>null</code>
+     */
+    public final AssertionSequence upper;
     public final AssertionSequence assertion;
 
-    AssertionExists(final String type, final String var, final AssertionSequence value, final AssertionSequence assertion) {
+    AssertionExists(final String type, final String var, final AssertionSequence value, final AssertionSequence upper, final AssertionSequence assertion) {
         this.type = type;
         this.var = var;
         this.value = value;
+        this.upper = upper;
         this.assertion = assertion;
     }
 
     @Override
     public String toString() {
+        if (upper != null) {
+            return String.format("{exists(%s %s: %s..%s) %s}", type, var, value, upper, assertion);
+        }
         return String.format("{exists(%s %s: %s) %s}", type, var, value, assertion);
     }
 
@@ -30,17 +30,26 @@ public class AssertionForall implements Assertion {
     public final String type;
     public final String var;
     public final AssertionSequence value;
+    /**
+     * The exclusive upper bound of an integer range (<code>value</code> is
+     * then the lower bound), or <code>null</code>
+     */
+    public final AssertionSequence upper;
     public final AssertionSequence assertion;
 
-    AssertionForall(final String type, final String var, final AssertionSequence value, final AssertionSequence assertion) {
+    AssertionForall(final String type, final String var, final AssertionSequence value, final AssertionSequence upper, final AssertionSequence assertion) {
         this.type = type;
         this.var = var;
         this.value = value;
+        this.upper = upper;
         this.assertion = assertion;
     }
 
     @Override
     public String toString() {
+        if (upper != null) {
+            return String.format("{forall(%s %s: %s..%s) %s}", type, var, value, upper, assertion);
+        }
         return String.format("{forall(%s %s: %s) %s}", type, var, value, assertion);
     }
 
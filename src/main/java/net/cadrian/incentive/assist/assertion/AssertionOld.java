@@ -35,6 +35,15 @@ public class AssertionOld implements Assertion {
         this.index = index;
     }
 
+    /**
+     * The index is only unique in the contract of one class, hence the name
+     * of the old value field also depends on the rank of that class in the
+     * whole contract.
+     */
+    public String fieldName(final int classIndex) {
+        return "old" + classIndex + "_" + index;
+    }
+
     @Override
     public String toString() {
         return String.format("{old %s}", old);
@@ -15,6 +15,8 @@
  */
 package net.cadrian.incentive.assist.assertion;
 
+import java.util.List;
+
 import net.cadrian.incentive.assist.Assertion;
 import net.cadrian.incentive.assist.SyntaxException;
 
@@ -209,26 +211,26 @@ class AssertionParser {
         parseNestedAssertion(oldNester);
     }
 
-    private static final NestAssertion FORALL_NESTER(final String type, final String var, final AssertionSequence value) {
+    private static final NestAssertion FORALL_NESTER(final String type, final String var, final AssertionSequence value, final AssertionSequence upper) {
         return new NestAssertion() {
             @Override
             public Assertion nest(final AssertionSequence nested) {
-                return new AssertionForall(type, var, value, nested);
+                return new AssertionForall(type, var, value, upper, nested);
             }
         };
     }
 
-    private static final NestAssertion EXISTS_NESTER(final String type, final String var, final AssertionSequence value) {
+    private static final NestAssertion EXISTS_NESTER(final String type, final String var, final AssertionSequence value, final AssertionSequence upper) {
         return new NestAssertion() {
             @Override
             public Assertion nest(final AssertionSequence nested) {
-                return new AssertionExists(type, var, value, nested);
+                return new AssertionExists(type, var, value, upper, nested);
             }
         };
     }
 
     private static interface NestAssertionFactory {
-        NestAssertion createNester(final String type, final String var, final AssertionSequence value);
+        NestAssertion createNester(final String type, final String var, final AssertionSequence value, final AssertionSequence upper);
     }
 
     private void parseTypedOperator(final NestAssertionFactory nestFactory) {
@@ -254,23 +256,63 @@ class AssertionParser {
         parseAssertion();
         final AssertionSequence value = lastAssertion;
         lastAssertion = oldSequence;
+        final AssertionSequence upper = splitRange(value);
 
         skip(')');
 
-        parseNestedAssertion(nestFactory.createNester(type, var, value));
+        parseNestedAssertion(nestFactory.createNester(type, var, value, upper));
+    }
+
+    /**
+     * An integer range <code>lower..upper</code> is split at its first
+     * top-level <code>..</code>: the given value is left with the lower bound
+     *
+     * @return the upper bound, or <code>null</code> if the value is not a
+     *         range
+     */
+    private AssertionSequence splitRange(final AssertionSequence value) {
+        final List<Assertion> assertions = value.getAssertions();
+        for (int i = 0; i < assertions.size(); i++) {
+            if (assertions.get(i) instanceof AssertionChunk) {
+                final String chunk = ((AssertionChunk) assertions.get(i)).chunk;
+                final int range = chunk.indexOf("..");
+                if (range != -1) {
+                    final AssertionSequence result = new AssertionSequence(false);
+                    final String upperChunk = chunk.substring(range + 2);
+                    if (upperChunk.trim().length() > 0) {
+                        result.add(new AssertionChunk(upperChunk));
+                    }
+                    final List<Assertion> upperAssertions = assertions.subList(i + 1, assertions.size());
+                    for (final Assertion assertion: upperAssertions) {
+                        result.add(assertion);
+                    }
+                    upperAssertions.clear();
+                    assertions.remove(i);
+                    final String lowerChunk = chunk.substring(0, range);
+                    if (lowerChunk.trim().length() > 0) {
+                        assertions.add(new AssertionChunk(lowerChunk));
+                    }
+                    if (assertions.isEmpty() || result.getAssertions().isEmpty()) {
+                        throw new SyntaxException(new String(src), "expected range bounds", pos);
+                    }
+                    return result;
+                }
+            }
+        }
+        return null;
     }
 
     private static final NestAssertionFactory FORALL_NESTER_FACTORY = new NestAssertionFactory() {
             @Override
-            public NestAssertion createNester(final String type, final String var, final AssertionSequence value) {
-                return FORALL_NESTER(type, var, value);
+            public NestAssertion createNester(final String type, final String var, final AssertionSequence value, final AssertionSequence upper) {
+                return FORALL_NESTER(type, var, value, upper);
             }
         };
 
     private static final NestAssertionFactory EXISTS_NESTER_FACTORY = new NestAssertionFactory() {
             @Override
-            public NestAssertion createNester(final String type, final String var, final AssertionSequence value) {
-                return EXISTS_NESTER(type, var, value);
+            public NestAssertion createNester(final String type, final String var, final AssertionSequence value, final AssertionSequence upper) {
+                return EXISTS_NESTER(type, var, value, upper);
             }
         };
 
@@ -43,6 +43,34 @@ abstract class ContractAssertion implements Assertion {
         classContract.add(parser.parse());
     }
 
+    /**
+     * Add already parsed assertions of the given class (see
+     * {@link AssertionCodec#parse(String[])})
+     */
+    public void add(final CtClass targetClass, final List<Assertion> assertions) {
+        if (assertions.isEmpty()) {
+            return;
+        }
+        List<Assertion> classContract = contract.get(targetClass);
+        if (classContract == null) {
+            classContract = new ArrayList<Assertion>();
+            contract.put(targetClass, classContract);
+        }
+        classContract.addAll(assertions);
+    }
+
+    /**
+     * Add the contract of the classes not known yet. Each class gathers its
+     * contract only once, and its heirs share the parsed assertions.
+     */
+    public void addAll(final ContractAssertion inherited) {
+        for (final Map.Entry<CtClass, List<Assertion>> classContract: inherited.contract.entrySet()) {
+            if (!contract.containsKey(classContract.getKey())) {
+                contract.put(classContract.getKey(), classContract.getValue());
+            }
+        }
+    }
+
     public Map<CtClass, List<Assertion>> getContract() {
         return contract;
     }
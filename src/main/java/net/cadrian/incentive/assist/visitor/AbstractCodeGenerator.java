@@ -28,12 +28,12 @@ import net.cadrian.incentive.assist.assertion.AssertionResult;
 import net.cadrian.incentive.assist.assertion.AssertionSequence;
 import net.cadrian.incentive.assist.Assertion;
 import net.cadrian.incentive.assist.ClassInstrumentor;
+import net.cadrian.incentive.assist.SyntaxException;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import javassist.CtClass;
+import javassist.NotFoundException;
 
 abstract class AbstractCodeGenerator extends CodeGenerator {
-    private static final Logger LOG = LoggerFactory.getLogger(AbstractCodeGenerator.class);
 
     protected static interface Local {
         String name();
@@ -50,10 +50,6 @@ abstract class AbstractCodeGenerator extends CodeGenerator {
         public String name() {
             return "b" + value;
         }
-
-        public String iterator() {
-            return "i" + value;
-        }
     }
 
     protected static class Counter {
@@ -64,123 +60,11 @@ abstract class AbstractCodeGenerator extends CodeGenerator {
         }
     }
 
-    private static class IteratorPreparation extends CodeGenerator {
-        final AbstractCodeGenerator host;
-        boolean inIterator = false;
-        private final Counter counter;
-        final List<Local> locals;
-
-        IteratorPreparation(final AbstractCodeGenerator host) {
-            this.host = host;
-            this.counter = host.counter;
-            this.locals = new ArrayList<Local>();
-        }
-
-        private IteratorLocal openLoop(final Assertion value, final boolean init) {
-            final IteratorLocal result = counter.next();
-            code.append("boolean ")
-                .append(result.name())
-                .append(" = ")
-                .append(init ? "true" : "false")
-                .append(";\n")
-                .append("net.cadrian.collection.Iterator ")
-                .append(result.iterator())
-                .append(" = (");
-            value.accept(this);
-            code.append(").iterator();\n");
-            code.append("while (!")
-                .append(result.iterator())
-                .append(".isEmpty() && ");
-            if (!init) {
-                code.append('!');
-            }
-            code.append(result.name())
-                .append(") {\n");
-            return result;
-        }
-
-        private void loop(final Assertion value, final Assertion assertion, final String type, final String var, final boolean init) {
-            if (!inIterator) {
-                inIterator = true;
-                final IteratorLocal local = openLoop(value, init);
-                final Local previousLocal = host.setLocal(local);
-                code.append("final ");
-                final String genType = host.generics.get(type);
-                if (genType == null) {
-                    LOG.warn("type not found: {}", type);
-                    code.append(type);
-                }
-                else {
-                    LOG.warn("type found: {} is {}", type, genType);
-                    code.append(genType);
-                }
-                code.append(' ')
-                    .append(var)
-                    .append(" = (")
-                    .append(local.iterator())
-                    .append(").item();\n");
-                assertion.accept(host);
-                host.setLocal(previousLocal);
-                code.append(local.iterator())
-                    .append(".next();\n}\n");
-                inIterator = false;
-                locals.add(local);
-            }
-        }
-
-        @Override
-        public void visitExists(final AssertionExists exists){
-            loop(exists.value, exists.assertion, exists.type, exists.var, false);
-        }
-
-        @Override
-        public void visitForall(final AssertionForall forall){
-            loop(forall.value, forall.assertion, forall.type, forall.var, true);
-        }
-
-        @Override
-        public void visitChunk(final AssertionChunk chunk){
-            if (inIterator) {
-                chunk.accept(host);
-            }
-        }
-
-        @Override
-        public void visitSequence(final AssertionSequence sequence) {
-            if (inIterator && sequence.parenthesized) {
-                code.append('(');
-            }
-            super.visitSequence(sequence);
-            if (inIterator && sequence.parenthesized) {
-                code.append(')');
-            }
-        }
-
-        @Override
-        public void visitArg(final AssertionArg arg){
-            if (inIterator) {
-                arg.accept(host);
-            }
-        }
-
-        @Override
-        public void visitOld(final AssertionOld old){
-            if (inIterator) {
-                old.accept(host);
-            }
-        }
-
-        @Override
-        public void visitResult(final AssertionResult result){
-            if (inIterator) {
-                result.accept(host);
-            }
-        }
-    }
-
     protected final Map<String, String> generics;
     protected final Counter counter;
     protected Local local;
+    private QuantifierGenerator quantifiers;
+    private CommonCalls commonCalls;
 
     protected AbstractCodeGenerator(final Map<String, String> generics) {
         this.generics = generics;
@@ -191,14 +75,26 @@ abstract class AbstractCodeGenerator extends CodeGenerator {
 
     protected abstract Local firstLocal();
 
-    protected Counter createCounter() {
-        return new Counter();
+    /**
+     * @return the instrumentor of the class of the generated method
+     */
+    protected abstract ClassInstrumentor getClassInstrumentor();
+
+    /**
+     * @return the parameters of the generated method, known as
+     *         <code>$1</code>, <code>$2</code>...
+     */
+    protected abstract CtClass[] getParameterTypes() throws NotFoundException;
+
+    /**
+     * @return <code>true</code> if the generated method is static
+     */
+    protected boolean isStaticMethod() {
+        return false;
     }
 
-    Local setLocal(final Local local) {
-        final Local result = this.local;
-        this.local = local;
-        return result;
+    protected Counter createCounter() {
+        return new Counter();
     }
 
     protected void appendCode(final CodeGenerator generator, final Assertion assertion) {
@@ -220,12 +116,101 @@ abstract class AbstractCodeGenerator extends CodeGenerator {
 
     @Override
     public void visitExists(final AssertionExists exists){
-        // nothing
+        quantifier(false, exists.type, exists.var, exists.value, exists.upper, exists.assertion);
     }
 
     @Override
     public void visitForall(final AssertionForall forall){
-        // nothing
+        quantifier(true, forall.type, forall.var, forall.value, forall.upper, forall.assertion);
+    }
+
+    /**
+     * The quantifier is a call to its helper (see {@link QuantifierGenerator})
+     */
+    private void quantifier(final boolean forall, final String type, final String var, final AssertionSequence value, final AssertionSequence upper,
+                            final AssertionSequence assertion) {
+        if (quantifiers == null) {
+            try {
+                quantifiers = new QuantifierGenerator(generics, getClassInstrumentor().getTargetClass(), getParameterTypes(), isStaticMethod());
+            } catch (final NotFoundException nfx) {
+                throw new SyntaxException(nfx);
+            }
+        }
+        final String valueCode = expression(value);
+        final String upperCode = upper == null ? null : expression(upper);
+        final String assertionCode;
+        quantifiers.enter(type, var);
+        try {
+            assertionCode = expression(assertion);
+        } finally {
+            quantifiers.leave();
+        }
+        code.append(quantifiers.call(forall, type, var, valueCode, upperCode, assertionCode));
+    }
+
+    /**
+     * @return the code of the expression, not appended
+     */
+    private String expression(final AssertionSequence sequence) {
+        final StringBuilder mainCode = code;
+        code = new StringBuilder();
+        super.visitSequence(sequence);
+        final String result = code.toString();
+        code = mainCode;
+        return result;
+    }
+
+    /**
+     * @return the Java expressions of the clauses, their common calls shared
+     *         (see {@link CommonCalls})
+     */
+    protected List<String> expressions(final List<Assertion> clauses) {
+        final List<String> result = new ArrayList<String>(clauses.size());
+        for (final Assertion clause: clauses) {
+            final StringBuilder mainCode = code;
+            code = new StringBuilder();
+            clause.accept(this);
+            result.add(code.toString());
+            code = mainCode;
+        }
+        return result;
+    }
+
+    /**
+     * @param expressions
+     *            the expressions of clauses evaluated in sequence; their
+     *            shared calls are replaced by their local
+     *
+     * @return the calls to evaluate before each clause
+     */
+    protected List<List<CommonCalls.Shared>> share(final List<String> expressions) {
+        if (commonCalls == null) {
+            try {
+                commonCalls = new CommonCalls(getClassInstrumentor(), getParameterTypes());
+            } catch (final NotFoundException nfx) {
+                throw new SyntaxException(nfx);
+            }
+        }
+        return commonCalls.share(expressions);
+    }
+
+    /**
+     * Evaluates the clause into the given local, after its shared calls
+     */
+    protected void evaluate(final String localCheck, final List<CommonCalls.Shared> shared, final String expression) {
+        for (final CommonCalls.Shared call: shared) {
+            code.append("final ")
+                .append(call.type.getName())
+                .append(' ')
+                .append(call.name)
+                .append(" = (")
+                .append(call.call)
+                .append(");\n");
+        }
+        code.append(localCheck)
+            .append(" = (")
+            .append(expression)
+            .append(");\n");
     }
 
     @Override
@@ -236,24 +221,7 @@ abstract class AbstractCodeGenerator extends CodeGenerator {
             code.append(')');
         }
         else {
-            final Local local = this.local;
-            final IteratorPreparation preparation = new IteratorPreparation(this);
-            appendCode(preparation, sequence);
-            code.append(local.name())
-                .append(" = (");
-            final List<Local> locals = preparation.locals;
-            if (locals.isEmpty()) {
-                super.visitSequence(sequence);
-            }
-            else {
-                boolean more = false;
-                for (final Local prepLocal: locals) {
-                    if (more) code.append("&&");
-                    code.append(prepLocal.name());
-                    more = true;
-                }
-            }
-            code.append(");\n");
+            super.visitSequence(sequence);
         }
     }
 
@@ -17,12 +17,68 @@ package net.cadrian.incentive.assist.visitor;
 
 import java.util.Map;
 
+import net.cadrian.incentive.runtime.ContractStats;
+
 abstract class AssertionCodeGenerator extends AbstractCodeGenerator {
-    protected AssertionCodeGenerator(final Map<String, String> generics) {
+    private static final String CONTRACT_STATS_NAME = ContractStats.class.getName();
+    private static final String START_LOCAL_VAR = "__incentive_start__";
+
+    /**
+     * <code>true</code> if each clause records its statistics
+     */
+    private final boolean measured;
+
+    protected AssertionCodeGenerator(final Map<String, String> generics, final boolean measured) {
         super(generics);
+        this.measured = measured;
         code.append("boolean ")
             .append(local.name())
             .append(" = true;\n");
+        if (measured) {
+            code.append("long ")
+                .append(START_LOCAL_VAR)
+                .append(" = 0L;\n");
+        }
+    }
+
+    /**
+     * Before the evaluation of a clause
+     */
+    protected void startClause() {
+        if (measured) {
+            code.append(START_LOCAL_VAR)
+                .append(" = System.nanoTime();\n");
+        }
+    }
+
+    /**
+     * After the evaluation of a clause into the given local, before checking
+     * it
+     *
+     * @param clause
+     *            the name of the clause: its behavior (or class) and its text
+     */
+    protected void endClause(final String localCheck, final String clause) {
+        if (measured) {
+            code.append(CONTRACT_STATS_NAME)
+                .append(".record(")
+                .append(ContractStats.site(clause))
+                .append(", \"")
+                .append(escape(clause))
+                .append("\", ")
+                .append(localCheck)
+                .append(", ")
+                .append(START_LOCAL_VAR)
+                .append(");\n");
+        }
+    }
+
+    /**
+     * @return the given text as the contents of a string literal of the
+     *         generated code
+     */
+    protected static String escape(final String text) {
+        return text.replace("\\", "\\\\").replace("\n", "\\n").replace("\"", "\\\"");
     }
 
     @Override
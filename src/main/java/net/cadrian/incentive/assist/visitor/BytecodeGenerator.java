@@ -0,0 +1,506 @@
+/*
+ * Incentive, A Design By Contract framework for Java.
+ * Copyright (C) 2011 Cyril Adrian. All Rights Reserved.
+ *
+ * Javaassist implementation based on C4J's
+ * Copyright (C) 2006 Jonas Bergstr�m. All Rights Reserved.
+ *
+ * The contents of this file may be used under the terms of the GNU Lesser
+ * General Public License Version 3.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+package net.cadrian.incentive.assist.visitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javassist.CannotCompileException;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.Descriptor;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import javassist.compiler.CompileError;
+import javassist.compiler.Javac;
+
+import net.cadrian.incentive.assist.Assertion;
+import net.cadrian.incentive.assist.BehaviorInstrumentor;
+import net.cadrian.incentive.assist.ClassInstrumentor;
+import net.cadrian.incentive.assist.SyntaxException;
+import net.cadrian.incentive.assist.assertion.AssertionArg;
+import net.cadrian.incentive.assist.assertion.AssertionChunk;
+import net.cadrian.incentive.assist.assertion.AssertionExists;
+import net.cadrian.incentive.assist.assertion.AssertionForall;
+import net.cadrian.incentive.assist.assertion.AssertionOld;
+import net.cadrian.incentive.assist.assertion.AssertionResult;
+import net.cadrian.incentive.assist.assertion.AssertionSequence;
+import net.cadrian.incentive.assist.assertion.EnsureAssertion;
+import net.cadrian.incentive.assist.assertion.InvariantAssertion;
+import net.cadrian.incentive.assist.assertion.RequireAssertion;
+import net.cadrian.incentive.runtime.Checks;
+import net.cadrian.incentive.runtime.ContractStats;
+
+/**
+ * The <code>backend=bytecode</code> contract methods: only the clause
+ * expressions go through the javassist compiler, the rest of the method (the
+ * OR-ed precondition groups, the errors, the invariant reentrancy guard, the
+ * statistics) is emitted as bytecode. The behavior and the messages are the
+ * same as the source generators'.
+ *
+ * Each method returns <code>null</code> if the contract is empty. The
+ * quantifiers are calls to their helpers, as in the source generators (see
+ * {@link QuantifierGenerator}).
+ *
+ * @author cadrian
+ */
+public final class BytecodeGenerator {
+
+    private static final String CHECKS_NAME = Checks.class.getName();
+    private static final String CONTRACT_STATS_NAME = ContractStats.class.getName();
+    private static final String STRING_NAME = String.class.getName();
+    private static final String THROWABLE_NAME = Throwable.class.getName();
+    private static final String EXCEPTION_NAME = Exception.class.getName();
+    private static final String FLAG_LOCAL_VAR = "__incentive_flag__";
+
+    /**
+     * The Java expressions of the clauses
+     */
+    private static final class Expression implements AssertionArg.Visitor,
+                                                     AssertionChunk.Visitor,
+                                                     AssertionExists.Visitor,
+                                                     AssertionForall.Visitor,
+                                                     AssertionOld.Visitor,
+                                                     AssertionResult.Visitor,
+                                                     AssertionSequence.Visitor {
+        private final StringBuilder code = new StringBuilder(256);
+        private final BehaviorInstrumentor behaviorInstrumentor;
+        private final String where;
+        private final QuantifierGenerator quantifiers;
+        private int classIndex;
+
+        Expression(final BehaviorInstrumentor behaviorInstrumentor, final String where, final QuantifierGenerator quantifiers) {
+            this.behaviorInstrumentor = behaviorInstrumentor;
+            this.where = where;
+            this.quantifiers = quantifiers;
+        }
+
+        /**
+         * @return the expressions of each class of the contract, or
+         *         <code>null</code> if the contract is empty
+         */
+        List<List<String>> of(final Map<CtClass, List<Assertion>> contract) {
+            final List<List<String>> result = new ArrayList<List<String>>(contract.size());
+            boolean empty = true;
+            classIndex = 0;
+            for (final List<Assertion> clauses: contract.values()) {
+                final List<String> expressions = new ArrayList<String>(clauses.size());
+                for (final Assertion clause: clauses) {
+                    code.setLength(0);
+                    clause.accept(this);
+                    expressions.add(code.toString());
+                    empty = false;
+                }
+                result.add(expressions);
+                classIndex++;
+            }
+            return empty ? null : result;
+        }
+
+        private boolean isEnsure() {
+            return "ensure".equals(where);
+        }
+
+        @Override
+        public void visitArg(final AssertionArg arg){
+            if (behaviorInstrumentor == null) {
+                throw new SyntaxException("no arg allowed in " + where + "!");
+            }
+            code.append('$').append(isEnsure() ? arg.index + behaviorInstrumentor.getPostconditionArgOffset() : arg.index);
+        }
+
+        @Override
+        public void visitChunk(final AssertionChunk chunk){
+            code.append(chunk.chunk);
+        }
+
+        @Override
+        public void visitExists(final AssertionExists exists){
+            quantifier(false, exists.type, exists.var, exists.value, exists.upper, exists.assertion);
+        }
+
+        @Override
+        public void visitForall(final AssertionForall forall){
+            quantifier(true, forall.type, forall.var, forall.value, forall.upper, forall.assertion);
+        }
+
+        private void quantifier(final boolean forall, final String type, final String var, final AssertionSequence value, final AssertionSequence upper,
+                                final AssertionSequence assertion) {
+            final String valueCode = expression(value);
+            final String upperCode = upper == null ? null : expression(upper);
+            final String assertionCode;
+            quantifiers.enter(type, var);
+            try {
+                assertionCode = expression(assertion);
+            } finally {
+                quantifiers.leave();
+            }
+            code.append(quantifiers.call(forall, type, var, valueCode, upperCode, assertionCode));
+        }
+
+        /**
+         * @return the code of the expression, not appended
+         */
+        private String expression(final AssertionSequence sequence) {
+            final int mark = code.length();
+            for (final Assertion assertion: sequence.getAssertions()) {
+                assertion.accept(this);
+            }
+            final String result = code.substring(mark);
+            code.setLength(mark);
+            return result;
+        }
+
+        @Override
+        public void visitOld(final AssertionOld old){
+            if (!isEnsure()) {
+                throw new SyntaxException("no old allowed in " + where + "!");
+            }
+            code.append(behaviorInstrumentor.getOldValueParameter(old.fieldName(classIndex)));
+        }
+
+        @Override
+        public void visitResult(final AssertionResult result){
+            if (!isEnsure()) {
+                throw new SyntaxException("no result allowed in " + where + "!");
+            }
+            code.append('$').append(behaviorInstrumentor.getPostconditionArgOffset());
+        }
+
+        @Override
+        public void visitSequence(final AssertionSequence sequence){
+            if (sequence.parenthesized) {
+                code.append('(');
+            }
+            for (final Assertion assertion: sequence.getAssertions()) {
+                assertion.accept(this);
+            }
+            if (sequence.parenthesized) {
+                code.append(')');
+            }
+        }
+    }
+
+    public static CtMethod require(final Map<String, String> generics, final CtClass targetClass, final BehaviorInstrumentor behaviorInstrumentor,
+                              final RequireAssertion assertion, final String name, final CtClass[] params) throws CannotCompileException {
+        final QuantifierGenerator quantifiers = new QuantifierGenerator(generics, targetClass, params, behaviorInstrumentor.isPreconditionStatic());
+        final List<List<String>> expressions = new Expression(behaviorInstrumentor, "require", quantifiers).of(assertion.getContract());
+        if (expressions == null) {
+            return null;
+        }
+        try {
+            final BytecodeGenerator generator = new BytecodeGenerator(targetClass, params, behaviorInstrumentor.isMeasured(),
+                                                                      new CommonCalls(behaviorInstrumentor.getClassInstrumentor(), params));
+            generator.require(behaviorInstrumentor.getName(), assertion, assertion.getContract(), expressions);
+            return generator.make(name, params);
+        } catch (final CompileError cex) {
+            throw new CannotCompileException(cex);
+        }
+    }
+
+    public static CtMethod ensure(final Map<String, String> generics, final CtClass targetClass, final BehaviorInstrumentor behaviorInstrumentor,
+                              final EnsureAssertion assertion, final String name, final CtClass[] params) throws CannotCompileException {
+        final QuantifierGenerator quantifiers = new QuantifierGenerator(generics, targetClass, params, false);
+        final List<List<String>> expressions = new Expression(behaviorInstrumentor, "ensure", quantifiers).of(assertion.getContract());
+        if (expressions == null) {
+            return null;
+        }
+        try {
+            final BytecodeGenerator generator = new BytecodeGenerator(targetClass, params, behaviorInstrumentor.isMeasured(),
+                                                                      new CommonCalls(behaviorInstrumentor.getClassInstrumentor(), params));
+            generator.ensure(behaviorInstrumentor.getName(), assertion, assertion.getContract(), expressions);
+            return generator.make(name, params);
+        } catch (final CompileError cex) {
+            throw new CannotCompileException(cex);
+        }
+    }
+
+    public static CtMethod invariant(final Map<String, String> generics, final CtClass targetClass, final ClassInstrumentor classInstrumentor,
+                                     final InvariantAssertion assertion, final String name) throws CannotCompileException {
+        final CtClass[] params = new CtClass[0];
+        final QuantifierGenerator quantifiers = new QuantifierGenerator(generics, targetClass, params, false);
+        final List<List<String>> expressions = new Expression(null, "invariant", quantifiers).of(assertion.getContract());
+        if (expressions == null) {
+            return null;
+        }
+        try {
+            final BytecodeGenerator generator = new BytecodeGenerator(targetClass, params, classInstrumentor.isMeasured(),
+                                                                      new CommonCalls(classInstrumentor, params));
+            generator.invariant(classInstrumentor.getName(), assertion, assertion.getContract(), expressions);
+            return generator.make(name, params);
+        } catch (final CompileError cex) {
+            throw new CannotCompileException(cex);
+        }
+    }
+
+    private final CtClass targetClass;
+    private final Javac javac;
+    private final Bytecode code;
+    private final boolean measured;
+    private final CommonCalls commonCalls;
+    private final int flag;
+    private final int start;
+    private final int exception;
+
+    private BytecodeGenerator(final CtClass targetClass, final CtClass[] params, final boolean measured, final CommonCalls commonCalls) throws CompileError {
+        this.targetClass = targetClass;
+        this.javac = new Javac(targetClass);
+        this.code = javac.getBytecode();
+        this.measured = measured;
+        this.commonCalls = commonCalls;
+        javac.recordParams(params, false);
+        flag = javac.recordVariable(CtClass.booleanType, FLAG_LOCAL_VAR);
+        start = measured ? local(2) : -1;
+        exception = local(1);
+    }
+
+    private int local(final int size) {
+        final int result = code.getMaxLocals();
+        code.incMaxLocals(size);
+        return result;
+    }
+
+    /**
+     * @return the position of the branch to {@link #land(int)}
+     */
+    private int branch(final int opcode) {
+        final int result = code.currentPc();
+        code.addOpcode(opcode);
+        code.addIndex(0);
+        return result;
+    }
+
+    /**
+     * The given branch jumps here
+     */
+    private void land(final int branch) {
+        code.write16bit(branch + 1, code.currentPc() - branch);
+    }
+
+    /**
+     * Evaluates the clause into the flag local, after its shared calls (see
+     * {@link CommonCalls})
+     */
+    private void evaluate(final List<CommonCalls.Shared> shared, final String expression, final String clause) throws CompileError {
+        if (measured) {
+            code.addInvokestatic("java.lang.System", "nanoTime", "()J");
+            code.addLstore(start);
+        }
+        for (final CommonCalls.Shared call: shared) {
+            javac.recordVariable(call.type, call.name);
+            javac.compileStmnt(call.name + " = (" + call.call + ");");
+        }
+        javac.compileStmnt(FLAG_LOCAL_VAR + " = (" + expression + ");");
+        if (measured) {
+            code.addIconst(ContractStats.site(clause));
+            code.addLdc(clause);
+            code.addIload(flag);
+            code.addLload(start);
+            code.addInvokestatic(CONTRACT_STATS_NAME, "record", "(ILjava/lang/String;ZJ)V");
+        }
+    }
+
+    private void throwError(final String errorName, final String message) {
+        code.addNew(errorName);
+        code.addOpcode(Opcode.DUP);
+        code.addLdc(message);
+        code.addInvokespecial(errorName, MethodInfo.nameInit, "(Ljava/lang/String;)V");
+        code.addOpcode(Opcode.ATHROW);
+    }
+
+    private void leave() {
+        code.addAload(0);
+        code.addInvokestatic(ClassInstrumentor.CONTRACT_STATE_NAME, "leave", "(Ljava/lang/Object;)V");
+    }
+
+    /**
+     * The handlers of the checks: the contract errors go through, the other
+     * exceptions are wrapped into a contract error
+     *
+     * @param guarded
+     *            <code>true</code> if the handlers leave the invariant
+     *            reentrancy guard (which is also left on any other
+     *            throwable)
+     */
+    private void catchErrors(final int tryStart, final int tryEnd, final String errorName, final String prefix, final boolean guarded) {
+        final int rethrow = code.currentPc();
+        code.setStackDepth(1);
+        if (guarded) {
+            code.addAstore(exception);
+            leave();
+            code.addAload(exception);
+        }
+        code.addOpcode(Opcode.ATHROW);
+        code.addExceptionHandler(tryStart, tryEnd, rethrow, errorName);
+
+        final int wrap = code.currentPc();
+        code.setStackDepth(1);
+        code.addAstore(exception);
+        if (guarded) {
+            leave();
+        }
+        code.addNew(errorName);
+        code.addOpcode(Opcode.DUP);
+        code.addLdc(prefix);
+        code.addAload(exception);
+        code.addInvokevirtual(THROWABLE_NAME, "getMessage", "()Ljava/lang/String;");
+        code.addInvokestatic(STRING_NAME, "valueOf", "(Ljava/lang/Object;)Ljava/lang/String;");
+        code.addInvokevirtual(STRING_NAME, "concat", "(Ljava/lang/String;)Ljava/lang/String;");
+        code.addAload(exception);
+        code.addInvokespecial(errorName, MethodInfo.nameInit, "(Ljava/lang/String;Ljava/lang/Throwable;)V");
+        code.addOpcode(Opcode.ATHROW);
+        code.addExceptionHandler(tryStart, tryEnd, wrap, EXCEPTION_NAME);
+
+        if (guarded) {
+            final int any = code.currentPc();
+            code.setStackDepth(1);
+            code.addAstore(exception);
+            leave();
+            code.addAload(exception);
+            code.addOpcode(Opcode.ATHROW);
+            code.addExceptionHandler(tryStart, tryEnd, any, 0);
+        }
+    }
+
+    /**
+     * See {@link RequireCodeGenerator}: the groups are OR-ed, their clauses
+     * AND-ed
+     */
+    private void require(final String owner, final RequireAssertion assertion, final Map<CtClass, List<Assertion>> contract,
+                         final List<List<String>> expressions) throws CompileError {
+        final int passed = local(1);
+        final int broken = local(1);
+        code.addGetstatic(CHECKS_NAME, "REQUIRE", "Z");
+        final int unchecked = branch(Opcode.IFEQ);
+        code.addIconst(0);
+        code.addIstore(passed);
+        code.addOpcode(Opcode.ACONST_NULL);
+        code.addAstore(broken);
+
+        final int tryStart = code.currentPc();
+        boolean first = true;
+        int classIndex = 0;
+        for (final List<Assertion> clauses: contract.values()) {
+            final List<String> classExpressions = expressions.get(classIndex++);
+            if (clauses.isEmpty()) {
+                continue;
+            }
+            final List<Integer> skips = new ArrayList<Integer>();
+            if (!first) {
+                code.addIload(passed);
+                skips.add(Integer.valueOf(branch(Opcode.IFNE)));
+            }
+            final List<List<CommonCalls.Shared>> shared = commonCalls.share(classExpressions);
+            for (int i = 0; i < clauses.size(); i++) {
+                final Assertion clause = clauses.get(i);
+                evaluate(shared.get(i), classExpressions.get(i), owner + ": " + clause);
+                code.addIload(flag);
+                final int kept = branch(Opcode.IFNE);
+                code.addLdc(owner + ": " + clause + " is broken");
+                code.addAstore(broken);
+                skips.add(Integer.valueOf(branch(Opcode.GOTO)));
+                land(kept);
+            }
+            code.addIconst(1);
+            code.addIstore(passed);
+            for (final Integer skip: skips) {
+                land(skip.intValue());
+            }
+            first = false;
+        }
+        final int tryEnd = code.currentPc();
+        final int checked = branch(Opcode.GOTO);
+        catchErrors(tryStart, tryEnd, BehaviorInstrumentor.PRECONDITION_ERROR_NAME, owner + ": " + assertion + ", ", false);
+
+        land(checked);
+        code.addIload(passed);
+        final int ok = branch(Opcode.IFNE);
+        code.addNew(BehaviorInstrumentor.PRECONDITION_ERROR_NAME);
+        code.addOpcode(Opcode.DUP);
+        code.addAload(broken);
+        code.addInvokespecial(BehaviorInstrumentor.PRECONDITION_ERROR_NAME, MethodInfo.nameInit, "(Ljava/lang/String;)V");
+        code.addOpcode(Opcode.ATHROW);
+        land(ok);
+        land(unchecked);
+        code.addOpcode(Opcode.RETURN);
+    }
+
+    private void ensure(final String owner, final EnsureAssertion assertion, final Map<CtClass, List<Assertion>> contract,
+                        final List<List<String>> expressions) throws CompileError {
+        final int tryStart = code.currentPc();
+        checkAll(owner, contract, expressions, BehaviorInstrumentor.POSTCONDITION_ERROR_NAME, owner + ": " + assertion + " is broken");
+        final int tryEnd = code.currentPc();
+        code.addOpcode(Opcode.RETURN);
+        catchErrors(tryStart, tryEnd, BehaviorInstrumentor.POSTCONDITION_ERROR_NAME, owner + ": " + assertion + ", ", false);
+    }
+
+    /**
+     * The reentrancy guard is entered before the clauses, and left whatever
+     * happens
+     */
+    private void invariant(final String owner, final InvariantAssertion assertion, final Map<CtClass, List<Assertion>> contract,
+                           final List<List<String>> expressions) throws CompileError {
+        code.addAload(0);
+        code.addInvokestatic(ClassInstrumentor.CONTRACT_STATE_NAME, "enter", "(Ljava/lang/Object;)V");
+        final int tryStart = code.currentPc();
+        checkAll(owner, contract, expressions, ClassInstrumentor.INVARIANT_ERROR_NAME, owner + ": " + assertion + " is broken");
+        final int tryEnd = code.currentPc();
+        leave();
+        code.addOpcode(Opcode.RETURN);
+        catchErrors(tryStart, tryEnd, ClassInstrumentor.INVARIANT_ERROR_NAME, owner + ": " + assertion + ", ", true);
+    }
+
+    /**
+     * The clauses are all AND-ed, hence they all share their common calls
+     */
+    private void checkAll(final String owner, final Map<CtClass, List<Assertion>> contract, final List<List<String>> expressions,
+                          final String errorName, final String message) throws CompileError {
+        final List<String> all = new ArrayList<String>();
+        for (final List<String> classExpressions: expressions) {
+            all.addAll(classExpressions);
+        }
+        final List<List<CommonCalls.Shared>> shared = commonCalls.share(all);
+        int index = 0;
+        for (final List<Assertion> clauses: contract.values()) {
+            for (int i = 0; i < clauses.size(); i++, index++) {
+                evaluate(shared.get(index), all.get(index), owner + ": " + clauses.get(i));
+                code.addIload(flag);
+                final int kept = branch(Opcode.IFNE);
+                throwError(errorName, message);
+                land(kept);
+            }
+        }
+    }
+
+    private CtMethod make(final String name, final CtClass[] params) throws CannotCompileException {
+        final ClassFile classFile = targetClass.getClassFile2();
+        final MethodInfo info = new MethodInfo(classFile.getConstPool(), name, Descriptor.ofMethod(CtClass.voidType, params));
+        info.setAccessFlags(AccessFlag.PRIVATE);
+        info.setCodeAttribute(code.toCodeAttribute());
+        try {
+            info.rebuildStackMapIf6(targetClass.getClassPool(), classFile);
+        } catch (final BadBytecode bbx) {
+            throw new CannotCompileException(bbx);
+        }
+        return CtMethod.make(info, targetClass);
+    }
+
+}
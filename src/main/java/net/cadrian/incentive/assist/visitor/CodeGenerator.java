@@ -30,6 +30,8 @@ import net.cadrian.incentive.assist.Assertion;
 import net.cadrian.incentive.assist.BehaviorInstrumentor;
 import net.cadrian.incentive.assist.ClassInstrumentor;
 
+import javassist.CtClass;
+
 public abstract class CodeGenerator implements AssertionArg.Visitor,
                                                AssertionChunk.Visitor,
                                                AssertionExists.Visitor,
@@ -43,8 +45,15 @@ public abstract class CodeGenerator implements AssertionArg.Visitor,
         return accept(new InvariantCodeGenerator(generics, classInstrumentor, assertion), assertion);
     }
 
-    public static String ensureOld(final Map<String, String> generics, final BehaviorInstrumentor behaviorInstrumentor, final Assertion assertion) {
-        return accept(new EnsureOldCodeGenerator(generics, behaviorInstrumentor, assertion), assertion);
+    /**
+     * @param oldTypes
+     *            filled with the types of the old values, kept in locals of
+     *            the behavior (see
+     *            {@link BehaviorInstrumentor#OLD_VALUE_LOCAL_VAR(String)})
+     */
+    public static String ensureOld(final Map<String, String> generics, final BehaviorInstrumentor behaviorInstrumentor, final Assertion assertion,
+                                   final Map<String, CtClass> oldTypes) {
+        return accept(new EnsureOldCodeGenerator(generics, behaviorInstrumentor, assertion, oldTypes), assertion);
     }
 
     public static String require(final Map<String, String> generics, final BehaviorInstrumentor behaviorInstrumentor, final Assertion assertion) {
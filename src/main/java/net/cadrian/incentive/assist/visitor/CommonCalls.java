@@ -0,0 +1,393 @@
+/*
+ * Incentive, A Design By Contract framework for Java.
+ * Copyright (C) 2011 Cyril Adrian. All Rights Reserved.
+ *
+ * Javaassist implementation based on C4J's
+ * Copyright (C) 2006 Jonas Bergstr�m. All Rights Reserved.
+ *
+ * The contents of this file may be used under the terms of the GNU Lesser
+ * General Public License Version 3.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+package net.cadrian.incentive.assist.visitor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javassist.CannotCompileException;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.NotFoundException;
+import javassist.compiler.CompileError;
+import javassist.compiler.MemberResolver;
+import javassist.compiler.ast.ASTree;
+import javassist.compiler.ast.AssignExpr;
+import javassist.compiler.ast.CallExpr;
+import javassist.compiler.ast.Expr;
+import javassist.compiler.ast.NewExpr;
+
+import net.cadrian.incentive.assist.ClassInstrumentor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The calls shared by the clauses of one contract check: a call to a pure
+ * method (see {@link ClassInstrumentor#isPureCall(CtMethod)}), found more
+ * than once with the same arguments, is evaluated only once into a local,
+ * just before the first clause that always evaluates it (i.e. not behind
+ * <code>&amp;&amp;</code>, <code>||</code> or <code>?:</code>). The clauses
+ * before that one keep their own calls.
+ *
+ * Only the calls on <code>this</code> are shared; their arguments must be
+ * pure too.
+ *
+ * @author cadrian
+ */
+final class CommonCalls {
+    private static final Logger LOG = LoggerFactory.getLogger(CommonCalls.class);
+
+    /**
+     * A shared call, to evaluate before its clause
+     */
+    static final class Shared {
+        final CtClass type;
+        final String name;
+        final String call;
+
+        Shared(final CtClass type, final String name, final String call) {
+            this.type = type;
+            this.name = name;
+            this.call = call;
+        }
+    }
+
+    /**
+     * A call found in a clause
+     */
+    private static final class Call {
+        final int clause;
+        final int start;
+        final int end;
+        final boolean always;
+
+        Call(final int clause, final int start, final int end, final boolean always) {
+            this.clause = clause;
+            this.start = start;
+            this.end = end;
+            this.always = always;
+        }
+    }
+
+    /**
+     * A parenthesized group (or the whole clause): its items after the first
+     * <code>&amp;&amp;</code>, <code>||</code> or <code>?:</code> are not
+     * always evaluated
+     */
+    private static final class Group {
+        final boolean always;
+        boolean conditional;
+
+        Group(final boolean always) {
+            this.always = always;
+        }
+
+        boolean always() {
+            return always && !conditional;
+        }
+    }
+
+    private final ClassInstrumentor classInstrumentor;
+    private final CtClass targetClass;
+    private final CtClass[] params;
+    private int count;
+
+    /**
+     * @param params
+     *            the parameters of the contract method
+     */
+    CommonCalls(final ClassInstrumentor classInstrumentor, final CtClass[] params) {
+        this.classInstrumentor = classInstrumentor;
+        this.targetClass = classInstrumentor.getTargetClass();
+        this.params = params;
+    }
+
+    /**
+     * Shares the common calls of the clauses, evaluated in sequence (all of
+     * them, unless one fails)
+     *
+     * @param clauses
+     *            the expressions of the clauses; the shared calls are
+     *            replaced by their local
+     *
+     * @return the calls to evaluate before each clause
+     */
+    List<List<Shared>> share(final List<String> clauses) {
+        final Map<String, List<Call>> calls = new LinkedHashMap<String, List<Call>>();
+        for (int i = 0; i < clauses.size(); i++) {
+            scan(i, clauses.get(i), calls);
+        }
+
+        final List<List<Shared>> result = new ArrayList<List<Shared>>(clauses.size());
+        final List<List<Call>> replaced = new ArrayList<List<Call>>(clauses.size());
+        final List<List<String>> names = new ArrayList<List<String>>(clauses.size());
+        for (int i = 0; i < clauses.size(); i++) {
+            result.add(new ArrayList<Shared>());
+            replaced.add(new ArrayList<Call>());
+            names.add(new ArrayList<String>());
+        }
+        for (final Map.Entry<String, List<Call>> entry : calls.entrySet()) {
+            final List<Call> occurrences = entry.getValue();
+            if (occurrences.size() > 1) {
+                final Call first = firstAlways(occurrences);
+                if (first != null) {
+                    final String call = clauses.get(first.clause).substring(first.start, first.end);
+                    final CtClass type = pureType(call);
+                    if (type != null) {
+                        final String name = "__incentive_call" + count++ + "__";
+                        LOG.info("Shared call in {}: {} {} = {}", new Object[] {targetClass.getName(), type.getName(), name, call});
+                        result.get(first.clause).add(new Shared(type, name, call));
+                        for (final Call occurrence : occurrences) {
+                            if (occurrence.clause >= first.clause) {
+                                replaced.get(occurrence.clause).add(occurrence);
+                                names.get(occurrence.clause).add(name);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < clauses.size(); i++) {
+            if (!replaced.get(i).isEmpty()) {
+                clauses.set(i, replace(clauses.get(i), replaced.get(i), names.get(i)));
+            }
+        }
+        return result;
+    }
+
+    private static Call firstAlways(final List<Call> occurrences) {
+        for (final Call occurrence : occurrences) {
+            if (occurrence.always) {
+                return occurrence;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the clause, its outermost replaced calls replaced by their
+     *         local
+     */
+    private static String replace(final String clause, final List<Call> calls, final List<String> names) {
+        final StringBuilder result = new StringBuilder(clause.length());
+        int position = 0;
+        while (true) {
+            int next = -1;
+            for (int i = 0; i < calls.size(); i++) {
+                final Call call = calls.get(i);
+                if (call.start >= position && (next == -1 || call.start < calls.get(next).start)) {
+                    next = i;
+                }
+            }
+            if (next == -1) {
+                break;
+            }
+            final Call call = calls.get(next);
+            result.append(clause, position, call.start).append(names.get(next));
+            position = call.end;
+        }
+        return result.append(clause, position, clause.length()).toString();
+    }
+
+    /**
+     * Finds the calls on <code>this</code> of the clause, by text
+     */
+    private static void scan(final int clause, final String code, final Map<String, List<Call>> calls) {
+        final List<Group> groups = new ArrayList<Group>();
+        groups.add(new Group(true));
+        String previous = "";
+        String beforePrevious = "";
+        int i = 0;
+        while (i < code.length()) {
+            final char c = code.charAt(i);
+            final Group group = groups.get(groups.size() - 1);
+            String token = null;
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '"' || c == '\'') {
+                i = skipLiteral(code, i);
+                token = "literal";
+            } else if (Character.isJavaIdentifierStart(c)) {
+                final int start = i;
+                while (i < code.length() && Character.isJavaIdentifierPart(code.charAt(i))) {
+                    i++;
+                }
+                token = code.substring(start, i);
+                final int open = skipWhitespace(code, i);
+                if (open < code.length() && code.charAt(open) == '(' && !"new".equals(previous)) {
+                    final boolean onThis = "this".equals(beforePrevious) && ".".equals(previous);
+                    if (onThis || !".".equals(previous)) {
+                        final int callStart = onThis ? code.lastIndexOf("this", start) : start;
+                        final int end = matchingParenthesis(code, open);
+                        if (end > 0) {
+                            final String key = code.substring(callStart, end).replaceAll("\\s+", "");
+                            List<Call> occurrences = calls.get(key);
+                            if (occurrences == null) {
+                                occurrences = new ArrayList<Call>();
+                                calls.put(key, occurrences);
+                            }
+                            occurrences.add(new Call(clause, callStart, end, group.always()));
+                        }
+                    }
+                }
+            } else if (c == '(' || c == '[' || c == '{') {
+                groups.add(new Group(group.always()));
+                token = String.valueOf(c);
+                i++;
+            } else if (c == ')' || c == ']' || c == '}') {
+                if (groups.size() > 1) {
+                    groups.remove(groups.size() - 1);
+                }
+                token = String.valueOf(c);
+                i++;
+            } else if (c == ',') {
+                group.conditional = false;
+                token = ",";
+                i++;
+            } else if (code.startsWith("&&", i) || code.startsWith("||", i)) {
+                group.conditional = true;
+                token = code.substring(i, i + 2);
+                i += 2;
+            } else {
+                if (c == '?' || c == ':') {
+                    group.conditional = true;
+                }
+                token = String.valueOf(c);
+                i++;
+            }
+            if (token != null) {
+                beforePrevious = previous;
+                previous = token;
+            }
+        }
+    }
+
+    private static int skipWhitespace(final String code, final int start) {
+        int result = start;
+        while (result < code.length() && Character.isWhitespace(code.charAt(result))) {
+            result++;
+        }
+        return result;
+    }
+
+    private static int skipLiteral(final String code, final int start) {
+        final char quote = code.charAt(start);
+        int result = start + 1;
+        while (result < code.length() && code.charAt(result) != quote) {
+            if (code.charAt(result) == '\\') {
+                result++;
+            }
+            result++;
+        }
+        return result + 1;
+    }
+
+    /**
+     * @return the position after the parenthesis matching the one at
+     *         <code>open</code>, or -1 if there is none
+     */
+    private static int matchingParenthesis(final String code, final int open) {
+        int depth = 0;
+        int i = open;
+        while (i < code.length()) {
+            final char c = code.charAt(i);
+            if (c == '"' || c == '\'') {
+                i = skipLiteral(code, i);
+                continue;
+            }
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+                if (depth == 0) {
+                    return i + 1;
+                }
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Checks the purity of the calls of an expression
+     */
+    private final class Purity extends StmtTypeVisitor {
+        boolean pure = true;
+
+        Purity() {
+            super(targetClass, targetClass.getClassPool());
+        }
+
+        @Override
+        public void atCallExpr(final CallExpr expr) throws CompileError {
+            super.atCallExpr(expr);
+            final MemberResolver.Method method = expr.getMethod();
+            if (method == null) {
+                pure = false;
+            } else {
+                try {
+                    pure &= classInstrumentor.isPureCall(method.declaring.getMethod(method.info.getName(), method.info.getDescriptor()));
+                } catch (final NotFoundException nfx) {
+                    pure = false;
+                } catch (final ClassNotFoundException cnfx) {
+                    pure = false;
+                } catch (final CannotCompileException ccx) {
+                    pure = false;
+                }
+            }
+        }
+
+        @Override
+        public void atNewExpr(final NewExpr expr) throws CompileError {
+            pure = false;
+            super.atNewExpr(expr);
+        }
+
+        @Override
+        public void atAssignExpr(final AssignExpr expr) throws CompileError {
+            pure = false;
+            super.atAssignExpr(expr);
+        }
+
+        @Override
+        public void atExpr(final Expr expr) throws CompileError {
+            if (expr.getOperator() == PLUSPLUS || expr.getOperator() == MINUSMINUS) {
+                pure = false;
+            }
+            super.atExpr(expr);
+        }
+    }
+
+    /**
+     * @return the type of the call, or <code>null</code> if the call is not
+     *         pure (or not known)
+     */
+    private CtClass pureType(final String call) {
+        try {
+            final ASTree tree = StmtTypeVisitor.parse(call, targetClass, params);
+            final Purity purity = new Purity();
+            final CtClass result = purity.getType(tree);
+            return purity.pure ? result : null;
+        } catch (final CompileError ce) {
+            LOG.debug("Not shared: {}: {}", call, ce.getMessage());
+            return null;
+        }
+    }
+
+}
@@ -15,6 +15,7 @@
  */
 package net.cadrian.incentive.assist.visitor;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -24,17 +25,20 @@ import net.cadrian.incentive.assist.assertion.AssertionOld;
 import net.cadrian.incentive.assist.assertion.AssertionResult;
 import net.cadrian.incentive.assist.assertion.EnsureAssertion;
 import net.cadrian.incentive.assist.BehaviorInstrumentor;
+import net.cadrian.incentive.assist.ClassInstrumentor;
 
 import javassist.CtClass;
+import javassist.NotFoundException;
 
 class EnsureCodeGenerator extends AssertionCodeGenerator implements EnsureAssertion.Visitor {
 
     private final BehaviorInstrumentor behaviorInstrumentor;
     private final Assertion assertion;
     private boolean checked = false;
+    private int classIndex;
 
     EnsureCodeGenerator(final Map<String, String> generics, final BehaviorInstrumentor behaviorInstrumentor, final Assertion assertion) {
-        super(generics);
+        super(generics, behaviorInstrumentor.isMeasured());
         this.behaviorInstrumentor = behaviorInstrumentor;
         this.assertion = assertion;
         code.append("try {\n");
@@ -48,7 +52,7 @@ class EnsureCodeGenerator extends AssertionCodeGenerator implements EnsureAssert
             .append("(\"")
             .append(behaviorInstrumentor.getName())
             .append(": ")
-            .append(assertion.toString().replace("\n", "\\n").replace("\"", "\\\""))
+            .append(escape(assertion.toString()))
             .append(" is broken\");\n");
         checked = true;
     }
@@ -66,38 +70,59 @@ class EnsureCodeGenerator extends AssertionCodeGenerator implements EnsureAssert
             .append("(\"")
             .append(behaviorInstrumentor.getName())
             .append(": ")
-            .append(assertion.toString().replace("\n", "\\n").replace("\"", "\\\""))
+            .append(escape(assertion.toString()))
             .append(", \" + x.getMessage(), x);\n}\n");
         return super.getCode();
     }
 
     @Override
     public void visitEnsure(final EnsureAssertion ensure){
+        final List<String> expressions = new ArrayList<String>();
+        classIndex = 0;
+        for (final List<Assertion> clauses: ensure.getContract().values()) {
+            expressions.addAll(expressions(clauses));
+            classIndex++;
+        }
+        final List<List<CommonCalls.Shared>> shared = share(expressions);
+        int index = 0;
         for (final Map.Entry<CtClass, List<Assertion>> classContract: ensure.getContract().entrySet()) {
             code.append("/*")
                 .append(classContract.getKey().getName())
                 .append("*/\n");
             for (final Assertion assertion: classContract.getValue()) {
                 final String localFlag = local.name();
-                assertion.accept(this);
+                startClause();
+                evaluate(localFlag, shared.get(index), expressions.get(index));
+                index++;
+                endClause(localFlag, behaviorInstrumentor.getName() + ": " + assertion);
                 check(localFlag);
             }
         }
     }
 
+    @Override
+    protected ClassInstrumentor getClassInstrumentor() {
+        return behaviorInstrumentor.getClassInstrumentor();
+    }
+
+    @Override
+    protected CtClass[] getParameterTypes() throws NotFoundException {
+        return behaviorInstrumentor.getPostconditionParameterTypes();
+    }
+
     @Override
     public void visitArg(final AssertionArg arg){
-        code.append('$').append(arg.index + 2);
+        code.append('$').append(arg.index + behaviorInstrumentor.getPostconditionArgOffset());
     }
 
     @Override
     public void visitOld(final AssertionOld old){
-        code.append("$1.old").append(old.index);
+        code.append(behaviorInstrumentor.getOldValueParameter(old.fieldName(classIndex)));
     }
 
     @Override
     public void visitResult(final AssertionResult result){
-        code.append("$2");
+        code.append('$').append(behaviorInstrumentor.getPostconditionArgOffset());
     }
 
 }
@@ -27,10 +27,10 @@ import net.cadrian.incentive.assist.assertion.AssertionResult;
 import net.cadrian.incentive.assist.assertion.AssertionSequence;
 import net.cadrian.incentive.assist.assertion.EnsureAssertion;
 import net.cadrian.incentive.assist.BehaviorInstrumentor;
+import net.cadrian.incentive.assist.ClassInstrumentor;
 
 import javassist.bytecode.Bytecode;
 import javassist.bytecode.MethodInfo;
-import javassist.CannotCompileException;
 import javassist.ClassPool;
 import javassist.compiler.ast.ASTree;
 import javassist.compiler.ast.Declarator;
@@ -41,8 +41,6 @@ import javassist.compiler.Parser;
 import javassist.compiler.SymbolTable;
 import javassist.CtBehavior;
 import javassist.CtClass;
-import javassist.CtField;
-import javassist.Modifier;
 import javassist.NotFoundException;
 
 import org.slf4j.Logger;
@@ -53,21 +51,22 @@ import net.cadrian.incentive.assist.assertion.AssertionExists;
 class EnsureOldCodeGenerator extends AbstractCodeGenerator implements EnsureAssertion.Visitor {
     private static final Logger LOG = LoggerFactory.getLogger(EnsureOldCodeGenerator.class);
 
-    private final CtClass oldClass;
+    private final Map<String, CtClass> oldTypes;
     private final SymbolTable symbolTable;
     private final BehaviorInstrumentor behaviorInstrumentor;
     private final Assertion assertion;
     private boolean inOld;
     private boolean hasFields;
+    private int classIndex;
 
-    protected static class OldLocal implements Local {
-        private final AssertionOld old;
-        OldLocal(final AssertionOld old) {
-            this.old = old;
+    protected static class OldBehaviorLocal implements Local {
+        private final String fieldName;
+        OldBehaviorLocal(final String fieldName) {
+            this.fieldName = fieldName;
         }
         @Override
         public String name() {
-            return "result.old" + old.index;
+            return BehaviorInstrumentor.OLD_VALUE_LOCAL_VAR(fieldName);
         }
     }
 
@@ -112,11 +111,17 @@ class EnsureOldCodeGenerator extends AbstractCodeGenerator implements EnsureAsse
         }
     }
 
-    EnsureOldCodeGenerator(final Map<String, String> generics, final BehaviorInstrumentor behaviorInstrumentor, final Assertion assertion) {
+    /**
+     * @param oldTypes
+     *            filled with the types of the old values, by name; they are
+     *            kept in locals of the behavior (see
+     *            {@link BehaviorInstrumentor#OLD_VALUE_LOCAL_VAR(String)})
+     */
+    EnsureOldCodeGenerator(final Map<String, String> generics, final BehaviorInstrumentor behaviorInstrumentor, final Assertion assertion, final Map<String, CtClass> oldTypes) {
         super(generics);
         this.behaviorInstrumentor = behaviorInstrumentor;
         this.assertion = assertion;
-        this.oldClass = behaviorInstrumentor.oldValuesClass;
+        this.oldTypes = oldTypes;
         this.symbolTable = gatherParamSymbols(behaviorInstrumentor.pool, behaviorInstrumentor.targetClass, behaviorInstrumentor.behavior);
         ((CounterST)counter).symbolTable = symbolTable;
     }
@@ -140,8 +145,19 @@ class EnsureOldCodeGenerator extends AbstractCodeGenerator implements EnsureAsse
         return new CounterST();
     }
 
+    @Override
+    protected ClassInstrumentor getClassInstrumentor() {
+        return behaviorInstrumentor.getClassInstrumentor();
+    }
+
+    @Override
+    protected CtClass[] getParameterTypes() throws NotFoundException {
+        return behaviorInstrumentor.behavior.getParameterTypes();
+    }
+
     @Override
     public void visitEnsure(final EnsureAssertion ensure){
+        classIndex = 0;
         for (final Map.Entry<CtClass, List<Assertion>> classContract: ensure.getContract().entrySet()) {
             code.append("/*")
                 .append(classContract.getKey().getName())
@@ -149,6 +165,7 @@ class EnsureOldCodeGenerator extends AbstractCodeGenerator implements EnsureAsse
             for (final Assertion assertion: classContract.getValue()) {
                 assertion.accept(this);
             }
+            classIndex++;
         }
     }
 
@@ -165,18 +182,11 @@ class EnsureOldCodeGenerator extends AbstractCodeGenerator implements EnsureAsse
         final String expr = code.toString();
         code = mainCode;
 
-        local = new OldLocal(old);
-
-        try {
-            final CtClass type = expressionType(expr, behaviorInstrumentor.targetClass, behaviorInstrumentor.pool, symbolTable);
-            final CtField field = new CtField(type, "old" + old.index, oldClass);
-            field.setModifiers(Modifier.PUBLIC);
-            oldClass.addField(field);
-            LOG.info("Added field: {}", field);
-        } catch (CannotCompileException ccx) {
-            LOG.error("old", ccx);
-            throw new SyntaxException(ccx);
-        }
+        final String fieldName = old.fieldName(classIndex);
+        local = new OldBehaviorLocal(fieldName);
+        final CtClass type = expressionType(expr, behaviorInstrumentor.targetClass, behaviorInstrumentor.pool, symbolTable);
+        oldTypes.put(fieldName, type);
+        LOG.info("Old value {}: {}", fieldName, type.getName());
 
         old.old.accept(this);
         local = oldLocal;
@@ -211,7 +221,6 @@ class EnsureOldCodeGenerator extends AbstractCodeGenerator implements EnsureAsse
         if (inOld) {
             throw new SyntaxException("no {exists} allowed in old expressions!");
         }
-        super.visitExists(exists);
     }
 
     @Override
@@ -219,13 +228,20 @@ class EnsureOldCodeGenerator extends AbstractCodeGenerator implements EnsureAsse
         if (inOld) {
             throw new SyntaxException("no {forall} allowed in old expressions!");
         }
-        super.visitForall(forall);
     }
 
     @Override
     public void visitSequence(final AssertionSequence sequence){
         if (local != null) {
-            super.visitSequence(sequence);
+            if (sequence.parenthesized) {
+                super.visitSequence(sequence);
+            }
+            else {
+                code.append(local.name())
+                    .append(" = (");
+                super.visitSequence(sequence);
+                code.append(");\n");
+            }
         }
         else {
             if (inOld && sequence.parenthesized) {
@@ -15,6 +15,7 @@
  */
 package net.cadrian.incentive.assist.visitor;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -35,12 +36,14 @@ class InvariantCodeGenerator extends AssertionCodeGenerator implements Invariant
     private boolean checked = false;
 
     InvariantCodeGenerator(final Map<String, String> generics, final ClassInstrumentor classInstrumentor, final Assertion assertion) {
-        super(generics);
+        super(generics, classInstrumentor.isMeasured());
         this.classInstrumentor = classInstrumentor;
         this.assertion = assertion;
+        // the reentrancy guard is per thread: the threads sharing the object
+        // all check its invariant
         code.append("try {\n")
-            .append(ClassInstrumentor.INVARIANT_FLAG_VAR)
-            .append(" = true;\n");
+            .append(ClassInstrumentor.CONTRACT_STATE_NAME)
+            .append(".enter(this);\n");
     }
 
     private void check(final String localCheck) {
@@ -51,7 +54,7 @@ class InvariantCodeGenerator extends AssertionCodeGenerator implements Invariant
             .append("(\"")
             .append(classInstrumentor.getName())
             .append(": ")
-            .append(assertion.toString().replace("\n", "\\n").replace("\"", "\\\""))
+            .append(escape(assertion.toString()))
             .append(" is broken\");\n");
         checked = true;
     }
@@ -69,27 +72,46 @@ class InvariantCodeGenerator extends AssertionCodeGenerator implements Invariant
             .append("(\"")
             .append(classInstrumentor.getName())
             .append(": ")
-            .append(assertion.toString().replace("\n", "\\n").replace("\"", "\\\""))
+            .append(escape(assertion.toString()))
             .append(", \" + x.getMessage(), x);\n} finally {\n")
-            .append(ClassInstrumentor.INVARIANT_FLAG_VAR)
-            .append(" = false;\n}\n");
+            .append(ClassInstrumentor.CONTRACT_STATE_NAME)
+            .append(".leave(this);\n}\n");
         return super.getCode();
     }
 
     @Override
     public void visitInvariant(final InvariantAssertion invariant){
+        final List<String> expressions = new ArrayList<String>();
+        for (final List<Assertion> clauses: invariant.getContract().values()) {
+            expressions.addAll(expressions(clauses));
+        }
+        final List<List<CommonCalls.Shared>> shared = share(expressions);
+        int index = 0;
         for (final Map.Entry<CtClass, List<Assertion>> classContract: invariant.getContract().entrySet()) {
             code.append("/*")
                 .append(classContract.getKey().getName())
                 .append("*/\n");
             for (final Assertion assertion: classContract.getValue()) {
                 final String localFlag = local.name();
-                assertion.accept(this);
+                startClause();
+                evaluate(localFlag, shared.get(index), expressions.get(index));
+                index++;
+                endClause(localFlag, classInstrumentor.getName() + ": " + assertion);
                 check(localFlag);
             }
         }
     }
 
+    @Override
+    protected ClassInstrumentor getClassInstrumentor() {
+        return classInstrumentor;
+    }
+
+    @Override
+    protected CtClass[] getParameterTypes() {
+        return new CtClass[0];
+    }
+
     @Override
     public void visitArg(final AssertionArg arg){
         throw new SyntaxException("no arg allowed in invariant!");
@@ -0,0 +1,277 @@
+/*
+ * Incentive, A Design By Contract framework for Java.
+ * Copyright (C) 2011 Cyril Adrian. All Rights Reserved.
+ *
+ * Javaassist implementation based on C4J's
+ * Copyright (C) 2006 Jonas Bergstr�m. All Rights Reserved.
+ *
+ * The contents of this file may be used under the terms of the GNU Lesser
+ * General Public License Version 3.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+package net.cadrian.incentive.assist.visitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javassist.CannotCompileException;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+import javassist.Modifier;
+import javassist.NotFoundException;
+import javassist.compiler.CompileError;
+import javassist.compiler.MemberResolver;
+import javassist.compiler.ast.ASTree;
+
+import net.cadrian.incentive.assist.SyntaxException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The quantifiers are compiled into private helper methods of the target
+ * class that return their value: in the assertions they are plain method
+ * calls, hence the Java operators short-circuit them (e.g.
+ * <code>x != null &amp;&amp; {forall ...}</code> only loops if <code>x</code> is
+ * not <code>null</code>).
+ *
+ * The helpers take the parameters of the contract method (the
+ * <code>$1</code>, <code>$2</code>... of the expressions keep their meaning),
+ * then the variables of the enclosing quantifiers. The outermost quantifiers
+ * also take their value, evaluated by the caller. The helpers of a static
+ * contract method (the constructor preconditions) are static too.
+ *
+ * The loop is chosen from the static type of the value: integer ranges,
+ * arrays and collections are indexed (they do not allocate); the other
+ * iterables are iterated.
+ *
+ * @author cadrian
+ */
+final class QuantifierGenerator {
+    private static final Logger LOG = LoggerFactory.getLogger(QuantifierGenerator.class);
+
+    private static final String ITERATOR_NAME = "net.cadrian.collection.Iterator";
+    private static final String COLLECTION_NAME = "net.cadrian.collection.Collection";
+
+    private static final String RESULT_LOCAL_VAR = "__incentive_q_result__";
+    private static final String INDEX_LOCAL_VAR = "__incentive_q_index__";
+    private static final String ITEMS_LOCAL_VAR = "__incentive_q_items__";
+    private static final String COUNT_LOCAL_VAR = "__incentive_q_count__";
+
+    private static final CtClass[] PRIMITIVES = {CtClass.booleanType, CtClass.byteType, CtClass.charType, CtClass.shortType, CtClass.intType,
+                                                 CtClass.longType, CtClass.floatType, CtClass.doubleType};
+
+    private final Map<String, String> generics;
+    private final CtClass targetClass;
+    private final CtClass[] params;
+    private final boolean isStatic;
+
+    /**
+     * The variables of the enclosing quantifiers: their type, then their
+     * name
+     */
+    private final List<String[]> bound = new ArrayList<String[]>();
+
+    /**
+     * @param params
+     *            the parameters of the contract method
+     * @param isStatic
+     *            <code>true</code> if the contract method is static
+     */
+    QuantifierGenerator(final Map<String, String> generics, final CtClass targetClass, final CtClass[] params, final boolean isStatic) {
+        this.generics = generics;
+        this.targetClass = targetClass;
+        this.params = params;
+        this.isStatic = isStatic;
+    }
+
+    /**
+     * The variable of a quantifier, bound in its assertion
+     */
+    void enter(final String type, final String var) {
+        bound.add(new String[] {type, var});
+    }
+
+    void leave() {
+        bound.remove(bound.size() - 1);
+    }
+
+    /**
+     * Adds the helper of the quantifier to the target class
+     *
+     * @param upper
+     *            the upper bound of an integer range (<code>value</code> is
+     *            then the lower bound), or <code>null</code>
+     *
+     * @return the call of the helper
+     */
+    String call(final boolean forall, final String type, final String var, final String value, final String upper, final String assertion) {
+        final StringBuilder src = new StringBuilder("{\n");
+        final List<CtClass> helperParams = new ArrayList<CtClass>(params.length + bound.size());
+        for (final CtClass param : params) {
+            helperParams.add(param);
+        }
+        final StringBuilder call = new StringBuilder();
+        for (int i = 1; i <= params.length; i++) {
+            call.append(i > 1 ? ", $" : "$").append(i);
+        }
+        for (final String[] variable : bound) {
+            final String variableType = javaType(variable[0]);
+            helperParams.add(resolve(variableType));
+            src.append("final ")
+                .append(variableType)
+                .append(' ')
+                .append(variable[1])
+                .append(" = $")
+                .append(helperParams.size())
+                .append(";\n");
+            call.append(call.length() > 0 ? ", " : "").append(variable[1]);
+        }
+
+        final CtClass valueType = upper == null ? typeOf(value) : null;
+        final String items;
+        if (valueType != null && bound.isEmpty()) {
+            // evaluated by the caller, where it may be shared with the other
+            // clauses (see CommonCalls)
+            helperParams.add(valueType);
+            items = "$" + helperParams.size();
+            call.append(call.length() > 0 ? ", (" : "(").append(value).append(')');
+        } else {
+            items = value;
+        }
+
+        src.append("boolean ")
+            .append(RESULT_LOCAL_VAR)
+            .append(" = ")
+            .append(forall)
+            .append(";\n");
+        final String item;
+        final String step;
+        if (upper != null) {
+            src.append(type).append(' ').append(INDEX_LOCAL_VAR).append(" = (").append(value).append(");\n")
+                .append(type).append(' ').append(COUNT_LOCAL_VAR).append(" = (").append(upper).append(");\n")
+                .append("while (").append(INDEX_LOCAL_VAR).append(" < ").append(COUNT_LOCAL_VAR);
+            item = INDEX_LOCAL_VAR;
+            step = INDEX_LOCAL_VAR + "++";
+        } else if (valueType != null && valueType.isArray()) {
+            src.append(valueType.getName()).append(' ').append(ITEMS_LOCAL_VAR).append(" = (").append(items).append(");\n")
+                .append("int ").append(INDEX_LOCAL_VAR).append(" = 0;\n")
+                .append("while (").append(INDEX_LOCAL_VAR).append(" < ").append(ITEMS_LOCAL_VAR).append(".length");
+            item = ITEMS_LOCAL_VAR + "[" + INDEX_LOCAL_VAR + "]";
+            step = INDEX_LOCAL_VAR + "++";
+        } else if (isCollection(valueType)) {
+            src.append(COLLECTION_NAME).append(' ').append(ITEMS_LOCAL_VAR).append(" = (").append(items).append(");\n")
+                .append("int ").append(COUNT_LOCAL_VAR).append(" = ").append(ITEMS_LOCAL_VAR).append(".count();\n")
+                .append("int ").append(INDEX_LOCAL_VAR).append(" = 0;\n")
+                .append("while (").append(INDEX_LOCAL_VAR).append(" < ").append(COUNT_LOCAL_VAR);
+            // the items are erased: cast to the type of the variable
+            item = "(" + javaType(type) + ") " + ITEMS_LOCAL_VAR + ".item(" + INDEX_LOCAL_VAR + ")";
+            step = INDEX_LOCAL_VAR + "++";
+        } else {
+            src.append(ITERATOR_NAME).append(' ').append(ITEMS_LOCAL_VAR).append(" = (").append(items).append(").iterator();\n")
+                .append("while (!").append(ITEMS_LOCAL_VAR).append(".isEmpty()");
+            item = "(" + javaType(type) + ") " + ITEMS_LOCAL_VAR + ".item()";
+            step = ITEMS_LOCAL_VAR + ".next()";
+        }
+        src.append(forall ? " && " : " && !")
+            .append(RESULT_LOCAL_VAR)
+            .append(") {\n")
+            .append("final ")
+            .append(javaType(type))
+            .append(' ')
+            .append(var)
+            .append(" = ")
+            .append(item)
+            .append(";\n")
+            .append(RESULT_LOCAL_VAR)
+            .append(" = (")
+            .append(assertion)
+            .append(");\n")
+            .append(step)
+            .append(";\n}\nreturn ")
+            .append(RESULT_LOCAL_VAR)
+            .append(";\n}");
+
+        final String code = src.toString();
+        final String name = freeName();
+        try {
+            // compiled static from the start, else the parameters would be
+            // read one slot too far
+            final int modifiers = isStatic ? Modifier.PRIVATE | Modifier.STATIC : Modifier.PRIVATE | Modifier.FINAL;
+            final CtMethod helper = CtNewMethod.make(modifiers, CtClass.booleanType, name, helperParams.toArray(new CtClass[helperParams.size()]),
+                                                     new CtClass[0], code, targetClass);
+            targetClass.addMethod(helper);
+            LOG.info("Quantifier helper of {} is {}{}", new Object[] {targetClass.getName(), helper, code});
+        } catch (final CannotCompileException ccx) {
+            LOG.error(" *** CODE: {}", code, ccx);
+            throw new SyntaxException("invalid quantifier", ccx);
+        }
+        return name + "(" + call + ")";
+    }
+
+    private String freeName() {
+        for (int index = 0;; index++) {
+            final String result = "__incentive_q" + index + "__";
+            try {
+                targetClass.getDeclaredMethod(result);
+            } catch (final NotFoundException nfx) {
+                return result;
+            }
+        }
+    }
+
+    private String javaType(final String type) {
+        final String result = generics.get(type);
+        if (result == null) {
+            return type;
+        }
+        LOG.debug("type found: {} is {}", type, result);
+        return result;
+    }
+
+    private CtClass resolve(final String type) {
+        for (final CtClass primitive : PRIMITIVES) {
+            if (primitive.getName().equals(type)) {
+                return primitive;
+            }
+        }
+        try {
+            return new MemberResolver(targetClass.getClassPool()).lookupClass(type, false);
+        } catch (final CompileError ce) {
+            throw new SyntaxException("unknown type " + type, ce);
+        }
+    }
+
+    /**
+     * @return the static type of the expression, or <code>null</code> if it
+     *         is not known (e.g. if it uses the variable of an enclosing
+     *         quantifier); the quantifier then iterates over it
+     */
+    private CtClass typeOf(final String expression) {
+        try {
+            final ASTree tree = StmtTypeVisitor.parse(expression, targetClass, params);
+            return new StmtTypeVisitor(targetClass, targetClass.getClassPool()).getType(tree);
+        } catch (final CompileError ce) {
+            LOG.debug("Unknown type of {}: {}", expression, ce.getMessage());
+            return null;
+        }
+    }
+
+    private static boolean isCollection(final CtClass type) {
+        if (type == null || type.isPrimitive() || type.isArray()) {
+            return false;
+        }
+        try {
+            return type.subtypeOf(type.getClassPool().get(COLLECTION_NAME));
+        } catch (final NotFoundException nfx) {
+            return false;
+        }
+    }
+
+}
@@ -25,35 +25,53 @@ import net.cadrian.incentive.assist.assertion.AssertionOld;
 import net.cadrian.incentive.assist.assertion.AssertionResult;
 import net.cadrian.incentive.assist.assertion.RequireAssertion;
 import net.cadrian.incentive.assist.BehaviorInstrumentor;
+import net.cadrian.incentive.assist.ClassInstrumentor;
 
 import javassist.CtClass;
+import javassist.NotFoundException;
 
+/**
+ * The preconditions of each class of the hierarchy are a group of clauses;
+ * the groups are OR-ed (each one is only tried if the previous ones are
+ * broken), and the clauses of a group are AND-ed. The error is only built if
+ * all the groups are broken: it tells the first broken clause of the last
+ * group.
+ */
 class RequireCodeGenerator extends AssertionCodeGenerator implements RequireAssertion.Visitor {
 
+    private static final String PASSED_LOCAL_VAR = "__incentive_passed__";
+    private static final String BROKEN_LOCAL_VAR = "__incentive_broken__";
+
     private final BehaviorInstrumentor behaviorInstrumentor;
     private final Assertion assertion;
     private boolean checked = false;
 
     RequireCodeGenerator(final Map<String, String> generics, final BehaviorInstrumentor behaviorInstrumentor, final Assertion assertion) {
-        super(generics);
+        super(generics, behaviorInstrumentor.isMeasured());
         this.behaviorInstrumentor = behaviorInstrumentor;
         this.assertion = assertion;
-        code.append("final ")
-            .append(BehaviorInstrumentor.PRECONDITION_ERROR_NAME)
-            .append(" err = null;\n")
+        code.append("boolean ")
+            .append(PASSED_LOCAL_VAR)
+            .append(" = false;\nString ")
+            .append(BROKEN_LOCAL_VAR)
+            .append(" = null;\n")
             .append("try {\n");
     }
 
+    /**
+     * Opens the block of the next clauses of the group, closed by
+     * {@link #visitRequire(RequireAssertion)}
+     */
     private void check(final String localCheck, final Assertion assertion) {
         code.append("if (!(")
             .append(localCheck)
-            .append(")) throw new ")
-            .append(BehaviorInstrumentor.PRECONDITION_ERROR_NAME)
-            .append("(\"")
+            .append(")) ")
+            .append(BROKEN_LOCAL_VAR)
+            .append(" = \"")
             .append(behaviorInstrumentor.getName())
             .append(": ")
-            .append(assertion.toString().replace("\n", "\\n").replace("\"", "\\\""))
-            .append(" is broken\");\n");
+            .append(escape(assertion.toString()))
+            .append(" is broken\";\nelse {\n");
         checked = true;
     }
 
@@ -70,37 +88,67 @@ class RequireCodeGenerator extends AssertionCodeGenerator implements RequireAsse
             .append("(\"")
             .append(behaviorInstrumentor.getName())
             .append(": ")
-            .append(assertion.toString().replace("\n", "\\n").replace("\"", "\\\""))
+            .append(escape(assertion.toString()))
             .append(", \" + x.getMessage(), x);\n}\n")
-            .append("if (err != null) throw err;\n");
+            .append("if (!")
+            .append(PASSED_LOCAL_VAR)
+            .append(") throw new ")
+            .append(BehaviorInstrumentor.PRECONDITION_ERROR_NAME)
+            .append("(")
+            .append(BROKEN_LOCAL_VAR)
+            .append(");\n");
         return super.getCode();
     }
 
     @Override
     public void visitRequire(final RequireAssertion require){
         for (final Map.Entry<CtClass, List<Assertion>> classContract: require.getContract().entrySet()) {
+            final List<Assertion> clauses = classContract.getValue();
+            if (clauses.isEmpty()) {
+                continue;
+            }
             final boolean first = !checked;
             code.append("/*")
                 .append(classContract.getKey().getName())
                 .append("*/\n");
             if (!first) {
-                code.append("if (err != null) {\nerr = null;\n");
+                code.append("if (!")
+                    .append(PASSED_LOCAL_VAR)
+                    .append(") {\n");
             }
-            code.append("try {\n");
-            for (final Assertion assertion: classContract.getValue()) {
+            final List<String> expressions = expressions(clauses);
+            final List<List<CommonCalls.Shared>> shared = share(expressions);
+            for (int i = 0; i < clauses.size(); i++) {
+                final Assertion assertion = clauses.get(i);
                 final String localFlag = local.name();
-                assertion.accept(this);
+                startClause();
+                evaluate(localFlag, shared.get(i), expressions.get(i));
+                endClause(localFlag, behaviorInstrumentor.getName() + ": " + assertion);
                 check(localFlag, assertion);
             }
-            code.append("} catch (")
-                .append(BehaviorInstrumentor.PRECONDITION_ERROR_NAME)
-                .append(" x) {\nerr = x;\n}\n");
-            if (!first) {
+            code.append(PASSED_LOCAL_VAR)
+                .append(" = true;\n");
+            for (int i = first ? 0 : -1; i < clauses.size(); i++) {
                 code.append("}\n");
             }
         }
     }
 
+    @Override
+    protected ClassInstrumentor getClassInstrumentor() {
+        return behaviorInstrumentor.getClassInstrumentor();
+    }
+
+    @Override
+    protected CtClass[] getParameterTypes() throws NotFoundException {
+        return behaviorInstrumentor.behavior.getParameterTypes();
+    }
+
+    @Override
+    protected boolean isStaticMethod() {
+        return behaviorInstrumentor.isPreconditionStatic();
+    }
+
     @Override
     public void visitArg(final AssertionArg arg){
         code.append('$').append(arg.index);
@@ -18,7 +18,12 @@ package net.cadrian.incentive.assist.visitor;
 import javassist.ClassPool;
 import javassist.CtClass;
 import javassist.CtPrimitiveType;
+import javassist.bytecode.Bytecode;
 import javassist.compiler.CompileError;
+import javassist.compiler.JvstCodeGen;
+import javassist.compiler.Lex;
+import javassist.compiler.Parser;
+import javassist.compiler.SymbolTable;
 import javassist.compiler.TokenId;
 import javassist.compiler.TypeChecker;
 import javassist.compiler.ast.ASTree;
@@ -29,6 +34,18 @@ class StmtTypeVisitor extends TypeChecker implements TokenId {
         super(a_targetClass, a_pool);
     }
 
+    /**
+     * @param params
+     *            the parameters of the generated method, known as
+     *            <code>$1</code>, <code>$2</code>...
+     */
+    static ASTree parse(final String expression, final CtClass targetClass, final CtClass[] params) throws CompileError {
+        final SymbolTable symbolTable = new SymbolTable();
+        final JvstCodeGen gen = new JvstCodeGen(new Bytecode(targetClass.getClassFile2().getConstPool(), 0, 0), targetClass, targetClass.getClassPool());
+        gen.recordParams(params, false, "$", "$args", "$$", true, 0, targetClass.getName(), symbolTable);
+        return new Parser(new Lex(expression)).parseExpression(symbolTable);
+    }
+
     public CtClass getType(final ASTree astree) throws CompileError {
         final CtClass result;
 
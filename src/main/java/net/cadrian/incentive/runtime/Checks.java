@@ -0,0 +1,43 @@
+/*
+ * Incentive, A Design By Contract framework for Java.
+ * Copyright (C) 2011 Cyril Adrian. All Rights Reserved.
+ *
+ * Javaassist implementation based on C4J's
+ * Copyright (C) 2006 Jonas Bergstr�m. All Rights Reserved.
+ *
+ * The contents of this file may be used under the terms of the GNU Lesser
+ * General Public License Version 3.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+package net.cadrian.incentive.runtime;
+
+/**
+ * The runtime switches of the woven contracts, read once from the system
+ * properties <code>incentive.require_check</code>,
+ * <code>incentive.ensure_check</code> and
+ * <code>incentive.invariant_check</code> (all <code>true</code> by
+ * default). Being constants, the JIT removes the disabled checks altogether.
+ *
+ * The contracts not woven at all (see the agent options of the same names)
+ * cannot be switched on.
+ *
+ * @author cadrian
+ */
+public final class Checks {
+
+    public static final boolean REQUIRE = isEnabled("require");
+    public static final boolean ENSURE = isEnabled("ensure");
+    public static final boolean INVARIANT = isEnabled("invariant");
+
+    private Checks() {
+    }
+
+    private static boolean isEnabled(final String kind) {
+        return !"false".equalsIgnoreCase(System.getProperty("incentive." + kind + "_check"));
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Incentive, A Design By Contract framework for Java.
+ * Copyright (C) 2011 Cyril Adrian. All Rights Reserved.
+ *
+ * Javaassist implementation based on C4J's
+ * Copyright (C) 2006 Jonas Bergstr�m. All Rights Reserved.
+ *
+ * The contents of this file may be used under the terms of the GNU Lesser
+ * General Public License Version 3.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+package net.cadrian.incentive.runtime;
+
+/**
+ * The objects of the current thread that are busy with their contracts:
+ * either being built (their invariant is not checked yet), or checking their
+ * invariant (not checked again by the methods the invariant calls).
+ *
+ * Per thread, hence without any contention on the objects shared by many
+ * threads: each thread checks the invariant of such an object by itself.
+ * Nothing is allocated, unless the thread has many busy objects at once.
+ *
+ * The objects being built are only known by the code woven into the classes
+ * that must not get new fields (see <code>Instrumentor.agentmain</code>).
+ * Also used to find the outermost calls on an object (see the
+ * <code>outermost_invariant</code> agent option).
+ *
+ * @author cadrian
+ */
+public final class ContractState {
+
+    private static final ThreadLocal<ContractState> STATE = new ThreadLocal<ContractState>() {
+        @Override
+        protected ContractState initialValue() {
+            return new ContractState();
+        }
+    };
+
+    private Object[] busy = new Object[8];
+    private int count;
+
+    private ContractState() {
+    }
+
+    private void push(final Object object) {
+        if (count == busy.length) {
+            final Object[] newBusy = new Object[count * 2];
+            System.arraycopy(busy, 0, newBusy, 0, count);
+            busy = newBusy;
+        }
+        busy[count++] = object;
+    }
+
+    /**
+     * @param object
+     *            the object that starts being busy with its contracts
+     */
+    public static void enter(final Object object) {
+        STATE.get().push(object);
+    }
+
+    /**
+     * @param object
+     *            the object that is called
+     * @return <code>true</code> if that call is the outermost call on the
+     *         object in the current thread; in all cases the object is busy
+     *         until the matching {@link #leave(Object)}
+     */
+    public static boolean enterCall(final Object object) {
+        final ContractState state = STATE.get();
+        boolean result = true;
+        for (int i = state.count; result && i --> 0;) {
+            result = state.busy[i] != object;
+        }
+        state.push(object);
+        return result;
+    }
+
+    /**
+     * @param object
+     *            the object that is not busy anymore (with the matching
+     *            {@link #enter(Object)})
+     */
+    public static void leave(final Object object) {
+        final ContractState state = STATE.get();
+        for (int i = state.count; i --> 0;) {
+            if (state.busy[i] == object) {
+                System.arraycopy(state.busy, i + 1, state.busy, i, state.count - i - 1);
+                state.busy[--state.count] = null;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param object
+     *            the object to check
+     * @return <code>true</code> if the object is busy with its contracts in
+     *         the current thread
+     */
+    public static boolean isBusy(final Object object) {
+        final ContractState state = STATE.get();
+        for (int i = state.count; i --> 0;) {
+            if (state.busy[i] == object) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,273 @@
+/*
+ * Incentive, A Design By Contract framework for Java.
+ * Copyright (C) 2011 Cyril Adrian. All Rights Reserved.
+ *
+ * Javaassist implementation based on C4J's
+ * Copyright (C) 2006 Jonas Bergstr�m. All Rights Reserved.
+ *
+ * The contents of this file may be used under the terms of the GNU Lesser
+ * General Public License Version 3.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+package net.cadrian.incentive.runtime;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the evaluations and the failures of each contract clause, and the
+ * time spent evaluating it (see the <code>contract_stats</code> agent
+ * option). A clause is known by its behavior (or class, for the invariant)
+ * and its text, a constant of the instrumented code.
+ *
+ * The counters of each clause are striped by thread, the stripes padded so
+ * that the counters of two stripes are never in the same cache line: the
+ * threads that evaluate the same clause do not contend, and no lock is taken
+ * but when a clause is first seen. Registered as an
+ * MBean, and printed when the JVM stops.
+ *
+ * @author cadrian
+ */
+public final class ContractStats implements ContractStatsMBean {
+    private static final Logger LOG = LoggerFactory.getLogger(ContractStats.class);
+
+    static final String OBJECT_NAME = "net.cadrian.incentive:type=ContractStats";
+
+    private static final int SITES = 1024;
+    private static final int STRIPES = 8;
+
+    /**
+     * The longs of a stripe: two cache lines, as the array is not aligned on
+     * a cache line; the three counters are followed by more than a cache line
+     * of padding
+     */
+    private static final int STRIPE_SIZE = 16;
+    private static final int EVALUATIONS = 0;
+    private static final int FAILURES = 1;
+    private static final int NANOS = 2;
+
+    private static final int HOTTEST = 10;
+
+    private static final AtomicReferenceArray<Clause> CLAUSES = new AtomicReferenceArray<Clause>(SITES);
+
+    private static final ContractStats INSTANCE = new ContractStats();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (final Exception x) {
+            LOG.warn("Could not register the contract statistics MBean", x);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread("Incentive contract statistics") {
+            @Override
+            public void run() {
+                System.err.print(INSTANCE.getReport());
+            }
+        });
+    }
+
+    private static final class Clause {
+        final String name;
+        final Clause next;
+
+        final AtomicLongArray counters = new AtomicLongArray(STRIPES * STRIPE_SIZE);
+
+        Clause(final String name, final Clause next) {
+            this.name = name;
+            this.next = next;
+        }
+
+        long sum(final int counter) {
+            long result = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                result += counters.get(i * STRIPE_SIZE + counter);
+            }
+            return result;
+        }
+
+        void reset() {
+            for (int i = 0; i < counters.length(); i++) {
+                counters.set(i, 0);
+            }
+        }
+    }
+
+    /**
+     * The counters of a clause at some point, not to sort moving values
+     */
+    private static final class Snapshot implements Comparable<Snapshot> {
+        final String name;
+        final long evaluations;
+        final long failures;
+        final long nanos;
+
+        Snapshot(final Clause clause) {
+            this.name = clause.name;
+            this.evaluations = clause.sum(EVALUATIONS);
+            this.failures = clause.sum(FAILURES);
+            this.nanos = clause.sum(NANOS);
+        }
+
+        @Override
+        public int compareTo(final Snapshot other) {
+            return nanos < other.nanos ? -1 : nanos == other.nanos ? 0 : 1;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d evaluations, %d failures, %.3f ms", name, Long.valueOf(evaluations), Long.valueOf(failures),
+                                 Double.valueOf(nanos / 1e6));
+        }
+    }
+
+    private ContractStats() {
+    }
+
+    /**
+     * @param clause
+     *            the name of the clause
+     * @return the site of the clause
+     */
+    public static int site(final String clause) {
+        return clause.hashCode() & (SITES - 1);
+    }
+
+    /**
+     * After the evaluation of a clause
+     *
+     * @param site
+     *            the site of the clause (see {@link #site(String)})
+     * @param clause
+     *            the name of the clause (a constant of the instrumented code)
+     * @param ok
+     *            <code>false</code> if the clause is broken
+     * @param start
+     *            the start time of the evaluation
+     */
+    public static void record(final int site, final String clause, final boolean ok, final long start) {
+        final long time = System.nanoTime() - start;
+        Clause c = find(site, clause);
+        if (c == null) {
+            c = register(site, clause);
+        }
+        final int stripe = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE_SIZE;
+        final AtomicLongArray counters = c.counters;
+        counters.incrementAndGet(stripe + EVALUATIONS);
+        if (!ok) {
+            counters.incrementAndGet(stripe + FAILURES);
+        }
+        counters.addAndGet(stripe + NANOS, time);
+    }
+
+    private static Clause find(final int site, final String clause) {
+        for (Clause c = CLAUSES.get(site); c != null; c = c.next) {
+            // the names are constants, hence interned
+            if (c.name == clause) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    private static synchronized Clause register(final int site, final String clause) {
+        Clause result = find(site, clause);
+        if (result == null) {
+            result = new Clause(clause, CLAUSES.get(site));
+            CLAUSES.set(site, result);
+        }
+        return result;
+    }
+
+    private static List<Clause> getClauses() {
+        final List<Clause> result = new ArrayList<Clause>();
+        for (int i = 0; i < SITES; i++) {
+            for (Clause c = CLAUSES.get(i); c != null; c = c.next) {
+                result.add(c);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the counters of all the clauses, the hottest first
+     */
+    private static List<Snapshot> snapshot() {
+        final List<Clause> clauses = getClauses();
+        final List<Snapshot> result = new ArrayList<Snapshot>(clauses.size());
+        for (final Clause c : clauses) {
+            result.add(new Snapshot(c));
+        }
+        Collections.sort(result, Collections.reverseOrder());
+        return result;
+    }
+
+    private static long sum(final int counter) {
+        long result = 0;
+        for (final Clause c : getClauses()) {
+            result += c.sum(counter);
+        }
+        return result;
+    }
+
+    @Override
+    public int getClauseCount() {
+        return getClauses().size();
+    }
+
+    @Override
+    public long getEvaluations() {
+        return sum(EVALUATIONS);
+    }
+
+    @Override
+    public long getFailures() {
+        return sum(FAILURES);
+    }
+
+    @Override
+    public long getNanos() {
+        return sum(NANOS);
+    }
+
+    @Override
+    public String[] getHottestClauses() {
+        final List<Snapshot> clauses = snapshot();
+        final String[] result = new String[Math.min(HOTTEST, clauses.size())];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = clauses.get(i).toString();
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        for (final Clause c : getClauses()) {
+            c.reset();
+        }
+    }
+
+    @Override
+    public String getReport() {
+        final StringBuilder result = new StringBuilder();
+        final List<Snapshot> clauses = snapshot();
+        result.append(String.format("Incentive: %d contract clauses%n", Integer.valueOf(clauses.size())));
+        for (final Snapshot c : clauses) {
+            result.append(c).append(String.format("%n"));
+        }
+        return result.toString();
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Incentive, A Design By Contract framework for Java.
+ * Copyright (C) 2011 Cyril Adrian. All Rights Reserved.
+ *
+ * Javaassist implementation based on C4J's
+ * Copyright (C) 2006 Jonas Bergstr�m. All Rights Reserved.
+ *
+ * The contents of this file may be used under the terms of the GNU Lesser
+ * General Public License Version 3.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+package net.cadrian.incentive.runtime;
+
+/**
+ * The statistics of the contract clauses (see the
+ * <code>contract_stats</code> agent option): registered as
+ * <code>net.cadrian.incentive:type=ContractStats</code>. The times are in
+ * nanoseconds, summed over all the threads.
+ *
+ * @author cadrian
+ *
+ */
+public interface ContractStatsMBean {
+
+    /**
+     * @return the clauses evaluated at least once
+     */
+    int getClauseCount();
+
+    /**
+     * @return the evaluations of all the clauses
+     */
+    long getEvaluations();
+
+    /**
+     * @return the broken clauses
+     */
+    long getFailures();
+
+    long getNanos();
+
+    /**
+     * @return the clauses that took the most time, with their evaluations,
+     *         failures and time
+     */
+    String[] getHottestClauses();
+
+    /**
+     * Forget all the statistics gathered so far
+     */
+    void reset();
+
+    /**
+     * @return all the clauses, the hottest first
+     */
+    String getReport();
+
+}
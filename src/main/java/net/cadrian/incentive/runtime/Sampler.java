@@ -0,0 +1,139 @@
+/*
+ * Incentive, A Design By Contract framework for Java.
+ * Copyright (C) 2011 Cyril Adrian. All Rights Reserved.
+ *
+ * Javaassist implementation based on C4J's
+ * Copyright (C) 2006 Jonas Bergstr�m. All Rights Reserved.
+ *
+ * The contents of this file may be used under the terms of the GNU Lesser
+ * General Public License Version 3.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+package net.cadrian.incentive.runtime;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Decides which calls check their contracts when only one call out of
+ * <i>N</i> is checked (see the <code>sample</code> agent option, and
+ * {@link net.cadrian.incentive.DBC#sample()}).
+ *
+ * Each thread has its own counters: no lock, and no shared cache line.
+ * Each contracted method and constructor has its own counter, found by its
+ * name (a constant of the instrumented code, hence interned) in the bucket
+ * of its site (a hash of its name). The counters are numbered when first
+ * used, not by the instrumentor: the instrumented byte code may come from
+ * the persistent cache or from the offline instrumenter.
+ *
+ * @author cadrian
+ */
+public final class Sampler {
+
+    static final int SITES = 1024;
+
+    private static final int INITIAL_COUNTERS = 64;
+
+    private static final AtomicReferenceArray<Counter> COUNTERS = new AtomicReferenceArray<Counter>(SITES);
+
+    /**
+     * The number of counters; guarded by the class
+     */
+    private static int counters;
+
+    private static final ThreadLocal<int[]> STATE = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[INITIAL_COUNTERS];
+        }
+    };
+
+    private static final class Counter {
+        final String name;
+        final int index;
+        final Counter next;
+
+        Counter(final String name, final int index, final Counter next) {
+            this.name = name;
+            this.index = index;
+            this.next = next;
+        }
+    }
+
+    private Sampler() {
+    }
+
+    /**
+     * @param className
+     *            the class of the method or constructor
+     * @param behaviorKey
+     *            the name and signature of the method or constructor
+     * @return the site of the given method or constructor
+     */
+    public static int site(final String className, final String behaviorKey) {
+        return (className.hashCode() * 31 + behaviorKey.hashCode()) & (SITES - 1);
+    }
+
+    /**
+     * @param site
+     *            the site of the called method or constructor (see
+     *            {@link #site(String, String)})
+     * @param name
+     *            the name of the method or constructor (a constant of the
+     *            instrumented code)
+     * @param period
+     *            one call out of <code>period</code> is checked
+     * @return <code>true</code> if the contracts of the current call must be
+     *         checked; the first call of each method or constructor is
+     *         always checked
+     */
+    public static boolean sample(final int site, final String name, final int period) {
+        return sample(counter(site, name), period);
+    }
+
+    /**
+     * @return the index of the counter of the given method or constructor
+     */
+    static int counter(final int site, final String name) {
+        for (Counter c = COUNTERS.get(site); c != null; c = c.next) {
+            if (c.name == name) {
+                return c.index;
+            }
+        }
+        return register(site, name);
+    }
+
+    private static synchronized int register(final int site, final String name) {
+        for (Counter c = COUNTERS.get(site); c != null; c = c.next) {
+            if (c.name.equals(name)) {
+                return c.index;
+            }
+        }
+        final Counter result = new Counter(name, counters++, COUNTERS.get(site));
+        COUNTERS.set(site, result);
+        return result.index;
+    }
+
+    /**
+     * @param counter
+     *            the counter of the called method or constructor (see
+     *            {@link #counter(int, String)})
+     */
+    static boolean sample(final int counter, final int period) {
+        int[] state = STATE.get();
+        if (counter >= state.length) {
+            state = Arrays.copyOf(state, Math.max(counter + 1, state.length * 2));
+            STATE.set(state);
+        }
+        if (state[counter]-- <= 0) {
+            state[counter] = period - 1;
+            return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Incentive, A Design By Contract framework for Java.
+ * Copyright (C) 2011 Cyril Adrian. All Rights Reserved.
+ *
+ * Javaassist implementation based on C4J's
+ * Copyright (C) 2006 Jonas Bergstr�m. All Rights Reserved.
+ *
+ * The contents of this file may be used under the terms of the GNU Lesser
+ * General Public License Version 3.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+package net.cadrian.incentive.runtime;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures, per method and constructor, the time spent checking the
+ * contracts against the time spent in the body; the contracts that cost
+ * more than the given ratio of the body are checked less often (down to
+ * one call out of 10000, still measured so that they can recover), and
+ * more often again when they cost much less (see the
+ * <code>throttle</code> agent option).
+ *
+ * Only the checked calls are measured, and the decision is taken every
+ * {@link #WINDOW} measured calls. Each method and constructor is measured,
+ * and sampled, on its own (see {@link Sampler}).
+ *
+ * @author cadrian
+ */
+public final class Throttle {
+    private static final Logger LOG = LoggerFactory.getLogger(Throttle.class);
+
+    /**
+     * The default maximum ratio of the contracts time against the body time
+     */
+    public static final double DEFAULT_RATIO = 1.0;
+
+    private static final int WINDOW = 64;
+    private static final int STEP = 10;
+    private static final int MAX_PERIOD = 10000;
+
+    /**
+     * The contracts are checked more often only when their cost goes below
+     * the ratio divided by that factor
+     */
+    private static final int HYSTERESIS = 4;
+
+    private static final AtomicReferenceArray<Site> SITES = new AtomicReferenceArray<Site>(Sampler.SITES);
+
+    private static final class Site {
+        final String name;
+        final int counter;
+        final int basePeriod;
+        final double ratio;
+        final Site next;
+
+        volatile int period;
+
+        final AtomicLong contractTime = new AtomicLong();
+        final AtomicLong bodyTime = new AtomicLong();
+        final AtomicInteger measures = new AtomicInteger();
+
+        Site(final String name, final int counter, final int basePeriod, final double ratio, final Site next) {
+            this.name = name;
+            this.counter = counter;
+            this.basePeriod = basePeriod;
+            this.ratio = ratio;
+            this.next = next;
+            this.period = basePeriod;
+        }
+    }
+
+    private Throttle() {
+    }
+
+    /**
+     * @param site
+     *            the site of the called method or constructor (see
+     *            {@link Sampler#site(String, String)})
+     * @param name
+     *            the name of the method or constructor (a constant of the
+     *            instrumented code)
+     * @param period
+     *            the sampling period of the method or constructor, when its
+     *            contracts are not too slow
+     * @param ratio
+     *            the maximum ratio of the contracts time against the body
+     *            time
+     * @return <code>true</code> if the contracts of the current call must be
+     *         checked (and measured)
+     */
+    public static boolean sample(final int site, final String name, final int period, final double ratio) {
+        Site s = find(site, name);
+        if (s == null) {
+            s = register(site, name, period, ratio);
+        }
+        return Sampler.sample(s.counter, s.period);
+    }
+
+    /**
+     * At the end of the body of a checked call
+     *
+     * @param start
+     *            the start time of the body
+     * @return the end time of the body
+     */
+    public static long body(final int site, final String name, final long start) {
+        final long result = System.nanoTime();
+        final Site s = find(site, name);
+        if (s != null) {
+            s.bodyTime.addAndGet(result - start);
+        }
+        return result;
+    }
+
+    /**
+     * At the end of a checked call
+     *
+     * @param contractTime
+     *            the time spent checking the contracts before the body
+     * @param end
+     *            the end time of the body
+     */
+    public static void end(final int site, final String name, final long contractTime, final long end) {
+        final Site s = find(site, name);
+        if (s != null) {
+            s.contractTime.addAndGet(contractTime + System.nanoTime() - end);
+            if (s.measures.incrementAndGet() == WINDOW) {
+                adjust(s);
+            }
+        }
+    }
+
+    private static Site find(final int site, final String name) {
+        for (Site s = SITES.get(site); s != null; s = s.next) {
+            // the names are constants, hence interned
+            if (s.name == name) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    private static synchronized Site register(final int site, final String name, final int period, final double ratio) {
+        Site result = find(site, name);
+        if (result == null) {
+            result = new Site(name, Sampler.counter(site, name), period, ratio, SITES.get(site));
+            SITES.set(site, result);
+        }
+        return result;
+    }
+
+    private static void adjust(final Site s) {
+        synchronized (s) {
+            final long contractTime = s.contractTime.getAndSet(0);
+            final long bodyTime = s.bodyTime.getAndSet(0);
+            s.measures.set(0);
+
+            final int period = s.period;
+            final double overhead = (double) contractTime / Math.max(bodyTime, 1L) / period;
+            final int newPeriod;
+            if (overhead > s.ratio && period < MAX_PERIOD) {
+                newPeriod = Math.min(period * STEP, MAX_PERIOD);
+            } else if (overhead * HYSTERESIS < s.ratio && period > s.basePeriod) {
+                newPeriod = Math.max(period / STEP, s.basePeriod);
+            } else {
+                return;
+            }
+            s.period = newPeriod;
+            LOG.info("Contracts of {} cost {} times the body: now checking one call out of {}",
+                     new Object[] {s.name, Double.valueOf(overhead * period), Integer.valueOf(newPeriod)});
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package net.cadrian.fixture;
+
+import net.cadrian.incentive.DBC;
+import net.cadrian.incentive.Ensure;
+import net.cadrian.incentive.Invariant;
+import net.cadrian.incentive.Pure;
+import net.cadrian.incentive.Require;
+
+/**
+ * Each kind of contract, and some broken ones: see <code>TestBackends</code>
+ *
+ * @author cadrian
+ */
+@DBC
+@Invariant("balance >= 0")
+public class Account {
+
+    private int balance;
+
+    @Require("{arg 1} >= 0")
+    @Ensure("balance == {arg 1}")
+    public Account(final int balance) {
+        this.balance = balance;
+    }
+
+    /**
+     * Not checked by a precondition
+     */
+    public Account(final int balance, final boolean unchecked) {
+        this.balance = balance;
+    }
+
+    @Pure
+    public int balance() {
+        return balance;
+    }
+
+    @Require("{arg 1} > 0")
+    @Ensure("balance == {old balance} + {arg 1}")
+    public void deposit(final int amount) {
+        balance += amount;
+    }
+
+    @Require({"{arg 1} > 0",
+              "{arg 1} <= balance"})
+    @Ensure("balance == {old balance} - {arg 1}")
+    public void withdraw(final int amount) {
+        balance -= amount;
+    }
+
+    /**
+     * Only a postcondition, broken
+     */
+    @Ensure("balance == {old balance} - {arg 1}")
+    public void withdrawTwice(final int amount) {
+        balance -= 2 * amount;
+    }
+
+    /**
+     * Only a precondition
+     */
+    @Require("{arg 1} >= 0")
+    public void reset(final int amount) {
+        balance = amount;
+    }
+
+    /**
+     * No contract: may break the invariant
+     */
+    public void overdraw(final int amount) {
+        balance -= amount;
+    }
+
+}
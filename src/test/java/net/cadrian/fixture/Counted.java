@@ -0,0 +1,16 @@
+package net.cadrian.fixture;
+
+import net.cadrian.incentive.Pure;
+
+/**
+ * A query declared pure by an interface, as the queries of the collections
+ * (e.g. <code>Iterable.count()</code>)
+ *
+ * @author cadrian
+ */
+public interface Counted {
+
+    @Pure
+    int count();
+
+}
@@ -0,0 +1,26 @@
+package net.cadrian.fixture;
+
+import net.cadrian.incentive.DBC;
+import net.cadrian.incentive.Invariant;
+
+/**
+ * Its count() breaks the pure declaration of {@link Counted}
+ *
+ * @author cadrian
+ */
+@DBC
+@Invariant("value >= 0")
+public class CountedDown implements Counted {
+
+    private int value;
+
+    @Override
+    public int count() {
+        return value--;
+    }
+
+    public void countDown() {
+        value--;
+    }
+
+}
@@ -0,0 +1,48 @@
+package net.cadrian.fixture;
+
+import net.cadrian.collection.Iterator;
+import net.cadrian.collection.RingArray;
+
+/**
+ * Counts how its elements are read
+ *
+ * @author cadrian
+ */
+public class CountedItems extends RingArray<Integer> {
+
+    private int items;
+    private int iterators;
+
+    public CountedItems(final int[] values) {
+        for (final int value : values) {
+            addLast(Integer.valueOf(value));
+        }
+    }
+
+    /**
+     * @return the number of calls to {@link #item(int)}
+     */
+    public int items() {
+        return items;
+    }
+
+    /**
+     * @return the number of calls to {@link #iterator()}
+     */
+    public int iterators() {
+        return iterators;
+    }
+
+    @Override
+    public Integer item(final int index) {
+        items++;
+        return super.item(index);
+    }
+
+    @Override
+    public Iterator<Integer> iterator() {
+        iterators++;
+        return super.iterator();
+    }
+
+}
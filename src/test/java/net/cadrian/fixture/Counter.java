@@ -0,0 +1,29 @@
+package net.cadrian.fixture;
+
+import net.cadrian.incentive.DBC;
+import net.cadrian.incentive.Ensure;
+
+/**
+ * No invariant, only postconditions: see <code>TestBackends</code>
+ *
+ * @author cadrian
+ */
+@DBC
+public class Counter {
+
+    private int value;
+
+    @Ensure("value == {old value} + 1")
+    public void increment() {
+        value++;
+    }
+
+    /**
+     * Broken postcondition
+     */
+    @Ensure("value == {old value} + 1")
+    public void skip() {
+        // nothing
+    }
+
+}
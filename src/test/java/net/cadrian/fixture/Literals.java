@@ -0,0 +1,26 @@
+package net.cadrian.fixture;
+
+import net.cadrian.incentive.DBC;
+import net.cadrian.incentive.Ensure;
+import net.cadrian.incentive.Invariant;
+import net.cadrian.incentive.Require;
+
+/**
+ * Clauses with escaped quotes and backslashes, kept as is in the messages of
+ * the contract errors: see <code>TestLiterals</code>
+ *
+ * @author cadrian
+ */
+@DBC
+@Invariant("value.indexOf('\\\\') != 0")
+public class Literals {
+
+    private String value = "";
+
+    @Require("!{arg 1}.equals(\"\\\"\")")
+    @Ensure("!value.endsWith(\"\\\\\")")
+    public void set(final String value) {
+        this.value = value;
+    }
+
+}
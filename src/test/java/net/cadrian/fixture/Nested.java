@@ -0,0 +1,45 @@
+package net.cadrian.fixture;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.cadrian.incentive.DBC;
+import net.cadrian.incentive.Invariant;
+
+/**
+ * Counts its invariant checks: see <code>TestContractState</code>
+ *
+ * @author cadrian
+ */
+@DBC
+@Invariant("checked()")
+public class Nested {
+
+    private final AtomicInteger checks = new AtomicInteger();
+    private int value;
+
+    private boolean checked() {
+        checks.incrementAndGet();
+        return true;
+    }
+
+    public void inner() {
+        value++;
+    }
+
+    /**
+     * Calls {@link #inner()} on the same object
+     */
+    public void outer() {
+        inner();
+        inner();
+    }
+
+    /**
+     * Runs the given code inside a call on the object
+     */
+    public void inside(final Runnable runnable) {
+        value++;
+        runnable.run();
+    }
+
+}
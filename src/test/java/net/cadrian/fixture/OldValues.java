@@ -0,0 +1,83 @@
+package net.cadrian.fixture;
+
+import net.cadrian.incentive.DBC;
+import net.cadrian.incentive.Ensure;
+
+/**
+ * Old values of each size, in constructors and methods: see
+ * <code>TestOldValues</code>
+ *
+ * @author cadrian
+ */
+@DBC
+public class OldValues {
+
+    private long total;
+    private int count;
+    private double ratio;
+
+    /**
+     * The old value of a field the constructor assigns: its default value
+     */
+    @Ensure("total == {old total} + {arg 1}")
+    public OldValues(final long initial) {
+        total = initial;
+        ratio = 1.0;
+    }
+
+    /**
+     * Broken postcondition
+     */
+    @Ensure("total == {old total} + {arg 1}")
+    public OldValues(final long initial, final boolean broken) {
+        total = initial + 1;
+    }
+
+    public long total() {
+        return total;
+    }
+
+    /**
+     * A zero factor breaks the postcondition
+     */
+    @Ensure({"total == {old total} + {arg 1}",
+             "count == {old count} + 1",
+             "ratio == {old ratio} * {arg 2}"})
+    public void add(final long amount, final double factor) {
+        total += amount;
+        if (factor != 0.0) {
+            count++;
+        }
+        ratio *= factor;
+    }
+
+    /**
+     * Too many parameter slots to give the old values one by one; a negative
+     * first argument breaks the postcondition
+     */
+    @Ensure({"total == {old total} + {arg 1} + {arg 125}",
+             "count == {old count} + 1",
+             "ratio == {old ratio}"})
+    public void wide(final long a0, final long a1, final long a2, final long a3, final long a4, final long a5, final long a6, final long a7,
+                     final long a8, final long a9, final long a10, final long a11, final long a12, final long a13, final long a14, final long a15,
+                     final long a16, final long a17, final long a18, final long a19, final long a20, final long a21, final long a22, final long a23,
+                     final long a24, final long a25, final long a26, final long a27, final long a28, final long a29, final long a30, final long a31,
+                     final long a32, final long a33, final long a34, final long a35, final long a36, final long a37, final long a38, final long a39,
+                     final long a40, final long a41, final long a42, final long a43, final long a44, final long a45, final long a46, final long a47,
+                     final long a48, final long a49, final long a50, final long a51, final long a52, final long a53, final long a54, final long a55,
+                     final long a56, final long a57, final long a58, final long a59, final long a60, final long a61, final long a62, final long a63,
+                     final long a64, final long a65, final long a66, final long a67, final long a68, final long a69, final long a70, final long a71,
+                     final long a72, final long a73, final long a74, final long a75, final long a76, final long a77, final long a78, final long a79,
+                     final long a80, final long a81, final long a82, final long a83, final long a84, final long a85, final long a86, final long a87,
+                     final long a88, final long a89, final long a90, final long a91, final long a92, final long a93, final long a94, final long a95,
+                     final long a96, final long a97, final long a98, final long a99, final long a100, final long a101, final long a102, final long a103,
+                     final long a104, final long a105, final long a106, final long a107, final long a108, final long a109, final long a110, final long a111,
+                     final long a112, final long a113, final long a114, final long a115, final long a116, final long a117, final long a118, final long a119,
+                     final long a120, final long a121, final long a122, final long a123, final long a124) {
+        total += a0 + a124;
+        if (a0 >= 0) {
+            count++;
+        }
+    }
+
+}
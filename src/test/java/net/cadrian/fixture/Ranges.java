@@ -0,0 +1,102 @@
+package net.cadrian.fixture;
+
+import net.cadrian.collection.Collection;
+import net.cadrian.collection.Iterable;
+import net.cadrian.incentive.DBC;
+import net.cadrian.incentive.Pure;
+import net.cadrian.incentive.Require;
+
+/**
+ * Quantifiers over ranges, arrays and collections: see
+ * <code>TestQuantifiers</code>
+ *
+ * @author cadrian
+ */
+@DBC
+public class Ranges {
+
+    private final int[] values = {1, 2, 3};
+    private int bounds;
+
+    public Ranges() {
+        // nothing
+    }
+
+    /**
+     * The quantifiers of a constructor precondition are static
+     */
+    @Require({"{forall(int v: {arg 1}) v > 0}",
+              "{forall(int v: {arg 1}) {exists(int w: {arg 1}) w >= v}}"})
+    public Ranges(final int[] positive) {
+        // nothing
+    }
+
+    /**
+     * @return the number of calls to {@link #bound()}
+     */
+    public int bounds() {
+        return bounds;
+    }
+
+    @Pure
+    public int bound() {
+        bounds++;
+        return values.length;
+    }
+
+    @Require("{forall(int i: {arg 1}..{arg 2}) values[i] > 0}")
+    public void forallRange(final int lower, final int upper) {
+        // nothing
+    }
+
+    @Require("{exists(int i: {arg 1}..{arg 2}) values[i] > 1}")
+    public void existsRange(final int lower, final int upper) {
+        // nothing
+    }
+
+    @Require("{forall(int i: 0..bound()) values[i] > 0}")
+    public void forallBound() {
+        // nothing
+    }
+
+    @Require("{exists(int i: 0..bound()) values[i] > 2}")
+    public void existsBound() {
+        // nothing
+    }
+
+    @Require("{forall(int v: {arg 1}) v > 0}")
+    public void forallArray(final int[] array) {
+        // nothing
+    }
+
+    @Require("{exists(int v: {arg 1}) v > 0}")
+    public void existsArray(final int[] array) {
+        // nothing
+    }
+
+    @Require("{forall(Integer v: {arg 1}) v.intValue() > 0}")
+    public void forallCollection(final Collection<Integer> collection) {
+        // nothing
+    }
+
+    @Require("{exists(Integer v: {arg 1}) v.intValue() > 0}")
+    public void existsCollection(final Collection<Integer> collection) {
+        // nothing
+    }
+
+    @Require("{arg 1} == null || {forall(int v: {arg 1}) v > 0}")
+    public void forallGuarded(final int[] array) {
+        // nothing
+    }
+
+    @Require("{arg 1} != null && {exists(int v: {arg 1}) v > 0}")
+    public void existsGuarded(final int[] array) {
+        // nothing
+    }
+
+    @Require("{forall(Integer v: {arg 1}) v.intValue() > 0}")
+    public void forallIterable(final Iterable<Integer> iterable) {
+        // nothing
+    }
+
+}
@@ -0,0 +1,34 @@
+package net.cadrian.fixture;
+
+import net.cadrian.incentive.DBC;
+import net.cadrian.incentive.Require;
+
+/**
+ * Its preconditions are OR-ed with the ones of its parent: see
+ * <code>TestInheritedRequire</code>
+ *
+ * @author cadrian
+ */
+@DBC
+public class RequireChild extends RequireParent {
+
+    @Override
+    @Require({"{arg 1} > 10",
+              "{arg 1} < 100"})
+    public void accept(final int value) {
+        // nothing
+    }
+
+    @Override
+    @Require("{arg 1} > 10")
+    public void free(final int value) {
+        // nothing
+    }
+
+    @Override
+    @Require("{arg 1} > 10")
+    public void empty(final int value) {
+        // nothing
+    }
+
+}
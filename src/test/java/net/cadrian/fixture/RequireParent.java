@@ -0,0 +1,29 @@
+package net.cadrian.fixture;
+
+import net.cadrian.incentive.DBC;
+import net.cadrian.incentive.Require;
+
+/**
+ * See <code>TestInheritedRequire</code>
+ *
+ * @author cadrian
+ */
+@DBC
+public class RequireParent {
+
+    @Require({"{arg 1} >= 0",
+              "{arg 1} % 2 == 0"})
+    public void accept(final int value) {
+        // nothing
+    }
+
+    public void free(final int value) {
+        // nothing
+    }
+
+    @Require({})
+    public void empty(final int value) {
+        // nothing
+    }
+
+}
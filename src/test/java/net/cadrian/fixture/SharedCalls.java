@@ -0,0 +1,72 @@
+package net.cadrian.fixture;
+
+import net.cadrian.incentive.DBC;
+import net.cadrian.incentive.Pure;
+import net.cadrian.incentive.Require;
+
+/**
+ * Preconditions that call the same pure method more than once: see
+ * <code>TestCommonCalls</code>
+ *
+ * @author cadrian
+ */
+@DBC
+public class SharedCalls {
+
+    private final int[] items = {1, 2, 30};
+    private int calls;
+
+    /**
+     * @return the number of calls to {@link #item(int)}
+     */
+    public int calls() {
+        return calls;
+    }
+
+    /**
+     * Fails (ArrayIndexOutOfBoundsException) if called with a bad index
+     */
+    @Pure
+    public int item(final int index) {
+        calls++;
+        return items[index];
+    }
+
+    @Pure
+    public boolean either(final boolean a, final boolean b) {
+        return a || b;
+    }
+
+    @Require({"{arg 1} >= 0",
+              "{arg 1} < 3",
+              "item({arg 1}) > 0",
+              "item({arg 1}) < 10"})
+    public void guarded(final int index) {
+        // nothing
+    }
+
+    @Require({"{arg 1} < 0 || {arg 1} >= 3 || item({arg 1}) > 0",
+              "{arg 1} < 0 || {arg 1} >= 3 || item({arg 1}) < 10"})
+    public void alternative(final int index) {
+        // nothing
+    }
+
+    @Require({"!({arg 1} >= 0 && {arg 1} < 3 && item({arg 1}) < 0)",
+              "!({arg 1} >= 0 && {arg 1} < 3 && item({arg 1}) >= 10)"})
+    public void conjunction(final int index) {
+        // nothing
+    }
+
+    @Require({"{arg 1} < 0 || {arg 1} >= 3 ? true : item({arg 1}) > 0",
+              "{arg 1} < 0 || {arg 1} >= 3 ? true : item({arg 1}) < 10"})
+    public void conditional(final int index) {
+        // nothing
+    }
+
+    @Require({"either({arg 1} < 0 || {arg 1} >= 3, {arg 1} >= 0 && {arg 1} < 3 && item({arg 1}) > 0)",
+              "either({arg 1} < 0 || {arg 1} >= 3, {arg 1} >= 0 && {arg 1} < 3 && item({arg 1}) < 10)"})
+    public void arguments(final int index) {
+        // nothing
+    }
+
+}
@@ -0,0 +1,97 @@
+package net.cadrian.incentive.assist;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the instrumentation throughput of the contract methods backends
+ * (see the <code>backend</code> option) on a class corpus, the collection
+ * classes by default. Not a unit test: run it by hand once the project is
+ * compiled.
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:javassist.jar:slf4j-api.jar net.cadrian.incentive.assist.BackendBenchmark \
+ *      [-options &lt;agent options&gt;] [-rounds &lt;n&gt;] [&lt;class directory&gt;]
+ * </pre>
+ *
+ * Each round instruments the whole corpus with a fresh pool, once per
+ * backend; the first round is the warm up.
+ *
+ * @author cadrian
+ */
+public class BackendBenchmark {
+
+    private static final String[] BACKENDS = {"source", "bytecode"};
+
+    public static void main(final String[] args) throws Exception {
+        String options = "limit=net\\.cadrian\\.collection\\..*";
+        String corpus = "target/classes";
+        int rounds = 6;
+        for (int i = 0; i < args.length; i++) {
+            if ("-options".equals(args[i])) {
+                options = args[++i];
+            } else if ("-rounds".equals(args[i])) {
+                rounds = Integer.parseInt(args[++i]);
+            } else {
+                corpus = args[i];
+            }
+        }
+        Instrumentor.parseOptions(options);
+
+        final List<String> classNames = new ArrayList<String>();
+        listClasses(new File(corpus), "", ClassFilter.fromOptions(), classNames);
+        System.out.println(String.format("%s: %d contracted classes", corpus, Integer.valueOf(classNames.size())));
+
+        final long[] times = new long[BACKENDS.length];
+        for (int round = 0; round < rounds; round++) {
+            for (int b = 0; b < BACKENDS.length; b++) {
+                Option.set(Option.backend.name(), BACKENDS[b]);
+                final long time = instrument(corpus, classNames);
+                if (round > 0) {
+                    times[b] += time;
+                }
+            }
+        }
+        for (int b = 0; b < BACKENDS.length; b++) {
+            final double seconds = times[b] / 1e9;
+            System.out.println(String.format("%-8s: %.3f s for %d rounds (%.1f classes/s)", BACKENDS[b], Double.valueOf(seconds), Integer.valueOf(rounds - 1),
+                                             Double.valueOf(classNames.size() * (rounds - 1) / seconds)));
+        }
+    }
+
+    /**
+     * @return the time spent to instrument all the classes
+     */
+    private static long instrument(final String corpus, final List<String> classNames) throws Exception {
+        final LoaderPool pool = new LoaderPool(null, null);
+        pool.insertClassPath(corpus);
+        final Instrumentor instrumentor = new Instrumentor(pool);
+        final long start = System.nanoTime();
+        for (final String className : classNames) {
+            instrumentor.instrumentOffline(className);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void listClasses(final File dir, final String prefix, final ClassFilter filter, final List<String> classNames) throws IOException {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + dir);
+        }
+        for (final File file : files) {
+            final String name = prefix + file.getName();
+            if (file.isDirectory()) {
+                listClasses(file, name + ".", filter, classNames);
+            } else if (name.endsWith(".class")) {
+                final String className = name.substring(0, name.length() - ".class".length());
+                if (filter.accept(className) && ClassfileScanner.mayHaveDBC(InstrumentorUtil.readFully(new FileInputStream(file)))) {
+                    classNames.add(className);
+                }
+            }
+        }
+    }
+
+}
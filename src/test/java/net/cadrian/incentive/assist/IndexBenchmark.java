@@ -0,0 +1,168 @@
+package net.cadrian.incentive.assist;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javassist.CtClass;
+
+/**
+ * Compares the cost of reading the contracts of a class from its annotations
+ * with the cost of reading them from a contract index (see
+ * {@link ContractIndex}), staleness check included, on a class corpus (the
+ * collection classes by default). Not a unit test: run it by hand once the
+ * project is compiled.
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:javassist.jar:slf4j-api.jar net.cadrian.incentive.assist.IndexBenchmark \
+ *      [-options &lt;agent options&gt;] [-rounds &lt;n&gt;] [&lt;class directory&gt;]
+ * </pre>
+ *
+ * Each round reads the contracts of the whole corpus in a fresh pool, both
+ * ways; the first round is the warm up. The classes are already parsed by
+ * Javassist (as they are by the agent), only the contracts are measured.
+ *
+ * @author cadrian
+ */
+public class IndexBenchmark {
+
+    public static void main(final String[] args) throws Exception {
+        String options = "limit=net\\.cadrian\\.collection\\..*";
+        String corpus = "target/classes";
+        int rounds = 21;
+        for (int i = 0; i < args.length; i++) {
+            if ("-options".equals(args[i])) {
+                options = args[++i];
+            } else if ("-rounds".equals(args[i])) {
+                rounds = Integer.parseInt(args[++i]);
+            } else {
+                corpus = args[i];
+            }
+        }
+        Instrumentor.parseOptions(options);
+
+        final Map<String, byte[]> classfiles = new LinkedHashMap<String, byte[]>();
+        listClasses(new File(corpus), "", ClassFilter.fromOptions(), classfiles);
+        System.out.println(String.format("%s: %d contracted classes", corpus, Integer.valueOf(classfiles.size())));
+        final ContractIndex index = index(corpus, classfiles);
+
+        long annotations = 0;
+        long indexed = 0;
+        for (int round = 0; round < rounds; round++) {
+            final long annotationsTime = readAnnotations(corpus, classfiles);
+            final long indexedTime = readIndex(corpus, classfiles, index);
+            if (round > 0) {
+                annotations += annotationsTime;
+                indexed += indexedTime;
+            }
+        }
+        final double perClass = 1e3 * (rounds - 1) * classfiles.size();
+        System.out.println(String.format("annotations: %.1f us/class", Double.valueOf(annotations / perClass)));
+        System.out.println(String.format("index      : %.1f us/class", Double.valueOf(indexed / perClass)));
+    }
+
+    /**
+     * @return the time spent to read and parse the annotations of all the
+     *         classes
+     */
+    private static long readAnnotations(final String corpus, final Map<String, byte[]> classfiles) throws Exception {
+        final List<CtClass> classes = parse(corpus, classfiles).classes;
+        final long start = System.nanoTime();
+        for (final CtClass ctClass : classes) {
+            ContractIndex.Contracts.of(ctClass, "");
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return the time spent to read the index entries of all the classes,
+     *         with their staleness check (hence the digest of their class
+     *         file)
+     */
+    private static long readIndex(final String corpus, final Map<String, byte[]> classfiles, final ContractIndex index) throws Exception {
+        final Parsed parsed = parse(corpus, classfiles);
+        final long start = System.nanoTime();
+        for (final CtClass ctClass : parsed.classes) {
+            if (index.get(ctClass, parsed.pool) == null) {
+                throw new IllegalStateException("not indexed: " + ctClass.getName());
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static final class Parsed {
+        final LoaderPool pool;
+        final List<CtClass> classes;
+
+        Parsed(final LoaderPool pool, final List<CtClass> classes) {
+            this.pool = pool;
+            this.classes = classes;
+        }
+    }
+
+    /**
+     * @return the classes, parsed from their class file as by the agent
+     */
+    private static Parsed parse(final String corpus, final Map<String, byte[]> classfiles) throws Exception {
+        final LoaderPool pool = new LoaderPool(null, null);
+        pool.insertClassPath(corpus);
+        final List<CtClass> classes = new ArrayList<CtClass>(classfiles.size());
+        for (final Map.Entry<String, byte[]> classfile : classfiles.entrySet()) {
+            pool.putClassfile(classfile.getKey(), classfile.getValue());
+            classes.add(pool.makeClass(new ByteArrayInputStream(classfile.getValue())));
+        }
+        return new Parsed(pool, classes);
+    }
+
+    private static ContractIndex index(final String corpus, final Map<String, byte[]> classfiles) throws Exception {
+        final Map<String, ContractIndex.Contracts> contracts = new LinkedHashMap<String, ContractIndex.Contracts>();
+        for (final CtClass ctClass : parse(corpus, classfiles).classes) {
+            contracts.put(ctClass.getName(), ContractIndex.Contracts.of(ctClass, ContractIndex.digest(classfiles.get(ctClass.getName()))));
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ContractIndex.write(bytes, contracts);
+
+        final File dir = File.createTempFile("incentive-index", "");
+        dir.delete();
+        final File file = new File(dir, ContractIndex.RESOURCE);
+        file.getParentFile().mkdirs();
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            bytes.writeTo(out);
+        } finally {
+            out.close();
+        }
+        file.deleteOnExit();
+        return ContractIndex.load(new URLClassLoader(new URL[] {dir.toURI().toURL()}, null));
+    }
+
+    private static void listClasses(final File dir, final String prefix, final ClassFilter filter, final Map<String, byte[]> classfiles) throws IOException {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + dir);
+        }
+        for (final File file : files) {
+            final String name = prefix + file.getName();
+            if (file.isDirectory()) {
+                listClasses(file, name + ".", filter, classfiles);
+            } else if (name.endsWith(".class")) {
+                final String className = name.substring(0, name.length() - ".class".length());
+                final byte[] classfile = InstrumentorUtil.readFully(new FileInputStream(file));
+                if (filter.accept(className) && ClassfileScanner.mayHaveDBC(classfile)) {
+                    classfiles.put(className, classfile);
+                }
+            }
+        }
+    }
+
+}
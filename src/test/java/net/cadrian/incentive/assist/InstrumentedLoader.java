@@ -0,0 +1,177 @@
+package net.cadrian.incentive.assist;
+
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.EnumMap;
+import java.util.Map;
+
+import javassist.ByteArrayClassPath;
+
+/**
+ * Loads the test fixtures (the classes of the <code>net.cadrian.fixture</code>
+ * package), instrumented offline with the given agent options. The fixtures
+ * are never loaded by the application class loader, so the agent the tests
+ * run with does not see them.
+ *
+ * The options are only set while instrumenting, then the previous ones are
+ * restored.
+ *
+ * @author cadrian
+ */
+class InstrumentedLoader extends ClassLoader {
+
+    static final String FIXTURES = "net.cadrian.fixture.";
+
+    private static final Object OPTIONS_LOCK = new Object();
+
+    private final String options;
+    private final LoaderPool pool;
+    private final Instrumentor instrumentor;
+    private int instrumented;
+
+    InstrumentedLoader(final String options) {
+        super(InstrumentedLoader.class.getClassLoader());
+        this.options = options;
+        synchronized (OPTIONS_LOCK) {
+            final Map<Option, String> saved = saveOptions();
+            try {
+                pool = new LoaderPool(null, null);
+                instrumentor = new Instrumentor(pool);
+            } finally {
+                restoreOptions(saved);
+            }
+        }
+    }
+
+    /**
+     * @return the number of classes changed by the instrumentation
+     */
+    int getInstrumented() {
+        return instrumented;
+    }
+
+    /**
+     * The fixture is instrumented from the given class file instead of the
+     * one of the class path (e.g. a class file already instrumented)
+     */
+    void putClassfile(final String className, final byte[] classfile) {
+        pool.insertClassPath(new ByteArrayClassPath(FIXTURES + className, classfile));
+    }
+
+    /**
+     * @return the instrumented class file of the fixture, not loaded
+     */
+    byte[] getClassfile(final String className) throws ClassNotFoundException {
+        return instrument(FIXTURES + className);
+    }
+
+    @Override
+    protected synchronized Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+        if (!name.startsWith(FIXTURES)) {
+            return super.loadClass(name, resolve);
+        }
+        Class<?> result = findLoadedClass(name);
+        if (result == null) {
+            final byte[] byteCode = instrument(name);
+            result = defineClass(name, byteCode, 0, byteCode.length);
+        }
+        if (resolve) {
+            resolveClass(result);
+        }
+        return result;
+    }
+
+    private byte[] instrument(final String name) throws ClassNotFoundException {
+        try {
+            final byte[] result;
+            synchronized (OPTIONS_LOCK) {
+                final Map<Option, String> saved = saveOptions();
+                try {
+                    result = instrumentor.instrumentOffline(name);
+                } finally {
+                    restoreOptions(saved);
+                }
+            }
+            if (result != null) {
+                instrumented++;
+                return result;
+            }
+            final InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class");
+            if (in == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return InstrumentorUtil.readFully(in);
+        } catch (final ClassNotFoundException cnfx) {
+            throw cnfx;
+        } catch (final Exception x) {
+            throw new ClassNotFoundException(name, x);
+        }
+    }
+
+    /**
+     * Replaces the current options by the ones of this loader
+     *
+     * @return the previous options, to restore
+     */
+    private Map<Option, String> saveOptions() {
+        final Map<Option, String> result = new EnumMap<Option, String>(Option.class);
+        for (final Option option : Option.values()) {
+            if (option.isSet()) {
+                result.put(option, option.getValue());
+                option.set = false;
+            }
+        }
+        if (options != null) {
+            Instrumentor.parseOptions(options);
+        }
+        return result;
+    }
+
+    private static void restoreOptions(final Map<Option, String> saved) {
+        for (final Option option : Option.values()) {
+            if (saved.containsKey(option)) {
+                option.set(saved.get(option));
+            } else {
+                option.set = false;
+            }
+        }
+    }
+
+    /**
+     * @return a new instance of the fixture
+     */
+    Object newInstance(final String className, final Object... args) throws Throwable {
+        final Class<?> type = loadClass(FIXTURES + className);
+        try {
+            for (final Constructor<?> constructor : type.getConstructors()) {
+                if (constructor.getParameterTypes().length == args.length) {
+                    return constructor.newInstance(args);
+                }
+            }
+        } catch (final InvocationTargetException itx) {
+            throw itx.getCause();
+        }
+        throw new NoSuchMethodException(className + ": no public constructor with " + args.length + " arguments");
+    }
+
+    /**
+     * Calls the public method of the target
+     *
+     * @return the result of the method
+     */
+    static Object call(final Object target, final String methodName, final Object... args) throws Throwable {
+        for (final Method method : target.getClass().getMethods()) {
+            if (method.getName().equals(methodName) && method.getParameterTypes().length == args.length) {
+                try {
+                    return method.invoke(target, args);
+                } catch (final InvocationTargetException itx) {
+                    throw itx.getCause();
+                }
+            }
+        }
+        throw new NoSuchMethodException(target.getClass().getName() + "." + methodName);
+    }
+
+}
@@ -0,0 +1,232 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+import javassist.Modifier;
+
+import net.cadrian.fixture.Account;
+import net.cadrian.fixture.Ranges;
+import net.cadrian.incentive.error.InvariantError;
+import net.cadrian.incentive.error.RequireError;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * The agent attached to a running JVM (see
+ * {@link Instrumentor#agentmain(String, java.lang.instrument.Instrumentation)})
+ * switches the checks of the already loaded classes on and off.
+ *
+ * @author cadrian
+ */
+public class TestAttach {
+
+    private static final String VIRTUAL_MACHINE = "com.sun.tools.attach.VirtualMachine";
+    private static final String FIXTURES = "net.cadrian.fixture.**";
+
+    /**
+     * The JVM attached to: started without any agent, it loads the fixtures
+     * and runs the scenarios read from its input, printing their outcome
+     */
+    public static final class Target {
+        public static void main(final String[] args) throws IOException {
+            System.out.println(ManagementFactory.getRuntimeMXBean().getName());
+            final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+            String scenario;
+            while ((scenario = in.readLine()) != null) {
+                System.out.println(run(scenario));
+            }
+        }
+
+        private static String run(final String scenario) {
+            try {
+                if ("require".equals(scenario)) {
+                    new Account(10).withdraw(11);
+                } else if ("quantifier".equals(scenario)) {
+                    new Ranges().forallArray(new int[] {1, 0});
+                } else if ("invariant".equals(scenario)) {
+                    final Account account = new Account(10);
+                    account.overdraw(11);
+                    account.balance();
+                }
+                return "none";
+            } catch (final RequireError re) {
+                return "RequireError";
+            } catch (final InvariantError ie) {
+                return "InvariantError";
+            }
+        }
+    }
+
+    @Test(timeout = 120000)
+    public void testRetransform() throws Exception {
+        final Class<?> virtualMachine = virtualMachineClass();
+        Assume.assumeNotNull(virtualMachine);
+        final File agent = agentJar();
+
+        final Process target = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(), "-cp", System.getProperty("java.class.path"),
+                                                  Target.class.getName()).start();
+        drain(target.getErrorStream());
+        try {
+            final BufferedReader out = new BufferedReader(new InputStreamReader(target.getInputStream()));
+            final PrintStream in = new PrintStream(target.getOutputStream(), true);
+            final String pid = out.readLine().split("@")[0];
+
+            // loaded, not checked
+            assertOutcomes(in, out, "none", "none", "none");
+
+            attach(virtualMachine, pid, agent, "include=" + FIXTURES + ",retransform=" + FIXTURES);
+            assertOutcomes(in, out, "RequireError", "RequireError", "InvariantError");
+
+            attach(virtualMachine, pid, agent, "restore");
+            assertOutcomes(in, out, "none", "none", "none");
+
+            // the instrumented byte code is given again
+            attach(virtualMachine, pid, agent, "retransform=" + FIXTURES);
+            assertOutcomes(in, out, "RequireError", "RequireError", "InvariantError");
+
+            in.close();
+            assertEquals(0, target.waitFor());
+        } finally {
+            target.destroy();
+            agent.delete();
+        }
+    }
+
+    @Test
+    public void testRetransformationProblem() throws Exception {
+        final byte[] original = newClass().toBytecode();
+        assertNull(InstrumentorUtil.getRetransformationProblem(original, original));
+
+        final CtClass withPrivateFinal = newClass();
+        withPrivateFinal.addMethod(CtNewMethod.make(Modifier.PRIVATE | Modifier.FINAL, CtClass.booleanType, "check", new CtClass[0], new CtClass[0],
+                                                    "return true;", withPrivateFinal));
+        final CtClass withPrivateStatic = newClass();
+        withPrivateStatic.addMethod(CtNewMethod.make(Modifier.PRIVATE | Modifier.STATIC, CtClass.booleanType, "check", new CtClass[0], new CtClass[0],
+                                                     "return true;", withPrivateStatic));
+        assertNull(InstrumentorUtil.getRetransformationProblem(original, withPrivateFinal.toBytecode()));
+        assertNull(InstrumentorUtil.getRetransformationProblem(original, withPrivateStatic.toBytecode()));
+
+        final CtClass withPrivate = newClass();
+        withPrivate.addMethod(CtNewMethod.make(Modifier.PRIVATE, CtClass.booleanType, "check", new CtClass[0], new CtClass[0], "return true;", withPrivate));
+        final CtClass withField = newClass();
+        withField.addField(CtField.make("private boolean flag;", withField));
+        final CtClass withoutMethod = newClass();
+        withoutMethod.removeMethod(withoutMethod.getDeclaredMethod("foo"));
+        assertNotNull(InstrumentorUtil.getRetransformationProblem(original, withPrivate.toBytecode()));
+        assertNotNull(InstrumentorUtil.getRetransformationProblem(original, withField.toBytecode()));
+        assertNotNull(InstrumentorUtil.getRetransformationProblem(original, withoutMethod.toBytecode()));
+    }
+
+    private static CtClass newClass() throws Exception {
+        final CtClass result = new ClassPool(true).makeClass("net.cadrian.fixture.Retransformed");
+        result.addField(CtField.make("private int x;", result));
+        final CtMethod foo = CtNewMethod.make("public void foo() { x++; }", result);
+        result.addMethod(foo);
+        return result;
+    }
+
+    private static void assertOutcomes(final PrintStream in, final BufferedReader out, final String require, final String quantifier, final String invariant)
+        throws IOException {
+        in.println("require");
+        assertEquals("require", require, out.readLine());
+        in.println("quantifier");
+        assertEquals("quantifier", quantifier, out.readLine());
+        in.println("invariant");
+        assertEquals("invariant", invariant, out.readLine());
+    }
+
+    /**
+     * @return the attach API, or <code>null</code> if this JVM does not have
+     *         it
+     */
+    private static Class<?> virtualMachineClass() throws IOException {
+        try {
+            return Class.forName(VIRTUAL_MACHINE);
+        } catch (final ClassNotFoundException cnfx) {
+            // before Java 9, in the JDK tools
+        }
+        final File tools = new File(System.getProperty("java.home"), "../lib/tools.jar");
+        if (!tools.exists()) {
+            return null;
+        }
+        try {
+            return new URLClassLoader(new URL[] {tools.toURI().toURL()}).loadClass(VIRTUAL_MACHINE);
+        } catch (final ClassNotFoundException cnfx) {
+            return null;
+        }
+    }
+
+    private static void attach(final Class<?> virtualMachine, final String pid, final File agent, final String options) throws Exception {
+        try {
+            final Object vm = virtualMachine.getMethod("attach", String.class).invoke(null, pid);
+            try {
+                virtualMachine.getMethod("loadAgent", String.class, String.class).invoke(vm, agent.getPath(), options);
+            } finally {
+                virtualMachine.getMethod("detach").invoke(vm);
+            }
+        } catch (final InvocationTargetException itx) {
+            throw (Exception) itx.getCause();
+        }
+    }
+
+    /**
+     * @return a jar of only the manifest of the agent: its classes are found
+     *         in the class path of the target
+     */
+    private static File agentJar() throws IOException {
+        final Manifest manifest = new Manifest();
+        final Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue("Agent-Class", Instrumentor.class.getName());
+        attributes.putValue("Can-Retransform-Classes", "true");
+        final File result = File.createTempFile("incentive-agent", ".jar");
+        final JarOutputStream jar = new JarOutputStream(new FileOutputStream(result), manifest);
+        jar.close();
+        return result;
+    }
+
+    /**
+     * The logs of the target: read, not to block it
+     */
+    private static void drain(final InputStream stream) {
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                final byte[] buffer = new byte[4096];
+                try {
+                    while (stream.read(buffer) != -1) {
+                        // ignored
+                    }
+                } catch (final IOException iox) {
+                    // the target is gone
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+}
@@ -0,0 +1,144 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertEquals;
+
+import net.cadrian.incentive.error.EnsureError;
+import net.cadrian.incentive.error.InvariantError;
+import net.cadrian.incentive.error.RequireError;
+
+import org.junit.Test;
+
+/**
+ * The bytecode backend (<code>backend=bytecode</code>) raises the same errors
+ * as the source backend. Where it does not generate a contract method (empty
+ * contract, constructor precondition), the source backend does.
+ *
+ * @author cadrian
+ */
+public class TestBackends {
+
+    private static final String[] BACKENDS = {"source", "bytecode"};
+
+    /**
+     * A use of the fixtures
+     */
+    private interface Scenario {
+        void run(InstrumentedLoader loader) throws Throwable;
+    }
+
+    @Test
+    public void testRequire() throws Throwable {
+        assertOutcome(RequireError.class, new Scenario() {
+            @Override
+            public void run(final InstrumentedLoader loader) throws Throwable {
+                InstrumentedLoader.call(loader.newInstance("Account", Integer.valueOf(10)), "withdraw", Integer.valueOf(11));
+            }
+        });
+        assertOutcome(RequireError.class, new Scenario() {
+            @Override
+            public void run(final InstrumentedLoader loader) throws Throwable {
+                InstrumentedLoader.call(loader.newInstance("Account", Integer.valueOf(10)), "deposit", Integer.valueOf(0));
+            }
+        });
+        assertOutcome(null, new Scenario() {
+            @Override
+            public void run(final InstrumentedLoader loader) throws Throwable {
+                final Object account = loader.newInstance("Account", Integer.valueOf(10));
+                InstrumentedLoader.call(account, "deposit", Integer.valueOf(5));
+                InstrumentedLoader.call(account, "withdraw", Integer.valueOf(15));
+                assertEquals(Integer.valueOf(0), InstrumentedLoader.call(account, "balance"));
+            }
+        });
+    }
+
+    @Test
+    public void testEnsure() throws Throwable {
+        assertOutcome(EnsureError.class, new Scenario() {
+            @Override
+            public void run(final InstrumentedLoader loader) throws Throwable {
+                InstrumentedLoader.call(loader.newInstance("Account", Integer.valueOf(10)), "withdrawTwice", Integer.valueOf(1));
+            }
+        });
+    }
+
+    @Test
+    public void testInvariant() throws Throwable {
+        assertOutcome(InvariantError.class, new Scenario() {
+            @Override
+            public void run(final InstrumentedLoader loader) throws Throwable {
+                loader.newInstance("Account", Integer.valueOf(-1), Boolean.TRUE);
+            }
+        });
+        assertOutcome(InvariantError.class, new Scenario() {
+            @Override
+            public void run(final InstrumentedLoader loader) throws Throwable {
+                final Object account = loader.newInstance("Account", Integer.valueOf(10));
+                InstrumentedLoader.call(account, "overdraw", Integer.valueOf(11));
+                InstrumentedLoader.call(account, "balance");
+            }
+        });
+    }
+
+    /**
+     * The constructor precondition, and the empty contracts, are generated
+     * by the source backend
+     */
+    @Test
+    public void testSourceFallback() throws Throwable {
+        assertOutcome(RequireError.class, new Scenario() {
+            @Override
+            public void run(final InstrumentedLoader loader) throws Throwable {
+                loader.newInstance("Account", Integer.valueOf(-1));
+            }
+        });
+        assertOutcome(RequireError.class, new Scenario() {
+            @Override
+            public void run(final InstrumentedLoader loader) throws Throwable {
+                InstrumentedLoader.call(loader.newInstance("Account", Integer.valueOf(10)), "reset", Integer.valueOf(-1));
+            }
+        });
+        assertOutcome(null, new Scenario() {
+            @Override
+            public void run(final InstrumentedLoader loader) throws Throwable {
+                InstrumentedLoader.call(loader.newInstance("Account", Integer.valueOf(10)), "reset", Integer.valueOf(1));
+            }
+        });
+        assertOutcome(null, new Scenario() {
+            @Override
+            public void run(final InstrumentedLoader loader) throws Throwable {
+                InstrumentedLoader.call(loader.newInstance("Counter"), "increment");
+            }
+        });
+        assertOutcome(EnsureError.class, new Scenario() {
+            @Override
+            public void run(final InstrumentedLoader loader) throws Throwable {
+                InstrumentedLoader.call(loader.newInstance("Counter"), "skip");
+            }
+        });
+    }
+
+    /**
+     * Runs the scenario with each backend
+     *
+     * @param expected
+     *            the error expected from both backends, <code>null</code> if
+     *            none
+     */
+    private static void assertOutcome(final Class<? extends Throwable> expected, final Scenario scenario) throws Throwable {
+        for (final String backend : BACKENDS) {
+            final InstrumentedLoader loader = new InstrumentedLoader("backend=" + backend);
+            Class<? extends Throwable> actual = null;
+            try {
+                scenario.run(loader);
+            } catch (final RequireError re) {
+                actual = re.getClass();
+            } catch (final EnsureError ee) {
+                actual = ee.getClass();
+            } catch (final InvariantError ie) {
+                actual = ie.getClass();
+            }
+            assertEquals(backend, expected, actual);
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import net.cadrian.incentive.error.RequireError;
+
+import org.junit.Test;
+
+/**
+ * The instrumented byte code kept until the class is loaded (see the
+ * <code>bytecode_cache_size</code> option)
+ *
+ * @author cadrian
+ */
+public class TestBytecodeCache {
+
+    private static final String[] BACKENDS = {"source", "bytecode"};
+
+    private static final byte[] A = {1};
+    private static final byte[] B = {2};
+    private static final byte[] C = {3};
+
+    @Test
+    public void testEviction() {
+        final LoaderPool pool = newPool("2");
+        pool.putInstrumented("a", A);
+        pool.putInstrumented("b", B);
+        pool.putInstrumented("a", A);
+        pool.putInstrumented("c", C);
+        // the eldest first, even if put again
+        assertNull(pool.getInstrumented("a"));
+        assertArrayEquals(B, pool.getInstrumented("b"));
+        assertArrayEquals(C, pool.getInstrumented("c"));
+
+        // a loaded class leaves room for another
+        pool.loaded("b");
+        assertNull(pool.getInstrumented("b"));
+        pool.putInstrumented("a", A);
+        assertArrayEquals(A, pool.getInstrumented("a"));
+        assertArrayEquals(C, pool.getInstrumented("c"));
+    }
+
+    /**
+     * The parent is instrumented with its heir, and its byte code evicted by
+     * the heir's before it is loaded: it is given again
+     */
+    @Test
+    public void testEvictedParent() throws Throwable {
+        for (final String backend : BACKENDS) {
+            final InstrumentedLoader loader = new InstrumentedLoader("bytecode_cache_size=1,backend=" + backend);
+            final Object child = loader.newInstance("RequireChild");
+            final Object parent = loader.newInstance("RequireParent");
+            assertEquals(backend, 2, loader.getInstrumented());
+
+            assertRequire(backend, parent, -2, true);
+            assertRequire(backend, parent, 3, true);
+            assertRequire(backend, parent, 4, false);
+            assertRequire(backend, child, 5, true);
+            assertRequire(backend, child, 4, false);
+            assertRequire(backend, child, 11, false);
+        }
+    }
+
+    private static void assertRequire(final String backend, final Object target, final int value, final boolean broken) throws Throwable {
+        try {
+            InstrumentedLoader.call(target, "accept", Integer.valueOf(value));
+            if (broken) {
+                fail(backend + ": " + target.getClass().getSimpleName() + ".accept(" + value + ")");
+            }
+        } catch (final RequireError re) {
+            if (!broken) {
+                throw re;
+            }
+        }
+    }
+
+    private static LoaderPool newPool(final String size) {
+        final Option option = Option.bytecode_cache_size;
+        final boolean wasSet = option.isSet();
+        final String value = option.getValue();
+        try {
+            option.setValue(size);
+            return new LoaderPool(null, null);
+        } finally {
+            if (wasSet) {
+                option.set(value);
+            } else {
+                option.set = false;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertEquals;
+
+import net.cadrian.incentive.error.EnsureError;
+import net.cadrian.incentive.error.InvariantError;
+import net.cadrian.incentive.error.RequireError;
+
+import org.junit.Test;
+
+/**
+ * Each check level (<code>require_check</code>, <code>ensure_check</code>,
+ * <code>invariant_check</code>) weaves its own kind of contracts and the ones
+ * below, and nothing above.
+ *
+ * @author cadrian
+ */
+public class TestCheckLevels {
+
+    private static final String[] BACKENDS = {"source", "bytecode"};
+
+    @Test
+    public void testRequireCheck() throws Throwable {
+        assertOutcomes("require_check", RequireError.class, null, null);
+    }
+
+    @Test
+    public void testEnsureCheck() throws Throwable {
+        assertOutcomes("ensure_check", RequireError.class, EnsureError.class, null);
+    }
+
+    /**
+     * invariant_check also implies ensure_check
+     */
+    @Test
+    public void testInvariantCheck() throws Throwable {
+        assertOutcomes("invariant_check", RequireError.class, EnsureError.class, InvariantError.class);
+    }
+
+    @Test
+    public void testNoLevel() throws Throwable {
+        assertOutcomes(null, RequireError.class, EnsureError.class, InvariantError.class);
+    }
+
+    /**
+     * Breaks each kind of contract, with each backend
+     *
+     * @param level
+     *            the check level, <code>null</code> if none
+     */
+    private static void assertOutcomes(final String level, final Class<? extends Throwable> require, final Class<? extends Throwable> ensure,
+                                       final Class<? extends Throwable> invariant) throws Throwable {
+        for (final String backend : BACKENDS) {
+            final String options = level == null ? "backend=" + backend : level + ",backend=" + backend;
+            final InstrumentedLoader loader = new InstrumentedLoader(options);
+
+            final Object account = loader.newInstance("Account", Integer.valueOf(10));
+            assertEquals(options, require, outcome(account, "withdraw", Integer.valueOf(11)));
+            assertEquals(options, ensure, outcome(account, "withdrawTwice", Integer.valueOf(1)));
+
+            final Object overdrawn = loader.newInstance("Account", Integer.valueOf(10));
+            InstrumentedLoader.call(overdrawn, "overdraw", Integer.valueOf(11));
+            assertEquals(options, invariant, outcome(overdrawn, "balance"));
+        }
+    }
+
+    private static Class<? extends Throwable> outcome(final Object target, final String method, final Object... args) throws Throwable {
+        try {
+            InstrumentedLoader.call(target, method, args);
+        } catch (final RequireError re) {
+            return re.getClass();
+        } catch (final EnsureError ee) {
+            return ee.getClass();
+        } catch (final InvariantError ie) {
+            return ie.getClass();
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,67 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The include/exclude rules of the javaagent
+ *
+ * @author cadrian
+ */
+public class TestClassFilter {
+
+    @Test
+    public void testNoRules() {
+        final ClassFilter filter = new ClassFilter(null, null, null);
+        assertTrue(filter.accept("net.cadrian.collection.HashedMap"));
+        assertTrue(filter.accept("Foo"));
+        assertFalse(filter.accept("java.lang.Object"));
+        assertFalse(filter.accept("com.sun.Foo"));
+        assertFalse(filter.accept("net.cadrian.incentive.assist.Instrumentor"));
+        assertTrue(filter.accept("com.sunny.Foo"));
+        assertTrue(filter.accept("javafoo.Bar"));
+    }
+
+    @Test
+    public void testPackages() {
+        final ClassFilter filter = new ClassFilter("com.foo.**;org.bar.*", "com.foo.internal.**", null);
+        assertTrue(filter.accept("com.foo.A"));
+        assertTrue(filter.accept("com.foo.sub.A"));
+        assertFalse(filter.accept("com.foo.internal.A"));
+        assertFalse(filter.accept("com.foo.internal.deep.A"));
+        assertTrue(filter.accept("org.bar.A"));
+        assertFalse(filter.accept("org.bar.sub.A"));
+        assertFalse(filter.accept("org.A"));
+        assertFalse(filter.accept("A"));
+    }
+
+    @Test
+    public void testClassesAndGlobs() {
+        final ClassFilter filter = new ClassFilter("com.foo.**;org.bar.Baz;org.*.*Impl", "com.foo.Secret;**Test", null);
+        assertTrue(filter.accept("com.foo.A"));
+        assertFalse(filter.accept("com.foo.Secret"));
+        assertFalse(filter.accept("com.foo.ATest"));
+        assertTrue(filter.accept("org.bar.Baz"));
+        assertFalse(filter.accept("org.bar.Bazz"));
+        assertTrue(filter.accept("org.qux.ListImpl"));
+        assertFalse(filter.accept("org.qux.sub.ListImpl"));
+        assertFalse(filter.accept("org.qux.ListImplTest"));
+    }
+
+    @Test
+    public void testRegexAndLimit() {
+        final ClassFilter filter = new ClassFilter("re:com\\.(a|b)\\..*", "re:.*\\$.*", "net\\.cadrian\\..*");
+        assertTrue(filter.accept("com.a.X"));
+        assertTrue(filter.accept("com.b.c.X"));
+        assertFalse(filter.accept("com.c.X"));
+        assertFalse(filter.accept("com.a.X$1"));
+        assertTrue(filter.accept("net.cadrian.collection.HashedMap"));
+        assertFalse(filter.accept("net.cadrian.incentive.Require"));
+        // memoized per package: same answers the second time
+        assertTrue(filter.accept("com.a.X"));
+        assertFalse(filter.accept("com.a.X$1"));
+    }
+
+}
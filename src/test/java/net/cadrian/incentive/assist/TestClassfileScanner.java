@@ -0,0 +1,206 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+
+import org.junit.Test;
+
+/**
+ * The constant pool scan of the raw class files: it must never throw, and
+ * when in doubt it must let the class be instrumented
+ *
+ * @author cadrian
+ */
+public class TestClassfileScanner {
+
+    private static final String DBC = "Lnet/cadrian/incentive/DBC;";
+    private static final String REQUIRE = "Lnet/cadrian/incentive/Require;";
+
+    private static final int UTF8 = 1;
+    private static final int LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int METHOD_HANDLE = 15;
+    private static final int METHOD_TYPE = 16;
+    private static final int DYNAMIC = 17;
+    private static final int INVOKE_DYNAMIC = 18;
+
+    @Test
+    public void testDBC() throws Exception {
+        assertTrue(ClassfileScanner.mayHaveDBC(resource("net.cadrian.fixture.Account")));
+        assertTrue(ClassfileScanner.mayHaveContracts(resource("net.cadrian.fixture.Account")));
+        assertFalse(ClassfileScanner.mayHaveDBC(resource("org.junit.Assert")));
+        assertFalse(ClassfileScanner.mayHaveContracts(resource("org.junit.Assert")));
+
+        // only the contracts of its members, not DBC
+        final byte[] require = new Pool().utf8("foo").utf8(REQUIRE).classfile();
+        assertFalse(ClassfileScanner.mayHaveDBC(require));
+        assertTrue(ClassfileScanner.mayHaveContracts(require));
+    }
+
+    /**
+     * A long or a double takes two entries of the constant pool: the scan
+     * must stop at the end of the pool, not read the bytes after it
+     */
+    @Test
+    public void testTwoSlotEntries() throws Exception {
+        final byte[] after = new Pool().utf8(DBC).entries();
+        assertTrue(ClassfileScanner.mayHaveDBC(new Pool().longValue(1L).doubleValue(2.0).utf8(DBC).classfile()));
+        assertFalse(ClassfileScanner.mayHaveDBC(new Pool().longValue(1L).doubleValue(2.0).utf8("foo").classfile(after)));
+        assertFalse(ClassfileScanner.mayHaveDBC(new Pool().utf8("foo").longValue(1L).classfile(after)));
+
+        final CtClass ctClass = new ClassPool(true).makeClass("net.cadrian.fixture.Constants");
+        ctClass.addField(CtField.make("public static final long L = 123456789012L;", ctClass));
+        ctClass.addField(CtField.make("public static final double D = 1.5;", ctClass));
+        assertFalse(ClassfileScanner.mayHaveDBC(ctClass.toBytecode()));
+    }
+
+    @Test
+    public void testDynamicEntries() throws Exception {
+        final Pool pool = new Pool().utf8("foo").classRef(1).entry(METHOD_HANDLE, 1, 2, 0).entry(METHOD_TYPE, 0, 1).entry(DYNAMIC, 0, 1, 0, 2)
+            .entry(INVOKE_DYNAMIC, 0, 1, 0, 2);
+        final byte[] after = new Pool().utf8(DBC).entries();
+        assertFalse(ClassfileScanner.mayHaveDBC(pool.classfile(after)));
+        assertTrue(ClassfileScanner.mayHaveDBC(pool.utf8(DBC).classfile()));
+        assertFalse(ClassfileScanner.isInstrumented(pool.classfile()));
+    }
+
+    @Test
+    public void testMarker() throws Exception {
+        final CtClass ctClass = new ClassPool(true).makeClass("net.cadrian.fixture.Marked");
+        assertFalse(ClassfileScanner.isInstrumented(ctClass.toBytecode()));
+        ctClass.defrost();
+        InstrumentorUtil.markInstrumented(ctClass);
+        assertTrue(ClassfileScanner.isInstrumented(ctClass.toBytecode()));
+        assertFalse(ClassfileScanner.isInstrumented(resource("net.cadrian.fixture.Account")));
+    }
+
+    /**
+     * Every truncation of a class file is either understood or instrumented
+     */
+    @Test
+    public void testTruncated() throws Exception {
+        final byte[] contracted = resource("net.cadrian.fixture.Account");
+        for (int length = 0; length < contracted.length; length++) {
+            final byte[] truncated = truncate(contracted, length);
+            assertTrue(ClassfileScanner.mayHaveDBC(truncated));
+            assertTrue(ClassfileScanner.mayHaveContracts(truncated));
+            assertFalse(ClassfileScanner.isInstrumented(truncated));
+        }
+        final byte[] plain = resource("org.junit.Assert");
+        for (int length = 0; length < plain.length; length++) {
+            // false once the whole constant pool is read
+            ClassfileScanner.mayHaveDBC(truncate(plain, length));
+            assertFalse(ClassfileScanner.isInstrumented(truncate(plain, length)));
+        }
+        assertTrue(ClassfileScanner.mayHaveDBC(truncate(plain, 100)));
+    }
+
+    @Test
+    public void testCorrupt() throws Exception {
+        final byte[] unknownTag = new Pool().utf8("foo").entry(99, 0, 0).utf8("bar").classfile();
+        assertTrue(ClassfileScanner.mayHaveDBC(unknownTag));
+        assertTrue(ClassfileScanner.mayHaveContracts(unknownTag));
+        assertFalse(ClassfileScanner.isInstrumented(unknownTag));
+
+        final Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            final byte[] garbage = new byte[random.nextInt(200)];
+            random.nextBytes(garbage);
+            // must not throw
+            ClassfileScanner.mayHaveDBC(garbage);
+            ClassfileScanner.mayHaveContracts(garbage);
+            ClassfileScanner.isInstrumented(garbage);
+        }
+    }
+
+    private static byte[] truncate(final byte[] classfile, final int length) {
+        final byte[] result = new byte[length];
+        System.arraycopy(classfile, 0, result, 0, length);
+        return result;
+    }
+
+    private static byte[] resource(final String className) throws IOException {
+        final InputStream in = TestClassfileScanner.class.getClassLoader().getResourceAsStream(className.replace('.', '/') + ".class");
+        return InstrumentorUtil.readFully(in);
+    }
+
+    /**
+     * Builds a constant pool by hand
+     */
+    private static final class Pool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private int count = 1;
+
+        Pool utf8(final String value) throws IOException {
+            out.writeByte(UTF8);
+            out.writeUTF(value);
+            count++;
+            return this;
+        }
+
+        Pool classRef(final int nameIndex) throws IOException {
+            out.writeByte(CLASS);
+            out.writeShort(nameIndex);
+            count++;
+            return this;
+        }
+
+        Pool longValue(final long value) throws IOException {
+            out.writeByte(LONG);
+            out.writeLong(value);
+            count += 2;
+            return this;
+        }
+
+        Pool doubleValue(final double value) throws IOException {
+            out.writeByte(DOUBLE);
+            out.writeDouble(value);
+            count += 2;
+            return this;
+        }
+
+        Pool entry(final int tag, final int... data) {
+            bytes.write(tag);
+            for (final int b : data) {
+                bytes.write(b);
+            }
+            count++;
+            return this;
+        }
+
+        byte[] entries() {
+            return bytes.toByteArray();
+        }
+
+        /**
+         * @param after
+         *            the bytes after the constant pool
+         */
+        byte[] classfile(final byte[]... after) throws IOException {
+            final ByteArrayOutputStream result = new ByteArrayOutputStream();
+            final DataOutputStream classfile = new DataOutputStream(result);
+            classfile.writeInt(0xCAFEBABE);
+            classfile.writeShort(0);
+            classfile.writeShort(50);
+            classfile.writeShort(count);
+            classfile.write(entries());
+            for (final byte[] bytes : after) {
+                classfile.write(bytes);
+            }
+            return result.toByteArray();
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import net.cadrian.incentive.error.RequireError;
+
+import org.junit.Test;
+
+/**
+ * The pure calls shared by the clauses of a contract (see
+ * <code>CommonCalls</code>) are only evaluated when the clauses would have
+ * evaluated them; both backends give the same verdicts.
+ *
+ * @author cadrian
+ */
+public class TestCommonCalls {
+
+    private static final String[] BACKENDS = {"source", "bytecode"};
+
+    /**
+     * The call is shared by the two last clauses, only evaluated if the two
+     * first ones pass
+     */
+    @Test
+    public void testGuarded() throws Throwable {
+        for (final String backend : BACKENDS) {
+            final Object fixture = newFixture(backend);
+            assertRequireError(backend, fixture, "guarded", -1);
+            assertRequireError(backend, fixture, "guarded", 3);
+            assertEquals(backend, 0, calls(fixture));
+
+            InstrumentedLoader.call(fixture, "guarded", Integer.valueOf(1));
+            assertEquals(backend, 1, calls(fixture));
+
+            assertRequireError(backend, fixture, "guarded", 2);
+            assertEquals(backend, 2, calls(fixture));
+        }
+    }
+
+    @Test
+    public void testNotSharedAfterOr() throws Throwable {
+        assertNotShared("alternative");
+    }
+
+    @Test
+    public void testNotSharedAfterAnd() throws Throwable {
+        assertNotShared("conjunction");
+    }
+
+    @Test
+    public void testNotSharedInConditional() throws Throwable {
+        assertNotShared("conditional");
+    }
+
+    @Test
+    public void testNotSharedInArguments() throws Throwable {
+        assertNotShared("arguments");
+    }
+
+    /**
+     * The calls are behind a condition in each clause: none of them is
+     * evaluated for a bad index, and each one is evaluated otherwise
+     */
+    private static void assertNotShared(final String method) throws Throwable {
+        for (final String backend : BACKENDS) {
+            final Object fixture = newFixture(backend);
+            InstrumentedLoader.call(fixture, method, Integer.valueOf(-1));
+            InstrumentedLoader.call(fixture, method, Integer.valueOf(3));
+            assertEquals(backend, 0, calls(fixture));
+
+            InstrumentedLoader.call(fixture, method, Integer.valueOf(1));
+            assertEquals(backend, 2, calls(fixture));
+
+            assertRequireError(backend, fixture, method, 2);
+            assertEquals(backend, 4, calls(fixture));
+        }
+    }
+
+    private static Object newFixture(final String backend) throws Throwable {
+        return new InstrumentedLoader("backend=" + backend).newInstance("SharedCalls");
+    }
+
+    private static int calls(final Object fixture) throws Throwable {
+        return ((Integer) InstrumentedLoader.call(fixture, "calls")).intValue();
+    }
+
+    private static void assertRequireError(final String backend, final Object fixture, final String method, final int index) throws Throwable {
+        try {
+            InstrumentedLoader.call(fixture, method, Integer.valueOf(index));
+            fail(backend + ": expected RequireError for " + method + "(" + index + ")");
+        } catch (final RequireError re) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,218 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.annotation.Annotation;
+import javassist.bytecode.annotation.ArrayMemberValue;
+import javassist.bytecode.annotation.MemberValue;
+import javassist.bytecode.annotation.StringMemberValue;
+import net.cadrian.incentive.error.InvariantError;
+import net.cadrian.incentive.error.RequireError;
+
+import org.junit.Test;
+
+/**
+ * Many threads load many contracted classes at the same time; they must all
+ * be instrumented (needs the javaagent, as the other tests, but without the
+ * cache: see the <code>concurrent-instrumentation</code> execution of the
+ * pom).
+ *
+ * Each thread has its own class loader, and all the classes inherit from a
+ * contracted class of a common parent loader: the threads all need its
+ * contracts, at the same time.
+ *
+ * @author cadrian
+ */
+public class TestConcurrentInstrumentation {
+
+    private static final String PACKAGE = "net.cadrian.stress.";
+    private static final String BASE = PACKAGE + "Base";
+    private static final int THREADS = 16;
+    private static final int CLASSES_PER_THREAD = 125;
+
+    /**
+     * Thousands of classes loaded by many threads
+     */
+    @Test
+    public void testParallelLoading() throws Exception {
+        final ClassPool generator = new ClassPool(true);
+
+        final File root = new File(System.getProperty("java.io.tmpdir"), "incentive-stress-" + System.nanoTime());
+        final CtClass base = generateBase(generator);
+        final ClassLoader baseLoader = writeClasses(new File(root, "base"), getClass().getClassLoader(), base);
+
+        final List<ClassLoader> loaders = new ArrayList<ClassLoader>(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            final CtClass[] contracted = new CtClass[CLASSES_PER_THREAD];
+            for (int i = 0; i < CLASSES_PER_THREAD; i++) {
+                contracted[i] = generateContracted(generator, base, contractedName(t, i));
+            }
+            loaders.add(writeClasses(new File(root, "loader" + t), baseLoader, contracted));
+        }
+
+        final Queue<String> failures = new ConcurrentLinkedQueue<String>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < CLASSES_PER_THREAD; i++) {
+                            final String className = contractedName(thread, i);
+                            final String failure = check(loaders.get(thread).loadClass(className));
+                            if (failure != null) {
+                                failures.add(className + ": " + failure);
+                            }
+                        }
+                    } catch (final Throwable x) {
+                        failures.add(x.toString());
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.MINUTES));
+        delete(root);
+        assertEquals("[]", failures.toString());
+    }
+
+    /**
+     * @return a class loader of the written classes
+     */
+    private static ClassLoader writeClasses(final File directory, final ClassLoader parent, final CtClass... classes) throws Exception {
+        for (final CtClass ctClass : classes) {
+            ctClass.writeFile(directory.getPath());
+        }
+        return new URLClassLoader(new URL[] {directory.toURI().toURL()}, parent);
+    }
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static String contractedName(final int thread, final int index) {
+        return PACKAGE + "Contracted" + thread + "_" + index;
+    }
+
+    /**
+     * @return <code>null</code> if the contracts are all checked, or the
+     *         description of the failure
+     */
+    private static String check(final Class<?> contracted) throws Exception {
+        final Object object = contracted.getDeclaredConstructor().newInstance();
+        final Method set = contracted.getMethod("set", int.class);
+        final Method add = contracted.getMethod("add", int.class);
+        final Method get = contracted.getMethod("get");
+
+        set.invoke(object, 5);
+        add.invoke(object, 3);
+        if (!Integer.valueOf(8).equals(get.invoke(object))) {
+            return "bad value";
+        }
+        if (!fails(set, object, -1, RequireError.class)) {
+            return "inherited precondition not checked";
+        }
+        if (!fails(add, object, 0, RequireError.class)) {
+            return "precondition not checked";
+        }
+
+        final Field value = contracted.getSuperclass().getDeclaredField("value");
+        value.setAccessible(true);
+        value.setInt(object, -1);
+        if (!fails(add, object, 1, InvariantError.class)) {
+            return "invariant not checked";
+        }
+        return null;
+    }
+
+    private static boolean fails(final Method method, final Object target, final int arg, final Class<? extends Throwable> error) throws Exception {
+        try {
+            method.invoke(target, arg);
+        } catch (final InvocationTargetException itx) {
+            return error.isInstance(itx.getCause());
+        }
+        return false;
+    }
+
+    private static CtClass generateBase(final ClassPool generator) throws Exception {
+        final CtClass result = generator.makeClass(BASE);
+        final ConstPool constPool = result.getClassFile().getConstPool();
+        result.getClassFile().addAttribute(annotations(constPool, annotation(constPool, "DBC"), annotation(constPool, "Invariant", "value >= 0")));
+        result.addField(CtField.make("protected int value;", result));
+        result.addConstructor(CtNewConstructor.defaultConstructor(result));
+        final CtMethod set = CtNewMethod.make("public void set(int v) { value = v; }", result);
+        set.getMethodInfo().addAttribute(annotations(constPool, annotation(constPool, "Require", "{arg 1} >= 0"), annotation(constPool, "Ensure", "get() == {arg 1}")));
+        result.addMethod(set);
+        result.addMethod(CtNewMethod.make("public int get() { return value; }", result));
+        return result;
+    }
+
+    private static CtClass generateContracted(final ClassPool generator, final CtClass base, final String className) throws Exception {
+        final CtClass result = generator.makeClass(className, base);
+        final ConstPool constPool = result.getClassFile().getConstPool();
+        result.getClassFile().addAttribute(annotations(constPool, annotation(constPool, "DBC"), annotation(constPool, "Invariant", "value < 1000000")));
+        result.addConstructor(CtNewConstructor.defaultConstructor(result));
+        final CtMethod add = CtNewMethod.make("public void add(int d) { value += d; }", result);
+        add.getMethodInfo().addAttribute(annotations(constPool, annotation(constPool, "Require", "{arg 1} > 0"), annotation(constPool, "Ensure", "get() == {old get()} + {arg 1}")));
+        result.addMethod(add);
+        return result;
+    }
+
+    /**
+     * The incentive annotations all have the class retention
+     */
+    private static AnnotationsAttribute annotations(final ConstPool constPool, final Annotation... annotations) {
+        final AnnotationsAttribute result = new AnnotationsAttribute(constPool, AnnotationsAttribute.invisibleTag);
+        result.setAnnotations(annotations);
+        return result;
+    }
+
+    private static Annotation annotation(final ConstPool constPool, final String annotationName, final String... assertions) {
+        final Annotation result = new Annotation("net.cadrian.incentive." + annotationName, constPool);
+        if (assertions.length > 0) {
+            final MemberValue[] values = new MemberValue[assertions.length];
+            for (int i = 0; i < assertions.length; i++) {
+                values[i] = new StringMemberValue(assertions[i], constPool);
+            }
+            final ArrayMemberValue value = new ArrayMemberValue(new StringMemberValue(constPool), constPool);
+            value.setValue(values);
+            result.addMemberValue("value", value);
+        }
+        return result;
+    }
+
+}
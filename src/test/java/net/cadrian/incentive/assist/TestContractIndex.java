@@ -0,0 +1,180 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.annotation.Annotation;
+import javassist.bytecode.annotation.ArrayMemberValue;
+import javassist.bytecode.annotation.MemberValue;
+import javassist.bytecode.annotation.StringMemberValue;
+
+import net.cadrian.incentive.DBC;
+import net.cadrian.incentive.Require;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A contract index entry is only used for the very class file it was built
+ * from
+ *
+ * @author cadrian
+ */
+public class TestContractIndex {
+
+    private static final String CHANGED = "net.cadrian.fixture.Changed";
+    private static final String UNCHANGED = "net.cadrian.fixture.Unchanged";
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("incentive-index", "");
+        assertTrue(dir.delete());
+        assertTrue(new File(dir, "META-INF/incentive").mkdirs());
+    }
+
+    @After
+    public void deleteDir() {
+        new File(dir, ContractIndex.RESOURCE).delete();
+        new File(dir, "META-INF/incentive").delete();
+        new File(dir, "META-INF").delete();
+        dir.delete();
+    }
+
+    /**
+     * The changed contract has exactly the same constant pool size
+     */
+    @Test
+    public void testChangedContract() throws Exception {
+        final ContractIndex index = index(classfile(CHANGED, "x > 0"), classfile(UNCHANGED, "x > 0"));
+
+        final byte[] changed = classfile(CHANGED, "x > 1");
+        final byte[] unchanged = classfile(UNCHANGED, "x > 0");
+        assertEquals(load(changed).getClassFile2().getConstPool().getSize(), load(unchanged).getClassFile2().getConstPool().getSize());
+
+        assertNull(get(index, changed));
+        final ContractIndex.Contracts contracts = get(index, unchanged);
+        assertNotNull(contracts);
+        assertTrue(contracts.dbc);
+        assertEquals(1, contracts.getBehavior(BehaviorInstrumentor.getKey(load(unchanged).getDeclaredMethod("foo"))).require.size());
+    }
+
+    /**
+     * Same constant pool, only the order of the assertions changed
+     */
+    @Test
+    public void testSwappedAssertions() throws Exception {
+        final ContractIndex index = index(classfile(CHANGED, "x > 0", "x < 10"), classfile(UNCHANGED, "x > 0", "x < 10"));
+
+        assertNull(get(index, classfile(CHANGED, "x < 10", "x > 0")));
+        assertNotNull(get(index, classfile(UNCHANGED, "x > 0", "x < 10")));
+    }
+
+    /**
+     * The digest is the one of the raw bytes, not of the class file as
+     * Javassist would write it back
+     */
+    @Test
+    public void testRawDigest() throws Exception {
+        final byte[] classfile = classfile(UNCHANGED, "x > 0");
+        final ContractIndex index = index(classfile);
+        final ContractIndex.Contracts contracts = get(index, classfile);
+        assertNotNull(contracts);
+        assertEquals(ContractIndex.digest(classfile), contracts.digest);
+    }
+
+    /**
+     * The digest of a class file is computed only once per pool
+     */
+    @Test
+    public void testDigestOnce() throws Exception {
+        final byte[] classfile = classfile(UNCHANGED, "x > 0");
+        final LoaderPool pool = new LoaderPool(null, null);
+        pool.putClassfile(UNCHANGED, classfile);
+        final String digest = pool.getClassfileDigest(UNCHANGED);
+        assertEquals(ContractIndex.digest(classfile), digest);
+        // the class file itself is not needed anymore
+        pool.loaded(UNCHANGED);
+        assertTrue(digest == pool.getClassfileDigest(UNCHANGED));
+    }
+
+    /**
+     * @return the indexed contracts of the class, as the agent would find
+     *         them when the JVM gives it the class file
+     */
+    private static ContractIndex.Contracts get(final ContractIndex index, final byte[] classfile) throws IOException {
+        final CtClass ctClass = load(classfile);
+        final LoaderPool pool = new LoaderPool(null, null);
+        pool.putClassfile(ctClass.getName(), classfile);
+        return index.get(ctClass, pool);
+    }
+
+    private ContractIndex index(final byte[]... classfiles) throws Exception {
+        final Map<String, ContractIndex.Contracts> contracts = new LinkedHashMap<String, ContractIndex.Contracts>();
+        for (final byte[] classfile : classfiles) {
+            final CtClass ctClass = load(classfile);
+            contracts.put(ctClass.getName(), ContractIndex.Contracts.of(ctClass, ContractIndex.digest(classfile)));
+        }
+        final OutputStream out = new FileOutputStream(new File(dir, ContractIndex.RESOURCE));
+        try {
+            ContractIndex.write(out, contracts);
+        } finally {
+            out.close();
+        }
+        final ContractIndex result = ContractIndex.load(new URLClassLoader(new URL[] { dir.toURI().toURL() }, null));
+        assertNotNull(result);
+        return result;
+    }
+
+    private static CtClass load(final byte[] classfile) throws IOException {
+        return new ClassPool(true).makeClass(new ByteArrayInputStream(classfile));
+    }
+
+    private static byte[] classfile(final String name, final String... require) throws Exception {
+        final CtClass ctClass = new ClassPool(true).makeClass(name);
+        final ConstPool constPool = ctClass.getClassFile2().getConstPool();
+        ctClass.addField(CtField.make("private int x;", ctClass));
+        final CtMethod foo = CtNewMethod.make("public void foo() { x++; }", ctClass);
+        ctClass.addMethod(foo);
+
+        final AnnotationsAttribute classAnnotations = new AnnotationsAttribute(constPool, AnnotationsAttribute.invisibleTag);
+        classAnnotations.addAnnotation(new Annotation(DBC.class.getName(), constPool));
+        ctClass.getClassFile2().addAttribute(classAnnotations);
+
+        final MemberValue[] values = new MemberValue[require.length];
+        for (int i = 0; i < require.length; i++) {
+            values[i] = new StringMemberValue(require[i], constPool);
+        }
+        final ArrayMemberValue value = new ArrayMemberValue(new StringMemberValue(constPool), constPool);
+        value.setValue(values);
+        final Annotation requireAnnotation = new Annotation(Require.class.getName(), constPool);
+        requireAnnotation.addMemberValue("value", value);
+        final AnnotationsAttribute methodAnnotations = new AnnotationsAttribute(constPool, AnnotationsAttribute.invisibleTag);
+        methodAnnotations.addAnnotation(requireAnnotation);
+        foo.getMethodInfo().addAttribute(methodAnnotations);
+
+        return ctClass.toBytecode();
+    }
+
+}
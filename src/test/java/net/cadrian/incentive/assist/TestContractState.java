@@ -0,0 +1,158 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.cadrian.incentive.runtime.ContractState;
+
+import org.junit.Test;
+
+/**
+ * With <code>outermost_invariant</code>, the invariant is only checked around
+ * the outermost call on an object, per thread.
+ *
+ * @author cadrian
+ */
+public class TestContractState {
+
+    private static final String OPTIONS = "outermost_invariant";
+
+    @Test
+    public void testEnterCall() {
+        final Object object = new Object();
+        assertTrue(ContractState.enterCall(object));
+        assertFalse(ContractState.enterCall(object));
+        assertTrue(ContractState.enterCall(new Object()));
+        ContractState.leave(object);
+        assertTrue(ContractState.isBusy(object));
+        ContractState.leave(object);
+        assertFalse(ContractState.isBusy(object));
+        assertTrue(ContractState.enterCall(object));
+        ContractState.leave(object);
+    }
+
+    @Test
+    public void testManyBusyObjects() {
+        final Object[] objects = new Object[20];
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = new Object();
+            assertTrue(ContractState.enterCall(objects[i]));
+        }
+        for (int i = objects.length; i --> 0;) {
+            assertTrue(ContractState.isBusy(objects[i]));
+            ContractState.leave(objects[i]);
+            assertFalse(ContractState.isBusy(objects[i]));
+        }
+    }
+
+    @Test
+    public void testBusyPerThread() throws Throwable {
+        final Object object = new Object();
+        assertTrue(ContractState.enterCall(object));
+        try {
+            final AtomicReference<Boolean> outermost = new AtomicReference<Boolean>();
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    outermost.set(Boolean.valueOf(!ContractState.isBusy(object) && ContractState.enterCall(object)));
+                    ContractState.leave(object);
+                }
+            };
+            thread.start();
+            thread.join();
+            assertEquals(Boolean.TRUE, outermost.get());
+        } finally {
+            ContractState.leave(object);
+        }
+    }
+
+    /**
+     * The calls of outer() on the same object do not check the invariant
+     */
+    @Test
+    public void testNestedCall() throws Throwable {
+        final InstrumentedLoader loader = new InstrumentedLoader(OPTIONS);
+        final int inner = checks(loader, "inner");
+        assertTrue(inner > 0);
+        assertEquals(inner, checks(loader, "outer"));
+    }
+
+    /**
+     * Each thread checks the invariant of the object, even while another
+     * thread is inside a call on it
+     */
+    @Test
+    public void testConcurrentCalls() throws Throwable {
+        final InstrumentedLoader loader = new InstrumentedLoader(OPTIONS);
+        final int single = checks(loader, "inside", new Runnable() {
+            @Override
+            public void run() {
+                // nothing
+            }
+        });
+
+        final Object nested = loader.newInstance("Nested");
+        final int initial = checks(nested);
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final AtomicInteger inside = new AtomicInteger();
+        final Runnable await = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // both threads are inside the call
+                    barrier.await();
+                    inside.incrementAndGet();
+                } catch (final Exception x) {
+                    error.set(x);
+                }
+            }
+        };
+        final Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        InstrumentedLoader.call(nested, "inside", await);
+                    } catch (final Throwable t) {
+                        error.set(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+        assertEquals(2, inside.get());
+        assertEquals(2 * single, checks(nested) - initial);
+    }
+
+    /**
+     * @return the number of invariant checks of a new object, by the given
+     *         call
+     */
+    private static int checks(final InstrumentedLoader loader, final String method, final Object... args) throws Throwable {
+        final Object nested = loader.newInstance("Nested");
+        final int initial = checks(nested);
+        InstrumentedLoader.call(nested, method, args);
+        return checks(nested) - initial;
+    }
+
+    private static int checks(final Object nested) throws Exception {
+        final Field field = nested.getClass().getDeclaredField("checks");
+        field.setAccessible(true);
+        return ((AtomicInteger) field.get(nested)).get();
+    }
+
+}
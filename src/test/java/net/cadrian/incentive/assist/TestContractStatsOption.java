@@ -0,0 +1,101 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.cadrian.incentive.error.EnsureError;
+import net.cadrian.incentive.error.InvariantError;
+import net.cadrian.incentive.error.RequireError;
+
+import org.junit.Test;
+
+/**
+ * The <code>contract_stats</code> option: each clause of an instrumented class
+ * counts its evaluations and its failures
+ *
+ * @author cadrian
+ */
+public class TestContractStatsOption {
+
+    private static final String[] BACKENDS = {"source", "bytecode"};
+
+    private static final String ACCOUNT = "net.cadrian.fixture.Account";
+
+    private static final Pattern COUNTERS = Pattern.compile("(\\d+) evaluations, (\\d+) failures, [0-9.,]+ ms");
+
+    @Test
+    public void testClauses() throws Throwable {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName("net.cadrian.incentive:type=ContractStats");
+        for (final String backend : BACKENDS) {
+            final InstrumentedLoader loader = new InstrumentedLoader("contract_stats,backend=" + backend);
+            final Object account = loader.newInstance("Account", Integer.valueOf(10));
+            server.invoke(name, "reset", null, null);
+
+            InstrumentedLoader.call(account, "deposit", Integer.valueOf(5));
+            try {
+                InstrumentedLoader.call(account, "withdraw", Integer.valueOf(100));
+                fail(backend);
+            } catch (final RequireError re) {
+                // expected
+            }
+            try {
+                InstrumentedLoader.call(account, "withdrawTwice", Integer.valueOf(1));
+                fail(backend);
+            } catch (final EnsureError ee) {
+                // expected
+            }
+            InstrumentedLoader.call(account, "overdraw", Integer.valueOf(100));
+            try {
+                InstrumentedLoader.call(account, "balance");
+                fail(backend);
+            } catch (final InvariantError ie) {
+                // expected
+            }
+
+            final String report = (String) server.getAttribute(name, "Report");
+            assertCounters(report, ACCOUNT + ".deposit(int): {arg 1} > 0", 1, 0);
+            assertCounters(report, ACCOUNT + ".deposit(int): balance == {old balance} + {arg 1}", 1, 0);
+            assertCounters(report, ACCOUNT + ".withdraw(int): {arg 1} > 0", 1, 0);
+            assertCounters(report, ACCOUNT + ".withdraw(int): {arg 1} <= balance", 1, 1);
+            assertCounters(report, ACCOUNT + ".withdrawTwice(int): balance == {old balance} - {arg 1}", 1, 1);
+            assertCounters(report, ACCOUNT + "(int): {arg 1} >= 0", 0, 0);
+            final long[] invariant = counters(report, ACCOUNT + ": balance >= 0");
+            assertNotNull(report, invariant);
+            assertTrue(report, invariant[0] > 1);
+            assertEquals(report, 1, invariant[1]);
+        }
+    }
+
+    private static void assertCounters(final String report, final String clause, final long evaluations, final long failures) {
+        final long[] counters = counters(report, clause);
+        assertNotNull(report, counters);
+        assertEquals(report, evaluations, counters[0]);
+        assertEquals(report, failures, counters[1]);
+    }
+
+    /**
+     * @return the evaluations and the failures of the clause, or
+     *         <code>null</code> if the report does not know it
+     */
+    private static long[] counters(final String report, final String clause) {
+        for (final String line : report.split("\\r?\\n")) {
+            if (line.startsWith(clause + ": ")) {
+                final Matcher matcher = COUNTERS.matcher(line.substring(clause.length() + 2));
+                assertTrue(line, matcher.lookingAt());
+                return new long[] {Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2))};
+            }
+        }
+        return null;
+    }
+
+}
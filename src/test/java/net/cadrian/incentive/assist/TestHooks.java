@@ -0,0 +1,135 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtBehavior;
+import javassist.CtClass;
+import javassist.expr.ExprEditor;
+import javassist.expr.MethodCall;
+
+import net.cadrian.incentive.error.EnsureError;
+import net.cadrian.incentive.error.InvariantError;
+import net.cadrian.incentive.error.RequireError;
+
+import org.junit.Test;
+
+/**
+ * The instrumented classes and behaviors are marked (see
+ * {@link InstrumentorUtil#MARKER_ATTRIBUTE}): the contract calls are never
+ * added twice
+ *
+ * @author cadrian
+ */
+public class TestHooks {
+
+    private static final String[] BACKENDS = {"source", "bytecode"};
+
+    /**
+     * The agent leaves an instrumented class alone
+     */
+    @Test
+    public void testInstrumentedSkipped() throws Throwable {
+        final byte[] original = InstrumentorUtil.readFully(getClass().getClassLoader().getResourceAsStream("net/cadrian/fixture/Account.class"));
+        final byte[] instrumented = new InstrumentedLoader(null).getClassfile("Account");
+
+        final Instrumentor agent = new Instrumentor(new LoaderPool(null, null));
+        final long skipped = agent.metrics.getSkippedClasses();
+        assertSame(instrumented, agent.transform(null, "net/cadrian/fixture/Account", null, null, instrumented));
+        assertEquals(skipped + 1, agent.metrics.getSkippedClasses());
+        assertNotSame(original, agent.transform(null, "net/cadrian/fixture/Account", null, null, original));
+        assertEquals(skipped + 1, agent.metrics.getSkippedClasses());
+    }
+
+    /**
+     * A class instrumented with the preconditions only, then with all the
+     * contracts, gets the missing calls only
+     */
+    @Test
+    public void testMissingHooks() throws Throwable {
+        for (final String backend : BACKENDS) {
+            final byte[] all = new InstrumentedLoader("backend=" + backend).getClassfile("Account");
+            final byte[] require = new InstrumentedLoader("require_check,backend=" + backend).getClassfile("Account");
+            final byte[] twice = instrumentAgain("backend=" + backend, require);
+
+            assertTrue(backend, !contractCalls(require).equals(contractCalls(all)));
+            assertEquals(backend, contractCalls(all), contractCalls(twice));
+
+            final InstrumentedLoader loader = new InstrumentedLoader("backend=" + backend);
+            loader.putClassfile("Account", require);
+            final Object account = loader.newInstance("Account", Integer.valueOf(10));
+            try {
+                InstrumentedLoader.call(account, "withdraw", Integer.valueOf(11));
+                fail(backend);
+            } catch (final RequireError re) {
+                // expected
+            }
+            try {
+                InstrumentedLoader.call(account, "withdrawTwice", Integer.valueOf(1));
+                fail(backend);
+            } catch (final EnsureError ee) {
+                // expected
+            }
+            InstrumentedLoader.call(account, "overdraw", Integer.valueOf(100));
+            try {
+                InstrumentedLoader.call(account, "balance");
+                fail(backend);
+            } catch (final InvariantError ie) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * A class instrumented with all the contracts gets no new call
+     */
+    @Test
+    public void testAllHooks() throws Throwable {
+        for (final String backend : BACKENDS) {
+            final byte[] all = new InstrumentedLoader("backend=" + backend).getClassfile("Account");
+            assertEquals(backend, contractCalls(all), contractCalls(instrumentAgain("backend=" + backend, all)));
+        }
+    }
+
+    private static byte[] instrumentAgain(final String options, final byte[] classfile) throws ClassNotFoundException {
+        final InstrumentedLoader loader = new InstrumentedLoader(options);
+        loader.putClassfile("Account", classfile);
+        return loader.getClassfile("Account");
+    }
+
+    /**
+     * @return the number of calls of each contract method, by calling
+     *         behavior
+     */
+    private static Map<String, Integer> contractCalls(final byte[] classfile) throws IOException, CannotCompileException {
+        final CtClass ctClass = new ClassPool(true).makeClass(new ByteArrayInputStream(classfile));
+        final Map<String, Integer> result = new TreeMap<String, Integer>();
+        for (final CtBehavior behavior : ctClass.getDeclaredBehaviors()) {
+            if (behavior.getName().startsWith(ClassInstrumentor.GENERATED_PREFIX)) {
+                continue;
+            }
+            behavior.instrument(new ExprEditor() {
+                @Override
+                public void edit(final MethodCall call) {
+                    if (call.getMethodName().startsWith(ClassInstrumentor.GENERATED_PREFIX)) {
+                        final String key = behavior.getLongName() + " -> " + call.getMethodName();
+                        final Integer count = result.get(key);
+                        result.put(key, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,84 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.cadrian.incentive.error.RequireError;
+
+import org.junit.Test;
+
+/**
+ * The precondition groups of a class and its parents are OR-ed, the clauses
+ * of a group are AND-ed; with both backends
+ *
+ * @author cadrian
+ */
+public class TestInheritedRequire {
+
+    private static final String[] BACKENDS = {"source", "bytecode"};
+
+    @Test
+    public void testParent() throws Throwable {
+        for (final String backend : BACKENDS) {
+            final Object parent = new InstrumentedLoader("backend=" + backend).newInstance("RequireParent");
+            assertPasses(parent, "accept", 4);
+            assertBroken(backend, parent, "accept", -2, "{arg 1} >= 0");
+            assertBroken(backend, parent, "accept", 3, "{arg 1} % 2 == 0");
+        }
+    }
+
+    /**
+     * Each combination of the parent and child groups
+     */
+    @Test
+    public void testChild() throws Throwable {
+        for (final String backend : BACKENDS) {
+            final Object child = new InstrumentedLoader("backend=" + backend).newInstance("RequireChild");
+            // both groups pass
+            assertPasses(child, "accept", 12);
+            // only the parent group passes
+            assertPasses(child, "accept", 4);
+            assertPasses(child, "accept", 200);
+            // only the child group passes
+            assertPasses(child, "accept", 11);
+            // no group passes: the first broken clause of the last group
+            assertBroken(backend, child, "accept", 3, "{arg 1} > 10");
+            assertBroken(backend, child, "accept", -1, "{arg 1} > 10");
+            assertBroken(backend, child, "accept", 101, "{arg 1} < 100");
+        }
+    }
+
+    /**
+     * A parent without precondition, or with an empty one, gives no group:
+     * the precondition of the child is checked alone
+     */
+    @Test
+    public void testNoParentGroup() throws Throwable {
+        for (final String backend : BACKENDS) {
+            final InstrumentedLoader loader = new InstrumentedLoader("backend=" + backend);
+            final Object parent = loader.newInstance("RequireParent");
+            assertPasses(parent, "free", -1);
+            assertPasses(parent, "empty", -1);
+
+            final Object child = loader.newInstance("RequireChild");
+            assertPasses(child, "free", 11);
+            assertPasses(child, "empty", 11);
+            assertBroken(backend, child, "free", 1, "{arg 1} > 10");
+            assertBroken(backend, child, "empty", 1, "{arg 1} > 10");
+        }
+    }
+
+    private static void assertPasses(final Object fixture, final String method, final int value) throws Throwable {
+        InstrumentedLoader.call(fixture, method, Integer.valueOf(value));
+    }
+
+    private static void assertBroken(final String backend, final Object fixture, final String method, final int value, final String clause) throws Throwable {
+        try {
+            InstrumentedLoader.call(fixture, method, Integer.valueOf(value));
+            fail(backend + ": expected RequireError for " + method + "(" + value + ")");
+        } catch (final RequireError re) {
+            assertTrue(backend + ": " + re.getMessage(), re.getMessage().endsWith(": " + clause + " is broken"));
+        }
+    }
+
+}
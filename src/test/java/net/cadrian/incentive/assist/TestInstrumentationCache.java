@@ -0,0 +1,243 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A cache entry is only used for the very class file, parents and options it
+ * was built with
+ *
+ * @author cadrian
+ */
+public class TestInstrumentationCache {
+
+    private static final String CHILD = "net.cadrian.fixture.CachedChild";
+    private static final String PARENT = "net.cadrian.fixture.CachedParent";
+    private static final List<String> PARENTS = Collections.singletonList(PARENT);
+    private static final byte[] BYTECODE = { 1, 2, 3 };
+    private static final Set<String> PURE = new HashSet<String>(Arrays.asList("foo()"));
+
+    private File dir;
+    private File classes;
+    private LoaderPool pool;
+    private byte[] classfile;
+
+    @Before
+    public void createDirs() throws Exception {
+        dir = createDir("incentive-cache");
+        classes = createDir("incentive-classes");
+        writeParent("x");
+        pool = newPool();
+        classfile = classfile(CHILD, "y");
+    }
+
+    @After
+    public void deleteDirs() {
+        delete(dir);
+        delete(classes);
+    }
+
+    @Test
+    public void testHit() {
+        final InstrumentationCache cache = new InstrumentationCache(dir);
+        cache.store(pool, CHILD, classfile, PARENTS, BYTECODE, PURE);
+
+        final InstrumentationCache.Entry entry = new InstrumentationCache(dir).load(pool, CHILD, classfile);
+        assertNotNull(entry);
+        assertArrayEquals(BYTECODE, entry.byteCode);
+        assertEquals(PURE, entry.pureMethods);
+    }
+
+    @Test
+    public void testUnchanged() {
+        final InstrumentationCache cache = new InstrumentationCache(dir);
+        cache.store(pool, CHILD, classfile, PARENTS, null, PURE);
+
+        final InstrumentationCache.Entry entry = cache.load(pool, CHILD, classfile);
+        assertNotNull(entry);
+        assertTrue(entry.isUnchanged());
+    }
+
+    @Test
+    public void testChangedClass() throws Exception {
+        final InstrumentationCache cache = new InstrumentationCache(dir);
+        cache.store(pool, CHILD, classfile, PARENTS, BYTECODE, PURE);
+
+        assertNull(cache.load(pool, CHILD, classfile(CHILD, "z")));
+    }
+
+    @Test
+    public void testChangedParent() throws Exception {
+        final InstrumentationCache cache = new InstrumentationCache(dir);
+        cache.store(pool, CHILD, classfile, PARENTS, BYTECODE, PURE);
+        assertNotNull(cache.load(pool, CHILD, classfile));
+
+        // a new JVM: the parent digest is computed again
+        writeParent("z");
+        assertNull(cache.load(newPool(), CHILD, classfile));
+    }
+
+    @Test
+    public void testParentDigestOnce() throws Exception {
+        final InstrumentationCache cache = new InstrumentationCache(dir);
+        cache.store(pool, CHILD, classfile, PARENTS, BYTECODE, PURE);
+
+        // the loader is not asked again for the parent class file
+        assertTrue(new File(classes, PARENT.replace('.', '/') + ".class").delete());
+        assertNotNull(cache.load(pool, CHILD, classfile));
+        assertNotNull(cache.load(pool, CHILD, classfile));
+        assertNull(cache.load(newPool(), CHILD, classfile));
+    }
+
+    @Test
+    public void testMissingParent() {
+        final InstrumentationCache cache = new InstrumentationCache(dir);
+        cache.store(pool, CHILD, classfile, Collections.singletonList("net.cadrian.fixture.Missing"), BYTECODE, PURE);
+
+        assertNull(cache.load(pool, CHILD, classfile));
+    }
+
+    @Test
+    public void testChangedOption() {
+        new InstrumentationCache(dir).store(pool, CHILD, classfile, PARENTS, BYTECODE, PURE);
+
+        final Option option = Option.outermost_invariant;
+        final boolean wasSet = option.isSet();
+        final String value = option.getValue();
+        final String fingerprint = Option.fingerprint();
+        try {
+            option.setValue(null);
+            assertTrue(!fingerprint.equals(Option.fingerprint()));
+            assertNull(new InstrumentationCache(dir).load(pool, CHILD, classfile));
+        } finally {
+            if (wasSet) {
+                option.set(value);
+            } else {
+                option.set = false;
+            }
+        }
+        assertNotNull(new InstrumentationCache(dir).load(pool, CHILD, classfile));
+    }
+
+    @Test
+    public void testOptionNotChangingBytecode() {
+        new InstrumentationCache(dir).store(pool, CHILD, classfile, PARENTS, BYTECODE, PURE);
+
+        final Option option = Option.cache;
+        final boolean wasSet = option.isSet();
+        final String value = option.getValue();
+        try {
+            option.setValue(new File(dir, "elsewhere").getPath());
+            assertNotNull(new InstrumentationCache(dir).load(pool, CHILD, classfile));
+        } finally {
+            if (wasSet) {
+                option.set(value);
+            } else {
+                option.set = false;
+            }
+        }
+    }
+
+    @Test
+    public void testPartialEntry() throws IOException {
+        final InstrumentationCache cache = new InstrumentationCache(dir);
+        cache.store(pool, CHILD, classfile, PARENTS, BYTECODE, PURE);
+
+        final RandomAccessFile entry = new RandomAccessFile(entryFile(), "rw");
+        try {
+            entry.setLength(entry.length() - 4);
+        } finally {
+            entry.close();
+        }
+        assertNull(cache.load(pool, CHILD, classfile));
+    }
+
+    @Test
+    public void testCorruptEntry() throws IOException {
+        final InstrumentationCache cache = new InstrumentationCache(dir);
+        cache.store(pool, CHILD, classfile, PARENTS, BYTECODE, PURE);
+
+        write(entryFile(), "not a cache entry".getBytes("UTF-8"));
+        assertNull(cache.load(pool, CHILD, classfile));
+
+        write(entryFile(), new byte[0]);
+        assertNull(cache.load(pool, CHILD, classfile));
+
+        // the next store replaces the corrupt entry
+        cache.store(pool, CHILD, classfile, PARENTS, BYTECODE, PURE);
+        assertNotNull(cache.load(pool, CHILD, classfile));
+    }
+
+    private LoaderPool newPool() throws IOException {
+        return new LoaderPool(null, new URLClassLoader(new URL[] { classes.toURI().toURL() }, null));
+    }
+
+    private File entryFile() {
+        final File result = new File(dir, CHILD + ".incentive");
+        assertTrue(result.exists());
+        return result;
+    }
+
+    private void writeParent(final String field) throws Exception {
+        final File file = new File(classes, PARENT.replace('.', '/') + ".class");
+        file.getParentFile().mkdirs();
+        write(file, classfile(PARENT, field));
+    }
+
+    private static byte[] classfile(final String name, final String field) throws Exception {
+        final CtClass ctClass = new ClassPool(true).makeClass(name);
+        ctClass.addField(CtField.make("private int " + field + ";", ctClass));
+        return ctClass.toBytecode();
+    }
+
+    private static void write(final File file, final byte[] bytes) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static File createDir(final String prefix) throws IOException {
+        final File result = File.createTempFile(prefix, "");
+        assertTrue(result.delete());
+        assertTrue(result.mkdirs());
+        return result;
+    }
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
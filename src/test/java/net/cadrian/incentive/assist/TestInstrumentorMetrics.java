@@ -0,0 +1,96 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import net.cadrian.incentive.assist.InstrumentorMetrics.ClassRecord;
+import net.cadrian.incentive.assist.InstrumentorMetrics.Outcome;
+import net.cadrian.incentive.assist.InstrumentorMetrics.Phase;
+
+import org.junit.Test;
+
+/**
+ * The counters and times of the javaagent
+ *
+ * @author cadrian
+ */
+public class TestInstrumentorMetrics {
+
+    @Test
+    public void testOutcomes() {
+        final InstrumentorMetrics metrics = new InstrumentorMetrics(2);
+        metrics.skipped();
+        metrics.skipped();
+        end(metrics, "a", Outcome.instrumented);
+        end(metrics, "b", Outcome.instrumented);
+        end(metrics, "c", Outcome.unchanged);
+        end(metrics, "d", Outcome.cached);
+        // failed unless told otherwise
+        metrics.endClass(metrics.startClass("e"));
+
+        assertEquals(2, metrics.getSkippedClasses());
+        assertEquals(2, metrics.getInstrumentedClasses());
+        assertEquals(1, metrics.getUnchangedClasses());
+        assertEquals(1, metrics.getCachedClasses());
+        assertEquals(1, metrics.getFailedClasses());
+        assertEquals(2, metrics.getSlowestClasses().length);
+        assertTrue(metrics.getReport().startsWith("Incentive: 2 instrumented, 1 unchanged, 1 cached, 1 failed, 2 skipped classes"));
+    }
+
+    @Test
+    public void testNestedPhases() throws InterruptedException {
+        final InstrumentorMetrics metrics = new InstrumentorMetrics(10);
+        final ClassRecord outer = metrics.startClass("outer");
+        phase(metrics, Phase.pool);
+
+        // a parent instrumented while the outer class is being transformed
+        final ClassRecord inner = metrics.startClass("inner");
+        phase(metrics, Phase.gather);
+        inner.outcome = Outcome.instrumented;
+        metrics.endClass(inner);
+
+        // back to the outer class
+        phase(metrics, Phase.compilation);
+        outer.outcome = Outcome.instrumented;
+        metrics.endClass(outer);
+
+        assertTrue(outer.phases[Phase.pool.ordinal()] > 0);
+        assertEquals(0, outer.phases[Phase.gather.ordinal()]);
+        assertTrue(outer.phases[Phase.compilation.ordinal()] > 0);
+
+        assertEquals(0, inner.phases[Phase.pool.ordinal()]);
+        assertTrue(inner.phases[Phase.gather.ordinal()] > 0);
+        assertEquals(0, inner.phases[Phase.compilation.ordinal()]);
+
+        // the outer total includes the inner class
+        assertTrue(outer.total >= inner.total);
+        assertEquals(outer.total + inner.total, metrics.getTransformNanos());
+        assertEquals(outer.phases[Phase.pool.ordinal()], metrics.getPoolNanos());
+        assertEquals(inner.phases[Phase.gather.ordinal()], metrics.getGatherNanos());
+        assertEquals(outer.phases[Phase.compilation.ordinal()], metrics.getCompilationNanos());
+        assertEquals(2, metrics.getInstrumentedClasses());
+
+        final String[] slowest = metrics.getSlowestClasses();
+        assertEquals(2, slowest.length);
+        assertTrue(slowest[0], slowest[0].contains(" outer ("));
+        assertTrue(slowest[1], slowest[1].contains(" inner ("));
+
+        // no current class any more: only the global times
+        phase(metrics, Phase.bytecode);
+        assertTrue(metrics.getBytecodeNanos() > 0);
+        assertEquals(0, outer.phases[Phase.bytecode.ordinal()]);
+    }
+
+    private static void end(final InstrumentorMetrics metrics, final String className, final Outcome outcome) {
+        final ClassRecord record = metrics.startClass(className);
+        record.outcome = outcome;
+        metrics.endClass(record);
+    }
+
+    private static void phase(final InstrumentorMetrics metrics, final Phase phase) throws InterruptedException {
+        final long start = metrics.start();
+        Thread.sleep(2);
+        metrics.end(phase, start);
+    }
+
+}
@@ -0,0 +1,53 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.cadrian.incentive.error.EnsureError;
+import net.cadrian.incentive.error.InvariantError;
+import net.cadrian.incentive.error.RequireError;
+
+import org.junit.Test;
+
+/**
+ * The text of the clauses in the messages of the contract errors, whatever
+ * their literals
+ *
+ * @author cadrian
+ */
+public class TestLiterals {
+
+    private static final String[] BACKENDS = {"source", "bytecode"};
+
+    @Test
+    public void testMessages() throws Throwable {
+        for (final String backend : BACKENDS) {
+            final InstrumentedLoader loader = new InstrumentedLoader("backend=" + backend);
+            final Object literals = loader.newInstance("Literals");
+            InstrumentedLoader.call(literals, "set", "ok");
+            try {
+                InstrumentedLoader.call(literals, "set", "\"");
+                fail(backend);
+            } catch (final RequireError re) {
+                assertEquals(backend, "net.cadrian.fixture.Literals.set(java.lang.String): !{arg 1}.equals(\"\\\"\") is broken", re.getMessage());
+            }
+            try {
+                InstrumentedLoader.call(literals, "set", "a\\");
+                fail(backend);
+            } catch (final EnsureError ee) {
+                assertTrue(ee.getMessage(), ee.getMessage().contains("{!value.endsWith(\"\\\\\")}"));
+            }
+            try {
+                final Object broken = loader.newInstance("Literals");
+                InstrumentedLoader.call(broken, "set", "\\a");
+                // checked on entry of the next call
+                InstrumentedLoader.call(broken, "set", "ok");
+                fail(backend);
+            } catch (final InvariantError ie) {
+                assertTrue(ie.getMessage(), ie.getMessage().contains("{value.indexOf('\\\\') != 0}"));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import net.cadrian.fixture.Account;
+import net.cadrian.fixture.Counter;
+import net.cadrian.fixture.Ranges;
+import net.cadrian.incentive.error.EnsureError;
+import net.cadrian.incentive.error.InvariantError;
+import net.cadrian.incentive.error.RequireError;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A jar instrumented ahead of time checks its contracts without the agent
+ *
+ * @author cadrian
+ */
+public class TestOfflineInstrumentor {
+
+    private static final String FIXTURES = "net/cadrian/fixture/";
+    private static final String RESOURCE = FIXTURES + "data.txt";
+    private static final String SIGNATURE = "META-INF/FIXTURE.SF";
+
+    /**
+     * Started without any agent: runs each scenario and prints its outcome
+     */
+    public static final class Target {
+        public static void main(final String[] args) {
+            System.out.println(run("require") + " " + run("ensure") + " " + run("invariant") + " " + run("quantifier"));
+        }
+
+        private static String run(final String scenario) {
+            try {
+                if ("require".equals(scenario)) {
+                    new Account(10).withdraw(11);
+                } else if ("ensure".equals(scenario)) {
+                    new Counter().skip();
+                } else if ("invariant".equals(scenario)) {
+                    final Account account = new Account(10);
+                    account.overdraw(11);
+                    account.balance();
+                } else if ("quantifier".equals(scenario)) {
+                    new Ranges().forallArray(new int[] {1, 0});
+                }
+                return "none";
+            } catch (final RequireError re) {
+                return "RequireError";
+            } catch (final EnsureError ee) {
+                return "EnsureError";
+            } catch (final InvariantError ie) {
+                return "InvariantError";
+            }
+        }
+    }
+
+    private File dir;
+    private File input;
+
+    @Before
+    public void createJar() throws Exception {
+        dir = File.createTempFile("incentive-offline", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+        input = new File(dir, "fixtures.jar");
+        final File fixtures = new File(Account.class.getProtectionDomain().getCodeSource().getLocation().toURI().getPath(), FIXTURES);
+        final JarOutputStream out = new JarOutputStream(new FileOutputStream(input));
+        try {
+            out.putNextEntry(new JarEntry(FIXTURES));
+            out.closeEntry();
+            for (final File classfile : fixtures.listFiles()) {
+                out.putNextEntry(new JarEntry(FIXTURES + classfile.getName()));
+                out.write(InstrumentorUtil.readFully(new FileInputStream(classfile)));
+                out.closeEntry();
+            }
+            out.putNextEntry(new JarEntry(RESOURCE));
+            out.write("data".getBytes("UTF-8"));
+            out.closeEntry();
+            out.putNextEntry(new JarEntry(SIGNATURE));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void deleteJar() {
+        for (final File file : dir.listFiles()) {
+            file.delete();
+        }
+        new File(dir, "out").delete();
+        dir.delete();
+    }
+
+    @Test(timeout = 120000)
+    public void testJar() throws Exception {
+        final File outputDirectory = new File(dir, "out");
+        assertTrue(outputDirectory.mkdirs());
+        new OfflineInstrumentor(Collections.singletonList(input.getPath()), 2).run(input, outputDirectory);
+        final File output = new File(outputDirectory, input.getName());
+
+        final JarFile jar = new JarFile(output);
+        try {
+            assertTrue(ClassfileScanner.isInstrumented(read(jar, FIXTURES + "Account.class")));
+            assertTrue(ClassfileScanner.isInstrumented(read(jar, FIXTURES + "Counter.class")));
+            assertArrayEquals("data".getBytes("UTF-8"), read(jar, RESOURCE));
+            assertNull(jar.getEntry(SIGNATURE));
+        } finally {
+            jar.close();
+        }
+
+        try {
+            assertEquals("none none none none", runTarget(null));
+            assertEquals("RequireError EnsureError InvariantError RequireError", runTarget(output));
+        } finally {
+            output.delete();
+        }
+    }
+
+    private static byte[] read(final JarFile jar, final String name) throws IOException {
+        final JarEntry entry = jar.getJarEntry(name);
+        assertNotNull(name, entry);
+        return InstrumentorUtil.readFully(jar.getInputStream(entry));
+    }
+
+    /**
+     * @param jar
+     *            the instrumented fixtures, first in the class path; the
+     *            original ones if <code>null</code>
+     * @return the outcomes of the scenarios
+     */
+    private static String runTarget(final File jar) throws IOException, InterruptedException {
+        final String classPath = System.getProperty("java.class.path");
+        final List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(jar == null ? classPath : jar.getPath() + File.pathSeparator + classPath);
+        command.add(Target.class.getName());
+        final Process target = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try {
+            final BufferedReader out = new BufferedReader(new InputStreamReader(target.getInputStream()));
+            String result = null;
+            String line;
+            while ((line = out.readLine()) != null) {
+                // the last line: the logs come first
+                result = line;
+            }
+            assertEquals(0, target.waitFor());
+            assertFalse(result == null);
+            return result;
+        } finally {
+            target.destroy();
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import net.cadrian.incentive.error.EnsureError;
+
+import org.junit.Test;
+
+/**
+ * The old values of the postconditions, kept in locals of the behavior and
+ * given to the postcondition as parameters
+ *
+ * @author cadrian
+ */
+public class TestOldValues {
+
+    private static final String[] BACKENDS = {"source", "bytecode"};
+
+    /**
+     * A long, an int and a double: the two-slot values must not shift the
+     * others
+     */
+    @Test
+    public void testTwoSlots() throws Throwable {
+        for (final String backend : BACKENDS) {
+            final InstrumentedLoader loader = new InstrumentedLoader("backend=" + backend);
+            final Object values = loader.newInstance("OldValues", Long.valueOf(1L << 40));
+            InstrumentedLoader.call(values, "add", Long.valueOf(3L << 33), Double.valueOf(2.5));
+            InstrumentedLoader.call(values, "add", Long.valueOf(-7L), Double.valueOf(0.5));
+            assertEquals(backend, Long.valueOf((1L << 40) + (3L << 33) - 7L), InstrumentedLoader.call(values, "total"));
+            try {
+                InstrumentedLoader.call(values, "add", Long.valueOf(1L), Double.valueOf(0.0));
+                fail(backend);
+            } catch (final EnsureError ee) {
+                assertTrue(ee.getMessage(), ee.getMessage().contains("count == {old count} + 1"));
+            }
+            assertTrue(backend, hasPostcondition(values, long.class, int.class, double.class));
+        }
+    }
+
+    /**
+     * The old value of a field assigned by the constructor is its value
+     * before the body
+     */
+    @Test
+    public void testConstructor() throws Throwable {
+        for (final String backend : BACKENDS) {
+            final InstrumentedLoader loader = new InstrumentedLoader("backend=" + backend);
+            assertEquals(backend, Long.valueOf(42L), InstrumentedLoader.call(loader.newInstance("OldValues", Long.valueOf(42L)), "total"));
+            try {
+                loader.newInstance("OldValues", Long.valueOf(42L), Boolean.TRUE);
+                fail(backend);
+            } catch (final EnsureError ee) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Above the JVM limit of parameter slots, the old values are given in an
+     * array
+     */
+    @Test
+    public void testTooManySlots() throws Throwable {
+        for (final String backend : BACKENDS) {
+            final InstrumentedLoader loader = new InstrumentedLoader("backend=" + backend);
+            final Object values = loader.newInstance("OldValues", Long.valueOf(10L));
+            InstrumentedLoader.call(values, "wide", wideArgs(5L, 6L));
+            assertEquals(backend, Long.valueOf(21L), InstrumentedLoader.call(values, "total"));
+            try {
+                InstrumentedLoader.call(values, "wide", wideArgs(-1L, 1L));
+                fail(backend);
+            } catch (final EnsureError ee) {
+                assertTrue(ee.getMessage(), ee.getMessage().contains("count == {old count} + 1"));
+            }
+            assertTrue(backend, hasPostcondition(values, Object[].class));
+        }
+    }
+
+    private static Object[] wideArgs(final long first, final long last) {
+        final Object[] result = new Object[125];
+        Arrays.fill(result, Long.valueOf(0L));
+        result[0] = Long.valueOf(first);
+        result[124] = Long.valueOf(last);
+        return result;
+    }
+
+    /**
+     * @return <code>true</code> if a generated method of the target ends
+     *         with the given parameters
+     */
+    private static boolean hasPostcondition(final Object target, final Class<?>... lastParameters) {
+        for (final Method method : target.getClass().getDeclaredMethods()) {
+            final Class<?>[] parameters = method.getParameterTypes();
+            if (method.getName().startsWith("__incentive_") && parameters.length >= lastParameters.length
+                && Arrays.equals(lastParameters, Arrays.copyOfRange(parameters, parameters.length - lastParameters.length, parameters.length))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
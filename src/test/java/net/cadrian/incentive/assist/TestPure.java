@@ -0,0 +1,45 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import net.cadrian.incentive.error.InvariantError;
+
+import org.junit.Test;
+
+/**
+ * A method declared {@link net.cadrian.incentive.Pure} by a parent is pure in
+ * all its implementations: the invariant is checked before it, not after (with
+ * <code>outermost_invariant</code>; otherwise the invariant is only checked
+ * before the methods anyway).
+ *
+ * @author cadrian
+ */
+public class TestPure {
+
+    private static final String OPTIONS = "outermost_invariant";
+
+    @Test
+    public void testNotCheckedAfterInheritedPure() throws Throwable {
+        final Object counted = new InstrumentedLoader(OPTIONS).newInstance("CountedDown");
+        assertEquals(Integer.valueOf(0), InstrumentedLoader.call(counted, "count"));
+        try {
+            InstrumentedLoader.call(counted, "count");
+            fail("expected InvariantError before count()");
+        } catch (final InvariantError ie) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCheckedAfterCommand() throws Throwable {
+        final Object counted = new InstrumentedLoader(OPTIONS).newInstance("CountedDown");
+        try {
+            InstrumentedLoader.call(counted, "countDown");
+            fail("expected InvariantError after countDown()");
+        } catch (final InvariantError ie) {
+            // expected
+        }
+    }
+
+}
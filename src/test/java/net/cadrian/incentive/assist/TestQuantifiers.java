@@ -0,0 +1,181 @@
+package net.cadrian.incentive.assist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.cadrian.incentive.error.RequireError;
+
+import org.junit.Test;
+
+/**
+ * The forall and exists loops over integer ranges, arrays and collections,
+ * with both backends
+ *
+ * @author cadrian
+ */
+public class TestQuantifiers {
+
+    private static final String[] BACKENDS = {"source", "bytecode"};
+
+    /**
+     * An empty range: forall is true, exists is false, and no item is
+     * looked at
+     */
+    @Test
+    public void testEmptyRange() throws Throwable {
+        for (final String backend : BACKENDS) {
+            final Object ranges = newFixture(backend);
+            call(ranges, "forallRange", 5, 5);
+            call(ranges, "forallRange", 10, 3);
+            assertRangeRequireError(backend, ranges, "existsRange", 5, 5);
+            assertRangeRequireError(backend, ranges, "existsRange", 10, 3);
+        }
+    }
+
+    @Test
+    public void testRange() throws Throwable {
+        for (final String backend : BACKENDS) {
+            final Object ranges = newFixture(backend);
+            call(ranges, "forallRange", 0, 3);
+            call(ranges, "existsRange", 0, 2);
+            call(ranges, "existsRange", 1, 3);
+            assertRangeRequireError(backend, ranges, "existsRange", 0, 1);
+            try {
+                call(ranges, "forallRange", 0, 4);
+                fail(backend + ": values[3] is out of bounds");
+            } catch (final RequireError re) {
+                assertTrue(backend, re.getCause() instanceof ArrayIndexOutOfBoundsException);
+            }
+        }
+    }
+
+    /**
+     * The upper bound is evaluated once, not at each step
+     */
+    @Test
+    public void testUpperBoundOnce() throws Throwable {
+        for (final String backend : BACKENDS) {
+            final Object ranges = newFixture(backend);
+            InstrumentedLoader.call(ranges, "forallBound");
+            assertEquals(backend, 1, count(ranges, "bounds"));
+            InstrumentedLoader.call(ranges, "existsBound");
+            assertEquals(backend, 2, count(ranges, "bounds"));
+        }
+    }
+
+    @Test
+    public void testArray() throws Throwable {
+        for (final String backend : BACKENDS) {
+            final Object ranges = newFixture(backend);
+            InstrumentedLoader.call(ranges, "forallArray", new int[] {1, 2});
+            InstrumentedLoader.call(ranges, "forallArray", new int[0]);
+            assertRequireError(backend, ranges, "forallArray", new int[] {1, 0});
+
+            InstrumentedLoader.call(ranges, "existsArray", new int[] {0, 2});
+            assertRequireError(backend, ranges, "existsArray", new int[] {0, -1});
+            assertRequireError(backend, ranges, "existsArray", new int[0]);
+        }
+    }
+
+    /**
+     * The quantifier is only evaluated if the guard does not decide the
+     * clause: no loop over a null array
+     */
+    @Test
+    public void testGuarded() throws Throwable {
+        for (final String backend : BACKENDS) {
+            final Object ranges = newFixture(backend);
+            InstrumentedLoader.call(ranges, "forallGuarded", (Object) null);
+            InstrumentedLoader.call(ranges, "forallGuarded", new int[] {1, 2});
+            assertRequireError(backend, ranges, "forallGuarded", new int[] {1, 0});
+
+            InstrumentedLoader.call(ranges, "existsGuarded", new int[] {0, 2});
+            assertRequireError(backend, ranges, "existsGuarded", new int[] {0, -1});
+            try {
+                InstrumentedLoader.call(ranges, "existsGuarded", (Object) null);
+                fail(backend + ": expected RequireError for existsGuarded");
+            } catch (final RequireError re) {
+                // broken by the guard, not by the loop
+                assertEquals(backend, null, re.getCause());
+            }
+        }
+    }
+
+    /**
+     * The constructor precondition is static, hence its quantifier helpers
+     */
+    @Test
+    public void testConstructor() throws Throwable {
+        for (final String backend : BACKENDS) {
+            final InstrumentedLoader loader = new InstrumentedLoader("backend=" + backend);
+            loader.newInstance("Ranges", new int[] {1, 2});
+            loader.newInstance("Ranges", new int[0]);
+            try {
+                loader.newInstance("Ranges", new int[] {1, 0});
+                fail(backend + ": expected RequireError for the constructor");
+            } catch (final RequireError re) {
+                // expected
+            }
+            assertTrue(backend, loader.getInstrumented() > 0);
+        }
+    }
+
+    /**
+     * A Collection is read with item(i), another Iterable with its iterator
+     */
+    @Test
+    public void testCollection() throws Throwable {
+        for (final String backend : BACKENDS) {
+            final InstrumentedLoader loader = new InstrumentedLoader("backend=" + backend);
+            final Object ranges = loader.newInstance("Ranges");
+
+            final Object positive = loader.newInstance("CountedItems", new int[] {1, 2, 3});
+            final int items = count(positive, "items");
+            InstrumentedLoader.call(ranges, "forallCollection", positive);
+            InstrumentedLoader.call(ranges, "existsCollection", positive);
+            assertEquals(backend, items + 4, count(positive, "items"));
+            assertEquals(backend, 0, count(positive, "iterators"));
+
+            final Object negative = loader.newInstance("CountedItems", new int[] {-1, 0});
+            assertRequireError(backend, ranges, "forallCollection", negative);
+            assertRequireError(backend, ranges, "existsCollection", negative);
+            assertEquals(backend, 0, count(negative, "iterators"));
+
+            final Object empty = loader.newInstance("CountedItems", new int[0]);
+            InstrumentedLoader.call(ranges, "forallCollection", empty);
+            assertRequireError(backend, ranges, "existsCollection", empty);
+
+            InstrumentedLoader.call(ranges, "forallIterable", positive);
+            assertEquals(backend, 1, count(positive, "iterators"));
+            assertRequireError(backend, ranges, "forallIterable", negative);
+        }
+    }
+
+    private static Object newFixture(final String backend) throws Throwable {
+        return new InstrumentedLoader("backend=" + backend).newInstance("Ranges");
+    }
+
+    private static void call(final Object ranges, final String method, final int lower, final int upper) throws Throwable {
+        InstrumentedLoader.call(ranges, method, Integer.valueOf(lower), Integer.valueOf(upper));
+    }
+
+    private static int count(final Object fixture, final String counter) throws Throwable {
+        return ((Integer) InstrumentedLoader.call(fixture, counter)).intValue();
+    }
+
+    private static void assertRequireError(final String backend, final Object ranges, final String method, final Object... args) throws Throwable {
+        try {
+            InstrumentedLoader.call(ranges, method, args);
+            fail(backend + ": expected RequireError for " + method);
+        } catch (final RequireError re) {
+            // expected
+        }
+    }
+
+    private static void assertRangeRequireError(final String backend, final Object ranges, final String method, final int lower, final int upper)
+        throws Throwable {
+        assertRequireError(backend, ranges, method, Integer.valueOf(lower), Integer.valueOf(upper));
+    }
+
+}
@@ -0,0 +1,116 @@
+package net.cadrian.incentive.assist.assertion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import net.cadrian.incentive.assist.Assertion;
+import net.cadrian.incentive.assist.SyntaxException;
+
+import org.junit.Test;
+
+/**
+ * The quantifiers, and their integer range form <code>lower..upper</code>
+ *
+ * @author cadrian
+ */
+public class TestAssertionParser {
+
+    @Test
+    public void testRange() {
+        final AssertionForall forall = (AssertionForall) quantifier("{forall(int i: 0..count()) item(i) != null}");
+        assertEquals("int", forall.type);
+        assertEquals("i", forall.var);
+        assertEquals("0", forall.value.toString().trim());
+        assertEquals("count()", forall.upper.toString().trim());
+        assertEquals("item(i) != null", forall.assertion.toString().trim());
+    }
+
+    @Test
+    public void testRangeOfArgs() {
+        final AssertionExists exists = (AssertionExists) quantifier("{exists(int i: {arg 1}..{arg 2}) i == 0}");
+        assertEquals(1, exists.value.getAssertions().size());
+        assertEquals(1, ((AssertionArg) exists.value.getAssertions().get(0)).index);
+        assertEquals(1, exists.upper.getAssertions().size());
+        assertEquals(2, ((AssertionArg) exists.upper.getAssertions().get(0)).index);
+    }
+
+    @Test
+    public void testRangeOfExpressions() {
+        final AssertionForall forall = (AssertionForall) quantifier("{forall(int i: {arg 1} + 1..items.length - 1) items[i] > 0}");
+        assertEquals("{arg 1} + 1", forall.value.toString());
+        assertEquals("items.length - 1", forall.upper.toString());
+    }
+
+    @Test
+    public void testNotRange() {
+        final AssertionForall forall = (AssertionForall) quantifier("{forall(K k: keySet()) k != null}");
+        assertEquals("keySet()", forall.value.toString().trim());
+        assertNull(forall.upper);
+
+        final AssertionExists exists = (AssertionExists) quantifier("{exists(V v: values()) v == null}");
+        assertNull(exists.upper);
+    }
+
+    @Test
+    public void testNestedRange() {
+        final AssertionForall forall = (AssertionForall) quantifier("{forall(int i: 0..n) {exists(int j: i..n) j > i}}");
+        assertEquals("n", forall.upper.toString().trim());
+        AssertionExists exists = null;
+        for (final Assertion assertion : forall.assertion.getAssertions()) {
+            if (assertion instanceof AssertionExists) {
+                exists = (AssertionExists) assertion;
+            }
+        }
+        assertEquals("i", exists.value.toString().trim());
+        assertEquals("n", exists.upper.toString().trim());
+    }
+
+    @Test
+    public void testMissingBounds() {
+        assertSyntaxError("{forall(int i: ..n) i > 0}");
+        assertSyntaxError("{forall(int i: 0..) i > 0}");
+        assertSyntaxError("{exists(int i: ..) i > 0}");
+    }
+
+    /**
+     * The range is kept by the contract index
+     */
+    @Test
+    public void testCodec() throws IOException {
+        final List<Assertion> assertions = AssertionCodec.parse(new String[] {"{forall(int i: 0..count()) item(i) != null}",
+                                                                              "{exists(int i: {arg 1}..{arg 2}) i == 0}",
+                                                                              "{forall(K k: keySet()) k != null}"});
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        AssertionCodec.write(out, assertions);
+        out.flush();
+        final List<Assertion> read = AssertionCodec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(assertions.toString(), read.toString());
+        assertTrue(read.toString().contains("{forall(int i: 0..count())"));
+    }
+
+    private static Assertion quantifier(final String assertion) {
+        final AssertionSequence sequence = (AssertionSequence) AssertionCodec.parse(new String[] {assertion}).get(0);
+        assertEquals(1, sequence.getAssertions().size());
+        return sequence.getAssertions().get(0);
+    }
+
+    private static void assertSyntaxError(final String assertion) {
+        try {
+            AssertionCodec.parse(new String[] {assertion});
+            fail("expected syntax error: " + assertion);
+        } catch (final SyntaxException sx) {
+            // expected
+        }
+    }
+
+}
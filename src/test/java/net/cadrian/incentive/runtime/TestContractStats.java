@@ -0,0 +1,131 @@
+package net.cadrian.incentive.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The counters of each clause, as seen by the MBean and the report
+ *
+ * @author cadrian
+ */
+public class TestContractStats {
+
+    private static final Pattern COUNTERS = Pattern.compile("(\\d+) evaluations, (\\d+) failures, [0-9.,]+ ms");
+
+    private MBeanServer server;
+    private ObjectName name;
+
+    @Before
+    public void reset() throws Exception {
+        server = ManagementFactory.getPlatformMBeanServer();
+        name = new ObjectName(ContractStats.OBJECT_NAME);
+        // the class registers the MBean
+        ContractStats.site("");
+        server.invoke(name, "reset", null, null);
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        final String clause = "TestContractStats.testCounters(): a == b".intern();
+        final int site = ContractStats.site(clause);
+        final int clauses = ((Integer) server.getAttribute(name, "ClauseCount")).intValue();
+
+        for (int i = 0; i < 10; i++) {
+            ContractStats.record(site, clause, i % 3 != 0, System.nanoTime());
+        }
+        assertCounters(clause, 10, 4);
+        assertEquals(Integer.valueOf(clauses + 1), server.getAttribute(name, "ClauseCount"));
+        assertEquals(Long.valueOf(10), server.getAttribute(name, "Evaluations"));
+        assertEquals(Long.valueOf(4), server.getAttribute(name, "Failures"));
+        assertTrue(((Long) server.getAttribute(name, "Nanos")).longValue() >= 0);
+        assertTrue(Arrays.asList((String[]) server.getAttribute(name, "HottestClauses")).toString().contains(clause));
+
+        server.invoke(name, "reset", null, null);
+        assertCounters(clause, 0, 0);
+        assertEquals(Long.valueOf(0), server.getAttribute(name, "Evaluations"));
+        assertEquals(Integer.valueOf(clauses + 1), server.getAttribute(name, "ClauseCount"));
+    }
+
+    /**
+     * Two clauses of the same site are counted apart
+     */
+    @Test
+    public void testSameSite() throws Exception {
+        final String first = "TestContractStats.testSameSite(): first".intern();
+        final int site = ContractStats.site(first);
+        String second = null;
+        for (int i = 0; second == null; i++) {
+            final String clause = "TestContractStats.testSameSite(): " + i;
+            if (ContractStats.site(clause) == site) {
+                second = clause.intern();
+            }
+        }
+
+        ContractStats.record(site, first, true, System.nanoTime());
+        ContractStats.record(site, second, false, System.nanoTime());
+        ContractStats.record(site, second, false, System.nanoTime());
+        assertCounters(first, 1, 0);
+        assertCounters(second, 2, 2);
+    }
+
+    /**
+     * The stripes of all the threads are summed
+     */
+    @Test
+    public void testThreads() throws Exception {
+        final String clause = "TestContractStats.testThreads(): ok".intern();
+        final int site = ContractStats.site(clause);
+        final Thread[] threads = new Thread[16];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        ContractStats.record(site, clause, j % 10 != 0, System.nanoTime());
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertCounters(clause, 16000, 1600);
+    }
+
+    /**
+     * @return the evaluations and the failures of the clause, read from the
+     *         report
+     */
+    private long[] counters(final String clause) throws Exception {
+        final String report = (String) server.getAttribute(name, "Report");
+        for (final String line : report.split("\r?\n")) {
+            if (line.startsWith(clause + ": ")) {
+                final Matcher matcher = COUNTERS.matcher(line.substring(clause.length() + 2));
+                assertTrue(line, matcher.lookingAt());
+                return new long[] {Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2))};
+            }
+        }
+        return null;
+    }
+
+    private void assertCounters(final String clause, final long evaluations, final long failures) throws Exception {
+        final long[] counters = counters(clause);
+        assertNotNull(clause, counters);
+        assertEquals(clause, evaluations, counters[0]);
+        assertEquals(clause, failures, counters[1]);
+    }
+
+}
@@ -0,0 +1,78 @@
+package net.cadrian.incentive.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Each contracted method and constructor has its own sampling counter
+ *
+ * @author cadrian
+ */
+public class TestSampler {
+
+    private static final String CLASS_NAME = "net.cadrian.sampled.S";
+
+    /**
+     * Two methods of the same site, called alternately: each one is checked
+     * one call out of two
+     */
+    @Test
+    public void testSameSite() {
+        final String[] keys = sameSite();
+        final int site = Sampler.site(CLASS_NAME, keys[0]);
+        final String first = (CLASS_NAME + "." + keys[0]).intern();
+        final String second = (CLASS_NAME + "." + keys[1]).intern();
+
+        int firstChecked = 0;
+        int secondChecked = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (Sampler.sample(site, first, 2)) {
+                firstChecked++;
+            }
+            if (Sampler.sample(site, second, 2)) {
+                secondChecked++;
+            }
+        }
+        assertEquals(500, firstChecked);
+        assertEquals(500, secondChecked);
+    }
+
+    /**
+     * More methods than the initial counters of a thread
+     */
+    @Test
+    public void testManySites() {
+        final int count = 200;
+        final int[] checked = new int[count];
+        for (int call = 0; call < 10; call++) {
+            for (int i = 0; i < count; i++) {
+                final String key = "m" + i + ":()V";
+                if (Sampler.sample(Sampler.site(CLASS_NAME, key), (CLASS_NAME + "." + key).intern(), 5)) {
+                    checked[i]++;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            assertEquals("m" + i, 2, checked[i]);
+        }
+    }
+
+    /**
+     * @return two method keys of {@link #CLASS_NAME} that have the same site
+     */
+    private static String[] sameSite() {
+        final String first = "maaa:(I)V";
+        final int site = Sampler.site(CLASS_NAME, first);
+        for (int i = 0; i < 1000000; i++) {
+            final String key = "m" + i + ":(I)V";
+            if (Sampler.site(CLASS_NAME, key) == site) {
+                return new String[] {first, key};
+            }
+        }
+        fail("no two keys of the same site");
+        return null;
+    }
+
+}
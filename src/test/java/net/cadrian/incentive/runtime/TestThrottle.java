@@ -0,0 +1,102 @@
+package net.cadrian.incentive.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Each contracted method and constructor is throttled on its own
+ *
+ * @author cadrian
+ */
+public class TestThrottle {
+
+    private static final String CLASS_NAME = "net.cadrian.throttled.T";
+
+    /**
+     * Two methods of the same site: the contracts of the first one cost much
+     * more than its body, and end up checked once every 10000 calls; the second one,
+     * cheap, is still checked at each call
+     */
+    @Test
+    public void testSameSite() {
+        final String[] keys = sameSite();
+        final int site = Sampler.site(CLASS_NAME, keys[0]);
+        final String slow = (CLASS_NAME + "." + keys[0]).intern();
+        final String fast = (CLASS_NAME + "." + keys[1]).intern();
+
+        final int calls = 2000000;
+        int slowChecked = 0;
+        int fastChecked = 0;
+        for (int i = 0; i < calls; i++) {
+            if (Throttle.sample(site, slow, 1, Throttle.DEFAULT_RATIO)) {
+                slowChecked++;
+                // a body of no time, and contracts of one second
+                final long end = Throttle.body(site, slow, System.nanoTime());
+                Throttle.end(site, slow, 1000000000L, end);
+            }
+            if (Throttle.sample(site, fast, 1, Throttle.DEFAULT_RATIO)) {
+                fastChecked++;
+                // a body of one millisecond, and contracts of no time
+                final long end = Throttle.body(site, fast, System.nanoTime() - 1000000L);
+                Throttle.end(site, fast, 0L, end);
+            }
+        }
+        assertEquals(calls, fastChecked);
+        // 64 checked calls for each period: 1, 10, 100 and 1000; then one
+        // call out of 10000 until the end
+        assertEquals(4 * 64 + 193, slowChecked);
+    }
+
+    /**
+     * The contracts of a method first cost much more than its body, then
+     * much less: the method is checked at each call again
+     */
+    @Test
+    public void testRecovery() {
+        final String key = "recover:()V";
+        final int site = Sampler.site(CLASS_NAME, key);
+        final String name = (CLASS_NAME + "." + key).intern();
+
+        final int calls = 1000000;
+        int checked = 0;
+        for (int i = 0; i < calls; i++) {
+            if (Throttle.sample(site, name, 1, Throttle.DEFAULT_RATIO)) {
+                // a body of no time, and contracts of one second
+                final long end = Throttle.body(site, name, System.nanoTime());
+                Throttle.end(site, name, 1000000000L, end);
+            }
+        }
+        for (int i = 0; i < calls; i++) {
+            if (Throttle.sample(site, name, 1, Throttle.DEFAULT_RATIO)) {
+                checked++;
+                // a body of one millisecond, and contracts of no time
+                final long end = Throttle.body(site, name, System.nanoTime() - 1000000L);
+                Throttle.end(site, name, 0L, end);
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(Throttle.sample(site, name, 1, Throttle.DEFAULT_RATIO));
+        }
+        assertTrue(checked > 4 * 64);
+    }
+
+    /**
+     * @return two method keys of {@link #CLASS_NAME} that have the same site
+     */
+    private static String[] sameSite() {
+        final String first = "slow:()V";
+        final int site = Sampler.site(CLASS_NAME, first);
+        for (int i = 0; i < 1000000; i++) {
+            final String key = "m" + i + ":()V";
+            if (Sampler.site(CLASS_NAME, key) == site) {
+                return new String[] {first, key};
+            }
+        }
+        fail("no two keys of the same site");
+        return null;
+    }
+
+}